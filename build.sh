@@ -16,6 +16,10 @@ echo "Compiling Java sources..."
 javac -cp lib/jade.jar -d bin \
     src/models/*.java \
     src/utils/*.java \
+    src/codec/*.java \
+    src/directory/*.java \
+    src/metrics/*.java \
+    src/logging/*.java \
     src/ml/*.java \
     src/negotiation/*.java \
     src/fault/*.java \
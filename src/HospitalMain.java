@@ -4,6 +4,10 @@ import jade.core.Runtime;
 import jade.wrapper.AgentContainer;
 import jade.wrapper.AgentController;
 import jade.wrapper.StaleProxyException;
+import logging.LogSink;
+import metrics.MetricsEndpoint;
+
+import java.awt.GraphicsEnvironment;
 
 /**
  * Enhanced Hospital Resource Allocation System
@@ -14,14 +18,49 @@ public class HospitalMain {
     
     private static AgentContainer mainContainer;
     
+    // Number of scheduler shards, set with --shards=N (1 = single scheduler)
+    private static int schedulerShards = 1;
+    
+    // Server mode, set with --headless or when no display is available: no JADE GUI
+    // nor dashboard, the metrics are served on --metrics-port=N (0 = no endpoint)
+    private static boolean headless = GraphicsEnvironment.isHeadless();
+    private static int metricsPort = -1;
+    
+    // Directory of the persistent metrics history, set with --history-dir=DIR (--no-history to disable)
+    private static String historyDirectory = "metrics-history";
+    
     public static void main(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--shards=")) {
+                schedulerShards = Math.max(1, Integer.parseInt(arg.substring("--shards=".length())));
+            } else if (arg.equals("--headless")) {
+                headless = true;
+            } else if (arg.startsWith("--metrics-port=")) {
+                metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+            } else if (arg.startsWith("--history-dir=")) {
+                historyDirectory = arg.substring("--history-dir=".length());
+            } else if (arg.equals("--no-history")) {
+                historyDirectory = "";
+            } else if (arg.startsWith("--log-level=")) {
+                // Agent logs: DEBUG, INFO, WARN, ERROR or OFF; --log-rate=0 for no rate limit
+                LogSink.shared().setLevel(LogSink.Level.valueOf(arg.substring("--log-level=".length()).toUpperCase()));
+            } else if (arg.equals("--log-json")) {
+                LogSink.shared().setFormat(LogSink.Format.JSON_LINES);
+            } else if (arg.startsWith("--log-rate=")) {
+                LogSink.shared().setRateLimit(Integer.parseInt(arg.substring("--log-rate=".length())));
+            }
+        }
+        if (metricsPort < 0) {
+            metricsPort = headless ? MetricsEndpoint.DEFAULT_PORT : 0;
+        }
+        
         try {
             // Get JADE runtime
             Runtime rt = Runtime.instance();
             
             // Create a default profile
             Profile profile = new ProfileImpl(true);
-            profile.setParameter(Profile.GUI, "true"); // Start JADE GUI
+            profile.setParameter(Profile.GUI, String.valueOf(!headless)); // Start JADE GUI
             
             // Create main container
             mainContainer = rt.createMainContainer(profile);
@@ -50,11 +89,18 @@ public class HospitalMain {
             // Note: Dashboard is created by MonitoringAgent
             
             System.out.println("\n✅ System started successfully!");
-            System.out.println("📊 Analytics Dashboard is available");
+            if (headless) {
+                System.out.println("📊 Headless mode: no dashboard" + 
+                    (metricsPort > 0 ? ", metrics on http://localhost:" + metricsPort + "/metrics" : ""));
+            } else {
+                System.out.println("📊 Analytics Dashboard is available");
+            }
             System.out.println("🤖 All agents are operational\n");
             
             // Print usage instructions
-            printInstructions();
+            if (!headless) {
+                printInstructions();
+            }
             
         } catch (StaleProxyException e) {
             System.err.println("❌ Error starting system: " + e.getMessage());
@@ -67,7 +113,7 @@ public class HospitalMain {
         
         // 1. Monitoring Agent (MUST BE FIRST - creates the dashboard)
         AgentController monitoringAgent = mainContainer.createNewAgent(
-            "Monitor", "agents.MonitoringAgent", new Object[]{});
+            "Monitor", "agents.MonitoringAgent", new Object[]{headless ? "headless" : "gui", String.valueOf(metricsPort), historyDirectory});
         monitoringAgent.start();
         System.out.println("  ✓ Monitoring Agent created");
         
@@ -78,11 +124,20 @@ public class HospitalMain {
             e.printStackTrace();
         }
         
-        // 2. Scheduler Agent (Core)
-        AgentController schedulerAgent = mainContainer.createNewAgent(
-            "Scheduler", "agents.SchedulerAgent", new Object[]{});
-        schedulerAgent.start();
-        System.out.println("  ✓ Scheduler Agent created");
+        // 2. Scheduler Agent (Core), or one scheduler shard per container
+        if (schedulerShards > 1) {
+            for (int i = 0; i < schedulerShards; i++) {
+                AgentController schedulerShard = createShardContainer(i).createNewAgent(
+                    "Scheduler" + i, "agents.SchedulerAgent", new Object[]{"greedy", "0", "S" + i});
+                schedulerShard.start();
+            }
+            System.out.println("  ✓ " + schedulerShards + " Scheduler shards created (partitioned by department)");
+        } else {
+            AgentController schedulerAgent = mainContainer.createNewAgent(
+                "Scheduler", "agents.SchedulerAgent", new Object[]{});
+            schedulerAgent.start();
+            System.out.println("  ✓ Scheduler Agent created");
+        }
         
         // 3. Fault Tolerance Manager (NEW)
         AgentController faultManager = mainContainer.createNewAgent(
@@ -105,6 +160,16 @@ public class HospitalMain {
         }
     }
     
+    /**
+     * Peripheral container hosting one scheduler shard, attached to the local main container
+     */
+    private static AgentContainer createShardContainer(int shard) {
+        Profile profile = new ProfileImpl(false);
+        profile.setParameter(Profile.MAIN_HOST, "localhost");
+        profile.setParameter(Profile.CONTAINER_NAME, "Scheduler-Shard-" + shard);
+        return Runtime.instance().createAgentContainer(profile);
+    }
+    
     private static void createResourceAgents() throws StaleProxyException {
         System.out.println("\nCreating Resource Agents...");
         
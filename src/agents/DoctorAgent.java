@@ -1,6 +1,8 @@
 package agents;
 
+import directory.DirectoryCache;
 import jade.core.Agent;
+import jade.core.AID;
 import jade.core.behaviours.*;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
@@ -8,20 +10,46 @@ import jade.domain.DFService;
 import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
+import loadbalancing.LoadBalancerClient;
+import loadbalancing.ResourceLoad;
+import logging.AgentLog;
+import metrics.TelemetryEmitter;
 import models.Doctor;
+import utils.HospitalMessage;
+import utils.HospitalMessage.Opcode;
 import utils.MessageProtocol;
+import utils.ReservationHold;
 import utils.SchedulingAlgorithm;
 
+import java.util.List;
+
 /**
  * Doctor Agent - Manages doctor availability and treats patients
  * Master IA - Systèmes Multi-Agents Project
  */
 public class DoctorAgent extends Agent {
     private Doctor doctorData;
+    private AgentLog log;
     private long treatmentStartTime;
+    private WakerBehaviour treatment;
+    
+    // Availability state pushed to the index of the schedulers found in the directory cache
+    private DirectoryCache directory;
+    private long stateVersion;
+    
+    // Tentative hold for two-phase reservations
+    private ReservationHold hold;
+    
+    // Patients sent by the load balancer, treated in turn while it may move the waiting ones
+    private LoadBalancerClient balancer;
+    
+    // Message content parser, reused for every message
+    private final HospitalMessage parser = new HospitalMessage();
     
     @Override
     protected void setup() {
+        log = AgentLog.of(getLocalName());
+        
         // Get arguments: id, name, specialization
         Object[] args = getArguments();
         if (args != null && args.length >= 3) {
@@ -30,16 +58,34 @@ public class DoctorAgent extends Agent {
             String specialization = (String) args[2];
             
             doctorData = new Doctor(id, name, specialization);
-            System.out.println("Doctor Agent " + getLocalName() + " initialized: " + doctorData);
+            hold = new ReservationHold();
+            balancer = new LoadBalancerClient(ResourceLoad.OVERLOAD_THRESHOLD);
+            log.info("Doctor Agent initialized: ", doctorData.toString());
             
             // Register in Yellow Pages
             registerInYellowPages();
             
+            // Watch the schedulers, a shard started later gets the current state at once,
+            // and the monitor, which the container's telemetry emitter then needs not search
+            directory = new DirectoryCache(this);
+            directory.addListener(serviceType -> {
+                if (MessageProtocol.SCHEDULER_SERVICE.equals(serviceType)) {
+                    publishState();
+                } else if (MessageProtocol.MONITORING_SERVICE.equals(serviceType)) {
+                    TelemetryEmitter.shared().setMonitor(directory.getFirst(MessageProtocol.MONITORING_SERVICE));
+                }
+            });
+            directory.watch(MessageProtocol.SCHEDULER_SERVICE);
+            directory.watch(MessageProtocol.MONITORING_SERVICE);
+            
             // Add behaviors
             addBehaviour(new HandlePatientAssignmentBehaviour());
+            addBehaviour(new HandleLoadBalancerBehaviour());
             addBehaviour(new UpdateAvailabilityBehaviour(this));
+            
+            publishState();
         } else {
-            System.err.println("Doctor Agent requires arguments: id, name, specialization");
+            log.error("Doctor Agent requires arguments: id, name, specialization");
             doDelete();
         }
     }
@@ -75,55 +121,102 @@ public class DoctorAgent extends Agent {
             ACLMessage msg = DoctorAgent.this.receive(mt);
             if (msg != null) {
                 ACLMessage reply = msg.createReply();
+                if (!parser.parse(msg.getContent())) {
+                    reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                    myAgent.send(reply);
+                    return;
+                }
                 
-                if (msg.getContent().startsWith(MessageProtocol.CHECK_AVAILABILITY)) {
-                    // Check availability
-                    if (doctorData.isAvailable()) {
-                        reply.setPerformative(ACLMessage.CONFIRM);
-                        reply.setContent(MessageProtocol.RESOURCE_AVAILABLE + ":" + doctorData.getId());
-                        System.out.println(getLocalName() + " is available");
-                    } else {
-                        reply.setPerformative(ACLMessage.REFUSE);
-                        reply.setContent(MessageProtocol.RESOURCE_BUSY + ":" + doctorData.getId());
-                        System.out.println(getLocalName() + " is busy");
-                    }
-                } else if (msg.getContent().startsWith(MessageProtocol.ASSIGN_PATIENT)) {
-                    // Assign patient to this doctor
-                    String[] parts = msg.getContent().split(":");
-                    if (parts.length >= 3) {
-                        String patientId = parts[1];
-                        String treatmentType = parts[2];
+                switch (parser.getOpcode()) {
+                    case CHECK_AVAILABILITY:
+                        // Check availability
+                        if (doctorData.isAvailable()) {
+                            reply.setPerformative(ACLMessage.CONFIRM);
+                            reply.setContent(HospitalMessage.encode(Opcode.RESOURCE_AVAILABLE, doctorData.getId(), 
+                                doctorData.getSpecialization()));
+                            log.debug("is available");
+                        } else {
+                            reply.setPerformative(ACLMessage.REFUSE);
+                            reply.setContent(HospitalMessage.encode(Opcode.RESOURCE_BUSY, doctorData.getId()));
+                            log.debug("is busy");
+                        }
+                        break;
+                        
+                    case ASSIGN_PATIENT:
+                        // Assign patient to this doctor: ASSIGN_PATIENT:<patientId>:<treatmentType>
+                        if (parser.getFieldCount() >= 2) {
+                            String patientId = parser.field(0);
+                            String treatmentType = parser.field(1);
+                            
+                            if (doctorData.isAvailable() && 
+                                SchedulingAlgorithm.isDoctorSuitable(doctorData.getSpecialization(), treatmentType)) {
+                                
+                                startTreatment(patientId, treatmentType);
+                                
+                                reply.setPerformative(ACLMessage.CONFIRM);
+                                reply.setContent(HospitalMessage.encode(Opcode.ASSIGNED, doctorData.getId()));
+                            } else {
+                                reply.setPerformative(ACLMessage.REFUSE);
+                                reply.setContent(HospitalMessage.encode(Opcode.NOT_AVAILABLE, doctorData.getId()));
+                            }
+                        }
+                        break;
                         
-                        if (doctorData.isAvailable() && 
-                            SchedulingAlgorithm.isDoctorSuitable(doctorData.getSpecialization(), treatmentType)) {
+                    case HOLD_RESOURCE:
+                        // Tentative hold: HOLD_RESOURCE:<patientId>:<treatmentType>
+                        if (parser.getFieldCount() >= 2 && doctorData.isAvailable() && 
+                            SchedulingAlgorithm.isDoctorSuitable(doctorData.getSpecialization(), parser.field(1)) && 
+                            hold.tryHold(parser.field(0))) {
                             
                             doctorData.setAvailable(false);
-                            doctorData.setCurrentPatientId(patientId);
-                            treatmentStartTime = System.currentTimeMillis();
+                            scheduleHoldExpiry();
+                            publishState();
                             
                             reply.setPerformative(ACLMessage.CONFIRM);
-                            reply.setContent("ASSIGNED:" + doctorData.getId());
-                            
-                            System.out.println(getLocalName() + " assigned to patient " + patientId + 
-                                " for " + treatmentType);
-                            
-                            // Notify monitor
-                            notifyMonitor("RESOURCE_STATUS:DOCTOR:BUSY");
-                            notifyMonitor("ALLOCATION_SUCCESS:DOCTOR:" + doctorData.getId());
-                            
-                            // Schedule treatment completion
-                            long duration = SchedulingAlgorithm.estimateTreatmentDuration(treatmentType);
-                            myAgent.addBehaviour(new WakerBehaviour(myAgent, duration) {
-                                @Override
-                                protected void onWake() {
-                                    completeTreatment();
-                                }
-                            });
+                            reply.setContent(HospitalMessage.encode(Opcode.HELD, doctorData.getId()));
+                            log.debug("held for patient ", parser.field(0));
                         } else {
                             reply.setPerformative(ACLMessage.REFUSE);
-                            reply.setContent("NOT_AVAILABLE:" + doctorData.getId());
+                            reply.setContent(HospitalMessage.encode(Opcode.NOT_AVAILABLE, doctorData.getId()));
+                        }
+                        break;
+                        
+                    case COMMIT_RESOURCE:
+                        // Commit the hold: COMMIT_RESOURCE:<patientId>:<treatmentType>
+                        if (parser.getFieldCount() >= 2 && hold.commit(parser.field(0))) {
+                            startTreatment(parser.field(0), parser.field(1));
+                            reply.setPerformative(ACLMessage.CONFIRM);
+                            reply.setContent(HospitalMessage.encode(Opcode.COMMITTED, doctorData.getId()));
+                        } else {
+                            reply.setPerformative(ACLMessage.FAILURE);
+                            reply.setContent(HospitalMessage.encode(Opcode.HOLD_EXPIRED, doctorData.getId()));
                         }
-                    }
+                        break;
+                        
+                    case RELEASE_HOLD:
+                        // Roll back the hold: RELEASE_HOLD:<patientId>
+                        if (parser.getFieldCount() >= 1 && hold.release(parser.field(0))) {
+                            doctorData.setAvailable(true);
+                            publishState();
+                            log.debug("hold released for patient ", parser.field(0));
+                            treatNextWaiting();
+                        }
+                        reply.setPerformative(ACLMessage.CONFIRM);
+                        reply.setContent(HospitalMessage.encode(Opcode.RELEASED, doctorData.getId()));
+                        break;
+                        
+                    case RELEASE_RESOURCE:
+                        // Revoked allocation: RELEASE_RESOURCE:<patientId>
+                        if (parser.fieldEquals(0, doctorData.getCurrentPatientId())) {
+                            cancelTreatment();
+                        }
+                        reply.setPerformative(ACLMessage.CONFIRM);
+                        reply.setContent(HospitalMessage.encode(Opcode.RELEASED, doctorData.getId()));
+                        break;
+                        
+                    default:
+                        reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                        break;
                 }
                 
                 myAgent.send(reply);
@@ -133,48 +226,141 @@ public class DoctorAgent extends Agent {
         }
     }
     
+    /**
+     * Behavior to handle the patients sent and moved by the load balancer
+     */
+    private class HandleLoadBalancerBehaviour extends CyclicBehaviour {
+        private final MessageTemplate template = 
+            MessageTemplate.MatchConversationId(MessageProtocol.LOAD_BALANCING);
+        
+        @Override
+        public void action() {
+            ACLMessage msg = DoctorAgent.this.receive(template);
+            if (msg == null) {
+                block();
+                return;
+            }
+            ACLMessage reply = balancer.handle(msg, 
+                treatmentType -> SchedulingAlgorithm.isDoctorSuitable(doctorData.getSpecialization(), treatmentType));
+            if (reply != null) {
+                myAgent.send(reply);
+            }
+            treatNextWaiting();
+        }
+    }
+    
+    /**
+     * Treat the oldest patient the load balancer sent, if free
+     */
+    private void treatNextWaiting() {
+        String patientId = balancer.nextPatient();
+        if (patientId != null && doctorData.isAvailable()) {
+            startTreatment(patientId, balancer.getTreatmentType(patientId));
+        }
+    }
+    
+    /**
+     * Start treating a patient and schedule the treatment completion
+     */
+    private void startTreatment(String patientId, String treatmentType) {
+        balancer.started(patientId);
+        doctorData.setAvailable(false);
+        doctorData.setCurrentPatientId(patientId);
+        treatmentStartTime = System.currentTimeMillis();
+        
+        log.info("assigned to patient ", patientId, " for ", treatmentType);
+        
+        // Notify monitor
+        notifyMonitor(HospitalMessage.encode(Opcode.RESOURCE_STATUS, "DOCTOR", "BUSY"));
+        notifyMonitor(HospitalMessage.encode(Opcode.ALLOCATION_SUCCESS, "DOCTOR", doctorData.getId(), patientId));
+        publishState();
+        
+        // Schedule treatment completion
+        long duration = SchedulingAlgorithm.estimateTreatmentDuration(treatmentType);
+        treatment = new WakerBehaviour(this, duration) {
+            @Override
+            protected void onWake() {
+                completeTreatment();
+            }
+        };
+        addBehaviour(treatment);
+    }
+    
+    /**
+     * Stop a treatment whose allocation the scheduler revoked; the patient is not counted as served
+     */
+    private void cancelTreatment() {
+        String patientId = doctorData.getCurrentPatientId();
+        removeBehaviour(treatment);
+        doctorData.setAvailable(true);
+        doctorData.setCurrentPatientId(null);
+        log.info("treatment of patient ", patientId, " cancelled");
+        
+        notifyMonitor(HospitalMessage.encode(Opcode.RESOURCE_STATUS, "DOCTOR", "AVAILABLE"));
+        publishState();
+        treatNextWaiting();
+    }
+    
+    /**
+     * Drop the hold if the scheduler neither commits nor releases it in time
+     */
+    private void scheduleHoldExpiry() {
+        addBehaviour(new WakerBehaviour(this, hold.getHoldTimeout()) {
+            @Override
+            protected void onWake() {
+                if (hold.expireIfDue()) {
+                    doctorData.setAvailable(true);
+                    publishState();
+                    log.debug("hold expired");
+                    treatNextWaiting();
+                }
+            }
+        });
+    }
+    
     /**
      * Complete treatment and update statistics
      */
     private void completeTreatment() {
-        if (doctorData.getCurrentPatientId() != null) {
+        String patientId = doctorData.getCurrentPatientId();
+        if (patientId != null) {
             long treatmentDuration = System.currentTimeMillis() - treatmentStartTime;
             doctorData.addServiceTime(treatmentDuration);
             doctorData.incrementPatientsServed();
             
-            System.out.println(getLocalName() + " completed treatment for patient " + 
-                doctorData.getCurrentPatientId() + ". Duration: " + (treatmentDuration / 1000) + " seconds");
+            log.info("completed treatment for patient ", patientId, 
+                     ". Duration: ", treatmentDuration / 1000, " seconds");
             
-            // Notify scheduler
-            ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
-            // Find scheduler
-            DFAgentDescription template = new DFAgentDescription();
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType(MessageProtocol.SCHEDULER_SERVICE);
-            template.addServices(sd);
+            // Make doctor available again
+            doctorData.setAvailable(true);
+            doctorData.setCurrentPatientId(null);
             
-            try {
-                DFAgentDescription[] result = DFService.search(DoctorAgent.this, template);
-                if (result.length > 0) {
-                    inform.addReceiver(result[0].getName());
-                    inform.setConversationId(MessageProtocol.STATUS_UPDATE);
-                    inform.setContent("DOCTOR_AVAILABLE:" + doctorData.getId());
-                    send(inform);
+            // Notify scheduler
+            List<AID> schedulers = findSchedulers();
+            if (!schedulers.isEmpty()) {
+                ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
+                for (AID scheduler : schedulers) {
+                    inform.addReceiver(scheduler);
                 }
-            } catch (FIPAException fe) {
-                fe.printStackTrace();
+                inform.setConversationId(MessageProtocol.STATUS_UPDATE);
+                inform.setContent(HospitalMessage.encode(Opcode.DOCTOR_AVAILABLE, doctorData.getId()));
+                send(inform);
             }
+            publishState();
             
-            // Make doctor available again
-            doctorData.setAvailable(true);
-            doctorData.setCurrentPatientId(null);
+            // Notify the load balancer if it sent the patient
+            ACLMessage free = balancer.completed(patientId);
+            if (free != null) {
+                send(free);
+            }
             
             // Notify monitor
-            notifyMonitor("RESOURCE_STATUS:DOCTOR:AVAILABLE");
+            notifyMonitor(HospitalMessage.encode(Opcode.RESOURCE_STATUS, "DOCTOR", "AVAILABLE"));
+            
+            log.info("stats - Patients served: ", doctorData.getPatientsServed(), 
+                     ", Avg service time: ", doctorData.getAverageServiceTime() / 1000, " seconds");
             
-            System.out.println(getLocalName() + " stats - Patients served: " + 
-                doctorData.getPatientsServed() + ", Avg service time: " + 
-                (doctorData.getAverageServiceTime() / 1000) + " seconds");
+            treatNextWaiting();
         }
     }
     
@@ -183,46 +369,65 @@ public class DoctorAgent extends Agent {
      */
     private class UpdateAvailabilityBehaviour extends TickerBehaviour {
         public UpdateAvailabilityBehaviour(Agent a) {
-            super(a, 10000); // Update every 10 seconds
+            super(a, MessageProtocol.STATE_REFRESH_PERIOD); // Update every 10 seconds
         }
         
         @Override
         protected void onTick() {
             // Could implement more complex availability logic here
             // For example, scheduled breaks, shift changes, etc.
+            
+            // Refresh the scheduler's index entry so it does not go stale
+            publishState();
         }
     }
     
     /**
-     * Helper method to notify monitoring agent
+     * Push the current availability state to the availability index of every scheduler
      */
-    private void notifyMonitor(String message) {
-        DFAgentDescription template = new DFAgentDescription();
-        ServiceDescription sd = new ServiceDescription();
-        sd.setType("monitoring-service");
-        template.addServices(sd);
+    private void publishState() {
+        List<AID> schedulers = findSchedulers();
+        if (schedulers.isEmpty()) return;
         
-        try {
-            DFAgentDescription[] result = DFService.search(this, template);
-            if (result.length > 0) {
-                ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
-                inform.addReceiver(result[0].getName());
-                inform.setContent(message);
-                send(inform);
-            }
-        } catch (FIPAException fe) {
-            // Monitoring agent might not be available
+        ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
+        for (AID scheduler : schedulers) {
+            inform.addReceiver(scheduler);
         }
+        inform.setConversationId(MessageProtocol.STATUS_UPDATE);
+        inform.setContent(HospitalMessage.encode(Opcode.RESOURCE_STATE, "DOCTOR", doctorData.getId(), doctorData.getSpecialization(), 
+            doctorData.isAvailable() ? MessageProtocol.RESOURCE_AVAILABLE : MessageProtocol.RESOURCE_BUSY, 
+            String.valueOf(++stateVersion)));
+        send(inform);
+    }
+    
+    /**
+     * Schedulers registered in the Yellow Pages (one per shard in sharded mode)
+     */
+    private List<AID> findSchedulers() {
+        return directory.getAgents(MessageProtocol.SCHEDULER_SERVICE);
+    }
+    
+    /**
+     * Helper method to notify monitoring agent, batched with the other events of the container
+     */
+    private void notifyMonitor(String message) {
+        TelemetryEmitter.shared().emit(this, message);
     }
     
     @Override
     protected void takeDown() {
+        // Send the queued telemetry, whose flush timer may belong to this agent
+        TelemetryEmitter.shared().flush(this);
+        
         // Deregister from Yellow Pages
+        if (directory != null) {
+            directory.close();
+        }
         try {
             DFService.deregister(this);
         } catch (FIPAException fe) {
             fe.printStackTrace();
         }
-        System.out.println("Doctor Agent " + getLocalName() + " terminating. Final stats: " + doctorData);
+        log.info("Doctor Agent terminating. Final stats: ", doctorData.toString());
     }
 }
@@ -1,6 +1,8 @@
 package agents;
 
+import directory.DirectoryCache;
 import jade.core.Agent;
+import jade.core.AID;
 import jade.core.behaviours.*;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
@@ -8,15 +10,34 @@ import jade.domain.DFService;
 import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
+import logging.AgentLog;
 import models.Equipment;
+import utils.HospitalMessage;
+import utils.HospitalMessage.Opcode;
 import utils.MessageProtocol;
+import utils.ReservationHold;
+
+import java.util.List;
 
 
 public class EquipmentAgent extends Agent {
     private Equipment equipmentData;
+    private AgentLog log;
+    
+    // Availability state pushed to the index of the schedulers found in the directory cache
+    private DirectoryCache directory;
+    private long stateVersion;
+    
+    // Tentative hold for two-phase reservations
+    private ReservationHold hold;
+    
+    // Message content parser, reused for every message
+    private final HospitalMessage parser = new HospitalMessage();
     
     @Override
     protected void setup() {
+        log = AgentLog.of(getLocalName());
+        
         // Get arguments: id, type
         Object[] args = getArguments();
         if (args != null && args.length >= 2) {
@@ -24,16 +45,29 @@ public class EquipmentAgent extends Agent {
             String type = (String) args[1];
             
             equipmentData = new Equipment(id, type);
-            System.out.println("Equipment Agent " + getLocalName() + " initialized: " + equipmentData);
+            hold = new ReservationHold();
+            log.info("Equipment Agent initialized: ", equipmentData.toString());
             
             // Register in Yellow Pages
             registerInYellowPages();
             
+            // Watch the schedulers, a shard started later gets the current state at once
+            directory = new DirectoryCache(this);
+            directory.addListener(serviceType -> {
+                if (MessageProtocol.SCHEDULER_SERVICE.equals(serviceType)) {
+                    publishState();
+                }
+            });
+            directory.watch(MessageProtocol.SCHEDULER_SERVICE);
+            
             // Add behaviors
             addBehaviour(new HandleEquipmentRequestBehaviour());
             addBehaviour(new MaintenanceCheckBehaviour(this));
+            addBehaviour(new StatePublisherBehaviour(this));
+            
+            publishState();
         } else {
-            System.err.println("Equipment Agent requires arguments: id, type");
+            log.error("Equipment Agent requires arguments: id, type");
             doDelete();
         }
     }
@@ -69,61 +103,117 @@ public class EquipmentAgent extends Agent {
             ACLMessage msg = EquipmentAgent.this.receive(mt);
             if (msg != null) {
                 ACLMessage reply = msg.createReply();
-                String content = msg.getContent();
+                if (!parser.parse(msg.getContent())) {
+                    reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                    myAgent.send(reply);
+                    return;
+                }
                 
-                if (content.startsWith(MessageProtocol.CHECK_AVAILABILITY)) {
-                    // Check equipment availability
-                    String[] parts = content.split(":");
-                    boolean typeMatch = true;
-                    
-                    if (parts.length >= 2) {
-                        String requestedType = parts[1];
-                        typeMatch = requestedType.equals(equipmentData.getType());
-                    }
-                    
-                    if (equipmentData.isAvailable() && typeMatch) {
-                        reply.setPerformative(ACLMessage.CONFIRM);
-                        reply.setContent(MessageProtocol.RESOURCE_AVAILABLE + ":" + 
-                            equipmentData.getId() + ":" + equipmentData.getType());
-                        System.out.println(getLocalName() + " is available");
-                    } else {
-                        reply.setPerformative(ACLMessage.REFUSE);
-                        reply.setContent(MessageProtocol.RESOURCE_BUSY + ":" + equipmentData.getId());
-                        if (!typeMatch) {
-                            System.out.println(getLocalName() + " type mismatch");
+                switch (parser.getOpcode()) {
+                    case CHECK_AVAILABILITY:
+                        // Check equipment availability: CHECK_AVAILABILITY[:<equipmentType>]
+                        String requestedType = parser.field(0);
+                        boolean typeMatch = requestedType == null || requestedType.isEmpty() || 
+                                            requestedType.equals(equipmentData.getType());
+                        
+                        if (equipmentData.isAvailable() && typeMatch) {
+                            reply.setPerformative(ACLMessage.CONFIRM);
+                            reply.setContent(HospitalMessage.encode(Opcode.RESOURCE_AVAILABLE, equipmentData.getId(), 
+                                equipmentData.getType()));
+                            log.debug("is available");
                         } else {
-                            System.out.println(getLocalName() + " is in use");
+                            reply.setPerformative(ACLMessage.REFUSE);
+                            reply.setContent(HospitalMessage.encode(Opcode.RESOURCE_BUSY, equipmentData.getId()));
+                            if (!typeMatch) {
+                                log.debug("type mismatch");
+                            } else {
+                                log.debug("is in use");
+                            }
                         }
-                    }
-                } else if (content.startsWith(MessageProtocol.ALLOCATE_RESOURCE)) {
-                    // Allocate equipment
-                    String[] parts = content.split(":");
-                    if (parts.length >= 2) {
-                        String patientId = parts[1];
+                        break;
                         
-                        if (equipmentData.isAvailable()) {
-                            equipmentData.allocate(patientId);
+                    case ALLOCATE_RESOURCE:
+                        // Allocate equipment: ALLOCATE_RESOURCE:<patientId>
+                        if (parser.getFieldCount() >= 1) {
+                            String patientId = parser.field(0);
+                            
+                            if (equipmentData.isAvailable()) {
+                                equipmentData.allocate(patientId);
+                                reply.setPerformative(ACLMessage.CONFIRM);
+                                reply.setContent(HospitalMessage.encode(Opcode.ALLOCATED, equipmentData.getId()));
+                                log.info("allocated to patient ", patientId, 
+                                         ". Total usage count: ", equipmentData.getUsageCount());
+                                publishState();
+                            } else {
+                                reply.setPerformative(ACLMessage.REFUSE);
+                                reply.setContent(HospitalMessage.encode(Opcode.NOT_AVAILABLE, equipmentData.getId()));
+                            }
+                        }
+                        break;
+                        
+                    case HOLD_RESOURCE:
+                        // Tentative hold: HOLD_RESOURCE:<patientId>:<equipmentType>
+                        if (parser.getFieldCount() >= 2 && equipmentData.isAvailable() && 
+                            parser.fieldEquals(1, equipmentData.getType()) && hold.tryHold(parser.field(0))) {
+                            
+                            equipmentData.setAvailable(false);
+                            scheduleHoldExpiry();
+                            publishState();
+                            
                             reply.setPerformative(ACLMessage.CONFIRM);
-                            reply.setContent("ALLOCATED:" + equipmentData.getId());
-                            System.out.println(getLocalName() + " allocated to patient " + patientId + 
-                                ". Total usage count: " + equipmentData.getUsageCount());
+                            reply.setContent(HospitalMessage.encode(Opcode.HELD, equipmentData.getId()));
+                            log.debug("held for patient ", parser.field(0));
                         } else {
                             reply.setPerformative(ACLMessage.REFUSE);
-                            reply.setContent("NOT_AVAILABLE:" + equipmentData.getId());
+                            reply.setContent(HospitalMessage.encode(Opcode.NOT_AVAILABLE, equipmentData.getId()));
                         }
-                    }
-                } else if (content.startsWith(MessageProtocol.RELEASE_RESOURCE)) {
-                    // Release equipment
-                    equipmentData.release();
-                    reply.setPerformative(ACLMessage.CONFIRM);
-                    reply.setContent("RELEASED:" + equipmentData.getId());
-                    System.out.println(getLocalName() + " released and now available");
-                    
-                    // Check if maintenance needed after certain usage
-                    if (equipmentData.getUsageCount() % 10 == 0) {
-                        System.out.println(getLocalName() + " requires maintenance check after " + 
-                            equipmentData.getUsageCount() + " uses");
-                    }
+                        break;
+                        
+                    case COMMIT_RESOURCE:
+                        // Commit the hold: COMMIT_RESOURCE:<patientId>
+                        if (parser.getFieldCount() >= 1 && hold.commit(parser.field(0))) {
+                            equipmentData.allocate(parser.field(0));
+                            reply.setPerformative(ACLMessage.CONFIRM);
+                            reply.setContent(HospitalMessage.encode(Opcode.COMMITTED, equipmentData.getId()));
+                            log.info("allocated to patient ", parser.field(0), 
+                                     ". Total usage count: ", equipmentData.getUsageCount());
+                            publishState();
+                        } else {
+                            reply.setPerformative(ACLMessage.FAILURE);
+                            reply.setContent(HospitalMessage.encode(Opcode.HOLD_EXPIRED, equipmentData.getId()));
+                        }
+                        break;
+                        
+                    case RELEASE_HOLD:
+                        // Roll back the hold: RELEASE_HOLD:<patientId>
+                        if (parser.getFieldCount() >= 1 && hold.release(parser.field(0))) {
+                            equipmentData.setAvailable(true);
+                            publishState();
+                            log.debug("hold released for patient ", parser.field(0));
+                        }
+                        reply.setPerformative(ACLMessage.CONFIRM);
+                        reply.setContent(HospitalMessage.encode(Opcode.RELEASED, equipmentData.getId()));
+                        break;
+                        
+                    case RELEASE_RESOURCE:
+                        // Release equipment: RELEASE_RESOURCE:<patientId>, ignored once it serves another patient
+                        if (parser.getFieldCount() == 0 || parser.fieldEquals(0, equipmentData.getCurrentPatientId())) {
+                            equipmentData.release();
+                            log.debug("released and now available");
+                            publishState();
+                            
+                            // Check if maintenance needed after certain usage
+                            if (equipmentData.getUsageCount() % 10 == 0) {
+                                log.warn("requires maintenance check after ", equipmentData.getUsageCount(), " uses");
+                            }
+                        }
+                        reply.setPerformative(ACLMessage.CONFIRM);
+                        reply.setContent(HospitalMessage.encode(Opcode.RELEASED, equipmentData.getId()));
+                        break;
+                        
+                    default:
+                        reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                        break;
                 }
                 
                 myAgent.send(reply);
@@ -145,9 +235,7 @@ public class EquipmentAgent extends Agent {
         protected void onTick() {
             // Simulate maintenance requirements
             if (equipmentData.getUsageCount() > 0 && equipmentData.getUsageCount() % 20 == 0) {
-                System.out.println("WARNING: " + getLocalName() + 
-                    " requires scheduled maintenance after " + 
-                    equipmentData.getUsageCount() + " uses");
+                log.warn("requires scheduled maintenance after ", equipmentData.getUsageCount(), " uses");
                 
                 // Could temporarily make equipment unavailable for maintenance
                 // For now, just log the warning
@@ -155,15 +243,72 @@ public class EquipmentAgent extends Agent {
         }
     }
     
+    /**
+     * Drop the hold if the scheduler neither commits nor releases it in time
+     */
+    private void scheduleHoldExpiry() {
+        addBehaviour(new WakerBehaviour(this, hold.getHoldTimeout()) {
+            @Override
+            protected void onWake() {
+                if (hold.expireIfDue()) {
+                    equipmentData.setAvailable(true);
+                    publishState();
+                    log.debug("hold expired");
+                }
+            }
+        });
+    }
+    
+    /**
+     * Periodic behavior to refresh the scheduler's index entry so it does not go stale
+     */
+    private class StatePublisherBehaviour extends TickerBehaviour {
+        public StatePublisherBehaviour(Agent a) {
+            super(a, MessageProtocol.STATE_REFRESH_PERIOD);
+        }
+        
+        @Override
+        protected void onTick() {
+            publishState();
+        }
+    }
+    
+    /**
+     * Push the current availability state to the availability index of every scheduler
+     */
+    private void publishState() {
+        List<AID> schedulers = findSchedulers();
+        if (schedulers.isEmpty()) return;
+        
+        ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
+        for (AID scheduler : schedulers) {
+            inform.addReceiver(scheduler);
+        }
+        inform.setConversationId(MessageProtocol.STATUS_UPDATE);
+        inform.setContent(HospitalMessage.encode(Opcode.RESOURCE_STATE, "EQUIPMENT", equipmentData.getId(), equipmentData.getType(), 
+            equipmentData.isAvailable() ? MessageProtocol.RESOURCE_AVAILABLE : MessageProtocol.RESOURCE_BUSY, 
+            String.valueOf(++stateVersion)));
+        send(inform);
+    }
+    
+    /**
+     * Schedulers registered in the Yellow Pages (one per shard in sharded mode)
+     */
+    private List<AID> findSchedulers() {
+        return directory.getAgents(MessageProtocol.SCHEDULER_SERVICE);
+    }
+    
     @Override
     protected void takeDown() {
         // Deregister from Yellow Pages
+        if (directory != null) {
+            directory.close();
+        }
         try {
             DFService.deregister(this);
         } catch (FIPAException fe) {
             fe.printStackTrace();
         }
-        System.out.println("Equipment Agent " + getLocalName() + " terminating. Total usage: " + 
-            equipmentData.getUsageCount());
+        log.info("Equipment Agent terminating. Total usage: ", equipmentData.getUsageCount());
     }
 }
@@ -10,12 +10,27 @@ import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import analytics.AnalyticsDashboard;
+import analytics.DashboardUpdateBus;
+import directory.DirectoryCache;
+import logging.AgentLog;
+import metrics.LatencyHistogram;
+import metrics.MetricsEndpoint;
+import metrics.MetricsHistoryStore;
+import metrics.MetricsRegistry;
+import metrics.MetricsRegistry.Metric;
+import metrics.NameTable;
+import metrics.PatientLatencies;
+import metrics.TelemetryEmitter;
+import metrics.UtilizationTracker;
 import ml.WaitTimePredictor;
+import utils.HospitalMessage;
+import utils.MessageProtocol;
 
 import javax.swing.SwingUtilities;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.io.*;
+import java.nio.file.Paths;
 
 /**
  * Enhanced Monitoring Agent - Collects real-time metrics from all agents
@@ -25,78 +40,144 @@ public class MonitoringAgent extends Agent {
     
     private AnalyticsDashboard dashboard;
     private WaitTimePredictor predictor;
+    private AgentLog log;
     
-    // Metrics storage
-    private Map<String, Double> systemMetrics;
-    private Map<AID, AgentStatus> agentStatuses;
+    // Metrics storage: written by the agent thread, snapshotted by readers
+    private final MetricsRegistry metrics = new MetricsRegistry();
     
-    // Counters
-    private int totalPatients = 0;
-    private int treatedPatients = 0;
-    private int waitingPatients = 0;
-    private double totalWaitTime = 0;
+    // Latency histograms of all the schedulers
+    private final PatientLatencies latencies = new PatientLatencies();
+    private Map<AID, AgentStatus> agentStatuses;
     private long lastUpdateTime;
     
     // Resource tracking
-    private Map<String, ResourceStatus> doctorStatus;
-    private Map<String, ResourceStatus> roomStatus;
-    private Map<String, ResourceStatus> equipmentStatus;
+    private final UtilizationTracker doctorStatus = new UtilizationTracker();
+    private final UtilizationTracker roomStatus = new UtilizationTracker();
+    private final UtilizationTracker equipmentStatus = new UtilizationTracker();
+    
+    // Names of the resources reporting events, read in place from the batches
+    private final NameTable resourceNames = new NameTable();
+    
+    // Agents queried for their status, kept up to date by DF subscriptions
+    private DirectoryCache directory;
     
     // Store reference to dashboard for updates
     private static AnalyticsDashboard dashboardReference;
     
+    // Headless mode: no Swing dashboard, metrics served over HTTP instead
+    private boolean headless;
+    private MetricsEndpoint metricsEndpoint;
+    
+    // Persistent metrics history, null when disabled
+    private MetricsHistoryStore history;
+    
     @Override
     protected void setup() {
-        System.out.println("Monitoring Agent " + getLocalName() + " started");
+        log = AgentLog.of(getLocalName());
+        log.info("Monitoring Agent started");
+        
+        // Get arguments: "headless" to run without the dashboard, the port of the metrics
+        // endpoint and the directory of the metrics history
+        Object[] args = getArguments();
+        headless = args != null && args.length > 0 && "headless".equals(args[0]);
+        int metricsPort = args != null && args.length > 1 ? Integer.parseInt(args[1].toString()) : 0;
+        String historyDirectory = args != null && args.length > 2 ? args[2].toString() : "";
         
         // Initialize data structures
-        systemMetrics = new ConcurrentHashMap<>();
         agentStatuses = new ConcurrentHashMap<>();
-        doctorStatus = new ConcurrentHashMap<>();
-        roomStatus = new ConcurrentHashMap<>();
-        equipmentStatus = new ConcurrentHashMap<>();
         predictor = new WaitTimePredictor();
         lastUpdateTime = System.currentTimeMillis();
         
-        // Initialize metrics
-        initializeMetrics();
-        
         // Register in Yellow Pages
         registerInYellowPages();
         
+        directory = new DirectoryCache(this);
+        directory.watch(MessageProtocol.DOCTOR_SERVICE);
+        directory.watch(MessageProtocol.ROOM_SERVICE);
+        directory.watch(MessageProtocol.EQUIPMENT_SERVICE);
+        directory.watch(MessageProtocol.PATIENT_SERVICE);
+        
+        if (metricsPort > 0) {
+            startMetricsEndpoint(metricsPort);
+        }
+        if (!historyDirectory.isEmpty()) {
+            openHistory(historyDirectory);
+        }
+        
         // Create and show dashboard
-        SwingUtilities.invokeLater(() -> {
-            dashboard = new AnalyticsDashboard();
-            dashboard.setMainContainer(getContainerController());
-            dashboard.setVisible(true);
-            dashboardReference = dashboard; // Store reference
-        });
+        if (!headless) {
+            SwingUtilities.invokeLater(() -> {
+                dashboard = new AnalyticsDashboard();
+                dashboard.setMainContainer(getContainerController());
+                dashboard.setHistory(history);
+                dashboard.setLatencies(latencies);
+                dashboard.setVisible(true);
+                dashboardReference = dashboard; // Store reference
+            });
+        } else {
+            log.info("headless mode, no dashboard");
+        }
         
         // Add behaviors
         addBehaviour(new MetricsCollectorBehaviour());
         addBehaviour(new ResourceMonitorBehaviour(this, 2000)); // Every 2 seconds
-        addBehaviour(new DashboardUpdaterBehaviour(this, 1000)); // Every second
+        if (!headless) {
+            addBehaviour(new DashboardUpdaterBehaviour(this, 1000 / DashboardUpdateBus.DEFAULT_FRAME_RATE)); // Every frame
+        }
         addBehaviour(new StatisticsCalculatorBehaviour(this, 5000)); // Every 5 seconds
+        if (history != null) {
+            addBehaviour(new HistoryRecorderBehaviour(this, 1000)); // Every second
+        }
     }
     
-    private void initializeMetrics() {
-        systemMetrics.put("total_patients", 0.0);
-        systemMetrics.put("treated_patients", 0.0);
-        systemMetrics.put("waiting_patients", 0.0);
-        systemMetrics.put("avg_wait_time", 0.0);
-        systemMetrics.put("success_rate", 100.0);
-        systemMetrics.put("doctor_utilization", 0.0);
-        systemMetrics.put("room_utilization", 0.0);
-        systemMetrics.put("equipment_utilization", 0.0);
-        systemMetrics.put("throughput", 0.0);
-        systemMetrics.put("queue_length", 0.0);
+    private void startMetricsEndpoint(int port) {
+        try {
+            metricsEndpoint = new MetricsEndpoint(metrics, port);
+            metricsEndpoint.start();
+            log.info("metrics served on http://localhost:", metricsEndpoint.getPort(), "/metrics");
+        } catch (IOException e) {
+            // The agent keeps collecting metrics without the endpoint
+            log.error("cannot serve metrics on port ", port, ": ", e.getMessage());
+        }
+    }
+    
+    private void openHistory(String directory) {
+        try {
+            history = new MetricsHistoryStore(Paths.get(directory));
+            log.info("metrics history in ", Paths.get(directory).toAbsolutePath().toString());
+        } catch (IOException e) {
+            // The agent keeps collecting metrics without the history
+            log.error("cannot open the metrics history in ", directory, ": ", e.getMessage());
+        }
+    }
+    
+    /**
+     * Stop recording the history after a write failed, and exporting it
+     */
+    private void closeHistory(IOException cause) {
+        log.error("metrics history disabled: ", cause.getMessage());
+        try {
+            history.close();
+        } catch (IOException e) {
+            // Already reported the first failure
+        }
+        history = null;
+        
+        // Queued after the dashboard's creation on the event thread
+        if (!headless) {
+            SwingUtilities.invokeLater(() -> {
+                if (dashboard != null) {
+                    dashboard.setHistory(null);
+                }
+            });
+        }
     }
     
     private void registerInYellowPages() {
         DFAgentDescription dfd = new DFAgentDescription();
         dfd.setName(getAID());
         ServiceDescription sd = new ServiceDescription();
-        sd.setType("monitoring-service");
+        sd.setType(MessageProtocol.MONITORING_SERVICE);
         sd.setName("System-Monitor");
         dfd.addServices(sd);
         
@@ -108,64 +189,107 @@ public class MonitoringAgent extends Agent {
     }
     
     /**
-     * Collect metrics from all agents
+     * Collect metrics from all agents. Events are parsed in place and recorded in
+     * primitive cells, so an event allocates nothing but the status entry and name of
+     * a resource seen for the first time.
      */
     private class MetricsCollectorBehaviour extends CyclicBehaviour {
+        // Metric update parser, reused for every message
+        private final HospitalMessage parser = new HospitalMessage();
+        
+        private final PatientLatencies.Measure[] measures = PatientLatencies.Measure.values();
+        
+        // Handler of the events of telemetry batches, created once
+        private final TelemetryEmitter.EventRangeHandler batchHandler = this::dispatchEvent;
+        
         @Override
         public void action() {
-            MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.INFORM);
+            // DF notifications are INFORMs too, they are left to the directory cache
+            MessageTemplate mt = MessageTemplate.and(
+                MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                directory.excludeNotifications()
+            );
             ACLMessage msg = myAgent.receive(mt);
             
             if (msg != null) {
-                String content = msg.getContent();
-                
-                if (content != null) {
-                    // Parse different types of metric updates
-                    if (content.startsWith("PATIENT_REGISTERED:")) {
-                        handlePatientRegistration(content);
-                    } else if (content.startsWith("PATIENT_WAITING:")) {
-                        handlePatientWaiting(content);
-                    } else if (content.startsWith("PATIENT_TREATED:")) {
-                        handlePatientTreated(content);
-                    } else if (content.startsWith("RESOURCE_STATUS:")) {
-                        handleResourceStatus(msg.getSender(), content);
-                    } else if (content.startsWith("ALLOCATION_SUCCESS:")) {
-                        handleAllocationSuccess(content);
-                    } else if (content.startsWith("ALLOCATION_FAILED:")) {
-                        handleAllocationFailed(content);
-                    } else if (content.startsWith("WAIT_TIME:")) {
-                        handleWaitTimeUpdate(content);
-                    }
+                if (MessageProtocol.TELEMETRY.equals(msg.getConversationId())) {
+                    // Batch of events emitted by the agents of a container
+                    TelemetryEmitter.forEachEventRange(msg.getContent(), batchHandler);
+                } else if (parser.parse(msg.getContent())) {
+                    String source = msg.getSender().getLocalName();
+                    dispatch(source, 0, source.length());
                 }
             } else {
                 block();
             }
         }
         
-        private void handlePatientRegistration(String content) {
-            totalPatients++;
-            waitingPatients++;
-            systemMetrics.put("total_patients", (double) totalPatients);
-            systemMetrics.put("waiting_patients", (double) waitingPatients);
+        private void dispatchEvent(String batch, int sourceStart, int sourceEnd, int contentStart, int contentEnd) {
+            if (parser.parse(batch, contentStart, contentEnd)) {
+                dispatch(batch, sourceStart, sourceEnd);
+            }
+        }
+        
+        /**
+         * Dispatch the parsed metric update; the source name is the range of a text,
+         * extracted only by the updates that keep it
+         */
+        private void dispatch(String source, int sourceStart, int sourceEnd) {
+            switch (parser.getOpcode()) {
+                case PATIENT_REGISTERED:
+                    handlePatientRegistration();
+                    break;
+                case PATIENT_WAITING:
+                    handlePatientWaiting();
+                    break;
+                case PATIENT_TREATED:
+                    handlePatientTreated();
+                    break;
+                case RESOURCE_STATUS:
+                    handleResourceStatus(resourceNames.intern(source, sourceStart, sourceEnd));
+                    break;
+                case ALLOCATION_SUCCESS:
+                    handleAllocationSuccess(source, sourceStart, sourceEnd);
+                    break;
+                case ALLOCATION_FAILED:
+                    handleAllocationFailed();
+                    break;
+                case WAIT_TIME:
+                    handleWaitTimeUpdate();
+                    break;
+                case ALLOCATION_METRICS:
+                    handleAllocationMetrics();
+                    break;
+                case LATENCY_HISTOGRAM:
+                    handleLatencyHistogram();
+                    break;
+                default:
+                    break;
+            }
+        }
+        
+        private void handlePatientRegistration() {
+            // The dashboard picks the counters up on its next tick
+            metrics.beginUpdate();
+            metrics.increment(Metric.TOTAL_PATIENTS);
+            metrics.increment(Metric.WAITING_PATIENTS);
             updateQueueLength();
+            metrics.endUpdate();
             
-            // Update dashboard immediately
-            if (dashboardReference != null) {
-                SwingUtilities.invokeLater(() -> {
-                    dashboardReference.updateMetric("total_patients", (double) totalPatients);
-                    dashboardReference.updateMetric("waiting_patients", (double) waitingPatients);
-                    dashboardReference.updateMetric("queue_length", (double) waitingPatients);
-                });
+            // Format: PATIENT_REGISTERED:<patient id>
+            if (history != null && parser.getFieldCount() >= 1) {
+                try {
+                    history.appendArrival(System.currentTimeMillis(), parser.field(0));
+                } catch (IOException e) {
+                    closeHistory(e);
+                }
             }
-            
-            System.out.println("Monitor: Patient registered. Total: " + totalPatients);
         }
         
-        private void handlePatientWaiting(String content) {
-            String[] parts = content.split(":");
-            if (parts.length >= 2) {
+        private void handlePatientWaiting() {
+            if (parser.getFieldCount() >= 1) {
                 try {
-                    double waitTime = Double.parseDouble(parts[1]);
+                    double waitTime = parser.doubleField(0);
                     updateWaitTime(waitTime);
                 } catch (NumberFormatException e) {
                     e.printStackTrace();
@@ -173,77 +297,149 @@ public class MonitoringAgent extends Agent {
             }
         }
         
-        private void handlePatientTreated(String content) {
-            treatedPatients++;
-            if (waitingPatients > 0) waitingPatients--;
-            
-            systemMetrics.put("treated_patients", (double) treatedPatients);
-            systemMetrics.put("waiting_patients", (double) waitingPatients);
+        private void handlePatientTreated() {
+            metrics.beginUpdate();
+            metrics.increment(Metric.TREATED_PATIENTS);
+            metrics.decrementToZero(Metric.WAITING_PATIENTS);
             
             // Update success rate
+            long totalPatients = metrics.getLong(Metric.TOTAL_PATIENTS);
             if (totalPatients > 0) {
-                double successRate = (treatedPatients * 100.0) / totalPatients;
-                systemMetrics.put("success_rate", successRate);
+                double successRate = (metrics.getLong(Metric.TREATED_PATIENTS) * 100.0) / totalPatients;
+                metrics.set(Metric.SUCCESS_RATE, successRate);
             }
             
             updateQueueLength();
+            metrics.endUpdate();
             
-            // Update dashboard immediately
-            if (dashboardReference != null) {
-                SwingUtilities.invokeLater(() -> {
-                    dashboardReference.updateMetric("treated_patients", (double) treatedPatients);
-                    dashboardReference.updateMetric("waiting_patients", (double) waitingPatients);
-                    dashboardReference.updateMetric("success_rate", systemMetrics.get("success_rate"));
-                    dashboardReference.updateMetric("queue_length", (double) waitingPatients);
-                });
+            // Format: PATIENT_TREATED:<patient id>:<waiting time ms>
+            if (history != null && parser.getFieldCount() >= 1) {
+                try {
+                    long waitTime = parser.getFieldCount() >= 2 ? parser.longField(1) : -1;
+                    history.appendCompletion(System.currentTimeMillis(), parser.field(0), waitTime);
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                } catch (IOException e) {
+                    closeHistory(e);
+                }
             }
-            
-            System.out.println("Monitor: Patient treated. Total treated: " + treatedPatients);
         }
         
-        private void handleResourceStatus(AID sender, String content) {
-            String[] parts = content.split(":");
-            if (parts.length >= 3) {
-                String resourceType = parts[1];
-                String status = parts[2];
-                
-                ResourceStatus rs = new ResourceStatus(sender.getLocalName(), status.equals("BUSY"));
+        private void handleResourceStatus(String source) {
+            // Format: RESOURCE_STATUS:<resource type>:<BUSY|AVAILABLE>
+            if (parser.getFieldCount() >= 2) {
+                boolean busy = parser.fieldEquals(1, "BUSY");
+                long now = System.currentTimeMillis();
                 
-                if (resourceType.equals("DOCTOR")) {
-                    doctorStatus.put(sender.getLocalName(), rs);
-                } else if (resourceType.equals("ROOM")) {
-                    roomStatus.put(sender.getLocalName(), rs);
-                } else if (resourceType.equals("EQUIPMENT")) {
-                    equipmentStatus.put(sender.getLocalName(), rs);
+                // Only a state change touches the utilization metric
+                if (parser.fieldEquals(0, "DOCTOR")) {
+                    if (doctorStatus.update(source, busy)) {
+                        metrics.set(Metric.DOCTOR_UTILIZATION, doctorStatus.getUtilization());
+                        recordTransition(now, "DOCTOR", source, busy);
+                    }
+                } else if (parser.fieldEquals(0, "ROOM")) {
+                    if (roomStatus.update(source, busy)) {
+                        metrics.set(Metric.ROOM_UTILIZATION, roomStatus.getUtilization());
+                        recordTransition(now, "ROOM", source, busy);
+                    }
+                } else if (parser.fieldEquals(0, "EQUIPMENT")) {
+                    if (equipmentStatus.update(source, busy)) {
+                        metrics.set(Metric.EQUIPMENT_UTILIZATION, equipmentStatus.getUtilization());
+                        recordTransition(now, "EQUIPMENT", source, busy);
+                    }
                 }
-                
-                updateUtilization();
             }
         }
         
-        private void handleAllocationSuccess(String content) {
+        private void recordTransition(long now, String resourceType, String resource, boolean busy) {
+            if (history != null) {
+                try {
+                    history.appendTransition(now, resourceType, resource, busy);
+                } catch (IOException e) {
+                    closeHistory(e);
+                }
+            }
+        }
+        
+        private void handleAllocationSuccess(String source, int sourceStart, int sourceEnd) {
             // Track successful allocations
-            double currentSuccess = systemMetrics.getOrDefault("allocation_success", 0.0);
-            systemMetrics.put("allocation_success", currentSuccess + 1);
+            metrics.increment(Metric.ALLOCATION_SUCCESS);
+            
+            // Format: ALLOCATION_SUCCESS:<resource type>:<resource id>:<patient id>; the
+            // resource is recorded under its agent name, as its status transitions
+            if (history != null && parser.getFieldCount() >= 3) {
+                try {
+                    history.appendAllocation(System.currentTimeMillis(), parser.field(2), 
+                                             parser.field(0), resourceNames.intern(source, sourceStart, sourceEnd));
+                } catch (IOException e) {
+                    closeHistory(e);
+                }
+            }
         }
         
-        private void handleAllocationFailed(String content) {
+        private void handleAllocationFailed() {
             // Track failed allocations
-            double currentFailed = systemMetrics.getOrDefault("allocation_failed", 0.0);
-            systemMetrics.put("allocation_failed", currentFailed + 1);
+            metrics.increment(Metric.ALLOCATION_FAILED);
         }
         
-        private void handleWaitTimeUpdate(String content) {
-            String[] parts = content.split(":");
-            if (parts.length >= 2) {
+        private void handleAllocationMetrics() {
+            // Format: ALLOCATION_METRICS:<allocations per second>:<avg latency ms>:<max latency ms>
+            if (parser.getFieldCount() >= 3) {
                 try {
-                    double waitTime = Double.parseDouble(parts[1]);
+                    double rate = parser.doubleField(0);
+                    double latency = parser.doubleField(1);
+                    double latencyMax = parser.doubleField(2);
+                    metrics.beginUpdate();
+                    metrics.set(Metric.ALLOCATION_RATE, rate);
+                    metrics.set(Metric.ALLOCATION_LATENCY, latency);
+                    metrics.set(Metric.ALLOCATION_LATENCY_MAX, latencyMax);
+                    metrics.endUpdate();
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        
+        private void handleLatencyHistogram() {
+            // Format: LATENCY_HISTOGRAM:<measure ordinal>:<slice>:<bucket>=<count>,...
+            if (parser.getFieldCount() >= 3) {
+                try {
+                    int measure = parser.intField(0);
+                    int slice = parser.intField(1);
+                    if (measure < 0 || measure >= measures.length || 
+                        slice < 0 || slice >= PatientLatencies.SLICES) {
+                        return;
+                    }
+                    latencies.addEncoded(measures[measure], slice, parser.field(2));
+                    if (measure == PatientLatencies.Measure.WAIT_TIME.ordinal() && slice == PatientLatencies.ALL) {
+                        updateWaitPercentiles();
+                    }
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        
+        private void updateWaitPercentiles() {
+            LatencyHistogram waits = latencies.get(PatientLatencies.Measure.WAIT_TIME, PatientLatencies.ALL);
+            metrics.beginUpdate();
+            metrics.set(Metric.WAIT_TIME_P50, waits.getValueAtPercentile(50) / 60000.0); // Minutes
+            metrics.set(Metric.WAIT_TIME_P90, waits.getValueAtPercentile(90) / 60000.0);
+            metrics.set(Metric.WAIT_TIME_P99, waits.getValueAtPercentile(99) / 60000.0);
+            metrics.set(Metric.WAIT_TIME_P999, waits.getValueAtPercentile(99.9) / 60000.0);
+            metrics.endUpdate();
+        }
+        
+        private void handleWaitTimeUpdate() {
+            if (parser.getFieldCount() >= 1) {
+                try {
+                    double waitTime = parser.doubleField(0);
                     updateWaitTime(waitTime);
                     
                     // Update ML model
-                    if (parts.length >= 4) {
-                        int queueSize = Integer.parseInt(parts[2]);
-                        double resourceAvail = Double.parseDouble(parts[3]);
+                    if (parser.getFieldCount() >= 3) {
+                        int queueSize = parser.intField(1);
+                        double resourceAvail = parser.doubleField(2);
                         // Note: We'd need patient info for full ML update
                     }
                 } catch (NumberFormatException e) {
@@ -253,63 +449,18 @@ public class MonitoringAgent extends Agent {
         }
         
         private void updateWaitTime(double waitTime) {
-            totalWaitTime += waitTime;
+            metrics.beginUpdate();
+            metrics.add(Metric.TOTAL_WAIT_TIME, waitTime);
+            long treatedPatients = metrics.getLong(Metric.TREATED_PATIENTS);
             if (treatedPatients > 0) {
-                double avgWaitTime = totalWaitTime / treatedPatients;
-                systemMetrics.put("avg_wait_time", avgWaitTime / 60000.0); // Convert to minutes
-                
-                // Update dashboard immediately
-                if (dashboardReference != null) {
-                    SwingUtilities.invokeLater(() -> {
-                        dashboardReference.updateMetric("avg_wait_time", avgWaitTime / 60000.0);
-                    });
-                }
+                double avgWaitTime = metrics.get(Metric.TOTAL_WAIT_TIME) / treatedPatients;
+                metrics.set(Metric.AVG_WAIT_TIME, avgWaitTime / 60000.0); // Convert to minutes
             }
+            metrics.endUpdate();
         }
         
         private void updateQueueLength() {
-            systemMetrics.put("queue_length", (double) waitingPatients);
-        }
-        
-        private void updateUtilization() {
-            // Calculate doctor utilization
-            if (!doctorStatus.isEmpty()) {
-                long busyDoctors = doctorStatus.values().stream()
-                    .filter(ResourceStatus::isBusy)
-                    .count();
-                double doctorUtil = (busyDoctors * 100.0) / doctorStatus.size();
-                systemMetrics.put("doctor_utilization", doctorUtil);
-            }
-            
-            // Calculate room utilization
-            if (!roomStatus.isEmpty()) {
-                long busyRooms = roomStatus.values().stream()
-                    .filter(ResourceStatus::isBusy)
-                    .count();
-                double roomUtil = (busyRooms * 100.0) / roomStatus.size();
-                systemMetrics.put("room_utilization", roomUtil);
-            }
-            
-            // Calculate equipment utilization
-            if (!equipmentStatus.isEmpty()) {
-                long busyEquipment = equipmentStatus.values().stream()
-                    .filter(ResourceStatus::isBusy)
-                    .count();
-                double equipUtil = (busyEquipment * 100.0) / equipmentStatus.size();
-                systemMetrics.put("equipment_utilization", equipUtil);
-            }
-            
-            // Update dashboard immediately
-            if (dashboardReference != null) {
-                SwingUtilities.invokeLater(() -> {
-                    dashboardReference.updateMetric("doctor_utilization", 
-                        systemMetrics.getOrDefault("doctor_utilization", 0.0));
-                    dashboardReference.updateMetric("room_utilization", 
-                        systemMetrics.getOrDefault("room_utilization", 0.0));
-                    dashboardReference.updateMetric("equipment_utilization", 
-                        systemMetrics.getOrDefault("equipment_utilization", 0.0));
-                });
-            }
+            metrics.set(Metric.QUEUE_LENGTH, metrics.getLong(Metric.WAITING_PATIENTS));
         }
     }
     
@@ -339,24 +490,13 @@ public class MonitoringAgent extends Agent {
         }
         
         private void queryResourceType(String serviceType, String resourceType) {
-            try {
-                DFAgentDescription template = new DFAgentDescription();
-                ServiceDescription sd = new ServiceDescription();
-                sd.setType(serviceType);
-                template.addServices(sd);
-                
-                DFAgentDescription[] results = DFService.search(myAgent, template);
-                
-                for (DFAgentDescription dfd : results) {
-                    // Send status query
-                    ACLMessage query = new ACLMessage(ACLMessage.REQUEST);
-                    query.addReceiver(dfd.getName());
-                    query.setContent("GET_STATUS");
-                    query.setConversationId("status-query");
-                    myAgent.send(query);
-                }
-            } catch (FIPAException fe) {
-                fe.printStackTrace();
+            for (AID agent : directory.getAgents(serviceType)) {
+                // Send status query
+                ACLMessage query = new ACLMessage(ACLMessage.REQUEST);
+                query.addReceiver(agent);
+                query.setContent("GET_STATUS");
+                query.setConversationId("status-query");
+                myAgent.send(query);
             }
         }
     }
@@ -365,52 +505,80 @@ public class MonitoringAgent extends Agent {
      * Update dashboard with latest metrics
      */
     private class DashboardUpdaterBehaviour extends TickerBehaviour {
+        // Last published metrics, and the copy taken on this tick
+        private MetricsRegistry.Snapshot published = new MetricsRegistry.Snapshot();
+        private MetricsRegistry.Snapshot current = new MetricsRegistry.Snapshot();
+        private boolean publishedOnce;
+        private long lastSampleTime;
+        
         public DashboardUpdaterBehaviour(Agent agent, long period) {
             super(agent, period);
         }
         
         @Override
         protected void onTick() {
-            if (dashboardReference != null) {
-                // Send all current metrics to dashboard
+            if (dashboardReference == null) {
+                return;
+            }
+            
+            // Publish the metrics when they changed; the bus coalesces them into frames
+            metrics.snapshot(current);
+            if (!publishedOnce || !current.sameValues(published)) {
+                dashboardReference.updateMetrics(current.toMap());
+                MetricsRegistry.Snapshot swap = published;
+                published = current;
+                current = swap;
+                publishedOnce = true;
+            }
+            
+            // Time series keep one point per second
+            long now = System.currentTimeMillis();
+            if (now - lastSampleTime >= 1000) {
+                lastSampleTime = now;
+                double waitTime = published.get(Metric.AVG_WAIT_TIME);
+                double throughput = calculateThroughput(published);
+                double utilization = calculateAverageUtilization(published);
+                double queueLength = published.get(Metric.WAITING_PATIENTS);
                 SwingUtilities.invokeLater(() -> {
-                    // Update all metrics
-                    dashboardReference.updateMetric("total_patients", (double) totalPatients);
-                    dashboardReference.updateMetric("treated_patients", (double) treatedPatients);
-                    dashboardReference.updateMetric("waiting_patients", (double) waitingPatients);
-                    dashboardReference.updateMetric("queue_length", (double) waitingPatients);
-                    
-                    for (Map.Entry<String, Double> entry : systemMetrics.entrySet()) {
-                        dashboardReference.updateMetric(entry.getKey(), entry.getValue());
-                    }
-                    
-                    // Update time series data
-                    dashboardReference.updateTimeSeries("wait_time", 
-                        systemMetrics.getOrDefault("avg_wait_time", 0.0));
-                    dashboardReference.updateTimeSeries("throughput", 
-                        calculateThroughput());
-                    dashboardReference.updateTimeSeries("utilization", 
-                        calculateAverageUtilization());
-                    dashboardReference.updateTimeSeries("queue_length", 
-                        (double) waitingPatients);
+                    dashboardReference.updateTimeSeries("wait_time", waitTime);
+                    dashboardReference.updateTimeSeries("throughput", throughput);
+                    dashboardReference.updateTimeSeries("utilization", utilization);
+                    dashboardReference.updateTimeSeries("queue_length", queueLength);
                 });
             }
         }
         
-        private double calculateThroughput() {
+        private double calculateThroughput(MetricsRegistry.Snapshot snapshot) {
             long currentTime = System.currentTimeMillis();
             double elapsedHours = (currentTime - lastUpdateTime) / 3600000.0;
             if (elapsedHours > 0) {
-                return treatedPatients / elapsedHours;
+                return snapshot.getLong(Metric.TREATED_PATIENTS) / elapsedHours;
             }
             return 0;
         }
+    }
+    
+    /**
+     * Append the metrics that changed to the persistent history
+     */
+    private class HistoryRecorderBehaviour extends TickerBehaviour {
+        private final MetricsRegistry.Snapshot snapshot = new MetricsRegistry.Snapshot();
+        
+        public HistoryRecorderBehaviour(Agent agent, long period) {
+            super(agent, period);
+        }
         
-        private double calculateAverageUtilization() {
-            double doctorUtil = systemMetrics.getOrDefault("doctor_utilization", 0.0);
-            double roomUtil = systemMetrics.getOrDefault("room_utilization", 0.0);
-            double equipUtil = systemMetrics.getOrDefault("equipment_utilization", 0.0);
-            return (doctorUtil + roomUtil + equipUtil) / 3.0;
+        @Override
+        protected void onTick() {
+            if (history == null) {
+                stop();
+                return;
+            }
+            try {
+                history.appendMetrics(System.currentTimeMillis(), metrics.snapshot(snapshot));
+            } catch (IOException e) {
+                closeHistory(e);
+            }
         }
     }
     
@@ -435,65 +603,54 @@ public class MonitoringAgent extends Agent {
             // System efficiency score
             double efficiency = 0;
             
+            MetricsRegistry.Snapshot snapshot = metrics.snapshot();
+            
             // Factor 1: Low wait time (40% weight)
-            double avgWait = systemMetrics.getOrDefault("avg_wait_time", 0.0);
+            double avgWait = snapshot.get(Metric.AVG_WAIT_TIME);
             double waitScore = Math.max(0, 100 - avgWait * 5); // Penalty for wait time
             efficiency += waitScore * 0.4;
             
             // Factor 2: High utilization (30% weight)
-            double avgUtil = calculateAverageUtilization();
+            double avgUtil = calculateAverageUtilization(snapshot);
             efficiency += avgUtil * 0.3;
             
             // Factor 3: High success rate (30% weight)
-            double successRate = systemMetrics.getOrDefault("success_rate", 100.0);
+            double successRate = snapshot.get(Metric.SUCCESS_RATE);
             efficiency += successRate * 0.3;
             
-            systemMetrics.put("efficiency_score", efficiency);
-        }
-        
-        private double calculateAverageUtilization() {
-            double doctorUtil = systemMetrics.getOrDefault("doctor_utilization", 0.0);
-            double roomUtil = systemMetrics.getOrDefault("room_utilization", 0.0);
-            double equipUtil = systemMetrics.getOrDefault("equipment_utilization", 0.0);
-            return (doctorUtil + roomUtil + equipUtil) / 3.0;
+            metrics.set(Metric.EFFICIENCY_SCORE, efficiency);
         }
         
         private void printMetricsSummary() {
+            MetricsRegistry.Snapshot snapshot = metrics.snapshot();
             System.out.println("\n=== System Metrics Summary ===");
-            System.out.println("Total Patients: " + totalPatients);
-            System.out.println("Treated: " + treatedPatients);
-            System.out.println("Waiting: " + waitingPatients);
+            System.out.println("Total Patients: " + snapshot.getLong(Metric.TOTAL_PATIENTS));
+            System.out.println("Treated: " + snapshot.getLong(Metric.TREATED_PATIENTS));
+            System.out.println("Waiting: " + snapshot.getLong(Metric.WAITING_PATIENTS));
             System.out.println("Avg Wait Time: " + 
-                String.format("%.2f", systemMetrics.getOrDefault("avg_wait_time", 0.0)) + " min");
+                String.format("%.2f", snapshot.get(Metric.AVG_WAIT_TIME)) + " min");
             System.out.println("Success Rate: " + 
-                String.format("%.1f%%", systemMetrics.getOrDefault("success_rate", 0.0)));
+                String.format("%.1f%%", snapshot.get(Metric.SUCCESS_RATE)));
             System.out.println("Doctor Utilization: " + 
-                String.format("%.1f%%", systemMetrics.getOrDefault("doctor_utilization", 0.0)));
+                String.format("%.1f%%", snapshot.get(Metric.DOCTOR_UTILIZATION)));
             System.out.println("Room Utilization: " + 
-                String.format("%.1f%%", systemMetrics.getOrDefault("room_utilization", 0.0)));
+                String.format("%.1f%%", snapshot.get(Metric.ROOM_UTILIZATION)));
             System.out.println("Equipment Utilization: " + 
-                String.format("%.1f%%", systemMetrics.getOrDefault("equipment_utilization", 0.0)));
+                String.format("%.1f%%", snapshot.get(Metric.EQUIPMENT_UTILIZATION)));
             System.out.println("Efficiency Score: " + 
-                String.format("%.1f", systemMetrics.getOrDefault("efficiency_score", 0.0)));
+                String.format("%.1f", snapshot.get(Metric.EFFICIENCY_SCORE)));
             System.out.println("==============================\n");
         }
     }
     
     /**
-     * Helper class for resource status
+     * Average utilization of the three resource classes
      */
-    private static class ResourceStatus {
-        String name;
-        boolean busy;
-        long lastUpdate;
-        
-        ResourceStatus(String name, boolean busy) {
-            this.name = name;
-            this.busy = busy;
-            this.lastUpdate = System.currentTimeMillis();
-        }
-        
-        boolean isBusy() { return busy; }
+    private static double calculateAverageUtilization(MetricsRegistry.Snapshot snapshot) {
+        double doctorUtil = snapshot.get(Metric.DOCTOR_UTILIZATION);
+        double roomUtil = snapshot.get(Metric.ROOM_UTILIZATION);
+        double equipUtil = snapshot.get(Metric.EQUIPMENT_UTILIZATION);
+        return (doctorUtil + roomUtil + equipUtil) / 3.0;
     }
     
     /**
@@ -515,16 +672,20 @@ public class MonitoringAgent extends Agent {
     
     // Public methods for dashboard to get metrics
     public Map<String, Double> getSystemMetrics() {
-        return new HashMap<>(systemMetrics);
+        return metrics.snapshot().toMap();
+    }
+    
+    /**
+     * Persistent metrics history for range queries, null when disabled
+     */
+    public MetricsHistoryStore getHistory() {
+        return history;
     }
     
     public void resetMetrics() {
-        totalPatients = 0;
-        treatedPatients = 0;
-        waitingPatients = 0;
-        totalWaitTime = 0;
-        initializeMetrics();
-        System.out.println("Metrics reset");
+        metrics.reset();
+        latencies.reset();
+        log.info("Metrics reset");
     }
     
     @Override
@@ -533,14 +694,25 @@ public class MonitoringAgent extends Agent {
         if (dashboard != null) {
             dashboard.dispose();
         }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException e) {
+                log.error("cannot close the metrics history: ", e.getMessage());
+            }
+        }
         
         // Deregister from Yellow Pages
+        directory.close();
         try {
             DFService.deregister(this);
         } catch (FIPAException fe) {
             fe.printStackTrace();
         }
         
-        System.out.println("Monitoring Agent " + getLocalName() + " terminating");
+        log.info("Monitoring Agent terminating");
     }
 }
@@ -1,5 +1,7 @@
 package agents;
 
+import codec.MessageCodecs;
+import directory.DirectoryCache;
 import jade.core.Agent;
 import jade.core.AID;
 import jade.core.behaviours.*;
@@ -9,10 +11,19 @@ import jade.domain.DFService;
 import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
+import logging.AgentLog;
+import logging.LogSink;
+import metrics.TelemetryEmitter;
 import models.Patient;
+import utils.ConsistentHashRing;
+import utils.HospitalMessage;
+import utils.HospitalMessage.Opcode;
 import utils.MessageProtocol;
 import utils.SchedulingAlgorithm;
-import java.io.*;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Patient Agent - Requests treatment and waits for resource allocation
@@ -22,9 +33,25 @@ public class PatientAgent extends Agent {
     private Patient patientData;
     private AID schedulerAgent;
     private boolean treatmentCompleted = false;
+    private WakerBehaviour treatment;
+    
+    // Waiting reports come every 5 seconds: one in 12 is logged
+    private AgentLog log;
+    private AgentLog.Sampler waitingLog;
+    private AgentLog.Sampler statusLog;
+    
+    // Schedulers, searched once: a patient lives too short to gain from a DF subscription
+    private DirectoryCache directory;
+    
+    // Message content parser, reused for every message
+    private final HospitalMessage parser = new HospitalMessage();
     
     @Override
     protected void setup() {
+        log = AgentLog.of(getLocalName());
+        waitingLog = log.sampler(12);
+        statusLog = log.sampler(12);
+        
         // Get arguments: name, urgency, treatment type
         Object[] args = getArguments();
         if (args != null && args.length >= 3) {
@@ -33,10 +60,12 @@ public class PatientAgent extends Agent {
             String treatment = (String) args[2];
             
             patientData = new Patient(name, urgency, treatment);
-            System.out.println("Patient Agent " + getLocalName() + " initialized: " + patientData);
+            log.info("Patient Agent initialized: ", patientData.toString());
+            
+            directory = new DirectoryCache(this);
             
             // Notify monitoring agent
-            notifyMonitor("PATIENT_REGISTERED:" + patientData.getId());
+            notifyMonitor(HospitalMessage.encode(Opcode.PATIENT_REGISTERED, patientData.getId()));
             
             // Register in Yellow Pages
             registerInYellowPages();
@@ -46,7 +75,7 @@ public class PatientAgent extends Agent {
             addBehaviour(new WaitForAllocationBehaviour());
             addBehaviour(new UpdateStatusBehaviour(this, 5000)); // Update every 5 seconds
         } else {
-            System.err.println("Patient Agent requires arguments: name, urgency, treatment");
+            log.error("Patient Agent requires arguments: name, urgency, treatment");
             doDelete();
         }
     }
@@ -73,48 +102,59 @@ public class PatientAgent extends Agent {
         @Override
         public void action() {
             // Find scheduler agent
-            DFAgentDescription template = new DFAgentDescription();
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType(MessageProtocol.SCHEDULER_SERVICE);
-            template.addServices(sd);
-            
-            try {
-                DFAgentDescription[] result = DFService.search(myAgent, template);
-                if (result.length > 0) {
-                    schedulerAgent = result[0].getName();
+            List<DFAgentDescription> result = directory.getDescriptions(MessageProtocol.SCHEDULER_SERVICE);
+            if (!result.isEmpty()) {
+                schedulerAgent = selectScheduler(result);
+                
+                // Send treatment request
+                ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+                request.addReceiver(schedulerAgent);
+                request.setConversationId(MessageProtocol.TREATMENT_REQUEST);
+                request.setOntology(MessageProtocol.HOSPITAL_ONTOLOGY);
+                
+                // Serialize patient data
+                try {
+                    MessageCodecs.write(request, patientData);
                     
-                    // Send treatment request
-                    ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
-                    request.addReceiver(schedulerAgent);
-                    request.setConversationId(MessageProtocol.TREATMENT_REQUEST);
-                    request.setOntology(MessageProtocol.HOSPITAL_ONTOLOGY);
-                    
-                    // Serialize patient data
-                    try {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(baos);
-                        oos.writeObject(patientData);
-                        request.setByteSequenceContent(baos.toByteArray());
-                        
-                        myAgent.send(request);
-                        System.out.println(getLocalName() + " sent treatment request to scheduler");
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                } else {
-                    System.err.println(getLocalName() + " could not find scheduler agent");
-                    // Retry after delay
-                    myAgent.addBehaviour(new WakerBehaviour(myAgent, 3000) {
-                        @Override
-                        protected void onWake() {
-                            myAgent.addBehaviour(new RequestTreatmentBehaviour());
-                        }
-                    });
+                    myAgent.send(request);
+                    log.debug("sent treatment request to scheduler");
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            } catch (FIPAException fe) {
-                fe.printStackTrace();
+            } else {
+                log.warn("could not find scheduler agent");
+                // Retry after delay
+                myAgent.addBehaviour(new WakerBehaviour(myAgent, 3000) {
+                    @Override
+                    protected void onWake() {
+                        myAgent.addBehaviour(new RequestTreatmentBehaviour());
+                    }
+                });
+            }
+        }
+    }
+    
+    /**
+     * Pick the scheduler owning this patient's department when the schedulers are
+     * sharded, otherwise the single scheduler found
+     */
+    private AID selectScheduler(List<DFAgentDescription> schedulers) {
+        Map<String, AID> shards = new HashMap<>();
+        for (DFAgentDescription scheduler : schedulers) {
+            String shard = SchedulerAgent.shardOf(scheduler);
+            if (shard != null) {
+                shards.put(shard, scheduler.getName());
             }
         }
+        if (shards.isEmpty()) {
+            return schedulers.get(0).getName();
+        }
+        
+        ConsistentHashRing ring = new ConsistentHashRing(shards.keySet());
+        String department = SchedulingAlgorithm.getDepartment(patientData.getTreatmentType());
+        String shard = ring.getNode(department);
+        log.debug("routed to shard ", shard, " (department ", department, ")");
+        return shards.get(shard);
     }
     
     /**
@@ -149,46 +189,58 @@ public class PatientAgent extends Agent {
                         
                         try {
                             // Serialize patient data
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            ObjectOutputStream oos = new ObjectOutputStream(baos);
-                            oos.writeObject(patientData);
-                            reply.setByteSequenceContent(baos.toByteArray());
+                            MessageCodecs.write(reply, patientData);
                             
                             myAgent.send(reply);
-                            System.out.println(getLocalName() + " sent status update");
+                            statusLog.debug("sent status update");
                         } catch (IOException e) {
                             e.printStackTrace();
                         }
                     }
                 } else if (msg.getPerformative() == ACLMessage.INFORM) {
                     // Handle allocation messages from scheduler
-                    String content = msg.getContent();
-                    if (content.startsWith("RESOURCES_ALLOCATED:")) {
-                        String[] parts = content.split(":");
-                        if (parts.length >= 3) {
-                            String doctorId = parts[1];
-                            String roomId = parts[2];
-                            String equipmentId = parts.length > 3 ? parts[3] : "NONE";
+                    Opcode opcode = parser.parse(msg.getContent()) ? parser.getOpcode() : null;
+                    if (opcode == Opcode.RESOURCES_ALLOCATED) {
+                        // RESOURCES_ALLOCATED:<doctorId>:<roomId>[:<equipmentId>]
+                        if (parser.getFieldCount() >= 2) {
+                            String doctorId = parser.field(0);
+                            String roomId = parser.field(1);
+                            String equipmentId = parser.getFieldCount() > 2 ? parser.field(2) : "NONE";
                             
                             patientData.setAssignedDoctor(doctorId);
                             patientData.setAssignedRoom(roomId);
                             patientData.setRequiredEquipment(equipmentId);
                             patientData.setStatus("IN_TREATMENT");
                             
-                            System.out.println(getLocalName() + " allocated resources - Doctor: " + 
-                                doctorId + ", Room: " + roomId + ", Equipment: " + equipmentId);
+                            // Another shard may have stolen the request: report completion to the allocating one
+                            schedulerAgent = msg.getSender();
+                            
+                            log.info("allocated resources - Doctor: ", doctorId, ", Room: ", roomId, 
+                                     ", Equipment: ", equipmentId);
                             
                             // Simulate treatment duration
                             long duration = SchedulingAlgorithm.estimateTreatmentDuration(patientData.getTreatmentType());
-                            myAgent.addBehaviour(new WakerBehaviour(myAgent, duration) {
+                            treatment = new WakerBehaviour(myAgent, duration) {
                                 @Override
                                 protected void onWake() {
                                     completeTreatment();
                                 }
-                            });
+                            };
+                            myAgent.addBehaviour(treatment);
+                        }
+                    } else if (opcode == Opcode.ALLOCATION_FAILED) {
+                        if (treatment != null && !treatmentCompleted) {
+                            // A resource failed its commit after the allocation was sent: wait again
+                            myAgent.removeBehaviour(treatment);
+                            treatment = null;
+                            patientData.setAssignedDoctor(null);
+                            patientData.setAssignedRoom(null);
+                            patientData.setRequiredEquipment(null);
+                            patientData.setStatus("WAITING");
+                            log.info("allocation revoked, back in the queue");
+                        } else {
+                            log.debug("allocation failed, will retry later");
                         }
-                    } else if (content.startsWith("ALLOCATION_FAILED:")) {
-                        System.out.println(getLocalName() + " allocation failed, will retry later");
                         // Scheduler will handle retrying
                     }
                 }
@@ -210,16 +262,16 @@ public class PatientAgent extends Agent {
         complete.addReceiver(schedulerAgent);
         complete.setConversationId(MessageProtocol.STATUS_UPDATE);
         complete.setOntology(MessageProtocol.HOSPITAL_ONTOLOGY);
-        complete.setContent(MessageProtocol.TREATMENT_COMPLETE + ":" + patientData.getId());
+        complete.setContent(HospitalMessage.encode(Opcode.TREATMENT_COMPLETE, patientData.getId()));
         send(complete);
         
         // Notify monitoring agent
-        notifyMonitor("PATIENT_TREATED:" + patientData.getId());
-        notifyMonitor("WAIT_TIME:" + patientData.getWaitingTime() + ":" + 
-                     patientData.getUrgencyLevel() + ":0.7");
+        notifyMonitor(HospitalMessage.encode(Opcode.PATIENT_TREATED, patientData.getId(), 
+                     String.valueOf(patientData.getWaitingTime())));
+        notifyMonitor(HospitalMessage.encode(Opcode.WAIT_TIME, String.valueOf(patientData.getWaitingTime()), 
+                     String.valueOf(patientData.getUrgencyLevel()), "0.7"));
         
-        System.out.println(getLocalName() + " completed treatment. Total waiting time: " + 
-            (patientData.getWaitingTime() / 1000) + " seconds");
+        log.info("completed treatment. Total waiting time: ", patientData.getWaitingTime() / 1000, " seconds");
         
         // Agent can terminate after treatment
         doDelete();
@@ -237,45 +289,36 @@ public class PatientAgent extends Agent {
         protected void onTick() {
             if (!treatmentCompleted && patientData.getStatus().equals("WAITING")) {
                 patientData.updateWaitingTime();
-                System.out.println(getLocalName() + " waiting time: " + 
-                    (patientData.getWaitingTime() / 1000) + " seconds");
+                waitingLog.info("waiting time: ", patientData.getWaitingTime() / 1000, " seconds");
                 // Notify monitor about waiting status
-                notifyMonitor("PATIENT_WAITING:" + (patientData.getWaitingTime() / 1000));
+                notifyMonitor(HospitalMessage.encode(Opcode.PATIENT_WAITING, 
+                    String.valueOf(patientData.getWaitingTime() / 1000)));
             }
         }
     }
     
     /**
-     * Helper method to notify monitoring agent
+     * Helper method to notify monitoring agent, batched with the other events of the container
      */
     private void notifyMonitor(String message) {
-        // Find monitoring agent
-        DFAgentDescription template = new DFAgentDescription();
-        ServiceDescription sd = new ServiceDescription();
-        sd.setType("monitoring-service");
-        template.addServices(sd);
-        
-        try {
-            DFAgentDescription[] result = DFService.search(this, template);
-            if (result.length > 0) {
-                ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
-                inform.addReceiver(result[0].getName());
-                inform.setContent(message);
-                send(inform);
-            }
-        } catch (FIPAException fe) {
-            // Monitoring agent might not be available yet
-        }
+        TelemetryEmitter.shared().emit(this, message);
     }
     
     @Override
     protected void takeDown() {
+        // Send the queued telemetry, whose flush timer may belong to this agent
+        TelemetryEmitter.shared().flush(this);
+        
         // Deregister from Yellow Pages
+        if (directory != null) {
+            directory.close();
+        }
         try {
             DFService.deregister(this);
         } catch (FIPAException fe) {
             fe.printStackTrace();
         }
-        System.out.println("Patient Agent " + getLocalName() + " terminating");
+        log.info("Patient Agent terminating");
+        LogSink.shared().release(getLocalName());
     }
 }
@@ -1,6 +1,8 @@
 package agents;
 
+import directory.DirectoryCache;
 import jade.core.Agent;
+import jade.core.AID;
 import jade.core.behaviours.*;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
@@ -8,8 +10,14 @@ import jade.domain.DFService;
 import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
+import logging.AgentLog;
 import models.Room;
+import utils.HospitalMessage;
+import utils.HospitalMessage.Opcode;
 import utils.MessageProtocol;
+import utils.ReservationHold;
+
+import java.util.List;
 
 /**
  * Room Agent - Manages room availability and allocation
@@ -17,9 +25,22 @@ import utils.MessageProtocol;
  */
 public class RoomAgent extends Agent {
     private Room roomData;
+    private AgentLog log;
+    
+    // Availability state pushed to the index of the schedulers found in the directory cache
+    private DirectoryCache directory;
+    private long stateVersion;
+    
+    // Tentative hold for two-phase reservations
+    private ReservationHold hold;
+    
+    // Message content parser, reused for every message
+    private final HospitalMessage parser = new HospitalMessage();
     
     @Override
     protected void setup() {
+        log = AgentLog.of(getLocalName());
+        
         // Get arguments: id, type, capacity
         Object[] args = getArguments();
         if (args != null && args.length >= 3) {
@@ -28,16 +49,29 @@ public class RoomAgent extends Agent {
             int capacity = Integer.parseInt(args[2].toString());
             
             roomData = new Room(id, type, capacity);
-            System.out.println("Room Agent " + getLocalName() + " initialized: " + roomData);
+            hold = new ReservationHold();
+            log.info("Room Agent initialized: ", roomData.toString());
             
             // Register in Yellow Pages
             registerInYellowPages();
             
+            // Watch the schedulers, a shard started later gets the current state at once
+            directory = new DirectoryCache(this);
+            directory.addListener(serviceType -> {
+                if (MessageProtocol.SCHEDULER_SERVICE.equals(serviceType)) {
+                    publishState();
+                }
+            });
+            directory.watch(MessageProtocol.SCHEDULER_SERVICE);
+            
             // Add behaviors
             addBehaviour(new HandleRoomRequestBehaviour());
             addBehaviour(new MonitorRoomStatusBehaviour());
+            addBehaviour(new StatePublisherBehaviour(this));
+            
+            publishState();
         } else {
-            System.err.println("Room Agent requires arguments: id, type, capacity");
+            log.error("Room Agent requires arguments: id, type, capacity");
             doDelete();
         }
     }
@@ -74,44 +108,101 @@ public class RoomAgent extends Agent {
             ACLMessage msg = myAgent.receive(mt);
             if (msg != null) {
                 ACLMessage reply = msg.createReply();
-                String content = msg.getContent();
+                if (!parser.parse(msg.getContent())) {
+                    reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                    myAgent.send(reply);
+                    return;
+                }
                 
-                if (content.startsWith(MessageProtocol.CHECK_AVAILABILITY)) {
-                    // Check room availability
-                    if (roomData.isAvailable()) {
-                        reply.setPerformative(ACLMessage.CONFIRM);
-                        reply.setContent(MessageProtocol.RESOURCE_AVAILABLE + ":" + 
-                            roomData.getId() + ":" + roomData.getType());
-                        System.out.println(getLocalName() + " is available");
-                    } else {
-                        reply.setPerformative(ACLMessage.REFUSE);
-                        reply.setContent(MessageProtocol.RESOURCE_BUSY + ":" + roomData.getId());
-                        System.out.println(getLocalName() + " is occupied");
-                    }
-                } else if (content.startsWith(MessageProtocol.ALLOCATE_RESOURCE)) {
-                    // Allocate room
-                    String[] parts = content.split(":");
-                    if (parts.length >= 3) {
-                        String patientId = parts[1];
-                        String doctorId = parts[2];
-                        
+                switch (parser.getOpcode()) {
+                    case CHECK_AVAILABILITY:
+                        // Check room availability
                         if (roomData.isAvailable()) {
-                            roomData.occupy(patientId, doctorId);
                             reply.setPerformative(ACLMessage.CONFIRM);
-                            reply.setContent("ALLOCATED:" + roomData.getId());
-                            System.out.println(getLocalName() + " allocated to patient " + 
-                                patientId + " with doctor " + doctorId);
+                            reply.setContent(HospitalMessage.encode(Opcode.RESOURCE_AVAILABLE, roomData.getId(), 
+                                roomData.getType()));
+                            log.debug("is available");
                         } else {
                             reply.setPerformative(ACLMessage.REFUSE);
-                            reply.setContent("NOT_AVAILABLE:" + roomData.getId());
+                            reply.setContent(HospitalMessage.encode(Opcode.RESOURCE_BUSY, roomData.getId()));
+                            log.debug("is occupied");
                         }
-                    }
-                } else if (content.startsWith(MessageProtocol.RELEASE_RESOURCE)) {
-                    // Release room
-                    roomData.release();
-                    reply.setPerformative(ACLMessage.CONFIRM);
-                    reply.setContent("RELEASED:" + roomData.getId());
-                    System.out.println(getLocalName() + " released and now available");
+                        break;
+                        
+                    case ALLOCATE_RESOURCE:
+                        // Allocate room: ALLOCATE_RESOURCE:<patientId>:<doctorId>
+                        if (parser.getFieldCount() >= 2) {
+                            String patientId = parser.field(0);
+                            String doctorId = parser.field(1);
+                            
+                            if (roomData.isAvailable()) {
+                                roomData.occupy(patientId, doctorId);
+                                reply.setPerformative(ACLMessage.CONFIRM);
+                                reply.setContent(HospitalMessage.encode(Opcode.ALLOCATED, roomData.getId()));
+                                log.info("allocated to patient ", patientId, " with doctor ", doctorId);
+                                publishState();
+                            } else {
+                                reply.setPerformative(ACLMessage.REFUSE);
+                                reply.setContent(HospitalMessage.encode(Opcode.NOT_AVAILABLE, roomData.getId()));
+                            }
+                        }
+                        break;
+                        
+                    case HOLD_RESOURCE:
+                        // Tentative hold: HOLD_RESOURCE:<patientId>:<treatmentType>
+                        if (parser.getFieldCount() >= 1 && roomData.isAvailable() && hold.tryHold(parser.field(0))) {
+                            roomData.setAvailable(false);
+                            scheduleHoldExpiry();
+                            publishState();
+                            
+                            reply.setPerformative(ACLMessage.CONFIRM);
+                            reply.setContent(HospitalMessage.encode(Opcode.HELD, roomData.getId()));
+                            log.debug("held for patient ", parser.field(0));
+                        } else {
+                            reply.setPerformative(ACLMessage.REFUSE);
+                            reply.setContent(HospitalMessage.encode(Opcode.NOT_AVAILABLE, roomData.getId()));
+                        }
+                        break;
+                        
+                    case COMMIT_RESOURCE:
+                        // Commit the hold: COMMIT_RESOURCE:<patientId>:<doctorId>
+                        if (parser.getFieldCount() >= 2 && hold.commit(parser.field(0))) {
+                            roomData.occupy(parser.field(0), parser.field(1));
+                            reply.setPerformative(ACLMessage.CONFIRM);
+                            reply.setContent(HospitalMessage.encode(Opcode.COMMITTED, roomData.getId()));
+                            log.info("allocated to patient ", parser.field(0), " with doctor ", parser.field(1));
+                            publishState();
+                        } else {
+                            reply.setPerformative(ACLMessage.FAILURE);
+                            reply.setContent(HospitalMessage.encode(Opcode.HOLD_EXPIRED, roomData.getId()));
+                        }
+                        break;
+                        
+                    case RELEASE_HOLD:
+                        // Roll back the hold: RELEASE_HOLD:<patientId>
+                        if (parser.getFieldCount() >= 1 && hold.release(parser.field(0))) {
+                            roomData.setAvailable(true);
+                            publishState();
+                            log.debug("hold released for patient ", parser.field(0));
+                        }
+                        reply.setPerformative(ACLMessage.CONFIRM);
+                        reply.setContent(HospitalMessage.encode(Opcode.RELEASED, roomData.getId()));
+                        break;
+                        
+                    case RELEASE_RESOURCE:
+                        // Release room: RELEASE_RESOURCE:<patientId>, ignored once it serves another patient
+                        if (parser.getFieldCount() == 0 || parser.fieldEquals(0, roomData.getCurrentPatientId())) {
+                            roomData.release();
+                            log.debug("released and now available");
+                            publishState();
+                        }
+                        reply.setPerformative(ACLMessage.CONFIRM);
+                        reply.setContent(HospitalMessage.encode(Opcode.RELEASED, roomData.getId()));
+                        break;
+                        
+                    default:
+                        reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                        break;
                 }
                 
                 myAgent.send(reply);
@@ -134,13 +225,10 @@ public class RoomAgent extends Agent {
             
             ACLMessage msg = myAgent.receive(mt);
             if (msg != null) {
-                String content = msg.getContent();
-                
-                if (content.startsWith("RELEASE_ROOM")) {
-                    String[] parts = content.split(":");
-                    if (parts.length >= 2 && parts[1].equals(roomData.getId())) {
+                if (parser.parse(msg.getContent()) && parser.getOpcode() == Opcode.RELEASE_ROOM) {
+                    if (parser.fieldEquals(0, roomData.getId())) {
                         roomData.release();
-                        System.out.println(getLocalName() + " released after treatment completion");
+                        log.info("released after treatment completion");
                         
                         // Notify scheduler that room is available
                         notifySchedulerAvailable();
@@ -154,33 +242,85 @@ public class RoomAgent extends Agent {
     
     private void notifySchedulerAvailable() {
         // Find scheduler and notify availability
-        DFAgentDescription template = new DFAgentDescription();
-        ServiceDescription sd = new ServiceDescription();
-        sd.setType(MessageProtocol.SCHEDULER_SERVICE);
-        template.addServices(sd);
-        
-        try {
-            DFAgentDescription[] result = DFService.search(this, template);
-            if (result.length > 0) {
-                ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
-                inform.addReceiver(result[0].getName());
-                inform.setConversationId(MessageProtocol.STATUS_UPDATE);
-                inform.setContent("ROOM_AVAILABLE:" + roomData.getId() + ":" + roomData.getType());
-                send(inform);
+        List<AID> schedulers = findSchedulers();
+        if (!schedulers.isEmpty()) {
+            ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
+            for (AID scheduler : schedulers) {
+                inform.addReceiver(scheduler);
             }
-        } catch (FIPAException fe) {
-            fe.printStackTrace();
+            inform.setConversationId(MessageProtocol.STATUS_UPDATE);
+            inform.setContent(HospitalMessage.encode(Opcode.ROOM_AVAILABLE, roomData.getId(), roomData.getType()));
+            send(inform);
         }
+        publishState();
+    }
+    
+    /**
+     * Drop the hold if the scheduler neither commits nor releases it in time
+     */
+    private void scheduleHoldExpiry() {
+        addBehaviour(new WakerBehaviour(this, hold.getHoldTimeout()) {
+            @Override
+            protected void onWake() {
+                if (hold.expireIfDue()) {
+                    roomData.setAvailable(true);
+                    publishState();
+                    log.debug("hold expired");
+                }
+            }
+        });
+    }
+    
+    /**
+     * Periodic behavior to refresh the scheduler's index entry so it does not go stale
+     */
+    private class StatePublisherBehaviour extends TickerBehaviour {
+        public StatePublisherBehaviour(Agent a) {
+            super(a, MessageProtocol.STATE_REFRESH_PERIOD);
+        }
+        
+        @Override
+        protected void onTick() {
+            publishState();
+        }
+    }
+    
+    /**
+     * Push the current availability state to the availability index of every scheduler
+     */
+    private void publishState() {
+        List<AID> schedulers = findSchedulers();
+        if (schedulers.isEmpty()) return;
+        
+        ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
+        for (AID scheduler : schedulers) {
+            inform.addReceiver(scheduler);
+        }
+        inform.setConversationId(MessageProtocol.STATUS_UPDATE);
+        inform.setContent(HospitalMessage.encode(Opcode.RESOURCE_STATE, "ROOM", roomData.getId(), roomData.getType(), 
+            roomData.isAvailable() ? MessageProtocol.RESOURCE_AVAILABLE : MessageProtocol.RESOURCE_BUSY, 
+            String.valueOf(++stateVersion)));
+        send(inform);
+    }
+    
+    /**
+     * Schedulers registered in the Yellow Pages (one per shard in sharded mode)
+     */
+    private List<AID> findSchedulers() {
+        return directory.getAgents(MessageProtocol.SCHEDULER_SERVICE);
     }
     
     @Override
     protected void takeDown() {
         // Deregister from Yellow Pages
+        if (directory != null) {
+            directory.close();
+        }
         try {
             DFService.deregister(this);
         } catch (FIPAException fe) {
             fe.printStackTrace();
         }
-        System.out.println("Room Agent " + getLocalName() + " terminating");
+        log.info("Room Agent terminating");
     }
 }
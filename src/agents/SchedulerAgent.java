@@ -1,5 +1,7 @@
 package agents;
 
+import codec.MessageCodecs;
+import directory.DirectoryCache;
 import jade.core.Agent;
 import jade.core.AID;
 import jade.core.behaviours.*;
@@ -8,50 +10,192 @@ import jade.lang.acl.MessageTemplate;
 import jade.domain.DFService;
 import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
+import logging.AgentLog;
+import metrics.LatencyHistogram;
+import metrics.PatientLatencies;
+import metrics.PatientLatencies.Measure;
 import models.Patient;
+import utils.AllocationMetrics;
+import utils.ConcurrentPatientQueue;
+import utils.HospitalMessage;
+import utils.HospitalMessage.Opcode;
 import utils.MessageProtocol;
+import utils.ResourceAvailabilityIndex;
 import utils.SchedulingAlgorithm;
+import utils.TwoPhaseReservation;
 
-import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Scheduler Agent - Coordinates resource allocation in the hospital
  * Master IA - Systèmes Multi-Agents Project
  */
 public class SchedulerAgent extends Agent {
+    // Time allowed for each round trip of a reservation before it is rolled back
+    private static final long RESERVATION_TIMEOUT = 5000; // 5 seconds
+    
+    // Number of queued patients matched at once in batch mode
+    private static final int BATCH_SIZE = 50;
+    
+    // Sharded mode: how often an idle shard asks a peer for work, and how much it takes
+    private static final long STEAL_PERIOD = 1000; // 1 second
+    private static final int STEAL_BATCH = 10;
+    
     private SchedulingAlgorithm scheduler;
     private Map<String, Patient> patients;
     private List<AID> doctorAgents;
     private List<AID> roomAgents;
     private List<AID> equipmentAgents;
+    private AgentLog log;
+    
+    // Yellow Pages entries, kept up to date by DF subscriptions
+    private DirectoryCache directory;
+    
+    // Local availability index fed by resource state deltas
+    private ResourceAvailabilityIndex availabilityIndex;
+    private Map<String, AID> knownResources;
+    private Set<String> activeQueries;
+    private int indexHits;
+    private int directQueries;
+    
+    // Committed reservations, released when the treatment completes,
+    // and the commit reply tags not answered yet (tag -> patient id)
+    private Map<String, TwoPhaseReservation> committedReservations;
+    private Map<String, String> pendingCommits;
+    private int abortedReservations;
     
     // Statistics
     private int totalPatientsProcessed;
     private long totalWaitTime;
     private int successfulAllocations;
     private int failedAllocations;
+    private AllocationMetrics allocationMetrics;
+    
+    // Wait, allocation latency and treatment duration histograms: recorded in unreported,
+    // drained to the monitor and added to latencies
+    private PatientLatencies unreported;
+    private PatientLatencies latencies;
+    
+    // Event-driven allocation engine state: reservations in flight by patient id, and how many
+    // of them are still selecting their resources (no hold requested yet)
+    private AllocationEngineBehaviour allocationEngine;
+    private Map<String, ReservationCoordinatorBehaviour> allocationsInFlight;
+    private int allocationsSelecting;
+    private boolean resourcesExhausted;
+    
+    // Batch mode: patients matched to doctors and rooms, waiting for their reservation
+    private boolean batchMode;
+    private Deque<PlannedAllocation> allocationPlan;
+    
+    // Optional planning workers: batch matching runs off the agent thread, which only handles messaging.
+    // Discarding the plan starts a new generation; worker plans of an older one are stale.
+    private ExecutorService planningPool;
+    private int planningWorkers;
+    private int plansInFlight;
+    private int planGeneration;
+    private boolean lastPlanEmpty;
+    
+    // Sharded mode: this shard's name, its peers and the pending work-stealing request
+    private String shardName;
+    private List<AID> peerShards;
+    private int stealCursor;
+    private long stealRequestedAt;
+    
+    // Message content parser, reused for every message handled on the agent thread
+    private final HospitalMessage parser = new HospitalMessage();
     
     @Override
     protected void setup() {
-        System.out.println("Scheduler Agent " + getLocalName() + " started.");
+        log = AgentLog.of(getLocalName());
+        log.info("Scheduler Agent started.");
+        
+        // Get arguments: allocation mode ("greedy" or "batch") and number of planning workers
+        Object[] args = getArguments();
+        batchMode = args != null && args.length > 0 && "batch".equals(args[0]);
+        if (batchMode && args.length > 1) {
+            planningWorkers = Integer.parseInt(args[1].toString());
+        }
+        if (args != null && args.length > 2) {
+            shardName = args[2].toString();
+        }
+        log.info("Allocation mode: ", batchMode ? "batch" : "greedy", 
+                 planningWorkers > 0 ? " (" + planningWorkers + " planning workers)" : "", 
+                 shardName != null ? ", shard " + shardName : "");
         
         // Initialize data structures
-        scheduler = new SchedulingAlgorithm();
+        if (planningWorkers > 0) {
+            // Workers drain the queue concurrently and hand their plans back through O2A
+            scheduler = new SchedulingAlgorithm(new ConcurrentPatientQueue());
+            planningPool = Executors.newFixedThreadPool(planningWorkers);
+            setEnabledO2ACommunication(true, 0);
+        } else {
+            scheduler = new SchedulingAlgorithm();
+        }
         patients = new HashMap<>();
         doctorAgents = new ArrayList<>();
         roomAgents = new ArrayList<>();
         equipmentAgents = new ArrayList<>();
+        allocationMetrics = new AllocationMetrics();
+        unreported = new PatientLatencies();
+        latencies = new PatientLatencies();
+        availabilityIndex = new ResourceAvailabilityIndex();
+        knownResources = new HashMap<>();
+        activeQueries = new HashSet<>();
+        committedReservations = new HashMap<>();
+        pendingCommits = new HashMap<>();
+        allocationPlan = new ArrayDeque<>();
+        allocationEngine = new AllocationEngineBehaviour();
+        allocationsInFlight = new HashMap<>();
+        peerShards = new ArrayList<>();
         
         // Register in Yellow Pages
         registerInYellowPages();
         
+        // Watch the services used on the allocation path
+        directory = new DirectoryCache(this);
+        directory.addListener(serviceType -> {
+            if (!MessageProtocol.PATIENT_SERVICE.equals(serviceType) && 
+                !MessageProtocol.MONITORING_SERVICE.equals(serviceType)) {
+                refreshResourceLists();
+                // Newly registered resources may unblock waiting patients
+                wakeAllocationEngine(true);
+            }
+        });
+        directory.watch(MessageProtocol.DOCTOR_SERVICE);
+        directory.watch(MessageProtocol.ROOM_SERVICE);
+        directory.watch(MessageProtocol.EQUIPMENT_SERVICE);
+        directory.watch(MessageProtocol.PATIENT_SERVICE);
+        directory.watch(MessageProtocol.MONITORING_SERVICE);
+        if (shardName != null) {
+            directory.watch(MessageProtocol.SCHEDULER_SERVICE);
+        }
+        
         // Add behaviors
         addBehaviour(new PatientRequestReceiver());
-        addBehaviour(new ResourceDiscoveryBehaviour(this, 10000)); // Discover resources every 10 seconds
-        addBehaviour(new ResourceAllocationBehaviour(this, 5000)); // Try allocation every 5 seconds
+        addBehaviour(new ResourceReleaseReceiver());
+        addBehaviour(new LateReplyReceiver());
+        addBehaviour(new ResourceDiscoveryBehaviour(this, 10000)); // Re-read the directory every 10 seconds
+        addBehaviour(allocationEngine); // Allocate as soon as patients or resources show up
+        addBehaviour(new MetricsExportBehaviour(this, 5000)); // Export allocation metrics every 5 seconds
         addBehaviour(new StatisticsReportBehaviour(this, 30000)); // Report stats every 30 seconds
+        if (shardName != null) {
+            addBehaviour(new WorkStealingReceiver());
+            addBehaviour(new WorkStealingBehaviour(this, STEAL_PERIOD)); // Idle shards ask peers for work
+        }
+    }
+    
+    /**
+     * Wake the allocation engine after a patient arrival or a resource release
+     */
+    private void wakeAllocationEngine(boolean resourcesChanged) {
+        if (resourcesChanged) {
+            resourcesExhausted = false;
+        }
+        allocationEngine.restart();
     }
     
     private void registerInYellowPages() {
@@ -60,6 +204,11 @@ public class SchedulerAgent extends Agent {
         ServiceDescription sd = new ServiceDescription();
         sd.setType(MessageProtocol.SCHEDULER_SERVICE);
         sd.setName("Hospital-Scheduler");
+        if (shardName != null) {
+            // Patients hash their department onto the ring of shard names found in the DF
+            sd.setName("Hospital-Scheduler-" + shardName);
+            sd.addProperties(new Property(MessageProtocol.SHARD_PROPERTY, shardName));
+        }
         dfd.addServices(sd);
         
         try {
@@ -71,14 +220,19 @@ public class SchedulerAgent extends Agent {
     
     @Override
     protected void takeDown() {
+        if (planningPool != null) {
+            planningPool.shutdownNow();
+        }
+        
         // Deregister from Yellow Pages
+        directory.close();
         try {
             DFService.deregister(this);
         } catch (FIPAException fe) {
             fe.printStackTrace();
         }
         
-        System.out.println("Scheduler Agent " + getLocalName() + " terminating.");
+        log.info("Scheduler Agent terminating.");
     }
     
     /**
@@ -96,17 +250,16 @@ public class SchedulerAgent extends Agent {
             if (msg != null) {
                 try {
                     // Deserialize patient data
-                    ByteArrayInputStream bais = new ByteArrayInputStream(msg.getByteSequenceContent());
-                    ObjectInputStream ois = new ObjectInputStream(bais);
-                    Patient patient = (Patient) ois.readObject();
+                    Patient patient = (Patient) MessageCodecs.read(msg);
                     
                     // Add to scheduler queue and tracking map
                     scheduler.addPatient(patient);
                     patients.put(patient.getId(), patient);
+                    allocationMetrics.recordEnqueue(patient.getId());
                     
-                    System.out.println("Scheduler received treatment request from " + patient.getName() + 
-                                       " (Urgency: " + patient.getUrgencyLevel() + ", Treatment: " + 
-                                       patient.getTreatmentType() + ")");
+                    log.info("received treatment request from ", patient.getName(), 
+                             " (Urgency: ", patient.getUrgencyLevel(), ", Treatment: ", 
+                             patient.getTreatmentType(), ")");
                     
                     // Send acknowledgment
                     ACLMessage reply = msg.createReply();
@@ -114,6 +267,14 @@ public class SchedulerAgent extends Agent {
                     reply.setContent("Request received. You are #" + scheduler.getQueueSize() + " in queue.");
                     myAgent.send(reply);
                     
+                    // A new arrival may outrank the planned patients: plan again
+                    if (batchMode) {
+                        discardAllocationPlan();
+                    }
+                    
+                    // A new arrival may be matchable even when the previous head was not
+                    wakeAllocationEngine(true);
+                    
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -124,7 +285,210 @@ public class SchedulerAgent extends Agent {
     }
     
     /**
-     * Behavior to discover available resources (doctors, rooms, equipment)
+     * Behavior to receive resource release and treatment completion notifications
+     */
+    private class ResourceReleaseReceiver extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(
+                MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                MessageTemplate.MatchConversationId(MessageProtocol.STATUS_UPDATE)
+            );
+            
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg != null) {
+                if (!parser.parse(msg.getContent())) return;
+                
+                switch (parser.getOpcode()) {
+                    case TREATMENT_COMPLETE:
+                        // TREATMENT_COMPLETE:<patientId>
+                        if (parser.getFieldCount() >= 1) {
+                            String patientId = parser.field(0);
+                            Patient treated = patients.remove(patientId);
+                            allocationMetrics.forget(patientId);
+                            if (treated != null && "IN_TREATMENT".equals(treated.getStatus())) {
+                                // The treatment started when the wait ended
+                                long started = treated.getArrivalTime() + treated.getWaitingTime();
+                                unreported.record(Measure.TREATMENT_DURATION, treated.getUrgencyLevel(), 
+                                                  treated.getTreatmentType(), System.currentTimeMillis() - started);
+                            }
+                            
+                            // Give the room and the equipment back (the doctor frees itself)
+                            TwoPhaseReservation reservation = committedReservations.remove(patientId);
+                            if (reservation != null) {
+                                pendingCommits.values().removeIf(patientId::equals);
+                                List<String> resourceClasses = new ArrayList<>(reservation.getResourceClasses());
+                                resourceClasses.remove(ResourceAvailabilityIndex.DOCTOR);
+                                releaseResources(reservation, resourceClasses);
+                            }
+                        }
+                        wakeAllocationEngine(true);
+                        break;
+                        
+                    case RESOURCE_STATE:
+                        // RESOURCE_STATE:<class>:<id>:<category>:<state>:<version>
+                        if (parser.getFieldCount() >= 5) {
+                            AID sender = msg.getSender();
+                            knownResources.put(sender.getName(), sender);
+                            boolean becameAvailable = availabilityIndex.update(parser.field(0), sender.getName(), 
+                                parser.field(1), parser.field(2), 
+                                parser.fieldEquals(3, MessageProtocol.RESOURCE_AVAILABLE), parser.longField(4));
+                            if (becameAvailable) {
+                                wakeAllocationEngine(true);
+                            }
+                        }
+                        break;
+                        
+                    case DOCTOR_AVAILABLE:
+                    case ROOM_AVAILABLE:
+                        wakeAllocationEngine(true);
+                        break;
+                        
+                    default:
+                        break;
+                }
+            } else {
+                block();
+            }
+        }
+    }
+    
+    /**
+     * Behavior to consume replies nobody is waiting for any more: late availability replies
+     * feed the availability index, commit replies make their allocation final or revoke it,
+     * other acknowledgements are dropped
+     */
+    private class LateReplyReceiver extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(
+                MessageTemplate.MatchConversationId(MessageProtocol.RESOURCE_ALLOCATION),
+                new MessageTemplate(new MessageTemplate.MatchExpression() {
+                    @Override
+                    public boolean match(ACLMessage msg) {
+                        String inReplyTo = msg.getInReplyTo();
+                        return inReplyTo != null && !activeQueries.contains(inReplyTo);
+                    }
+                })
+            );
+            
+            ACLMessage reply = myAgent.receive(mt);
+            if (reply != null) {
+                String inReplyTo = reply.getInReplyTo();
+                String committedPatientId = pendingCommits.remove(inReplyTo);
+                if (reply.getPerformative() == ACLMessage.CONFIRM && inReplyTo.startsWith("check-")) {
+                    indexAvailabilityReply(resourceClassOf(inReplyTo), reply);
+                } else if (reply.getPerformative() == ACLMessage.CONFIRM && committedPatientId != null) {
+                    confirmCommit(committedPatientId, resourceClassOf(inReplyTo));
+                } else if (reply.getPerformative() == ACLMessage.FAILURE) {
+                    log.warn("Reservation commit failed at ", reply.getSender().getLocalName(), 
+                             ": ", reply.getContent());
+                    if (committedPatientId != null) {
+                        revokeAllocation(committedPatientId, resourceClassOf(inReplyTo));
+                    }
+                }
+            } else {
+                block();
+            }
+        }
+    }
+    
+    /**
+     * A participant confirmed its commit: once all have, the allocation is counted,
+     * unless the finalize step has not run yet and counts it itself
+     */
+    private void confirmCommit(String patientId, String resourceClass) {
+        TwoPhaseReservation reservation = committedReservations.get(patientId);
+        Patient patient = patients.get(patientId);
+        if (reservation != null && reservation.onCommitConfirmed(resourceClass) && 
+            patient != null && "IN_TREATMENT".equals(patient.getStatus())) {
+            recordAllocation(patient);
+        }
+    }
+    
+    /**
+     * Count a final allocation: statistics, wait and allocation latency histograms
+     */
+    private void recordAllocation(Patient patient) {
+        totalPatientsProcessed++;
+        totalWaitTime += patient.getWaitingTime();
+        successfulAllocations++;
+        long latency = allocationMetrics.recordAllocation(patient.getId());
+        unreported.record(Measure.WAIT_TIME, patient.getUrgencyLevel(), patient.getTreatmentType(), 
+                          patient.getWaitingTime());
+        unreported.record(Measure.ALLOCATION_LATENCY, patient.getUrgencyLevel(), patient.getTreatmentType(), 
+                          latency);
+        log.debug("Enqueue-to-allocation latency for ", patient.getName(), ": ", latency, " ms");
+    }
+    
+    /**
+     * A participant failed its commit after the others committed: release the resources
+     * that did commit, tell the patient if it was already sent to treatment and put it
+     * back in the queue
+     */
+    private void revokeAllocation(String patientId, String failedClass) {
+        TwoPhaseReservation reservation = committedReservations.get(patientId);
+        if (reservation == null || !reservation.onCommitFailed(failedClass)) {
+            return; // Treatment over, or already revoked by another participant's failure
+        }
+        committedReservations.remove(patientId);
+        pendingCommits.values().removeIf(patientId::equals);
+        releaseResources(reservation, reservation.getCommitsToRelease());
+        
+        Patient patient = patients.get(patientId);
+        if (patient == null) {
+            return;
+        }
+        if ("IN_TREATMENT".equals(patient.getStatus())) {
+            // The allocation was announced but never counted, the commit not being final
+            failedAllocations++;
+            
+            AID patientAgent = directory.find(MessageProtocol.PATIENT_SERVICE, patient.getName());
+            if (patientAgent != null) {
+                ACLMessage notification = new ACLMessage(ACLMessage.INFORM);
+                notification.addReceiver(patientAgent);
+                notification.setConversationId(MessageProtocol.STATUS_UPDATE);
+                notification.setContent(HospitalMessage.encode(Opcode.ALLOCATION_FAILED, patientId));
+                send(notification);
+            }
+        }
+        // Otherwise the finalize step has not run yet and finds the patient unassigned
+        
+        patient.setStatus("WAITING");
+        patient.setAssignedDoctor(null);
+        patient.setAssignedRoom(null);
+        patient.setRequiredEquipment(null);
+        scheduler.addPatient(patient);
+        log.warn("Allocation of patient ", patient.getName(), " revoked after a failed ", 
+                 failedClass != null ? failedClass.toLowerCase() : "resource", " commit, returning to queue");
+        wakeAllocationEngine(true);
+    }
+    
+    /**
+     * Record a RESOURCE_AVAILABLE:<id>:<category> reply in the availability index
+     */
+    private void indexAvailabilityReply(String resourceClass, ACLMessage reply) {
+        if (resourceClass != null && parser.parse(reply.getContent()) && 
+            parser.getOpcode() == Opcode.RESOURCE_AVAILABLE && parser.getFieldCount() >= 2) {
+            AID sender = reply.getSender();
+            knownResources.put(sender.getName(), sender);
+            availabilityIndex.update(resourceClass, sender.getName(), parser.field(0), parser.field(1), true, 0);
+        }
+    }
+    
+    /**
+     * Resource class encoded in a <phase>-<class>-... conversation tag
+     */
+    private static String resourceClassOf(String replyWith) {
+        int start = replyWith.indexOf('-') + 1;
+        int end = replyWith.indexOf('-', start);
+        return start > 0 && end > start ? replyWith.substring(start, end).toUpperCase() : null;
+    }
+    
+    /**
+     * Behavior to discover available resources (doctors, rooms, equipment).
+     * The directory cache is updated by DF notifications; the periodic pass only
+     * picks up the service types it had to reload after their TTL.
      */
     private class ResourceDiscoveryBehaviour extends TickerBehaviour {
         public ResourceDiscoveryBehaviour(Agent a, long period) {
@@ -133,413 +497,848 @@ public class SchedulerAgent extends Agent {
         
         @Override
         protected void onTick() {
-            // Clear previous lists
-            doctorAgents.clear();
-            roomAgents.clear();
-            equipmentAgents.clear();
-            
-            // Search for doctor agents
-            DFAgentDescription template = new DFAgentDescription();
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType(MessageProtocol.DOCTOR_SERVICE);
-            template.addServices(sd);
+            refreshResourceLists();
             
-            try {
-                DFAgentDescription[] result = DFService.search(myAgent, template);
-                for (DFAgentDescription agent : result) {
-                    doctorAgents.add(agent.getName());
-                }
-                System.out.println("Discovered " + doctorAgents.size() + " doctor agents");
-                
-                // Search for room agents
-                sd.setType(MessageProtocol.ROOM_SERVICE);
-                template.addServices(sd);
-                result = DFService.search(myAgent, template);
-                for (DFAgentDescription agent : result) {
-                    roomAgents.add(agent.getName());
+            // Newly discovered resources may unblock waiting patients
+            wakeAllocationEngine(true);
+        }
+    }
+    
+    /**
+     * Take the resource lists, and the other shards in sharded mode, from the directory cache
+     */
+    private void refreshResourceLists() {
+        doctorAgents = directory.getAgents(MessageProtocol.DOCTOR_SERVICE);
+        roomAgents = directory.getAgents(MessageProtocol.ROOM_SERVICE);
+        equipmentAgents = directory.getAgents(MessageProtocol.EQUIPMENT_SERVICE);
+        log.debug("Discovered ", doctorAgents.size(), " doctor agents, ", roomAgents.size(), 
+                  " room agents, ", equipmentAgents.size(), " equipment agents");
+        
+        if (shardName != null) {
+            List<AID> peers = new ArrayList<>();
+            for (DFAgentDescription agent : directory.getDescriptions(MessageProtocol.SCHEDULER_SERVICE)) {
+                if (shardOf(agent) != null && !agent.getName().equals(getAID())) {
+                    peers.add(agent.getName());
                 }
-                System.out.println("Discovered " + roomAgents.size() + " room agents");
-                
-                // Search for equipment agents
-                sd.setType(MessageProtocol.EQUIPMENT_SERVICE);
-                template.addServices(sd);
-                result = DFService.search(myAgent, template);
-                for (DFAgentDescription agent : result) {
-                    equipmentAgents.add(agent.getName());
+            }
+            peerShards = peers;
+        }
+    }
+    
+    /**
+     * Shard name registered by a scheduler in the DF, or null for an unsharded scheduler
+     */
+    static String shardOf(DFAgentDescription description) {
+        Iterator<?> services = description.getAllServices();
+        while (services.hasNext()) {
+            Iterator<?> properties = ((ServiceDescription) services.next()).getAllProperties();
+            while (properties.hasNext()) {
+                Property property = (Property) properties.next();
+                if (MessageProtocol.SHARD_PROPERTY.equals(property.getName())) {
+                    return property.getValue().toString();
                 }
-                System.out.println("Discovered " + equipmentAgents.size() + " equipment agents");
-                
-            } catch (FIPAException fe) {
-                fe.printStackTrace();
             }
         }
+        return null;
     }
     
     /**
-     * Behavior to allocate resources to patients
+     * Sharded mode: when its own queue is empty and doctors are free, the shard asks
+     * its peers in turn for part of their queue
      */
-    private class ResourceAllocationBehaviour extends TickerBehaviour {
-        public ResourceAllocationBehaviour(Agent a, long period) {
+    private class WorkStealingBehaviour extends TickerBehaviour {
+        public WorkStealingBehaviour(Agent a, long period) {
             super(a, period);
         }
         
         @Override
         protected void onTick() {
-            if (!scheduler.hasWaitingPatients() || doctorAgents.isEmpty() || roomAgents.isEmpty()) {
-                return; // No patients or resources available
+            long now = System.currentTimeMillis();
+            if (stealRequestedAt > 0 && now - stealRequestedAt < RESERVATION_TIMEOUT) {
+                return; // Previous request still pending
             }
+            stealRequestedAt = 0;
             
-            // Get next patient from priority queue
-            Patient patient = scheduler.getNextPatient();
-            if (patient == null) return;
-            
-            System.out.println("Attempting to allocate resources for patient: " + patient.getName());
-            
-            // Start a sequential behavior for resource allocation
-            SequentialBehaviour allocationSequence = new SequentialBehaviour();
-            
-            // 1. Find suitable doctor
-            allocationSequence.addSubBehaviour(new FindDoctorBehaviour(patient));
-            
-            // 2. Find suitable room
-            allocationSequence.addSubBehaviour(new FindRoomBehaviour(patient));
-            
-            // 3. Find required equipment if needed
-            String requiredEquipment = SchedulingAlgorithm.getRequiredEquipment(patient.getTreatmentType());
-            if (requiredEquipment != null) {
-                allocationSequence.addSubBehaviour(new FindEquipmentBehaviour(patient, requiredEquipment));
+            boolean idle = allocationsInFlight.isEmpty() && !scheduler.hasWaitingPatients() && allocationPlan.isEmpty();
+            if (!idle || peerShards.isEmpty() || 
+                availabilityIndex.getAvailableCount(ResourceAvailabilityIndex.DOCTOR) == 0) {
+                return;
             }
             
-            // 4. Finalize allocation
-            allocationSequence.addSubBehaviour(new FinalizeAllocationBehaviour(patient));
-            
-            myAgent.addBehaviour(allocationSequence);
+            AID victim = peerShards.get(stealCursor++ % peerShards.size());
+            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+            request.addReceiver(victim);
+            request.setConversationId(MessageProtocol.WORK_STEALING);
+            request.setContent(HospitalMessage.encode(Opcode.STEAL_WORK, String.valueOf(STEAL_BATCH)));
+            request.setReplyWith("steal-" + now);
+            myAgent.send(request);
+            stealRequestedAt = now;
         }
     }
     
     /**
-     * Behavior to find an available doctor for a patient
+     * Sharded mode: gives queued patients to idle peers and takes in the patients they give
      */
-    private class FindDoctorBehaviour extends Behaviour {
-        private Patient patient;
-        private int step = 0;
-        private int repliesCount = 0;
-        private AID selectedDoctor = null;
-        private boolean done = false;
-        
-        public FindDoctorBehaviour(Patient patient) {
-            this.patient = patient;
-        }
-        
+    private class WorkStealingReceiver extends CyclicBehaviour {
         @Override
         public void action() {
-            switch (step) {
-                case 0: // Send availability requests to all doctors
-                    ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
-                    for (AID doctor : doctorAgents) {
-                        msg.addReceiver(doctor);
-                    }
-                    msg.setConversationId(MessageProtocol.RESOURCE_ALLOCATION);
-                    msg.setContent(MessageProtocol.CHECK_AVAILABILITY + ":" + patient.getTreatmentType());
-                    myAgent.send(msg);
-                    step = 1;
-                    break;
-                    
-                case 1: // Collect responses
-                    MessageTemplate mt = MessageTemplate.and(
-                        MessageTemplate.MatchConversationId(MessageProtocol.RESOURCE_ALLOCATION),
-                        MessageTemplate.or(
-                            MessageTemplate.MatchPerformative(ACLMessage.CONFIRM),
-                            MessageTemplate.MatchPerformative(ACLMessage.REFUSE)
-                        )
-                    );
+            MessageTemplate mt = MessageTemplate.MatchConversationId(MessageProtocol.WORK_STEALING);
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg == null) {
+                block();
+                return;
+            }
+            
+            try {
+                if (msg.getPerformative() == ACLMessage.REQUEST) {
+                    // STEAL_WORK:<max patients>
+                    int maxPatients = parser.parse(msg.getContent()) && parser.getOpcode() == Opcode.STEAL_WORK ? 
+                                      parser.intField(0) : 0;
+                    ArrayList<Patient> stolen = new ArrayList<>(scheduler.stealBatch(maxPatients));
                     
-                    ACLMessage reply = myAgent.receive(mt);
-                    if (reply != null) {
-                        if (reply.getPerformative() == ACLMessage.CONFIRM && selectedDoctor == null) {
-                            // First available doctor is selected
-                            selectedDoctor = reply.getSender();
-                            String[] parts = reply.getContent().split(":");
-                            if (parts.length >= 2) {
-                                patient.setAssignedDoctor(parts[1]); // Store doctor ID
-                            }
-                        }
-                        repliesCount++;
-                        if (repliesCount >= doctorAgents.size() || selectedDoctor != null) {
-                            step = 2;
-                        }
+                    ACLMessage reply = msg.createReply();
+                    if (stolen.isEmpty()) {
+                        reply.setPerformative(ACLMessage.REFUSE);
                     } else {
-                        block();
+                        for (Patient patient : stolen) {
+                            patients.remove(patient.getId());
+                            allocationMetrics.forget(patient.getId());
+                        }
+                        reply.setPerformative(ACLMessage.INFORM);
+                        MessageCodecs.write(reply, stolen);
+                        log.info("Shard ", shardName, " gave ", stolen.size(), 
+                                 " patients to ", msg.getSender().getLocalName());
                     }
-                    break;
+                    myAgent.send(reply);
                     
-                case 2: // Assign patient to selected doctor
-                    if (selectedDoctor != null) {
-                        ACLMessage assignMsg = new ACLMessage(ACLMessage.REQUEST);
-                        assignMsg.addReceiver(selectedDoctor);
-                        assignMsg.setConversationId(MessageProtocol.RESOURCE_ALLOCATION);
-                        assignMsg.setContent(MessageProtocol.ASSIGN_PATIENT + ":" + 
-                                           patient.getId() + ":" + patient.getTreatmentType());
-                        myAgent.send(assignMsg);
-                        System.out.println("Doctor assigned to patient " + patient.getName() + ": " + patient.getAssignedDoctor());
-                    } else {
-                        // No doctor available, put patient back in queue
+                } else if (msg.getPerformative() == ACLMessage.INFORM) {
+                    @SuppressWarnings("unchecked")
+                    List<Patient> stolen = (List<Patient>) MessageCodecs.read(msg);
+                    
+                    for (Patient patient : stolen) {
                         scheduler.addPatient(patient);
-                        System.out.println("No doctor available for patient " + patient.getName() + ", returning to queue");
+                        patients.put(patient.getId(), patient);
+                        allocationMetrics.recordEnqueue(patient.getId(), patient.getArrivalTime());
                     }
-                    done = true;
+                    log.info("Shard ", shardName, " took ", stolen.size(), 
+                             " patients from ", msg.getSender().getLocalName());
+                    stealRequestedAt = 0;
+                    wakeAllocationEngine(true);
+                    
+                } else {
+                    // Peer had nothing to spare: the next tick asks another one
+                    stealRequestedAt = 0;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Event-driven allocation engine: drains the queue while matching resources exist
+     * and sleeps until a patient arrives or a resource is released.
+     * Several reservations run at once; the holds settle the conflicts between them.
+     */
+    private class AllocationEngineBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            collectWorkerPlans();
+            
+            // Each reservation placing its holds or finishing wakes the engine again
+            while (canStartAllocation()) {
+                if (batchMode && allocationPlan.isEmpty() && plansInFlight == 0 && !lastPlanEmpty) {
+                    buildAllocationPlan();
+                }
+                
+                Patient patient;
+                Map<String, String> plannedResources = null;
+                PlannedAllocation planned = allocationPlan.poll();
+                if (planned != null) {
+                    patient = planned.patient;
+                    plannedResources = planned.resources;
+                } else if (plansInFlight == 0) {
+                    // Nothing planned: try the greedy path once before planning again
+                    lastPlanEmpty = false;
+                    patient = scheduler.getNextPatient();
+                } else {
+                    break; // Wait for the planning workers
+                }
+                if (patient == null) {
+                    break;
+                }
+                if (allocationsInFlight.containsKey(patient.getId())) {
+                    // Given back by a reservation that has not finished yet: retried once it has
+                    scheduler.addPatient(patient);
                     break;
+                }
+                startAllocation(patient, plannedResources);
             }
+            block();
         }
         
-        @Override
-        public boolean done() {
-            return done;
+        /**
+         * Reservations still selecting their resources are bounded by the free doctors in
+         * the index, so that each of them can find its own candidate
+         */
+        private boolean canStartAllocation() {
+            return !resourcesExhausted && 
+                   (scheduler.hasWaitingPatients() || !allocationPlan.isEmpty()) && 
+                   !doctorAgents.isEmpty() && !roomAgents.isEmpty() && 
+                   allocationsSelecting < Math.max(1, availabilityIndex.getAvailableCount(ResourceAvailabilityIndex.DOCTOR));
+        }
+        
+        /**
+         * Pick up the plans finished by the planning workers; posting them
+         * is what woke the engine up. Plans made before an arrival go back to the queue.
+         */
+        private void collectWorkerPlans() {
+            if (planningPool == null) {
+                return;
+            }
+            Object result;
+            boolean collected = false;
+            while ((result = myAgent.getO2AObject()) != null) {
+                WorkerPlan plan = (WorkerPlan) result;
+                plansInFlight--;
+                if (plan.generation == planGeneration) {
+                    allocationPlan.addAll(plan.allocations);
+                    collected = true;
+                } else {
+                    for (PlannedAllocation planned : plan.allocations) {
+                        scheduler.addPatient(planned.patient);
+                    }
+                }
+            }
+            if (collected && plansInFlight == 0 && allocationPlan.isEmpty()) {
+                lastPlanEmpty = true;
+            }
+        }
+        
+        private void startAllocation(Patient patient, Map<String, String> plannedResources) {
+            log.debug("Attempting to allocate resources for patient: ", patient.getName());
+            
+            // Start from a clean slate when a re-queued patient is retried
+            patient.setAssignedDoctor(null);
+            patient.setAssignedRoom(null);
+            patient.setRequiredEquipment(null);
+            
+            // Start a sequential behavior for resource allocation
+            SequentialBehaviour allocationSequence = new SequentialBehaviour();
+            
+            // 1. Reserve doctor, room and equipment together
+            ReservationCoordinatorBehaviour coordinator = new ReservationCoordinatorBehaviour(patient, plannedResources);
+            allocationSequence.addSubBehaviour(coordinator);
+            allocationsInFlight.put(patient.getId(), coordinator);
+            allocationsSelecting++;
+            
+            // 2. Finalize allocation
+            allocationSequence.addSubBehaviour(new FinalizeAllocationBehaviour(patient, coordinator));
+            
+            myAgent.addBehaviour(allocationSequence);
         }
     }
     
     /**
-     * Behavior to find an available room for a patient
+     * Batch mode: match the head of the queue against every free doctor and room at once
+     * instead of letting the first available doctor take the next patient.
+     * With planning workers, the free resources are split into disjoint shares and each
+     * worker drains its own batch from the concurrent queue, so plans never overlap.
      */
-    private class FindRoomBehaviour extends Behaviour {
-        private Patient patient;
-        private int step = 0;
-        private int repliesCount = 0;
-        private AID selectedRoom = null;
-        private boolean done = false;
-        
-        public FindRoomBehaviour(Patient patient) {
-            this.patient = patient;
+    private void buildAllocationPlan() {
+        long now = System.currentTimeMillis();
+        List<String> doctors = availabilityIndex.getAvailable(ResourceAvailabilityIndex.DOCTOR, now);
+        if (doctors.isEmpty()) {
+            return; // Nothing indexed yet: fall back to the greedy path
         }
+        List<String> rooms = availabilityIndex.getAvailable(ResourceAvailabilityIndex.ROOM, now);
         
-        @Override
-        public void action() {
-            switch (step) {
-                case 0: // Send availability requests to all rooms
-                    if (patient.getAssignedDoctor() == null) {
-                        // If no doctor was assigned, skip room allocation
-                        done = true;
-                        break;
-                    }
-                    
-                    ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
-                    for (AID room : roomAgents) {
-                        msg.addReceiver(room);
-                    }
-                    msg.setConversationId(MessageProtocol.RESOURCE_ALLOCATION);
-                    msg.setContent(MessageProtocol.CHECK_AVAILABILITY + ":" + patient.getTreatmentType());
-                    myAgent.send(msg);
-                    step = 1;
-                    break;
-                    
-                case 1: // Collect responses
-                    MessageTemplate mt = MessageTemplate.and(
-                        MessageTemplate.MatchConversationId(MessageProtocol.RESOURCE_ALLOCATION),
-                        MessageTemplate.or(
-                            MessageTemplate.MatchPerformative(ACLMessage.CONFIRM),
-                            MessageTemplate.MatchPerformative(ACLMessage.REFUSE)
-                        )
-                    );
-                    
-                    ACLMessage reply = myAgent.receive(mt);
-                    if (reply != null) {
-                        if (reply.getPerformative() == ACLMessage.CONFIRM && selectedRoom == null) {
-                            // First available room is selected
-                            selectedRoom = reply.getSender();
-                            String[] parts = reply.getContent().split(":");
-                            if (parts.length >= 2) {
-                                patient.setAssignedRoom(parts[1]); // Store room ID
-                            }
-                        }
-                        repliesCount++;
-                        if (repliesCount >= roomAgents.size() || selectedRoom != null) {
-                            step = 2;
-                        }
-                    } else {
-                        block();
-                    }
-                    break;
-                    
-                case 2: // Allocate room
-                    if (selectedRoom != null) {
-                        ACLMessage allocateMsg = new ACLMessage(ACLMessage.REQUEST);
-                        allocateMsg.addReceiver(selectedRoom);
-                        allocateMsg.setConversationId(MessageProtocol.RESOURCE_ALLOCATION);
-                        allocateMsg.setContent(MessageProtocol.ALLOCATE_RESOURCE + ":" + 
-                                             patient.getId() + ":" + patient.getAssignedDoctor());
-                        myAgent.send(allocateMsg);
-                        System.out.println("Room assigned to patient " + patient.getName() + ": " + patient.getAssignedRoom());
-                    } else {
-                        // No room available, put patient back in queue
-                        scheduler.addPatient(patient);
-                        System.out.println("No room available for patient " + patient.getName() + ", returning to queue");
+        // The index is only read on the agent thread: workers get plain snapshots
+        int shares = planningPool != null ? Math.min(planningWorkers, doctors.size()) : 1;
+        for (int share = 0; share < shares; share++) {
+            ResourceShare resources = new ResourceShare();
+            for (int i = share; i < doctors.size(); i += shares) {
+                resources.doctors.add(doctors.get(i));
+                resources.specializations.add(availabilityIndex.getCategory(doctors.get(i)));
+            }
+            for (int i = share; i < rooms.size(); i += shares) {
+                resources.rooms.add(rooms.get(i));
+                resources.roomTypes.add(availabilityIndex.getCategory(rooms.get(i)));
+            }
+            
+            if (planningPool == null) {
+                allocationPlan.addAll(planAllocations(scheduler, resources, BATCH_SIZE, log));
+            } else {
+                int batchSize = (BATCH_SIZE + shares - 1) / shares;
+                int generation = planGeneration;
+                plansInFlight++;
+                planningPool.execute(() -> {
+                    List<PlannedAllocation> plan = new ArrayList<>();
+                    try {
+                        plan = planAllocations(scheduler, resources, batchSize, log);
+                    } finally {
+                        postWorkerPlan(new WorkerPlan(generation, plan));
                     }
-                    done = true;
-                    break;
+                });
             }
         }
+    }
+    
+    /**
+     * Runs on the agent thread or on a planning worker: only touches the resource
+     * snapshot and the scheduler queue
+     */
+    private static List<PlannedAllocation> planAllocations(SchedulingAlgorithm scheduler, ResourceShare resources,
+                                                           int batchSize, AgentLog log) {
+        List<Patient> batch = scheduler.pollBatch(batchSize);
+        int[] doctorPlan = SchedulingAlgorithm.planDoctorAssignment(batch, resources.specializations);
         
-        @Override
-        public boolean done() {
-            return done;
+        // Patients left without a doctor go back to the queue
+        List<Patient> matched = new ArrayList<>();
+        List<String> matchedDoctors = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            if (doctorPlan[i] >= 0) {
+                matched.add(batch.get(i));
+                matchedDoctors.add(resources.doctors.get(doctorPlan[i]));
+            } else {
+                scheduler.addPatient(batch.get(i));
+            }
+        }
+        
+        int[] roomPlan = SchedulingAlgorithm.planRoomAssignment(matched, resources.roomTypes);
+        
+        List<PlannedAllocation> plan = new ArrayList<>();
+        for (int i = 0; i < matched.size(); i++) {
+            Map<String, String> planned = new HashMap<>();
+            planned.put(ResourceAvailabilityIndex.DOCTOR, matchedDoctors.get(i));
+            if (roomPlan[i] >= 0) {
+                planned.put(ResourceAvailabilityIndex.ROOM, resources.rooms.get(roomPlan[i]));
+            }
+            plan.add(new PlannedAllocation(matched.get(i), planned));
+        }
+        
+        log.debug("Batch plan: ", matched.size(), " of ", batch.size(), 
+                  " patients matched to ", resources.doctors.size(), " free doctors");
+        return plan;
+    }
+    
+    /**
+     * Hand a worker's plan to the agent thread; an O2A object wakes the agent's behaviours
+     */
+    private void postWorkerPlan(WorkerPlan plan) {
+        try {
+            putO2AObject(plan, false);
+        } catch (InterruptedException e) {
+            // Agent shutting down: give the patients back to the queue
+            for (PlannedAllocation planned : plan.allocations) {
+                scheduler.addPatient(planned.patient);
+            }
+        }
+    }
+    
+    /**
+     * Disjoint snapshot of free doctors and rooms handed to one planner
+     */
+    private static class ResourceShare {
+        List<String> doctors = new ArrayList<>();
+        List<String> specializations = new ArrayList<>();
+        List<String> rooms = new ArrayList<>();
+        List<String> roomTypes = new ArrayList<>();
+    }
+    
+    /**
+     * Put the planned patients back in the queue so that the next plan sees them;
+     * the plans still being made by the workers are put back when they come in
+     */
+    private void discardAllocationPlan() {
+        for (PlannedAllocation planned : allocationPlan) {
+            scheduler.addPatient(planned.patient);
+        }
+        allocationPlan.clear();
+        planGeneration++;
+        lastPlanEmpty = false;
+    }
+    
+    /**
+     * Plan made by a planning worker for the plan generation it was started in
+     */
+    private static class WorkerPlan {
+        int generation;
+        List<PlannedAllocation> allocations;
+        
+        WorkerPlan(int generation, List<PlannedAllocation> allocations) {
+            this.generation = generation;
+            this.allocations = allocations;
         }
     }
     
     /**
-     * Behavior to find required equipment for a patient
+     * Patient matched by the batch planner, with the agent names of its resources
      */
-    private class FindEquipmentBehaviour extends Behaviour {
+    private static class PlannedAllocation {
+        Patient patient;
+        Map<String, String> resources;
+        
+        PlannedAllocation(Patient patient, Map<String, String> resources) {
+            this.patient = patient;
+            this.resources = resources;
+        }
+    }
+    
+    /**
+     * Called by the allocation sequence once it has either succeeded or given up
+     */
+    private void onAllocationFinished(ReservationCoordinatorBehaviour coordinator, boolean success, boolean retryNow) {
+        allocationsInFlight.remove(coordinator.getPatientId(), coordinator);
+        if (!success && !retryNow) {
+            // Stop draining until a release or an arrival changes the picture
+            resourcesExhausted = true;
+        }
+        allocationEngine.restart();
+    }
+    
+    /**
+     * Reservation coordinator: picks a doctor, a room and the equipment for a patient,
+     * places tentative holds on all of them in parallel, then commits or releases them
+     * together so that a failure in one stage never leaves the other resources claimed.
+     * Candidates come from the availability index; agents are only queried directly
+     * for the resource classes the index has no fresh candidate for.
+     */
+    private class ReservationCoordinatorBehaviour extends Behaviour {
         private Patient patient;
-        private String equipmentType;
+        private Map<String, String> requirements; // Resource class -> treatment or equipment type
+        private Map<String, String> plannedResources; // Resource class -> agent name chosen by the batch plan
+        private Map<String, AID> selected;
+        private Set<String> fromIndex;
+        private Map<String, String> pendingReplies; // Reply tag -> resource class
+        private Map<String, Integer> outstandingReplies;
+        private TwoPhaseReservation reservation;
         private int step = 0;
-        private int repliesCount = 0;
-        private AID selectedEquipment = null;
+        private long deadline;
         private boolean done = false;
+        private boolean retryNow = false;
+        private boolean selecting = true;
         
-        public FindEquipmentBehaviour(Patient patient, String equipmentType) {
+        public ReservationCoordinatorBehaviour(Patient patient, Map<String, String> plannedResources) {
             this.patient = patient;
-            this.equipmentType = equipmentType;
+            this.plannedResources = plannedResources != null ? plannedResources : new HashMap<>();
+            this.requirements = new LinkedHashMap<>();
+            this.selected = new HashMap<>();
+            this.fromIndex = new HashSet<>();
+            this.pendingReplies = new HashMap<>();
+            this.outstandingReplies = new HashMap<>();
+            
+            requirements.put(ResourceAvailabilityIndex.DOCTOR, patient.getTreatmentType());
+            requirements.put(ResourceAvailabilityIndex.ROOM, patient.getTreatmentType());
+            String requiredEquipment = SchedulingAlgorithm.getRequiredEquipment(patient.getTreatmentType());
+            if (requiredEquipment != null) {
+                requirements.put(ResourceAvailabilityIndex.EQUIPMENT, requiredEquipment);
+            }
         }
         
         @Override
         public void action() {
             switch (step) {
-                case 0: // Send availability requests to all equipment
-                    if (patient.getAssignedDoctor() == null || patient.getAssignedRoom() == null) {
-                        // If no doctor or room was assigned, skip equipment allocation
-                        done = true;
-                        break;
-                    }
-                    
-                    ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
-                    for (AID equipment : equipmentAgents) {
-                        msg.addReceiver(equipment);
+                case 0: // Pick candidates from the index, query the agents for the missing classes
+                    for (String resourceClass : requirements.keySet()) {
+                        String candidate = plannedResources.containsKey(resourceClass) ? 
+                            plannedResources.get(resourceClass) : 
+                            lookupIndex(resourceClass, requirements.get(resourceClass));
+                        if (candidate != null && knownResources.containsKey(candidate)) {
+                            // Taken out of the index at once so that concurrent reservations pick others
+                            selected.put(resourceClass, knownResources.get(candidate));
+                            fromIndex.add(resourceClass);
+                            availabilityIndex.markBusy(candidate);
+                            indexHits++;
+                        } else if (!sendAvailabilityQuery(resourceClass)) {
+                            clearPendingReplies();
+                            giveUp(false, "No " + resourceClass.toLowerCase() + " available");
+                            return;
+                        }
                     }
-                    msg.setConversationId(MessageProtocol.RESOURCE_ALLOCATION);
-                    msg.setContent(MessageProtocol.CHECK_AVAILABILITY + ":" + equipmentType);
-                    myAgent.send(msg);
-                    step = 1;
+                    deadline = System.currentTimeMillis() + RESERVATION_TIMEOUT;
+                    step = pendingReplies.isEmpty() ? 2 : 1;
                     break;
                     
-                case 1: // Collect responses
-                    MessageTemplate mt = MessageTemplate.and(
-                        MessageTemplate.MatchConversationId(MessageProtocol.RESOURCE_ALLOCATION),
-                        MessageTemplate.or(
-                            MessageTemplate.MatchPerformative(ACLMessage.CONFIRM),
-                            MessageTemplate.MatchPerformative(ACLMessage.REFUSE)
-                        )
-                    );
-                    
-                    ACLMessage reply = myAgent.receive(mt);
+                case 1: // Collect availability replies
+                    ACLMessage reply = myAgent.receive(pendingRepliesTemplate());
                     if (reply != null) {
-                        if (reply.getPerformative() == ACLMessage.CONFIRM && selectedEquipment == null) {
-                            // First available equipment is selected
-                            selectedEquipment = reply.getSender();
-                            String[] parts = reply.getContent().split(":");
-                            if (parts.length >= 2) {
-                                patient.setRequiredEquipment(parts[1]); // Store equipment ID
+                        String resourceClass = pendingReplies.get(reply.getInReplyTo());
+                        if (reply.getPerformative() == ACLMessage.CONFIRM) {
+                            indexAvailabilityReply(resourceClass, reply);
+                            if (!selected.containsKey(resourceClass) && 
+                                isSuitable(resourceClass, reply.getContent(), requirements.get(resourceClass))) {
+                                // First suitable resource is selected
+                                selected.put(resourceClass, reply.getSender());
                             }
                         }
-                        repliesCount++;
-                        if (repliesCount >= equipmentAgents.size() || selectedEquipment != null) {
+                        
+                        int outstanding = outstandingReplies.merge(resourceClass, -1, Integer::sum);
+                        if (selected.containsKey(resourceClass) || outstanding <= 0) {
+                            // Remaining replies are picked up by the late reply receiver
+                            pendingReplies.remove(reply.getInReplyTo());
+                            activeQueries.remove(reply.getInReplyTo());
+                            if (!selected.containsKey(resourceClass)) {
+                                clearPendingReplies();
+                                giveUp(false, "No " + resourceClass.toLowerCase() + " available");
+                                break;
+                            }
+                        }
+                        if (pendingReplies.isEmpty()) {
                             step = 2;
                         }
-                    } else {
-                        block();
+                    } else if (!blockUntilDeadline()) {
+                        clearPendingReplies();
+                        giveUp(false, "Availability query timed out");
                     }
                     break;
                     
-                case 2: // Allocate equipment
-                    if (selectedEquipment != null) {
-                        ACLMessage allocateMsg = new ACLMessage(ACLMessage.REQUEST);
-                        allocateMsg.addReceiver(selectedEquipment);
-                        allocateMsg.setConversationId(MessageProtocol.RESOURCE_ALLOCATION);
-                        allocateMsg.setContent(MessageProtocol.ALLOCATE_RESOURCE + ":" + patient.getId());
-                        myAgent.send(allocateMsg);
-                        System.out.println("Equipment assigned to patient " + patient.getName() + ": " + patient.getRequiredEquipment());
-                    } else {
-                        // No equipment available, put patient back in queue
-                        scheduler.addPatient(patient);
-                        System.out.println("No " + equipmentType + " available for patient " + patient.getName() + ", returning to queue");
+                case 2: // Phase one: ask every selected resource for a hold in parallel
+                    endSelection();
+                    reservation = new TwoPhaseReservation(patient.getId());
+                    for (String resourceClass : requirements.keySet()) {
+                        AID agent = selected.get(resourceClass);
+                        reservation.addParticipant(resourceClass, agent.getName(), fromIndex.contains(resourceClass));
+                        availabilityIndex.markBusy(agent.getName());
+                        
+                        String tag = sendReservationMessage(agent, "hold", resourceClass, 
+                            HospitalMessage.encode(Opcode.HOLD_RESOURCE, patient.getId(), requirements.get(resourceClass)));
+                        pendingReplies.put(tag, resourceClass);
+                        activeQueries.add(tag);
+                    }
+                    deadline = System.currentTimeMillis() + RESERVATION_TIMEOUT;
+                    step = 3;
+                    break;
+                    
+                case 3: // Collect the votes, then commit or roll back everything (phase two)
+                    ACLMessage vote = myAgent.receive(pendingRepliesTemplate());
+                    if (vote != null) {
+                        String resourceClass = pendingReplies.remove(vote.getInReplyTo());
+                        activeQueries.remove(vote.getInReplyTo());
+                        if (vote.getPerformative() == ACLMessage.CONFIRM) {
+                            // Reply content is HELD:<id>
+                            boolean named = parser.parse(vote.getContent()) && parser.getFieldCount() >= 1;
+                            reservation.onHeld(resourceClass, named ? parser.field(0) : vote.getSender().getLocalName());
+                        } else {
+                            // The index was out of date for this resource
+                            availabilityIndex.markStale(vote.getSender().getName());
+                            reservation.onRefused(resourceClass);
+                            log.debug("Hold refused by ", vote.getSender().getLocalName(), 
+                                      " for patient ", patient.getName());
+                        }
+                    } else if (!blockUntilDeadline()) {
+                        reservation.onTimeout();
+                        log.warn("Hold timed out for patient ", patient.getName());
+                    }
+                    
+                    if (reservation.isDecided()) {
+                        clearPendingReplies();
+                        if (reservation.getState() == TwoPhaseReservation.State.COMMITTED) {
+                            commit();
+                        } else {
+                            rollback();
+                        }
                     }
-                    done = true;
                     break;
             }
         }
         
+        /**
+         * Broadcast an availability query to the agents of one resource class
+         */
+        private boolean sendAvailabilityQuery(String resourceClass) {
+            List<AID> agents = getAgents(resourceClass);
+            if (agents.isEmpty()) return false;
+            directQueries++;
+            
+            String tag = "check-" + resourceClass.toLowerCase() + "-" + patient.getId() + "-" + 
+                         System.currentTimeMillis();
+            ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+            for (AID agent : agents) {
+                msg.addReceiver(agent);
+            }
+            msg.setConversationId(MessageProtocol.RESOURCE_ALLOCATION);
+            msg.setContent(HospitalMessage.encode(Opcode.CHECK_AVAILABILITY, requirements.get(resourceClass)));
+            msg.setReplyWith(tag);
+            myAgent.send(msg);
+            
+            pendingReplies.put(tag, resourceClass);
+            outstandingReplies.put(resourceClass, agents.size());
+            activeQueries.add(tag);
+            return true;
+        }
+        
+        private String sendReservationMessage(AID agent, String phase, String resourceClass, String content) {
+            String tag = phase + "-" + resourceClass.toLowerCase() + "-" + patient.getId() + "-" + 
+                         System.currentTimeMillis();
+            ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+            msg.addReceiver(agent);
+            msg.setConversationId(MessageProtocol.RESOURCE_ALLOCATION);
+            msg.setContent(content);
+            msg.setReplyWith(tag);
+            myAgent.send(msg);
+            return tag;
+        }
+        
+        /**
+         * Every participant voted HELD: commit all holds and record the allocation
+         */
+        private void commit() {
+            String doctorId = reservation.getResourceId(ResourceAvailabilityIndex.DOCTOR);
+            for (String resourceClass : requirements.keySet()) {
+                String content;
+                if (resourceClass.equals(ResourceAvailabilityIndex.DOCTOR)) {
+                    content = HospitalMessage.encode(Opcode.COMMIT_RESOURCE, patient.getId(), 
+                                                     patient.getTreatmentType());
+                } else if (resourceClass.equals(ResourceAvailabilityIndex.ROOM)) {
+                    content = HospitalMessage.encode(Opcode.COMMIT_RESOURCE, patient.getId(), doctorId);
+                } else {
+                    content = HospitalMessage.encode(Opcode.COMMIT_RESOURCE, patient.getId());
+                }
+                String tag = sendReservationMessage(selected.get(resourceClass), "commit", resourceClass, content);
+                pendingCommits.put(tag, patient.getId());
+            }
+            
+            patient.setAssignedDoctor(doctorId);
+            patient.setAssignedRoom(reservation.getResourceId(ResourceAvailabilityIndex.ROOM));
+            patient.setRequiredEquipment(reservation.getResourceId(ResourceAvailabilityIndex.EQUIPMENT));
+            committedReservations.put(patient.getId(), reservation);
+            
+            log.debug("Reservation committed for patient ", patient.getName(), ": doctor ", 
+                      patient.getAssignedDoctor(), ", room ", patient.getAssignedRoom(), 
+                      patient.getRequiredEquipment() != null ? ", equipment " + patient.getRequiredEquipment() : "");
+            done = true;
+        }
+        
+        /**
+         * A participant refused or did not answer: release every hold that may have been placed
+         */
+        private void rollback() {
+            for (String resourceClass : reservation.getHoldsToRelease()) {
+                sendReservationMessage(selected.get(resourceClass), "release", resourceClass, 
+                    HospitalMessage.encode(Opcode.RELEASE_HOLD, patient.getId()));
+            }
+            abortedReservations++;
+            
+            // A refused index candidate only means the index was stale: retry with a direct query
+            giveUp(reservation.isRefusedFromIndex(), "Reservation rolled back");
+        }
+        
+        private void giveUp(boolean retry, String reason) {
+            if (reservation == null) {
+                // No hold was requested: the index candidates are free again
+                for (String resourceClass : fromIndex) {
+                    availabilityIndex.restore(selected.get(resourceClass).getName());
+                }
+            }
+            endSelection();
+            
+            // Put patient back in queue
+            scheduler.addPatient(patient);
+            log.info(reason, " for patient ", patient.getName(), ", returning to queue");
+            retryNow = retry;
+            done = true;
+        }
+        
+        private MessageTemplate pendingRepliesTemplate() {
+            return MessageTemplate.and(
+                MessageTemplate.or(
+                    MessageTemplate.MatchPerformative(ACLMessage.CONFIRM),
+                    MessageTemplate.MatchPerformative(ACLMessage.REFUSE)
+                ),
+                new MessageTemplate(new MessageTemplate.MatchExpression() {
+                    @Override
+                    public boolean match(ACLMessage msg) {
+                        return msg.getInReplyTo() != null && pendingReplies.containsKey(msg.getInReplyTo());
+                    }
+                })
+            );
+        }
+        
+        /**
+         * Block until a message arrives or the deadline passes; false once it has passed
+         */
+        private boolean blockUntilDeadline() {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            block(remaining);
+            return true;
+        }
+        
+        private void clearPendingReplies() {
+            activeQueries.removeAll(pendingReplies.keySet());
+            pendingReplies.clear();
+        }
+        
+        /**
+         * Leave the selecting reservations, letting the engine start another one
+         */
+        private void endSelection() {
+            if (selecting) {
+                selecting = false;
+                allocationsSelecting--;
+                allocationEngine.restart();
+            }
+        }
+        
+        public boolean isRetryNow() {
+            return retryNow;
+        }
+        
+        public String getPatientId() {
+            return patient.getId();
+        }
+        
         @Override
         public boolean done() {
             return done;
         }
     }
     
+    /**
+     * Look up a candidate of the given resource class in the availability index
+     */
+    private String lookupIndex(String resourceClass, String requirement) {
+        switch (resourceClass) {
+            case ResourceAvailabilityIndex.DOCTOR:
+                return availabilityIndex.findDoctor(requirement);
+            case ResourceAvailabilityIndex.ROOM:
+                return availabilityIndex.findRoom(SchedulingAlgorithm.getPreferredRoomType(requirement));
+            default:
+                return availabilityIndex.findEquipment(requirement);
+        }
+    }
+    
+    private List<AID> getAgents(String resourceClass) {
+        switch (resourceClass) {
+            case ResourceAvailabilityIndex.DOCTOR:
+                return doctorAgents;
+            case ResourceAvailabilityIndex.ROOM:
+                return roomAgents;
+            default:
+                return equipmentAgents;
+        }
+    }
+    
+    private boolean isSuitable(String resourceClass, String content, String requirement) {
+        // Doctors report their specialization: RESOURCE_AVAILABLE:<id>:<specialization>
+        if (resourceClass.equals(ResourceAvailabilityIndex.DOCTOR) && parser.parse(content) && 
+            parser.getFieldCount() >= 2) {
+            return SchedulingAlgorithm.isDoctorSuitable(parser.field(1), requirement);
+        }
+        return true;
+    }
+    
+    /**
+     * Release the given resources of a finished treatment or a revoked allocation
+     */
+    private void releaseResources(TwoPhaseReservation reservation, List<String> resourceClasses) {
+        for (String resourceClass : resourceClasses) {
+            AID agent = knownResources.get(reservation.getAgentName(resourceClass));
+            if (agent == null) continue;
+            
+            ACLMessage release = new ACLMessage(ACLMessage.REQUEST);
+            release.addReceiver(agent);
+            release.setConversationId(MessageProtocol.RESOURCE_ALLOCATION);
+            release.setContent(HospitalMessage.encode(Opcode.RELEASE_RESOURCE, reservation.getPatientId()));
+            release.setReplyWith("release-" + resourceClass.toLowerCase() + "-" + reservation.getPatientId() + 
+                                 "-" + System.currentTimeMillis());
+            send(release);
+        }
+    }
+    
     /**
      * Behavior to finalize resource allocation and notify patient
      */
     private class FinalizeAllocationBehaviour extends OneShotBehaviour {
         private Patient patient;
+        private ReservationCoordinatorBehaviour coordinator;
         
-        public FinalizeAllocationBehaviour(Patient patient) {
+        public FinalizeAllocationBehaviour(Patient patient, ReservationCoordinatorBehaviour coordinator) {
             this.patient = patient;
+            this.coordinator = coordinator;
         }
         
         @Override
         public void action() {
-            if (patient.getAssignedDoctor() != null && patient.getAssignedRoom() != null) {
-                // All required resources allocated successfully
-                patient.setStatus("IN_TREATMENT");
+            boolean equipmentReady = SchedulingAlgorithm.getRequiredEquipment(patient.getTreatmentType()) == null || 
+                                     patient.getRequiredEquipment() != null;
+            if (patient.getAssignedDoctor() != null && patient.getAssignedRoom() != null && equipmentReady) {
+                // All required resources allocated successfully; the wait ends while still WAITING
                 patient.updateWaitingTime();
+                patient.setStatus("IN_TREATMENT");
                 
-                // Update statistics
-                totalPatientsProcessed++;
-                totalWaitTime += patient.getWaitingTime();
-                successfulAllocations++;
-                
-                // Notify patient about allocation
-                DFAgentDescription template = new DFAgentDescription();
-                ServiceDescription sd = new ServiceDescription();
-                sd.setType(MessageProtocol.PATIENT_SERVICE);
-                template.addServices(sd);
+                // Statistics are updated once every commit is confirmed, usually after this step
+                TwoPhaseReservation reservation = committedReservations.get(patient.getId());
+                if (reservation != null && reservation.isFinal()) {
+                    recordAllocation(patient);
+                }
                 
-                try {
-                    DFAgentDescription[] result = DFService.search(myAgent, template);
-                    for (DFAgentDescription agent : result) {
-                        // Find the patient agent
-                        if (agent.getName().getLocalName().contains(patient.getName())) {
-                            ACLMessage notification = new ACLMessage(ACLMessage.INFORM);
-                            notification.addReceiver(agent.getName());
-                            notification.setConversationId(MessageProtocol.STATUS_UPDATE);
-                            
-                            StringBuilder content = new StringBuilder("RESOURCES_ALLOCATED:");
-                            content.append(patient.getAssignedDoctor()).append(":");
-                            content.append(patient.getAssignedRoom());
-                            if (patient.getRequiredEquipment() != null) {
-                                content.append(":").append(patient.getRequiredEquipment());
-                            }
-                            
-                            notification.setContent(content.toString());
-                            myAgent.send(notification);
-                            
-                            System.out.println("Patient " + patient.getName() + " has been allocated all resources");
-                            break;
-                        }
+                // Notify patient about allocation, its agent is found by name in the directory cache
+                AID patientAgent = directory.find(MessageProtocol.PATIENT_SERVICE, patient.getName());
+                if (patientAgent != null) {
+                    ACLMessage notification = new ACLMessage(ACLMessage.INFORM);
+                    notification.addReceiver(patientAgent);
+                    notification.setConversationId(MessageProtocol.STATUS_UPDATE);
+                    
+                    if (patient.getRequiredEquipment() != null) {
+                        notification.setContent(HospitalMessage.encode(Opcode.RESOURCES_ALLOCATED, 
+                            patient.getAssignedDoctor(), patient.getAssignedRoom(), patient.getRequiredEquipment()));
+                    } else {
+                        notification.setContent(HospitalMessage.encode(Opcode.RESOURCES_ALLOCATED, 
+                            patient.getAssignedDoctor(), patient.getAssignedRoom()));
                     }
-                } catch (FIPAException fe) {
-                    fe.printStackTrace();
+                    myAgent.send(notification);
+                    
+                    log.info("Patient ", patient.getName(), " has been allocated all resources");
                 }
+                onAllocationFinished(coordinator, true, false);
             } else {
-                // Resource allocation failed
+                // Resource allocation failed: the coordinator has already put the patient back in queue
                 failedAllocations++;
-                
-                // Put patient back in queue with higher priority
-                if (!patients.containsKey(patient.getId())) {
-                    // Only if patient is not already in queue
-                    scheduler.addPatient(patient);
-                }
+                onAllocationFinished(coordinator, false, coordinator.isRetryNow());
             }
         }
     }
     
+    /**
+     * Behavior to export allocation throughput and latency to the monitoring agent
+     */
+    private class MetricsExportBehaviour extends TickerBehaviour {
+        public MetricsExportBehaviour(Agent a, long period) {
+            super(a, period);
+        }
+        
+        @Override
+        protected void onTick() {
+            notifyMonitor(HospitalMessage.encode(Opcode.ALLOCATION_METRICS, 
+                String.format(Locale.ROOT, "%.3f", allocationMetrics.getAllocationsPerSecond()), 
+                String.format(Locale.ROOT, "%.1f", allocationMetrics.getAverageLatency()), 
+                String.valueOf(allocationMetrics.getMaxLatency())));
+            
+            // Latency counts recorded since the last export, one message per slice
+            unreported.drain((measure, slice, encoded) -> {
+                latencies.addEncoded(measure, slice, encoded);
+                notifyMonitor(HospitalMessage.encode(Opcode.LATENCY_HISTOGRAM, 
+                    String.valueOf(measure.ordinal()), String.valueOf(slice), encoded));
+            });
+        }
+    }
+    
+    /**
+     * Helper method to notify monitoring agent
+     */
+    private void notifyMonitor(String message) {
+        AID monitor = directory.getFirst(MessageProtocol.MONITORING_SERVICE);
+        if (monitor == null) {
+            return; // Monitoring agent might not be available
+        }
+        ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
+        inform.addReceiver(monitor);
+        inform.setContent(message);
+        send(inform);
+    }
+    
     /**
      * Behavior to report system statistics periodically
      */
@@ -559,10 +1358,29 @@ public class SchedulerAgent extends Agent {
             if (totalPatientsProcessed > 0) {
                 double avgWaitTime = totalWaitTime / (double) totalPatientsProcessed / 1000.0;
                 System.out.println("Average wait time: " + String.format("%.2f", avgWaitTime) + " seconds");
+                LatencyHistogram waits = latencies.get(Measure.WAIT_TIME, PatientLatencies.ALL);
+                System.out.println("Wait time percentiles: p50 " + waits.getValueAtPercentile(50) / 1000.0 + 
+                    " s, p90 " + waits.getValueAtPercentile(90) / 1000.0 + 
+                    " s, p99 " + waits.getValueAtPercentile(99) / 1000.0 + " s");
             }
             
+            System.out.println("Allocation rate: " + 
+                String.format("%.2f", allocationMetrics.getAllocationsPerSecond()) + " allocations/s");
+            System.out.println("Enqueue-to-allocation latency: avg " + 
+                String.format("%.0f", allocationMetrics.getAverageLatency()) + " ms, max " + 
+                allocationMetrics.getMaxLatency() + " ms");
+            
             System.out.println("Available resources: " + doctorAgents.size() + " doctors, " + 
                              roomAgents.size() + " rooms, " + equipmentAgents.size() + " equipment");
+            System.out.println("Availability index: " + 
+                availabilityIndex.getAvailableCount(ResourceAvailabilityIndex.DOCTOR) + " doctors, " + 
+                availabilityIndex.getAvailableCount(ResourceAvailabilityIndex.ROOM) + " rooms, " + 
+                availabilityIndex.getAvailableCount(ResourceAvailabilityIndex.EQUIPMENT) + " equipment free (" + 
+                indexHits + " index hits, " + directQueries + " direct queries)");
+            System.out.println("Directory cache: " + directory.getHits() + " hits, " + directory.getMisses() + 
+                             " misses, " + directory.getNotifications() + " DF notifications");
+            System.out.println("Reservations: " + committedReservations.size() + " in treatment, " + 
+                             abortedReservations + " rolled back");
             System.out.println("==============================\n");
         }
     }
@@ -17,6 +17,10 @@ import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.core.AID;
+import metrics.LatencyHistogram;
+import metrics.MetricsHistoryStore;
+import metrics.PatientLatencies;
+import metrics.PatientLatencies.Measure;
 
 /**
  * Advanced Analytics Dashboard with real-time charts and metrics
@@ -33,13 +37,37 @@ public class AnalyticsDashboard extends JFrame {
     
     // Data storage
     private Map<String, TimeSeries> timeSeriesData;
+    private List<TimeSeriesChart> charts = new ArrayList<>();
     private Map<String, Double> currentMetrics;
     private Map<String, AgentInfo> activeAgents;
     private Random random = new Random();
     
+    // Metric updates from the agents, applied at most once per frame
+    private final DashboardUpdateBus updateBus = new DashboardUpdateBus(this::applyMetrics, 
+        DashboardUpdateBus.DEFAULT_FRAME_RATE);
+    
+    // Metrics shown by each panel, to refresh only the panels whose metrics changed
+    private static final Set<String> OVERVIEW_METRICS = new HashSet<>(Arrays.asList(
+        "total_patients", "avg_wait_time", "success_rate", 
+        "doctor_utilization", "room_utilization", "equipment_utilization"));
+    private static final Set<String> PERFORMANCE_METRICS = new HashSet<>(Arrays.asList(
+        "total_patients", "avg_wait_time", "success_rate"));
+    private static final Set<String> RESOURCE_METRICS = new HashSet<>(Arrays.asList(
+        "doctor_utilization", "room_utilization", "equipment_utilization"));
+    
+    // Panels with changed metrics not yet written to their logs
+    private boolean performanceChanged;
+    private boolean resourcesChanged;
+    
     // Reference to main agent system
     private jade.wrapper.AgentContainer mainContainer;
     
+    // Persistent history of the monitoring agent, source of the exported reports
+    private MetricsHistoryStore history;
+    
+    // Latency histograms merged by the monitoring agent, shown on the performance tab
+    private PatientLatencies latencies;
+    
     // Agent counters for unique naming
     private int patientCounter = 0;
     private int doctorCounter = 10; // Start from 10 to avoid conflicts
@@ -123,13 +151,29 @@ public class AnalyticsDashboard extends JFrame {
         JLabel timeLabel = new JLabel();
         timeLabel.setFont(new Font("Segoe UI", Font.PLAIN, 14));
         timeLabel.setForeground(Color.WHITE);
+        
+        // Event dispatch thread gauge: wait of the metric updates and updates queued
+        JLabel edtLabel = new JLabel();
+        edtLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        edtLabel.setForeground(Color.WHITE);
+        
         Timer timeTimer = new Timer(1000, e -> {
             timeLabel.setText(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+            EdtLatencyGauge gauge = updateBus.getGauge();
+            edtLabel.setText(String.format("EDT latency %.1f ms (max %.1f) | queued %d (max %d)", 
+                gauge.getAverageLatencyMillis(), gauge.getMaxLatencyMillis(), 
+                gauge.getQueueDepth(), gauge.getMaxQueueDepth()));
+            gauge.reset();
         });
         timeTimer.start();
         
+        JPanel statusPanel = new JPanel(new GridLayout(2, 1));
+        statusPanel.setOpaque(false);
+        statusPanel.add(timeLabel);
+        statusPanel.add(edtLabel);
+        
         header.add(titleLabel, BorderLayout.WEST);
-        header.add(timeLabel, BorderLayout.EAST);
+        header.add(statusPanel, BorderLayout.EAST);
         
         return header;
     }
@@ -969,7 +1013,9 @@ public class AnalyticsDashboard extends JFrame {
             gbc.gridx = 0; gbc.gridy = 2;
             gbc.gridwidth = 2;
             gbc.weighty = 1.0;
-            add(new RealTimeChart("System Activity"), gbc);
+            TimeSeriesChart activityChart = new TimeSeriesChart("System Activity", timeSeriesData.get("queue_length"));
+            charts.add(activityChart);
+            add(activityChart, gbc);
         }
         
         public void update() {
@@ -990,6 +1036,8 @@ public class AnalyticsDashboard extends JFrame {
     class PerformancePanel extends JPanel {
         private JPanel chartsPanel;
         private JTextArea performanceLog;
+        private DefaultTableModel percentileModel;
+        private long percentileCount = -1;
         
         public PerformancePanel() {
             setLayout(new BorderLayout());
@@ -1014,7 +1062,24 @@ public class AnalyticsDashboard extends JFrame {
             chartsPanel.add(createPerformanceChart("Queue Length", new Color(241, 196, 15)));
             chartsPanel.add(createPerformanceChart("Success Rate", new Color(155, 89, 182)));
             
-            add(chartsPanel, BorderLayout.CENTER);
+            // Percentiles of the latency histograms, by urgency level and treatment type
+            percentileModel = new DefaultTableModel(
+                new String[]{"Measure", "Patients", "Count", "p50", "p90", "p99", "p99.9", "Max"}, 0) {
+                @Override
+                public boolean isCellEditable(int row, int column) {
+                    return false;
+                }
+            };
+            JTable percentileTable = new JTable(percentileModel);
+            percentileTable.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+            JScrollPane percentileScroll = new JScrollPane(percentileTable);
+            percentileScroll.setBorder(BorderFactory.createTitledBorder("Latency Percentiles"));
+            percentileScroll.setPreferredSize(new Dimension(600, 220));
+            
+            JPanel center = new JPanel(new BorderLayout());
+            center.add(chartsPanel, BorderLayout.CENTER);
+            center.add(percentileScroll, BorderLayout.SOUTH);
+            add(center, BorderLayout.CENTER);
             
             // Performance Log
             performanceLog = new JTextArea(5, 50);
@@ -1077,6 +1142,53 @@ public class AnalyticsDashboard extends JFrame {
             
             chartsPanel.repaint();
         }
+        
+        /**
+         * One row per slice with recorded durations, all patients always shown;
+         * rebuilt when durations were added
+         */
+        public void updatePercentiles() {
+            if (latencies == null) {
+                return;
+            }
+            long count = 0;
+            for (Measure measure : Measure.values()) {
+                count += latencies.get(measure, PatientLatencies.ALL).getCount();
+            }
+            if (count == percentileCount) {
+                return;
+            }
+            percentileCount = count;
+            
+            percentileModel.setRowCount(0);
+            for (Measure measure : Measure.values()) {
+                for (int slice = 0; slice < PatientLatencies.SLICES; slice++) {
+                    LatencyHistogram histogram = latencies.get(measure, slice);
+                    long sliceCount = histogram.getCount();
+                    if (sliceCount == 0 && slice != PatientLatencies.ALL) {
+                        continue;
+                    }
+                    percentileModel.addRow(new Object[]{
+                        measure.getLabel(), PatientLatencies.sliceName(slice), sliceCount, 
+                        formatDuration(histogram.getValueAtPercentile(50)), 
+                        formatDuration(histogram.getValueAtPercentile(90)), 
+                        formatDuration(histogram.getValueAtPercentile(99)), 
+                        formatDuration(histogram.getValueAtPercentile(99.9)), 
+                        formatDuration(histogram.getMax())
+                    });
+                }
+            }
+        }
+        
+        private String formatDuration(long millis) {
+            if (millis < 1000) {
+                return millis + " ms";
+            }
+            if (millis < 120_000) {
+                return String.format("%.1f s", millis / 1000.0);
+            }
+            return String.format("%.1f min", millis / 60000.0);
+        }
     }
     
     /**
@@ -1179,14 +1291,11 @@ public class AnalyticsDashboard extends JFrame {
         }
         
         public void update() {
+            updateBars();
             int doctorUtil = currentMetrics.getOrDefault("doctor_utilization", 0.0).intValue();
             int roomUtil = currentMetrics.getOrDefault("room_utilization", 0.0).intValue();
             int equipUtil = currentMetrics.getOrDefault("equipment_utilization", 0.0).intValue();
             
-            doctorBar.setValue(doctorUtil);
-            roomBar.setValue(roomUtil);
-            equipmentBar.setValue(equipUtil);
-            
             String logEntry = String.format("[%s] Resource Update - Doctors: %d%%, Rooms: %d%%, Equipment: %d%%\n",
                 LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss")),
                 doctorUtil, roomUtil, equipUtil);
@@ -1196,6 +1305,15 @@ public class AnalyticsDashboard extends JFrame {
                 resourceLog.setText(logEntry);
             }
         }
+        
+        /**
+         * Utilization bars only, refreshed on every frame with changed utilization
+         */
+        public void updateBars() {
+            doctorBar.setValue(currentMetrics.getOrDefault("doctor_utilization", 0.0).intValue());
+            roomBar.setValue(currentMetrics.getOrDefault("room_utilization", 0.0).intValue());
+            equipmentBar.setValue(currentMetrics.getOrDefault("equipment_utilization", 0.0).intValue());
+        }
     }
     
     /**
@@ -1362,85 +1480,6 @@ public class AnalyticsDashboard extends JFrame {
         }
     }
     
-    class RealTimeChart extends JPanel {
-        private String title;
-        private LinkedList<Double> dataPoints;
-        private Timer animationTimer;
-        
-        public RealTimeChart(String title) {
-            this.title = title;
-            this.dataPoints = new LinkedList<>();
-            
-            for (int i = 0; i < 50; i++) {
-                dataPoints.add(0.0);
-            }
-            
-            setBackground(Color.WHITE);
-            setBorder(BorderFactory.createLineBorder(Color.LIGHT_GRAY));
-            
-            animationTimer = new Timer(500, e -> {
-                dataPoints.removeFirst();
-                double newValue = currentMetrics.getOrDefault("queue_length", 0.0) + Math.random() * 10;
-                dataPoints.addLast(newValue);
-                repaint();
-            });
-            animationTimer.start();
-        }
-        
-        @Override
-        protected void paintComponent(Graphics g) {
-            super.paintComponent(g);
-            Graphics2D g2 = (Graphics2D) g;
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            
-            g2.setFont(new Font("Segoe UI", Font.BOLD, 14));
-            g2.drawString(title, 10, 20);
-            
-            if (dataPoints.size() > 1) {
-                g2.setColor(new Color(52, 152, 219));
-                g2.setStroke(new BasicStroke(2));
-                
-                int xStep = (getWidth() - 60) / (dataPoints.size() - 1);
-                double maxValue = dataPoints.stream().mapToDouble(Double::doubleValue).max().orElse(1);
-                if (maxValue == 0) maxValue = 1;
-                
-                for (int i = 0; i < dataPoints.size() - 1; i++) {
-                    int x1 = 40 + i * xStep;
-                    int x2 = 40 + (i + 1) * xStep;
-                    int y1 = getHeight() - 40 - (int)(dataPoints.get(i) * (getHeight() - 80) / maxValue);
-                    int y2 = getHeight() - 40 - (int)(dataPoints.get(i + 1) * (getHeight() - 80) / maxValue);
-                    
-                    g2.drawLine(x1, y1, x2, y2);
-                }
-            }
-        }
-    }
-    
-    class TimeSeries {
-        private LinkedList<Double> data;
-        private int maxSize;
-        
-        public TimeSeries(int maxSize) {
-            this.maxSize = maxSize;
-            this.data = new LinkedList<>();
-        }
-        
-        public void addPoint(double value) {
-            data.addLast(value);
-            if (data.size() > maxSize) {
-                data.removeFirst();
-            }
-        }
-        
-        public List<Double> getData() {
-            return new ArrayList<>(data);
-        }
-        
-        public void clear() {
-            data.clear();
-        }
-    }
-    
     private static class AgentInfo {
         String name;
         String type;
@@ -1456,10 +1495,10 @@ public class AnalyticsDashboard extends JFrame {
     }
     
     private void initializeTimeSeries() {
-        timeSeriesData.put("wait_time", new TimeSeries(100));
-        timeSeriesData.put("throughput", new TimeSeries(100));
-        timeSeriesData.put("utilization", new TimeSeries(100));
-        timeSeriesData.put("queue_length", new TimeSeries(100));
+        timeSeriesData.put("wait_time", new TimeSeries());
+        timeSeriesData.put("throughput", new TimeSeries());
+        timeSeriesData.put("utilization", new TimeSeries());
+        timeSeriesData.put("queue_length", new TimeSeries());
         
         // Initialize all metrics with default values
         currentMetrics.put("total_patients", 0.0);
@@ -1475,33 +1514,90 @@ public class AnalyticsDashboard extends JFrame {
         currentMetrics.put("throughput", 0.0);
     }
     
+    /**
+     * Periodic refresh: the logs and charts of the panels whose metrics changed
+     * during the last second, and the predictions
+     */
     private void updateDashboard() {
-        overviewPanel.update();
-        performancePanel.update();
-        resourcePanel.update();
+        if (performanceChanged) {
+            performancePanel.update();
+            performanceChanged = false;
+        }
+        if (resourcesChanged) {
+            resourcePanel.update();
+            resourcesChanged = false;
+        }
+        performancePanel.updatePercentiles();
         predictionPanel.update();
     }
     
+    /**
+     * Publish a metric value; it is shown with the next frame
+     */
     public void updateMetric(String key, double value) {
-        currentMetrics.put(key, value);
-        
-        SwingUtilities.invokeLater(() -> {
-            if (overviewPanel != null) {
-                overviewPanel.update();
-            }
-            if (performancePanel != null) {
-                performancePanel.update();
-            }
-            if (resourcePanel != null) {
-                resourcePanel.update();
+        updateBus.publish(key, value);
+    }
+    
+    /**
+     * Publish a snapshot of metric values; they are shown with the next frame
+     */
+    public void updateMetrics(Map<String, Double> metrics) {
+        updateBus.publish(metrics);
+    }
+    
+    /**
+     * Metrics history exported by the Export Report button, null when disabled
+     */
+    public void setHistory(MetricsHistoryStore history) {
+        this.history = history;
+    }
+    
+    public void setLatencies(PatientLatencies latencies) {
+        this.latencies = latencies;
+    }
+    
+    public DashboardUpdateBus getUpdateBus() {
+        return updateBus;
+    }
+    
+    /**
+     * Apply the metrics of a frame on the event dispatch thread, refreshing only
+     * the displays of the metrics that changed
+     */
+    private void applyMetrics(Map<String, Double> frame) {
+        boolean overviewChanged = false;
+        boolean barsChanged = false;
+        for (Map.Entry<String, Double> entry : frame.entrySet()) {
+            Double previous = currentMetrics.put(entry.getKey(), entry.getValue());
+            if (entry.getValue().equals(previous)) {
+                continue;
             }
-        });
+            overviewChanged |= OVERVIEW_METRICS.contains(entry.getKey());
+            performanceChanged |= PERFORMANCE_METRICS.contains(entry.getKey());
+            barsChanged |= RESOURCE_METRICS.contains(entry.getKey());
+        }
+        resourcesChanged |= barsChanged;
+        
+        if (overviewChanged && overviewPanel != null) {
+            overviewPanel.update();
+        }
+        if (barsChanged && resourcePanel != null) {
+            resourcePanel.updateBars();
+        }
     }
     
+    /**
+     * Add a point to a time series, on the event dispatch thread
+     */
     public void updateTimeSeries(String key, double value) {
         TimeSeries series = timeSeriesData.get(key);
         if (series != null) {
             series.addPoint(value);
+            for (TimeSeriesChart chart : charts) {
+                if (chart.getSeries() == series) {
+                    chart.repaint();
+                }
+            }
         }
     }
     
@@ -1512,28 +1608,47 @@ public class AnalyticsDashboard extends JFrame {
         showNotification("Metrics cleared");
     }
     
+    /**
+     * Export the metrics history of a chosen range, written in the background
+     */
     private void exportReport() {
-        StringBuilder report = new StringBuilder();
-        report.append("Hospital Analytics Report\n");
-        report.append("Generated: ").append(LocalDateTime.now()).append("\n\n");
-        
-        report.append("=== Current Metrics ===\n");
-        currentMetrics.forEach((key, value) -> {
-            report.append(key).append(": ").append(String.format("%.2f", value)).append("\n");
-        });
-        
-        report.append("\n=== Active Agents ===\n");
-        activeAgents.forEach((name, info) -> {
-            report.append(name).append(" - Type: ").append(info.type)
-                  .append(", Status: ").append(info.status).append("\n");
-        });
+        if (history == null) {
+            JOptionPane.showMessageDialog(this, "The metrics history is disabled (--no-history or a write failure)", 
+                                        "Export", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
         
-        try {
-            String filename = "hospital_report_" + System.currentTimeMillis() + ".txt";
-            java.nio.file.Files.write(java.nio.file.Paths.get(filename), report.toString().getBytes());
-            showNotification("Report exported to " + filename);
-        } catch (Exception e) {
-            e.printStackTrace();
+        String[] ranges = {"Last hour", "Last 24 hours", "Last 7 days", "All history"};
+        long[] rangeMillis = {3_600_000L, 86_400_000L, 604_800_000L, Long.MAX_VALUE};
+        JComboBox<String> rangeBox = new JComboBox<>(ranges);
+        rangeBox.setSelectedIndex(1);
+        JComboBox<String> formatBox = new JComboBox<>(new String[]{"CSV", "JSON lines"});
+        JPanel options = new JPanel(new GridLayout(2, 2, 5, 5));
+        options.add(new JLabel("Range:"));
+        options.add(rangeBox);
+        options.add(new JLabel("Format:"));
+        options.add(formatBox);
+        if (JOptionPane.showConfirmDialog(this, options, "Export Report", JOptionPane.OK_CANCEL_OPTION, 
+                                          JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
         }
+        
+        long now = System.currentTimeMillis();
+        long range = rangeMillis[rangeBox.getSelectedIndex()];
+        long from = range == Long.MAX_VALUE ? 0 : now - range;
+        ReportExporter.Format format = formatBox.getSelectedIndex() == 0 ? 
+            ReportExporter.Format.CSV : ReportExporter.Format.JSON_LINES;
+        java.nio.file.Path directory = java.nio.file.Paths.get("hospital_report_" + now);
+        
+        new ReportExporter(history).exportAsync(from, now, format, directory).whenComplete((path, error) -> 
+            SwingUtilities.invokeLater(() -> {
+                if (error == null) {
+                    showNotification("Report exported to " + path);
+                } else {
+                    error.printStackTrace();
+                    JOptionPane.showMessageDialog(this, "Export failed: " + (error.getCause() != null ? error.getCause() : error).getMessage(), 
+                                                "Export", JOptionPane.ERROR_MESSAGE);
+                }
+            }));
     }
 }
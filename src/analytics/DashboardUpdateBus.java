@@ -0,0 +1,123 @@
+package analytics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Coalescing bridge between the agents publishing metrics and the Swing event
+ * dispatch thread. Published values are merged into a pending map (the latest value
+ * of each key wins) and a dirty flag schedules one delivery; the dashboard then
+ * receives the pending values as one immutable snapshot, at most once per frame
+ * and with at most one delivery waiting in the event queue, whatever the rate of
+ * updates.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class DashboardUpdateBus {
+    
+    public static final int DEFAULT_FRAME_RATE = 30; // Frames per second
+    
+    // Delays deliveries requested less than a frame after the previous one
+    private static final ScheduledExecutorService frameClock = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "dashboard-frame-clock");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final Consumer<Map<String, Double>> consumer;
+    private final long framePeriod; // Nanoseconds
+    private final EdtLatencyGauge gauge;
+    
+    private final ConcurrentHashMap<String, Double> pending;
+    private final AtomicBoolean scheduled;
+    private volatile long lastFrameAt;
+    
+    // Statistics
+    private final LongAdder updates;
+    private final LongAdder frames;
+    
+    /**
+     * Bus delivering snapshots to a consumer run on the event dispatch thread
+     */
+    public DashboardUpdateBus(Consumer<Map<String, Double>> consumer, int frameRate) {
+        this.consumer = consumer;
+        this.framePeriod = TimeUnit.SECONDS.toNanos(1) / frameRate;
+        this.gauge = new EdtLatencyGauge();
+        this.pending = new ConcurrentHashMap<>();
+        this.scheduled = new AtomicBoolean();
+        this.lastFrameAt = System.nanoTime() - framePeriod;
+        this.updates = new LongAdder();
+        this.frames = new LongAdder();
+    }
+    
+    /**
+     * Publish a set of metric values, from any thread
+     */
+    public void publish(Map<String, Double> values) {
+        pending.putAll(values);
+        updates.increment();
+        requestFrame();
+    }
+    
+    public void publish(String key, double value) {
+        pending.put(key, value);
+        updates.increment();
+        requestFrame();
+    }
+    
+    /**
+     * Schedule the next delivery unless one is already scheduled: the values
+     * published meanwhile ride along with it
+     */
+    private void requestFrame() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = lastFrameAt + framePeriod - System.nanoTime();
+        if (delay <= 0) {
+            gauge.invokeLater(this::deliver);
+        } else {
+            frameClock.schedule(() -> gauge.invokeLater(this::deliver), delay, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    /**
+     * Hand the pending values to the consumer, on the event dispatch thread
+     */
+    private void deliver() {
+        lastFrameAt = System.nanoTime();
+        // Values published from now on schedule the next frame
+        scheduled.set(false);
+        
+        Map<String, Double> frame = new HashMap<>();
+        for (Map.Entry<String, Double> entry : pending.entrySet()) {
+            // A value replaced meanwhile stays pending for the next frame
+            if (pending.remove(entry.getKey(), entry.getValue())) {
+                frame.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!frame.isEmpty()) {
+            frames.increment();
+            consumer.accept(Collections.unmodifiableMap(frame));
+        }
+    }
+    
+    public EdtLatencyGauge getGauge() {
+        return gauge;
+    }
+    
+    public long getUpdateCount() {
+        return updates.sum();
+    }
+    
+    public long getFrameCount() {
+        return frames.sum();
+    }
+}
@@ -0,0 +1,78 @@
+package analytics;
+
+import javax.swing.SwingUtilities;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gauge of the tasks posted to the Swing event dispatch thread: how many are
+ * waiting in the event queue and how long they waited before running.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class EdtLatencyGauge {
+    
+    private final AtomicInteger queueDepth;
+    private final AtomicInteger maxQueueDepth;
+    private final LongAdder tasks;
+    private final LongAdder totalLatency;
+    private final AtomicLong maxLatency;
+    
+    public EdtLatencyGauge() {
+        this.queueDepth = new AtomicInteger();
+        this.maxQueueDepth = new AtomicInteger();
+        this.tasks = new LongAdder();
+        this.totalLatency = new LongAdder();
+        this.maxLatency = new AtomicLong();
+    }
+    
+    /**
+     * Post a task to the event dispatch thread, measuring its wait
+     */
+    public void invokeLater(Runnable task) {
+        long postedAt = System.nanoTime();
+        maxQueueDepth.accumulateAndGet(queueDepth.incrementAndGet(), Math::max);
+        SwingUtilities.invokeLater(() -> {
+            queueDepth.decrementAndGet();
+            record(System.nanoTime() - postedAt);
+            task.run();
+        });
+    }
+    
+    private void record(long latency) {
+        tasks.increment();
+        totalLatency.add(latency);
+        maxLatency.accumulateAndGet(latency, Math::max);
+    }
+    
+    /**
+     * Posted tasks that have not run yet
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+    
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+    
+    public long getTaskCount() {
+        return tasks.sum();
+    }
+    
+    public double getAverageLatencyMillis() {
+        long count = tasks.sum();
+        return count == 0 ? 0.0 : totalLatency.sum() / (count * 1_000_000.0);
+    }
+    
+    public double getMaxLatencyMillis() {
+        return maxLatency.get() / 1_000_000.0;
+    }
+    
+    public void reset() {
+        maxQueueDepth.set(queueDepth.get());
+        tasks.reset();
+        totalLatency.reset();
+        maxLatency.set(0);
+    }
+}
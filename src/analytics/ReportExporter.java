@@ -0,0 +1,405 @@
+package analytics;
+
+import metrics.LatencyHistogram;
+import metrics.MetricsHistoryStore;
+import metrics.MetricsHistoryStore.PatientEvent;
+import metrics.MetricsRegistry;
+import metrics.MetricsRegistry.Metric;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Streaming export of the metrics history over a time range, as CSV or JSON lines:
+ * - patients.*     one row per patient event (arrival, allocation, completion)
+ * - utilization.*  busy time and allocations of each resource
+ * - wait_times.*   count, mean and percentiles of the waits of the treated patients
+ * - metrics.*      the metric samples
+ *
+ * Rows are written while the history is scanned, through buffered writers on file
+ * channels; the memory used is the same whatever the number of patients (one entry
+ * per resource and a LatencyHistogram of the waits). Exports run on a background
+ * thread, off the event dispatch thread.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class ReportExporter {
+    
+    /**
+     * Output format of the exported files
+     */
+    public enum Format {
+        CSV(".csv"),
+        JSON_LINES(".jsonl");
+        
+        private final String extension;
+        
+        Format(String extension) {
+            this.extension = extension;
+        }
+        
+        public String getExtension() {
+            return extension;
+        }
+    }
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private static final double[] PERCENTILES = {50, 90, 95, 99, 99.9};
+    
+    private static final Metric[] METRICS = Metric.values();
+    
+    // One export at a time, in the background
+    private static final ExecutorService exportThread = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "report-export");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final MetricsHistoryStore history;
+    
+    public ReportExporter(MetricsHistoryStore history) {
+        this.history = history;
+    }
+    
+    /**
+     * Export the range from <= time < to into a directory, in the background
+     */
+    public CompletableFuture<Path> exportAsync(long from, long to, Format format, Path directory) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return export(from, to, format, directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, exportThread);
+    }
+    
+    /**
+     * Export the range from <= time < to into a directory, on the calling thread
+     */
+    public Path export(long from, long to, Format format, Path directory) throws IOException {
+        Files.createDirectories(directory);
+        exportPatients(from, to, format, directory.resolve("patients" + format.extension));
+        exportUtilization(from, to, format, directory.resolve("utilization" + format.extension));
+        exportWaitTimes(from, to, format, directory.resolve("wait_times" + format.extension));
+        exportMetrics(from, to, format, directory.resolve("metrics" + format.extension));
+        return directory;
+    }
+    
+    /**
+     * One row per patient event
+     */
+    public void exportPatients(long from, long to, Format format, Path file) throws IOException {
+        try (RowWriter rows = new RowWriter(file, format, "timestamp", "patient", "event", "resource", "wait_ms")) {
+            history.forEachPatientEvent(from, to, (timestamp, event, patient, resource, waitMillis) -> {
+                try {
+                    rows.value(timestamp)
+                        .value(history.getPatientId(patient))
+                        .value(event.name())
+                        .value(resource < 0 ? "" : history.getResourceName(resource));
+                    if (waitMillis < 0) {
+                        rows.empty();
+                    } else {
+                        rows.value(waitMillis);
+                    }
+                    rows.endRow();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    /**
+     * Busy time of each resource over the range, from its status transitions. The
+     * range starts at its first record, so that a range opened at 0 is not measured
+     * from 1970. A resource whose first transition in the range makes it available is
+     * counted busy from that start.
+     */
+    public void exportUtilization(long from, long to, Format format, Path file) throws IOException {
+        ResourceUsage usage = new ResourceUsage(history.getResourceCount());
+        long[] bounds = {Long.MIN_VALUE, from}; // Start and end of the recorded range
+        history.forEach(from, to, (timestamp, series, value) -> {
+            if (bounds[0] == Long.MIN_VALUE) {
+                bounds[0] = Math.max(from, timestamp);
+            }
+            bounds[1] = timestamp;
+            if (series >= MetricsHistoryStore.RESOURCE_SERIES && series < MetricsHistoryStore.PATIENT_SERIES) {
+                usage.transition(series - MetricsHistoryStore.RESOURCE_SERIES, timestamp, value != 0, bounds[0]);
+            }
+        });
+        long start = bounds[0] == Long.MIN_VALUE ? from : bounds[0];
+        history.forEachPatientEvent(from, to, (timestamp, event, patient, resource, waitMillis) -> {
+            if (event == PatientEvent.ALLOCATION) {
+                usage.allocation(resource);
+            }
+        });
+        
+        // Resources still busy are counted up to the end of the range, or to the last record of an open range
+        long until = to == Long.MAX_VALUE ? bounds[1] : to;
+        long span = Math.max(1, until - start);
+        try (RowWriter rows = new RowWriter(file, format, "resource", "type", "busy_ms", "utilization",
+                                            "transitions", "allocations")) {
+            for (int id = 0; id < usage.size(); id++) {
+                if (!usage.seen(id)) {
+                    continue;
+                }
+                long busy = usage.busyMillis(id, until);
+                rows.value(history.getResourceName(id))
+                    .value(history.getResourceType(id))
+                    .value(busy)
+                    .value(busy * 100.0 / span)
+                    .value(usage.transitions[id])
+                    .value(usage.allocations[id])
+                    .endRow();
+            }
+        }
+    }
+    
+    /**
+     * Count, mean and percentiles of the waits of the patients treated in the range
+     */
+    public void exportWaitTimes(long from, long to, Format format, Path file) throws IOException {
+        LatencyHistogram waits = new LatencyHistogram();
+        long[] total = new long[2]; // Sum and max
+        history.forEachPatientEvent(from, to, (timestamp, event, patient, resource, waitMillis) -> {
+            if (event == PatientEvent.COMPLETION && waitMillis >= 0) {
+                waits.record(waitMillis);
+                total[0] += waitMillis;
+                total[1] = Math.max(total[1], waitMillis);
+            }
+        });
+        long count = waits.getCount();
+        
+        try (RowWriter rows = new RowWriter(file, format, "statistic", "wait_ms")) {
+            rows.value("count").value(count).endRow();
+            rows.value("mean").value(count == 0 ? 0 : total[0] / count).endRow();
+            for (double percentile : PERCENTILES) {
+                // Bucket bounds, within the exact largest wait
+                String name = percentile == (int) percentile ? "p" + (int) percentile : "p" + percentile;
+                rows.value(name).value(Math.min(waits.getValueAtPercentile(percentile), total[1])).endRow();
+            }
+            rows.value("max").value(total[1]).endRow();
+        }
+    }
+    
+    /**
+     * The metric samples of the range
+     */
+    public void exportMetrics(long from, long to, Format format, Path file) throws IOException {
+        try (RowWriter rows = new RowWriter(file, format, "timestamp", "metric", "value")) {
+            history.forEach(from, to, (timestamp, series, value) -> {
+                if (series < METRICS.length) {
+                    Metric metric = METRICS[series];
+                    try {
+                        rows.value(timestamp).value(metric.getKey());
+                        if (metric.getKind() == MetricsRegistry.Kind.COUNTER) {
+                            rows.value(value);
+                        } else {
+                            rows.value(Double.longBitsToDouble(value));
+                        }
+                        rows.endRow();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    /**
+     * Busy time, transitions and allocations by resource id
+     */
+    private static class ResourceUsage {
+        long[] busySince = new long[0]; // -1 when available
+        long[] busyMillis = new long[0];
+        int[] transitions = new int[0];
+        int[] allocations = new int[0];
+        boolean[] transitioned = new boolean[0]; // A transition was read in the range
+        boolean[] seen = new boolean[0];         // Appears in the report
+        
+        ResourceUsage(int resources) {
+            ensure(resources - 1);
+        }
+        
+        void transition(int id, long timestamp, boolean busy, long start) {
+            ensure(id);
+            seen[id] = true;
+            if (!transitioned[id]) {
+                transitioned[id] = true;
+                // First transition of the range: it left the opposite state
+                busySince[id] = busy ? -1 : start;
+            }
+            if (busy && busySince[id] < 0) {
+                busySince[id] = timestamp;
+            } else if (!busy && busySince[id] >= 0) {
+                busyMillis[id] += timestamp - busySince[id];
+                busySince[id] = -1;
+            }
+            transitions[id]++;
+        }
+        
+        void allocation(int id) {
+            if (id >= 0) {
+                ensure(id);
+                seen[id] = true;
+                allocations[id]++;
+            }
+        }
+        
+        long busyMillis(int id, long until) {
+            return busyMillis[id] + (busySince[id] >= 0 ? Math.max(0, until - busySince[id]) : 0);
+        }
+        
+        boolean seen(int id) {
+            return seen[id];
+        }
+        
+        int size() {
+            return seen.length;
+        }
+        
+        private void ensure(int id) {
+            if (id < seen.length) {
+                return;
+            }
+            int length = Math.max(id + 1, seen.length * 2);
+            int old = busySince.length;
+            busySince = Arrays.copyOf(busySince, length);
+            Arrays.fill(busySince, old, length, -1L);
+            busyMillis = Arrays.copyOf(busyMillis, length);
+            transitions = Arrays.copyOf(transitions, length);
+            allocations = Arrays.copyOf(allocations, length);
+            transitioned = Arrays.copyOf(transitioned, length);
+            seen = Arrays.copyOf(seen, length);
+        }
+    }
+    
+    /**
+     * Rows of an export file: a header line then comma-separated values for CSV, one
+     * object per line for JSON lines
+     */
+    private static class RowWriter implements Closeable {
+        private final Writer out;
+        private final Format format;
+        private final String[] columns;
+        private int column;
+        
+        RowWriter(Path file, Format format, String... columns) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING);
+            this.out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), BUFFER_SIZE);
+            this.format = format;
+            this.columns = columns;
+            if (format == Format.CSV) {
+                out.write(String.join(",", columns));
+                out.write('\n');
+            }
+        }
+        
+        RowWriter value(String value) throws IOException {
+            separator();
+            if (format == Format.CSV) {
+                writeCsv(value);
+            } else {
+                writeJson(value);
+            }
+            return this;
+        }
+        
+        RowWriter value(long value) throws IOException {
+            separator();
+            out.write(Long.toString(value));
+            return this;
+        }
+        
+        RowWriter value(double value) throws IOException {
+            separator();
+            // JSON has no literal for NaN or infinities
+            out.write(Double.isFinite(value) ? Double.toString(value) : format == Format.CSV ? "" : "null");
+            return this;
+        }
+        
+        /**
+         * A missing value: an empty CSV field, a JSON null
+         */
+        RowWriter empty() throws IOException {
+            separator();
+            if (format == Format.JSON_LINES) {
+                out.write("null");
+            }
+            return this;
+        }
+        
+        void endRow() throws IOException {
+            out.write(format == Format.CSV ? "\n" : "}\n");
+            column = 0;
+        }
+        
+        private void separator() throws IOException {
+            if (format == Format.CSV) {
+                if (column > 0) {
+                    out.write(',');
+                }
+            } else {
+                out.write(column == 0 ? "{\"" : ",\"");
+                out.write(columns[column]);
+                out.write("\":");
+            }
+            column++;
+        }
+        
+        private void writeCsv(String value) throws IOException {
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                out.write(value);
+                return;
+            }
+            out.write('"');
+            out.write(value.replace("\"", "\"\""));
+            out.write('"');
+        }
+        
+        private void writeJson(String value) throws IOException {
+            out.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.write('\\');
+                    out.write(c);
+                } else if (c < 0x20) {
+                    out.write(String.format("\\u%04x", (int) c));
+                } else {
+                    out.write(c);
+                }
+            }
+            out.write('"');
+        }
+        
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package analytics;
+
+/**
+ * Fixed-memory time series of a dashboard metric. Samples are rolled up into three
+ * resolutions (1 s, 1 min and 1 h buckets), each a ring buffer of primitive
+ * min/max/sum/count columns: by default one hour of seconds, 24 hours of minutes
+ * and a week of hours. Old buckets are overwritten, so a series never grows, and
+ * reading a point allocates nothing.
+ *
+ * Written and read on the event dispatch thread.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class TimeSeries {
+    
+    /**
+     * Bucket width of a rollup
+     */
+    public enum Resolution {
+        SECOND(1000L),
+        MINUTE(60_000L),
+        HOUR(3_600_000L);
+        
+        private final long millis;
+        
+        Resolution(long millis) {
+            this.millis = millis;
+        }
+        
+        public long getMillis() {
+            return millis;
+        }
+    }
+    
+    public static final int DEFAULT_SECONDS = 3600; // 1 hour
+    public static final int DEFAULT_MINUTES = 1440; // 24 hours
+    public static final int DEFAULT_HOURS = 168;    // 7 days
+    
+    private final Rollup[] rollups;
+    private double latest;
+    
+    public TimeSeries() {
+        this(DEFAULT_SECONDS, DEFAULT_MINUTES, DEFAULT_HOURS);
+    }
+    
+    /**
+     * Series keeping the given number of buckets of each resolution
+     */
+    public TimeSeries(int seconds, int minutes, int hours) {
+        this.rollups = new Rollup[] {
+            new Rollup(Resolution.SECOND.millis, seconds),
+            new Rollup(Resolution.MINUTE.millis, minutes),
+            new Rollup(Resolution.HOUR.millis, hours)
+        };
+    }
+    
+    /**
+     * Record a sample taken at a time in milliseconds
+     */
+    public void addPoint(long timestamp, double value) {
+        for (Rollup rollup : rollups) {
+            rollup.add(timestamp, value);
+        }
+        latest = value;
+    }
+    
+    public void addPoint(double value) {
+        addPoint(System.currentTimeMillis(), value);
+    }
+    
+    public double getLatest() {
+        return latest;
+    }
+    
+    /**
+     * Finest resolution whose buckets cover a horizon, the coarsest one otherwise
+     */
+    public Resolution resolutionFor(long horizonMillis) {
+        for (Resolution resolution : Resolution.values()) {
+            if (rollups[resolution.ordinal()].capacity * resolution.millis >= horizonMillis) {
+                return resolution;
+            }
+        }
+        return Resolution.HOUR;
+    }
+    
+    /**
+     * Number of buckets of a resolution, empty ones included; bucket 0 is the oldest
+     */
+    public int size(Resolution resolution) {
+        return rollups[resolution.ordinal()].size;
+    }
+    
+    public int getCapacity(Resolution resolution) {
+        return rollups[resolution.ordinal()].capacity;
+    }
+    
+    /**
+     * Number of samples in a bucket, 0 for a bucket without samples
+     */
+    public int count(Resolution resolution, int bucket) {
+        Rollup rollup = rollups[resolution.ordinal()];
+        return rollup.count[rollup.slot(bucket)];
+    }
+    
+    public double min(Resolution resolution, int bucket) {
+        Rollup rollup = rollups[resolution.ordinal()];
+        return rollup.min[rollup.slot(bucket)];
+    }
+    
+    public double max(Resolution resolution, int bucket) {
+        Rollup rollup = rollups[resolution.ordinal()];
+        return rollup.max[rollup.slot(bucket)];
+    }
+    
+    /**
+     * Average of a bucket, NaN for a bucket without samples
+     */
+    public double average(Resolution resolution, int bucket) {
+        Rollup rollup = rollups[resolution.ordinal()];
+        int slot = rollup.slot(bucket);
+        return rollup.count[slot] == 0 ? Double.NaN : rollup.sum[slot] / rollup.count[slot];
+    }
+    
+    /**
+     * Start time of a bucket in milliseconds
+     */
+    public long startOf(Resolution resolution, int bucket) {
+        Rollup rollup = rollups[resolution.ordinal()];
+        return (rollup.newest - (rollup.size - 1 - bucket)) * rollup.bucketMillis;
+    }
+    
+    public void clear() {
+        for (Rollup rollup : rollups) {
+            rollup.size = 0;
+        }
+        latest = 0;
+    }
+    
+    /**
+     * Ring buffer of the buckets of one resolution
+     */
+    private static class Rollup {
+        final long bucketMillis;
+        final int capacity;
+        final double[] min;
+        final double[] max;
+        final double[] sum;
+        final int[] count;
+        int head = -1;     // Slot of the newest bucket
+        int size;
+        long newest;       // Bucket number (time / bucketMillis) of the newest bucket
+        
+        Rollup(long bucketMillis, int capacity) {
+            this.bucketMillis = bucketMillis;
+            this.capacity = capacity;
+            this.min = new double[capacity];
+            this.max = new double[capacity];
+            this.sum = new double[capacity];
+            this.count = new int[capacity];
+        }
+        
+        void add(long timestamp, double value) {
+            long bucket = Math.floorDiv(timestamp, bucketMillis);
+            if (size == 0) {
+                open(bucket);
+            } else if (bucket > newest) {
+                // Open the buckets of the gap as empty ones, at most a full ring
+                for (long b = Math.max(newest + 1, bucket - capacity + 1); b <= bucket; b++) {
+                    open(b);
+                }
+            }
+            // A late sample is added to the newest bucket
+            int slot = head;
+            if (count[slot] == 0) {
+                min[slot] = value;
+                max[slot] = value;
+            } else {
+                min[slot] = Math.min(min[slot], value);
+                max[slot] = Math.max(max[slot], value);
+            }
+            sum[slot] += value;
+            count[slot]++;
+        }
+        
+        private void open(long bucket) {
+            head = head + 1 == capacity ? 0 : head + 1;
+            if (size < capacity) size++;
+            min[head] = Double.NaN;
+            max[head] = Double.NaN;
+            sum[head] = 0;
+            count[head] = 0;
+            newest = bucket;
+        }
+        
+        int slot(int bucket) {
+            if (bucket < 0 || bucket >= size) {
+                throw new IndexOutOfBoundsException("Bucket " + bucket + " of " + size);
+            }
+            int slot = head - (size - 1 - bucket);
+            return slot < 0 ? slot + capacity : slot;
+        }
+    }
+}
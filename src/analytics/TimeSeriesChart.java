@@ -0,0 +1,181 @@
+package analytics;
+
+import javax.swing.BorderFactory;
+import javax.swing.JPanel;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+/**
+ * Line chart of a time series over a horizon chosen by clicking the chart (5 min,
+ * 1 h, 24 h or 7 days). The rollup covering the horizon is read in place; when it
+ * has more buckets than the chart has pixel columns, each column draws the min-max
+ * range of its buckets and the line joins their averages. Painting is O(buckets)
+ * and allocates nothing.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class TimeSeriesChart extends JPanel {
+    
+    private static final long[] HORIZONS = {300_000L, 3_600_000L, 86_400_000L, 604_800_000L};
+    private static final String[] HORIZON_LABELS = {"last 5 min", "last 1 h", "last 24 h", "last 7 days"};
+    
+    private static final Font TITLE_FONT = new Font("Segoe UI", Font.BOLD, 14);
+    private static final Font LABEL_FONT = new Font("Segoe UI", Font.PLAIN, 11);
+    private static final Color LINE_COLOR = new Color(52, 152, 219);
+    private static final Color RANGE_COLOR = new Color(52, 152, 219, 90);
+    private static final Stroke LINE_STROKE = new BasicStroke(2);
+    private static final Stroke RANGE_STROKE = new BasicStroke(1);
+    
+    // Chart margins
+    private static final int LEFT = 40;
+    private static final int RIGHT = 20;
+    private static final int TOP = 40;
+    private static final int BOTTOM = 40;
+    
+    // Marks a pixel column without samples
+    private static final int NO_VALUE = Integer.MIN_VALUE;
+    
+    private final String title;
+    private final TimeSeries series;
+    private int preset;
+    private long horizon;
+    private String horizonLabel;
+    
+    // Pixel coordinates of the columns of the last paint
+    private int[] columnX = new int[0];
+    private int[] columnY = new int[0];
+    private int[] columnLow = new int[0];
+    private int[] columnHigh = new int[0];
+    
+    public TimeSeriesChart(String title, TimeSeries series) {
+        this.title = title;
+        this.series = series;
+        this.preset = 1; // 1 hour
+        this.horizon = HORIZONS[preset];
+        this.horizonLabel = HORIZON_LABELS[preset];
+        
+        setBackground(Color.WHITE);
+        setBorder(BorderFactory.createLineBorder(Color.LIGHT_GRAY));
+        setToolTipText("Click to change the time range");
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                preset = (preset + 1) % HORIZONS.length;
+                horizon = HORIZONS[preset];
+                horizonLabel = HORIZON_LABELS[preset];
+                repaint();
+            }
+        });
+    }
+    
+    public TimeSeries getSeries() {
+        return series;
+    }
+    
+    /**
+     * Show the last horizonMillis of the series
+     */
+    public void setHorizon(long horizonMillis) {
+        horizon = horizonMillis;
+        horizonLabel = "last " + (horizonMillis >= 3_600_000L ? horizonMillis / 3_600_000L + " h" : 
+                                  horizonMillis / 60_000L + " min");
+        repaint();
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Graphics2D g2 = (Graphics2D) g;
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        
+        g2.setFont(TITLE_FONT);
+        g2.setColor(Color.DARK_GRAY);
+        g2.drawString(title, 10, 20);
+        g2.setFont(LABEL_FONT);
+        g2.setColor(Color.GRAY);
+        g2.drawString(horizonLabel, getWidth() - 90, 20);
+        
+        int width = getWidth() - LEFT - RIGHT;
+        int height = getHeight() - TOP - BOTTOM;
+        if (width > 1 && height > 1) {
+            paintSeries(g2, LEFT, TOP, width, height);
+        }
+    }
+    
+    private void paintSeries(Graphics2D g2, int left, int top, int width, int height) {
+        TimeSeries.Resolution resolution = series.resolutionFor(horizon);
+        int size = series.size(resolution);
+        int points = (int) Math.min(size, horizon / resolution.getMillis());
+        int first = size - points;
+        if (points < 2) {
+            return;
+        }
+        
+        // Value range of the visible buckets, from 0 for positive metrics
+        double low = 0;
+        double high = 0;
+        for (int i = first; i < size; i++) {
+            if (series.count(resolution, i) > 0) {
+                low = Math.min(low, series.min(resolution, i));
+                high = Math.max(high, series.max(resolution, i));
+            }
+        }
+        double scale = high > low ? height / (high - low) : 0;
+        int bottom = top + height;
+        
+        int columns = Math.min(points, width);
+        if (columnX.length < columns) {
+            // Column buffers follow the chart width, reallocated only when it grows
+            columnX = new int[columns];
+            columnY = new int[columns];
+            columnLow = new int[columns];
+            columnHigh = new int[columns];
+        }
+        
+        // Min, max and average of the buckets of each pixel column; an empty column breaks the line
+        for (int column = 0; column < columns; column++) {
+            int from = first + (int) ((long) column * points / columns);
+            int to = first + (int) ((long) (column + 1) * points / columns);
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0;
+            int buckets = 0;
+            for (int i = from; i < to; i++) {
+                if (series.count(resolution, i) > 0) {
+                    min = Math.min(min, series.min(resolution, i));
+                    max = Math.max(max, series.max(resolution, i));
+                    sum += series.average(resolution, i);
+                    buckets++;
+                }
+            }
+            columnX[column] = left + (int) ((long) column * (width - 1) / Math.max(1, columns - 1));
+            columnY[column] = buckets == 0 ? NO_VALUE : bottom - (int) ((sum / buckets - low) * scale);
+            columnLow[column] = buckets == 0 ? 0 : bottom - (int) ((min - low) * scale);
+            columnHigh[column] = buckets == 0 ? 0 : bottom - (int) ((max - low) * scale);
+        }
+        
+        // Ranges of the columns holding several samples
+        g2.setColor(RANGE_COLOR);
+        g2.setStroke(RANGE_STROKE);
+        for (int column = 0; column < columns; column++) {
+            if (columnY[column] != NO_VALUE && columnLow[column] != columnHigh[column]) {
+                g2.drawLine(columnX[column], columnLow[column], columnX[column], columnHigh[column]);
+            }
+        }
+        
+        // Averages, joined between consecutive columns with samples
+        g2.setColor(LINE_COLOR);
+        g2.setStroke(LINE_STROKE);
+        for (int column = 1; column < columns; column++) {
+            if (columnY[column - 1] != NO_VALUE && columnY[column] != NO_VALUE) {
+                g2.drawLine(columnX[column - 1], columnY[column - 1], columnX[column], columnY[column]);
+            }
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package codec;
+
+import fault.FaultToleranceManager.AgentState;
+import jade.core.AID;
+import models.Patient;
+import negotiation.NegotiationProtocol.Bid;
+import negotiation.NegotiationProtocol.ResourceRequest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Hand-written compact binary format for the payloads exchanged between agents.
+ *
+ * Every record is written as: type tag (1 byte), schema version (1 byte),
+ * body length (varint), body. Integers are zig-zag varints, strings are a
+ * varint length + 1 (0 for null) followed by UTF-8 bytes.
+ *
+ * Schemas evolve by appending fields: a reader decodes the fields of the
+ * versions it knows and skips the rest of the body, so older agents keep
+ * reading messages from newer ones. Incompatible changes get a new tag.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class CompactBinaryCodec implements MessageCodec {
+    
+    public static final String NAME = "hospital-binary";
+    
+    // Record type tags (0 encodes a null record)
+    static final int NULL = 0;
+    static final int PATIENT = 1;
+    static final int RESOURCE_REQUEST = 2;
+    static final int BID = 3;
+    static final int AGENT_STATE = 4;
+    static final int PATIENT_LIST = 5;
+    
+    // Current schema version written for every record type
+    static final int SCHEMA_VERSION = 1;
+    
+    // Value tags for attribute maps and agent arguments
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_STRING = 1;
+    private static final int VALUE_INT = 2;
+    private static final int VALUE_LONG = 3;
+    private static final int VALUE_DOUBLE = 4;
+    private static final int VALUE_BOOLEAN = 5;
+    
+    @Override
+    public String getName() {
+        return NAME;
+    }
+    
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        Output out = new Output(128);
+        writeRecord(out, value);
+        return out.toByteArray();
+    }
+    
+    @Override
+    public Object decode(byte[] data) throws IOException {
+        Input in = new Input(data);
+        Object value = readRecord(in);
+        if (in.position != data.length) {
+            throw new IOException("Trailing bytes after record");
+        }
+        return value;
+    }
+    
+    private void writeRecord(Output out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        
+        int tag = tagOf(value);
+        out.writeByte(tag);
+        out.writeByte(SCHEMA_VERSION);
+        
+        // The body length is only known once written: reserve the bytes of a small length
+        int lengthPosition = out.reserve(2);
+        int bodyStart = out.size;
+        switch (tag) {
+            case PATIENT:
+                writePatient(out, (Patient) value);
+                break;
+            case RESOURCE_REQUEST:
+                writeResourceRequest(out, (ResourceRequest) value);
+                break;
+            case BID:
+                writeBid(out, (Bid) value);
+                break;
+            case AGENT_STATE:
+                writeAgentState(out, (AgentState) value);
+                break;
+            default:
+                writePatientList(out, (List<?>) value);
+                break;
+        }
+        out.patchLength(lengthPosition, out.size - bodyStart);
+    }
+    
+    private int tagOf(Object value) throws IOException {
+        if (value instanceof Patient) return PATIENT;
+        if (value instanceof ResourceRequest) return RESOURCE_REQUEST;
+        if (value instanceof Bid) return BID;
+        if (value instanceof AgentState) return AGENT_STATE;
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                if (!(element instanceof Patient)) {
+                    throw new IOException("Only lists of patients are supported");
+                }
+            }
+            return PATIENT_LIST;
+        }
+        throw new IOException("No binary schema for " + value.getClass().getName());
+    }
+    
+    private Object readRecord(Input in) throws IOException {
+        int tag = in.readByte();
+        if (tag == NULL) {
+            return null;
+        }
+        int version = in.readByte();
+        if (version < 1) {
+            throw new IOException("Invalid schema version " + version + " for record type " + tag);
+        }
+        int length = (int) in.readUnsignedVarLong();
+        if (length < 0 || length > in.data.length - in.position) {
+            throw new IOException("Truncated record of type " + tag);
+        }
+        int end = in.position + length;
+        
+        Object value;
+        switch (tag) {
+            case PATIENT:
+                value = readPatient(in, version);
+                break;
+            case RESOURCE_REQUEST:
+                value = readResourceRequest(in, version);
+                break;
+            case BID:
+                value = readBid(in, version);
+                break;
+            case AGENT_STATE:
+                value = readAgentState(in, version);
+                break;
+            case PATIENT_LIST:
+                value = readPatientList(in, version);
+                break;
+            default:
+                throw new IOException("Unknown record type " + tag);
+        }
+        
+        if (in.position > end) {
+            throw new IOException("Record of type " + tag + " overruns its length");
+        }
+        // Skip the fields appended by newer schema versions
+        in.position = end;
+        return value;
+    }
+    
+    // ---- Patient, schema v1 ----
+    
+    private void writePatient(Output out, Patient patient) {
+        out.writeString(patient.getId());
+        out.writeString(patient.getName());
+        out.writeVarInt(patient.getUrgencyLevel());
+        out.writeString(patient.getTreatmentType());
+        out.writeVarLong(patient.getArrivalTime());
+        out.writeVarLong(patient.getWaitingTime());
+        out.writeString(patient.getStatus());
+        out.writeString(patient.getAssignedDoctor());
+        out.writeString(patient.getAssignedRoom());
+        out.writeString(patient.getRequiredEquipment());
+    }
+    
+    private Patient readPatient(Input in, int version) throws IOException {
+        String id = in.readString();
+        String name = in.readString();
+        int urgency = in.readVarInt();
+        String treatment = in.readString();
+        Patient patient = new Patient(id, name, urgency, treatment, in.readVarLong());
+        patient.setWaitingTime(in.readVarLong());
+        patient.setStatus(in.readString());
+        patient.setAssignedDoctor(in.readString());
+        patient.setAssignedRoom(in.readString());
+        patient.setRequiredEquipment(in.readString());
+        return patient;
+    }
+    
+    // ---- List of patients (work stealing), schema v1 ----
+    
+    private void writePatientList(Output out, List<?> patients) throws IOException {
+        out.writeVarInt(patients.size());
+        for (Object patient : patients) {
+            writeRecord(out, patient);
+        }
+    }
+    
+    private List<Patient> readPatientList(Input in, int version) throws IOException {
+        int count = in.readVarInt();
+        if (count < 0) {
+            throw new IOException("Invalid patient count " + count);
+        }
+        List<Patient> patients = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            patients.add((Patient) readTypedRecord(in, PATIENT));
+        }
+        return patients;
+    }
+    
+    // ---- Resource request, schema v1 ----
+    
+    private void writeResourceRequest(Output out, ResourceRequest request) throws IOException {
+        out.writeString(request.getResourceType());
+        out.writeVarInt(request.getUrgencyLevel());
+        out.writeVarLong(request.getDuration());
+        writeMap(out, request.getAttributes());
+    }
+    
+    private ResourceRequest readResourceRequest(Input in, int version) throws IOException {
+        ResourceRequest request = new ResourceRequest(in.readString(), in.readVarInt(), in.readVarLong());
+        readMap(in, request.getAttributes());
+        return request;
+    }
+    
+    // ---- Bid, schema v1 ----
+    
+    private void writeBid(Output out, Bid bid) throws IOException {
+        out.writeString(bid.getBidder() != null ? bid.getBidder().getName() : null);
+        out.writeDouble(bid.getUtility());
+        writeRecord(out, bid.getRequest());
+        out.writeVarLong(bid.getTimestamp());
+    }
+    
+    private Bid readBid(Input in, int version) throws IOException {
+        String bidder = in.readString();
+        double utility = in.readDouble();
+        ResourceRequest request = (ResourceRequest) readTypedRecord(in, RESOURCE_REQUEST);
+        long timestamp = in.readVarLong();
+        return new Bid(bidder != null ? new AID(bidder, AID.ISGUID) : null, utility, request, timestamp);
+    }
+    
+    // ---- Agent state, schema v1 ----
+    
+    private void writeAgentState(Output out, AgentState state) throws IOException {
+        out.writeString(state.getAgentName());
+        out.writeString(state.getAgentType());
+        Object[] arguments = state.getArguments();
+        out.writeVarInt(arguments != null ? arguments.length + 1 : 0);
+        if (arguments != null) {
+            for (Object argument : arguments) {
+                writeValue(out, argument);
+            }
+        }
+        writeMap(out, state.getStateData());
+        out.writeVarLong(state.getTimestamp());
+    }
+    
+    private AgentState readAgentState(Input in, int version) throws IOException {
+        String name = in.readString();
+        String type = in.readString();
+        int argumentCount = in.readVarInt() - 1;
+        Object[] arguments = null;
+        if (argumentCount >= 0) {
+            arguments = new Object[argumentCount];
+            for (int i = 0; i < argumentCount; i++) {
+                arguments[i] = readValue(in);
+            }
+        }
+        Map<String, Object> stateData = new HashMap<>();
+        readMap(in, stateData);
+        AgentState state = new AgentState(name, type, arguments, in.readVarLong());
+        for (Map.Entry<String, Object> entry : stateData.entrySet()) {
+            state.addStateData(entry.getKey(), entry.getValue());
+        }
+        return state;
+    }
+    
+    // ---- Shared helpers ----
+    
+    private Object readTypedRecord(Input in, int expectedTag) throws IOException {
+        int tag = in.peekByte();
+        if (tag != NULL && tag != expectedTag) {
+            throw new IOException("Expected record type " + expectedTag + " but found " + tag);
+        }
+        return readRecord(in);
+    }
+    
+    private void writeMap(Output out, Map<String, Object> map) throws IOException {
+        out.writeVarInt(map.size());
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            out.writeString(entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+    
+    private void readMap(Input in, Map<String, Object> map) throws IOException {
+        int size = in.readVarInt();
+        for (int i = 0; i < size; i++) {
+            String key = in.readString();
+            map.put(key, readValue(in));
+        }
+    }
+    
+    private void writeValue(Output out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(VALUE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(VALUE_STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(VALUE_INT);
+            out.writeVarInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(VALUE_LONG);
+            out.writeVarLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(VALUE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(VALUE_BOOLEAN);
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else {
+            throw new IOException("Unsupported attribute type " + value.getClass().getName());
+        }
+    }
+    
+    private Object readValue(Input in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                return in.readString();
+            case VALUE_INT:
+                return in.readVarInt();
+            case VALUE_LONG:
+                return in.readVarLong();
+            case VALUE_DOUBLE:
+                return in.readDouble();
+            case VALUE_BOOLEAN:
+                return in.readByte() != 0;
+            default:
+                throw new IOException("Unknown value type " + tag);
+        }
+    }
+    
+    /**
+     * Growable output buffer
+     */
+    private static class Output {
+        byte[] buffer;
+        int size;
+        
+        Output(int capacity) {
+            buffer = new byte[capacity];
+        }
+        
+        void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+        
+        void writeByte(int value) {
+            ensure(1);
+            buffer[size++] = (byte) value;
+        }
+        
+        void writeVarInt(int value) {
+            writeVarLong(value);
+        }
+        
+        void writeVarLong(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+            ensure(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buffer[size++] = (byte) zigzag;
+        }
+        
+        void writeDouble(double value) {
+            long bits = Double.doubleToLongBits(value);
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (bits >>> shift);
+            }
+        }
+        
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+        
+        /**
+         * Reserve room for a varint written later; a longer value shifts the body
+         */
+        int reserve(int bytes) {
+            ensure(bytes);
+            int position = size;
+            size += bytes;
+            return position;
+        }
+        
+        void patchLength(int position, int length) {
+            // Unsigned varint of the length, in the two reserved bytes when it fits
+            int needed = length < (1 << 7) ? 1 : length < (1 << 14) ? 2 : length < (1 << 21) ? 3 : 4;
+            if (needed > 2) {
+                ensure(needed - 2);
+                System.arraycopy(buffer, position + 2, buffer, position + needed, size - position - 2);
+                size += needed - 2;
+            } else if (needed < 2) {
+                System.arraycopy(buffer, position + 2, buffer, position + 1, size - position - 2);
+                size -= 1;
+            }
+            int value = length;
+            for (int i = 0; i < needed - 1; i++) {
+                buffer[position + i] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position + needed - 1] = (byte) value;
+        }
+        
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+    
+    /**
+     * Bounds-checked input cursor
+     */
+    private static class Input {
+        final byte[] data;
+        int position;
+        
+        Input(byte[] data) {
+            this.data = data;
+        }
+        
+        int readByte() throws IOException {
+            if (position >= data.length) {
+                throw new IOException("Unexpected end of message");
+            }
+            return data[position++] & 0xFF;
+        }
+        
+        /**
+         * Next byte, left to be read again
+         */
+        int peekByte() throws IOException {
+            if (position >= data.length) {
+                throw new IOException("Unexpected end of message");
+            }
+            return data[position] & 0xFF;
+        }
+        
+        int readVarInt() throws IOException {
+            return (int) readVarLong();
+        }
+        
+        long readVarLong() throws IOException {
+            long zigzag = readUnsignedVarLong();
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        
+        long readUnsignedVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+        
+        double readDouble() throws IOException {
+            if (position + 8 > data.length) {
+                throw new IOException("Unexpected end of message");
+            }
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (data[position++] & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+        
+        String readString() throws IOException {
+            int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > data.length - position) {
+                throw new IOException("Unexpected end of message");
+            }
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
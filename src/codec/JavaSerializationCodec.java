@@ -0,0 +1,37 @@
+package codec;
+
+import java.io.*;
+
+/**
+ * Standard Java serialization: the original payload format, still used to read
+ * messages sent without a language
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class JavaSerializationCodec implements MessageCodec {
+    
+    public static final String NAME = "java-serialization";
+    
+    @Override
+    public String getName() {
+        return NAME;
+    }
+    
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(value);
+        oos.close();
+        return baos.toByteArray();
+    }
+    
+    @Override
+    public Object decode(byte[] data) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown payload class: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package codec;
+
+import java.io.IOException;
+
+/**
+ * Encoding of object payloads carried as byte-sequence content of ACL messages
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public interface MessageCodec {
+    
+    /**
+     * Name written in the ACL language slot, so that the receiver decodes
+     * the content with the same codec
+     */
+    String getName();
+    
+    byte[] encode(Object value) throws IOException;
+    
+    Object decode(byte[] data) throws IOException;
+}
@@ -0,0 +1,74 @@
+package codec;
+
+import jade.lang.acl.ACLMessage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of payload codecs, looked up by the ACL language of a message.
+ * Senders encode with the default codec and stamp its name in the language
+ * slot; receivers pick the codec back from it, falling back to Java
+ * serialization for messages from agents that predate the codec layer.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public final class MessageCodecs {
+    
+    private static final Map<String, MessageCodec> codecs = new ConcurrentHashMap<>();
+    private static final MessageCodec fallback = new JavaSerializationCodec();
+    private static volatile MessageCodec defaultCodec;
+    
+    static {
+        register(fallback);
+        register(new CompactBinaryCodec());
+        defaultCodec = get(CompactBinaryCodec.NAME);
+    }
+    
+    private MessageCodecs() {
+    }
+    
+    public static void register(MessageCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+    
+    /**
+     * Codec registered under a language, Java serialization if none is
+     */
+    public static MessageCodec get(String language) {
+        if (language == null) {
+            return fallback;
+        }
+        MessageCodec codec = codecs.get(language);
+        return codec != null ? codec : fallback;
+    }
+    
+    public static MessageCodec getDefault() {
+        return defaultCodec;
+    }
+    
+    public static void setDefault(MessageCodec codec) {
+        register(codec);
+        defaultCodec = codec;
+    }
+    
+    /**
+     * Encode a payload as the byte-sequence content of a message
+     */
+    public static void write(ACLMessage msg, Object payload) throws IOException {
+        MessageCodec codec = defaultCodec;
+        msg.setByteSequenceContent(codec.encode(payload));
+        msg.setLanguage(codec.getName());
+    }
+    
+    /**
+     * Decode the byte-sequence content of a message with the codec named by its language
+     */
+    public static Object read(ACLMessage msg) throws IOException {
+        byte[] content = msg.getByteSequenceContent();
+        if (content == null) {
+            throw new IOException("Message has no byte-sequence content");
+        }
+        return get(msg.getLanguage()).decode(content);
+    }
+}
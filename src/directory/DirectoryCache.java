@@ -0,0 +1,327 @@
+package directory;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.DFService;
+import jade.domain.FIPAException;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.proto.SubscriptionInitiator;
+
+import java.util.*;
+
+/**
+ * Agent-local copy of the Yellow Pages entries of the service types an agent uses.
+ * Each watched type is kept up to date by a DF subscription, so lookups are served
+ * from memory instead of a synchronous DF search; a name -> AID index resolves
+ * single agents without scanning the entries.
+ *
+ * A type is searched synchronously only the first time it is used, before its
+ * subscription has answered, and again after the TTL when its subscription was
+ * refused or failed. Each lookup counts as a hit when served from memory and as
+ * a miss when it needed a search.
+ *
+ * The cache belongs to its agent: it is read and updated on the agent thread only.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class DirectoryCache {
+    
+    // Reload delay of a service type that is not kept up to date by a subscription
+    public static final long DEFAULT_TTL = 30000; // 30 seconds
+    
+    /**
+     * Notified on the agent thread when a DF notification changes the agents
+     * offering a watched service
+     */
+    public interface Listener {
+        void servicesChanged(String serviceType);
+    }
+    
+    private final Agent owner;
+    private final long ttl;
+    private final Map<String, ServiceEntry> entries;
+    
+    // Local name, or name fragment already resolved by find(), -> agent
+    private final Map<String, AID> names;
+    private final List<Listener> listeners;
+    
+    private long hits;
+    private long misses;
+    private long notifications;
+    
+    public DirectoryCache(Agent owner) {
+        this(owner, DEFAULT_TTL);
+    }
+    
+    public DirectoryCache(Agent owner, long ttl) {
+        this.owner = owner;
+        this.ttl = ttl;
+        this.entries = new HashMap<>();
+        this.names = new HashMap<>();
+        this.listeners = new ArrayList<>();
+    }
+    
+    /**
+     * Subscribe to the DF for a service type. Lookups of unwatched types still work,
+     * but are only refreshed through the TTL.
+     */
+    public void watch(String serviceType) {
+        ServiceEntry entry = entry(serviceType);
+        if (entry.subscription != null || owner == null) {
+            return;
+        }
+        ACLMessage subscribe = DFService.createSubscriptionMessage(owner, owner.getDefaultDF(), template(serviceType), null);
+        entry.subscription = new DirectorySubscription(entry, subscribe);
+        owner.addBehaviour(entry.subscription);
+    }
+    
+    /**
+     * Cancel the DF subscriptions, called from the agent's takeDown()
+     */
+    public void close() {
+        for (ServiceEntry entry : entries.values()) {
+            if (entry.subscription != null) {
+                entry.subscription.cancel(owner.getDefaultDF(), true);
+                entry.subscription = null;
+                entry.subscribed = false;
+            }
+        }
+    }
+    
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Agents offering a service type, in registration order (immutable snapshot)
+     */
+    public List<AID> getAgents(String serviceType) {
+        return current(serviceType).agents;
+    }
+    
+    /**
+     * DF descriptions of the agents offering a service type (immutable snapshot)
+     */
+    public List<DFAgentDescription> getDescriptions(String serviceType) {
+        return current(serviceType).descriptions;
+    }
+    
+    /**
+     * First agent offering a service type, null if there is none
+     */
+    public AID getFirst(String serviceType) {
+        List<AID> agents = getAgents(serviceType);
+        return agents.isEmpty() ? null : agents.get(0);
+    }
+    
+    /**
+     * Agent of a watched type by its local name, null if it is not registered
+     */
+    public AID lookup(String localName) {
+        AID agent = names.get(localName);
+        if (agent != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return agent;
+    }
+    
+    /**
+     * Agent offering a service type whose local name contains a fragment, e.g. a
+     * patient agent from the patient name. The first resolution scans the cached
+     * entries of the type; the result is indexed under the fragment afterwards.
+     */
+    public AID find(String serviceType, String nameFragment) {
+        AID agent = names.get(nameFragment);
+        if (agent != null) {
+            hits++;
+            return agent;
+        }
+        for (AID candidate : current(serviceType).agents) {
+            if (candidate.getLocalName().contains(nameFragment)) {
+                names.put(nameFragment, candidate);
+                return candidate;
+            }
+        }
+        return null;
+    }
+    
+    public long getHits() {
+        return hits;
+    }
+    
+    public long getMisses() {
+        return misses;
+    }
+    
+    public long getNotifications() {
+        return notifications;
+    }
+    
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (hits * 100.0) / lookups;
+    }
+    
+    /**
+     * Template matching everything but the DF subscription notifications, for
+     * behaviours that otherwise consume any message
+     */
+    public MessageTemplate excludeNotifications() {
+        return MessageTemplate.not(MessageTemplate.MatchSender(owner.getDefaultDF()));
+    }
+    
+    /**
+     * Apply DF descriptions of a service type. A full listing (search result or first
+     * notification of a subscription) replaces the entry; later notifications are
+     * deltas where an agent without the service has deregistered or dropped it.
+     */
+    public void apply(String serviceType, DFAgentDescription[] descriptions, boolean fullListing, long now) {
+        ServiceEntry entry = entry(serviceType);
+        if (fullListing) {
+            List<AID> previous = new ArrayList<>(entry.byAgent.keySet());
+            entry.byAgent.clear();
+            for (AID agent : previous) {
+                unindex(agent);
+            }
+        }
+        if (descriptions != null) {
+            for (DFAgentDescription description : descriptions) {
+                AID agent = description.getName();
+                if (offers(description, serviceType)) {
+                    entry.byAgent.put(agent, description);
+                    names.put(agent.getLocalName(), agent);
+                } else if (entry.byAgent.remove(agent) != null) {
+                    unindex(agent);
+                }
+            }
+        }
+        entry.agents = Collections.unmodifiableList(new ArrayList<>(entry.byAgent.keySet()));
+        entry.descriptions = Collections.unmodifiableList(new ArrayList<>(entry.byAgent.values()));
+        entry.loadedAt = now;
+        entry.loaded = true;
+    }
+    
+    /**
+     * Entry of a service type, loaded with a DF search on a miss
+     */
+    private ServiceEntry current(String serviceType) {
+        ServiceEntry entry = entry(serviceType);
+        long now = System.currentTimeMillis();
+        // An empty search result is not kept: the service may register any moment
+        if (entry.loaded && (entry.subscribed || (now - entry.loadedAt < ttl && !entry.agents.isEmpty()))) {
+            hits++;
+            return entry;
+        }
+        
+        misses++;
+        if (owner != null) {
+            try {
+                apply(serviceType, DFService.search(owner, template(serviceType)), true, now);
+            } catch (FIPAException fe) {
+                // Keep serving the previous entries until the DF answers again
+                entry.loadedAt = now;
+            }
+        }
+        return entry;
+    }
+    
+    private ServiceEntry entry(String serviceType) {
+        ServiceEntry entry = entries.get(serviceType);
+        if (entry == null) {
+            entry = new ServiceEntry(serviceType);
+            entries.put(serviceType, entry);
+        }
+        return entry;
+    }
+    
+    /**
+     * Drop the index keys of an agent that left, unless it still offers another watched type
+     */
+    private void unindex(AID agent) {
+        for (ServiceEntry entry : entries.values()) {
+            if (entry.byAgent.containsKey(agent)) {
+                return;
+            }
+        }
+        names.values().removeIf(agent::equals);
+    }
+    
+    private static DFAgentDescription template(String serviceType) {
+        DFAgentDescription template = new DFAgentDescription();
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(serviceType);
+        template.addServices(sd);
+        return template;
+    }
+    
+    private static boolean offers(DFAgentDescription description, String serviceType) {
+        Iterator<?> services = description.getAllServices();
+        while (services.hasNext()) {
+            if (serviceType.equals(((ServiceDescription) services.next()).getType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Cached agents of one service type
+     */
+    private static class ServiceEntry {
+        final String serviceType;
+        final Map<AID, DFAgentDescription> byAgent = new LinkedHashMap<>();
+        List<AID> agents = Collections.emptyList();
+        List<DFAgentDescription> descriptions = Collections.emptyList();
+        long loadedAt;
+        boolean loaded;
+        boolean subscribed;
+        DirectorySubscription subscription;
+        
+        ServiceEntry(String serviceType) {
+            this.serviceType = serviceType;
+        }
+    }
+    
+    /**
+     * DF subscription of one service type: the first notification lists the current
+     * registrations, the next ones the changes
+     */
+    private class DirectorySubscription extends SubscriptionInitiator {
+        private final ServiceEntry entry;
+        
+        DirectorySubscription(ServiceEntry entry, ACLMessage subscribe) {
+            super(owner, subscribe);
+            this.entry = entry;
+        }
+        
+        @Override
+        protected void handleInform(ACLMessage inform) {
+            try {
+                DFAgentDescription[] changes = DFService.decodeNotification(inform.getContent());
+                notifications++;
+                apply(entry.serviceType, changes, !entry.subscribed, System.currentTimeMillis());
+                entry.subscribed = true;
+                for (Listener listener : listeners) {
+                    listener.servicesChanged(entry.serviceType);
+                }
+            } catch (FIPAException fe) {
+                // Unreadable notification: fall back to TTL reloads
+                entry.subscribed = false;
+            }
+        }
+        
+        @Override
+        protected void handleRefuse(ACLMessage refuse) {
+            entry.subscribed = false;
+        }
+        
+        @Override
+        protected void handleFailure(ACLMessage failure) {
+            entry.subscribed = false;
+        }
+    }
+}
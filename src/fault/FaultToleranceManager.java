@@ -1,5 +1,6 @@
 package fault;
 
+import codec.MessageCodecs;
 import jade.core.Agent;
 import jade.core.AID;
 import jade.core.behaviours.*;
@@ -11,6 +12,7 @@ import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.wrapper.AgentContainer;
 import jade.wrapper.AgentController;
+import logging.AgentLog;
 
 import java.io.*;
 import java.util.*;
@@ -25,13 +27,15 @@ public class FaultToleranceManager extends Agent {
     
     private Map<AID, AgentHealthStatus> agentHealthMap;
     private Map<String, AgentState> persistedStates;
+    private AgentLog log;
     private final long HEARTBEAT_INTERVAL = 5000; // 5 seconds
     private final long FAILURE_THRESHOLD = 15000; // 15 seconds without heartbeat = failure
     private final String STATE_FILE = "agent_states.ser";
     
     @Override
     protected void setup() {
-        System.out.println("Fault Tolerance Manager started");
+        log = AgentLog.of(getLocalName());
+        log.info("Fault Tolerance Manager started");
         
         agentHealthMap = new ConcurrentHashMap<>();
         persistedStates = new ConcurrentHashMap<>();
@@ -104,17 +108,14 @@ public class FaultToleranceManager extends Agent {
                 AgentHealthStatus status = new AgentHealthStatus(agent);
                 status.setAgentType(agentType);
                 agentHealthMap.put(agent, status);
-                System.out.println("Registered agent " + agent.getLocalName() + " for monitoring");
+                log.debug("Registered agent ", agent.getLocalName(), " for monitoring");
             }
         }
         
         private void handleStateUpdate(ACLMessage msg) {
             try {
-                // Extract serialized state from message
-                byte[] stateData = msg.getByteSequenceContent();
-                ByteArrayInputStream bais = new ByteArrayInputStream(stateData);
-                ObjectInputStream ois = new ObjectInputStream(bais);
-                AgentState state = (AgentState) ois.readObject();
+                // Decode the state with the codec named by the message language
+                AgentState state = (AgentState) MessageCodecs.read(msg);
                 
                 persistedStates.put(msg.getSender().getLocalName(), state);
                 
@@ -145,7 +146,7 @@ public class FaultToleranceManager extends Agent {
                     if (status.getStatus() != HealthStatus.FAILED) {
                         status.setStatus(HealthStatus.FAILED);
                         failedAgents.add(entry.getKey());
-                        System.out.println("FAILURE DETECTED: " + entry.getKey().getLocalName());
+                        log.warn("FAILURE DETECTED: ", entry.getKey().getLocalName());
                     }
                 } else if (timeSinceLastHeartbeat > HEARTBEAT_INTERVAL * 2) {
                     status.setStatus(HealthStatus.SUSPECTED);
@@ -171,7 +172,7 @@ public class FaultToleranceManager extends Agent {
         
         @Override
         public void action() {
-            System.out.println("Attempting to recover " + failedAgent.getLocalName());
+            log.info("Attempting to recover ", failedAgent.getLocalName());
             
             AgentHealthStatus healthStatus = agentHealthMap.get(failedAgent);
             if (healthStatus == null) return;
@@ -198,14 +199,13 @@ public class FaultToleranceManager extends Agent {
                 healthStatus.setStatus(HealthStatus.RECOVERED);
                 healthStatus.incrementRecoveryCount();
                 
-                System.out.println("Successfully recovered " + failedAgent.getLocalName() + 
-                                 " as " + newAgentName);
+                log.info("Successfully recovered ", failedAgent.getLocalName(), " as ", newAgentName);
                 
                 // Notify other agents about the recovery
                 notifyRecovery(failedAgent, new AID(newAgentName, AID.ISLOCALNAME));
                 
             } catch (Exception e) {
-                System.err.println("Failed to recover " + failedAgent.getLocalName() + ": " + e.getMessage());
+                log.error("Failed to recover ", failedAgent.getLocalName(), ": ", e.getMessage());
                 healthStatus.incrementFailedRecoveryCount();
                 
                 // If recovery fails multiple times, escalate
@@ -255,7 +255,7 @@ public class FaultToleranceManager extends Agent {
         }
         
         private void escalateFailure(AID agent) {
-            System.err.println("CRITICAL: Multiple recovery attempts failed for " + agent.getLocalName());
+            log.error("CRITICAL: Multiple recovery attempts failed for ", agent.getLocalName());
             // Could trigger alerts, notifications, or manual intervention
         }
     }
@@ -292,13 +292,13 @@ public class FaultToleranceManager extends Agent {
             
             // If more than 50% of agents have failed, trigger system recovery
             if (totalCount > 0 && failedCount > totalCount / 2) {
-                System.err.println("SYSTEM FAILURE: More than 50% of agents have failed");
+                log.error("SYSTEM FAILURE: More than 50% of agents have failed");
                 initiateSystemRecovery();
             }
         }
         
         private void initiateSystemRecovery() {
-            System.out.println("Initiating system-wide recovery...");
+            log.warn("Initiating system-wide recovery...");
             // Implement system recovery logic
             // Could include restarting all agents, restoring from checkpoint, etc.
         }
@@ -311,10 +311,10 @@ public class FaultToleranceManager extends Agent {
                 ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
                 persistedStates = (Map<String, AgentState>) ois.readObject();
                 ois.close();
-                System.out.println("Loaded " + persistedStates.size() + " persisted agent states");
+                log.info("Loaded ", persistedStates.size(), " persisted agent states");
             }
         } catch (Exception e) {
-            System.err.println("Could not load persisted states: " + e.getMessage());
+            log.warn("Could not load persisted states: ", e.getMessage());
         }
     }
     
@@ -324,7 +324,7 @@ public class FaultToleranceManager extends Agent {
             oos.writeObject(persistedStates);
             oos.close();
         } catch (Exception e) {
-            System.err.println("Could not save persisted states: " + e.getMessage());
+            log.warn("Could not save persisted states: ", e.getMessage());
         }
     }
     
@@ -380,7 +380,15 @@ public class FaultToleranceManager extends Agent {
             this.timestamp = System.currentTimeMillis();
         }
         
+        public AgentState(String agentName, String agentType, Object[] arguments, long timestamp) {
+            this(agentName, agentType, arguments);
+            this.timestamp = timestamp;
+        }
+        
+        public String getAgentName() { return agentName; }
+        public String getAgentType() { return agentType; }
         public Object[] getArguments() { return arguments; }
+        public long getTimestamp() { return timestamp; }
         public Map<String, Object> getStateData() { return stateData; }
         public void addStateData(String key, Object value) { stateData.put(key, value); }
     }
@@ -0,0 +1,26 @@
+package loadbalancing;
+
+import jade.core.AID;
+import models.Patient;
+
+/**
+ * Adaptive load balancing strategy: the lowest score of current and average load,
+ * which orders the index. The score was once reduced for urgent patients, which
+ * scaled every resource alike and never changed the choice.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class AdaptiveLoadBalancingStrategy implements LoadBalancingStrategy {
+    @Override
+    public AID selectResource(LoadIndex index, Patient patient) {
+        ResourceLoad best = index.leastLoaded();
+        return best != null ? best.getResource() : null;
+    }
+    
+    @Override
+    public double loadKey(ResourceLoad load) {
+        return load.getCurrentLoad() * 1.0 + load.getAverageLoad() * 0.5;
+    }
+    
+    @Override
+    public String getName() { return "Adaptive"; }
+}
@@ -0,0 +1,44 @@
+package loadbalancing;
+
+import jade.core.AID;
+import models.Patient;
+import utils.ConsistentHashRing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Consistent-hash strategy: a patient goes to the resource owning its id on a hash
+ * ring, or to the next one clockwise while that one is overloaded (bounded loads).
+ * A resource joining or leaving only moves the patients of its neighbours.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class ConsistentHashStrategy implements LoadBalancingStrategy {
+    
+    // Ring of each resource type, rebuilt when the resources of the type change
+    private final Map<String, ConsistentHashRing> rings = new HashMap<>();
+    private final Map<String, Integer> ringVersions = new HashMap<>();
+    
+    @Override
+    public AID selectResource(LoadIndex index, Patient patient) {
+        String owner = ringOf(index).getNode(patient.getId(), name -> !index.get(name).isOverloaded());
+        return owner != null ? index.get(owner).getResource() : null;
+    }
+    
+    private ConsistentHashRing ringOf(LoadIndex index) {
+        String type = index.getResourceType();
+        ConsistentHashRing ring = rings.get(type);
+        if (ring == null || ringVersions.get(type) != index.getVersion()) {
+            ring = new ConsistentHashRing();
+            for (int i = 0; i < index.size(); i++) {
+                ring.addNode(index.get(i).getResource().getName());
+            }
+            rings.put(type, ring);
+            ringVersions.put(type, index.getVersion());
+        }
+        return ring;
+    }
+    
+    @Override
+    public String getName() { return "Consistent Hash"; }
+}
@@ -0,0 +1,80 @@
+package loadbalancing;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exponential moving average decayed by time rather than by sample: a sample
+ * weighs 1 - 2^(-elapsed / half-life), elapsed being the time since the previous
+ * one, so the average forgets at the same pace however often it is fed. Updated
+ * lock-free by any thread.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class DecayingAverage {
+    
+    private final double halfLife;
+    private final AtomicReference<State> state;
+    
+    /**
+     * Average with no sample yet, which takes the value of its first sample
+     */
+    public DecayingAverage(long halfLifeMillis) {
+        this.halfLife = halfLifeMillis;
+        this.state = new AtomicReference<>(new State(0, 0, false));
+    }
+    
+    /**
+     * Average starting at a value at the given time
+     */
+    public DecayingAverage(long halfLifeMillis, double initial, long now) {
+        this.halfLife = halfLifeMillis;
+        this.state = new AtomicReference<>(new State(initial, now, true));
+    }
+    
+    public void add(double sample, long now) {
+        while (true) {
+            State current = state.get();
+            double value = sample;
+            if (current.sampled) {
+                // A sample older than the last one, from a slower thread, weighs nothing
+                double decay = Math.pow(2, -Math.max(0, now - current.time) / halfLife);
+                value = current.value * decay + sample * (1 - decay);
+            }
+            State next = new State(value, Math.max(now, current.time), true);
+            if (state.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+    
+    public double get() {
+        return state.get().value;
+    }
+    
+    /**
+     * Average as of now, a sample having held since the last one, without recording it
+     */
+    public double get(double sample, long now) {
+        State current = state.get();
+        if (!current.sampled) {
+            return sample;
+        }
+        double decay = Math.pow(2, -Math.max(0, now - current.time) / halfLife);
+        return current.value * decay + sample * (1 - decay);
+    }
+    
+    public boolean hasSamples() {
+        return state.get().sampled;
+    }
+    
+    private static final class State {
+        final double value;
+        final long time;
+        final boolean sampled;
+        
+        State(double value, long time, boolean sampled) {
+            this.value = value;
+            this.time = time;
+            this.sampled = sampled;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package loadbalancing;
+
+import jade.core.AID;
+import models.Patient;
+
+/**
+ * Least Connections strategy: the resource with the fewest patients, read from
+ * the top of the index in O(1)
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class LeastConnectionsStrategy implements LoadBalancingStrategy {
+    @Override
+    public AID selectResource(LoadIndex index, Patient patient) {
+        ResourceLoad least = index.leastLoaded();
+        return least != null ? least.getResource() : null;
+    }
+    
+    @Override
+    public String getName() { return "Least Connections"; }
+}
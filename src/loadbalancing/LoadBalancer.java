@@ -1,5 +1,7 @@
 package loadbalancing;
 
+import codec.MessageCodecs;
+import directory.DirectoryCache;
 import jade.core.Agent;
 import jade.core.AID;
 import jade.core.behaviours.*;
@@ -7,7 +9,13 @@ import jade.lang.acl.ACLMessage;
 import jade.domain.DFService;
 import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
+import logging.AgentLog;
+import utils.HospitalMessage;
+import utils.HospitalMessage.Opcode;
+import utils.MessageProtocol;
+import utils.SchedulingAlgorithm;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -22,22 +30,48 @@ public class LoadBalancer extends Agent {
     
     private Map<AID, ResourceLoad> resourceLoads;
     private LoadBalancingStrategy strategy;
-    private Queue<Patient> pendingPatients;
-    private Map<String, List<AID>> resourcesByType;
+    private ResourceWaitQueues waitingPatients;
+    private RequestDistributor distributor;
+    
+    // Resources of each type, ordered by the strategy's load key
+    private static final long INDEX_REFRESH_PERIOD = 1000; // 1 second
+    private Map<String, LoadIndex> loadIndexes;
+    private AgentLog log;
+    
+    // Resource agents, kept up to date by DF subscriptions
+    private DirectoryCache directory;
+    
+    // Patient handoffs of the current rebalancing round, by patient id
+    private static final int MAX_MOVES_PER_ROUND = 5;
+    private static final long MIGRATION_TIMEOUT = 5000; // 5 seconds
+    private MigrationPlanner planner;
+    private Map<String, PatientMigration> migrations;
+    private double roundVariance;
+    private int roundCommitted;
+    private int roundRolledBack;
+    
+    // Message content parser, reused for every message
+    private final HospitalMessage parser = new HospitalMessage();
     
     // Metrics
     private Map<AID, ResourceMetrics> resourceMetrics;
     private long totalRequests = 0;
     private long successfulAllocations = 0;
+    private long migrationsCommitted = 0;
+    private long migrationsRolledBack = 0;
     
     @Override
     protected void setup() {
-        System.out.println("Load Balancer started");
+        log = AgentLog.of(getLocalName());
+        log.info("Load Balancer started");
         
         resourceLoads = new ConcurrentHashMap<>();
         resourceMetrics = new ConcurrentHashMap<>();
-        pendingPatients = new LinkedList<>();
-        resourcesByType = new HashMap<>();
+        waitingPatients = new ResourceWaitQueues();
+        distributor = new RequestDistributor();
+        loadIndexes = new HashMap<>();
+        planner = new MigrationPlanner(MAX_MOVES_PER_ROUND);
+        migrations = new HashMap<>();
         
         // Get load balancing strategy from arguments
         Object[] args = getArguments();
@@ -51,10 +85,18 @@ public class LoadBalancer extends Agent {
         // Register service
         registerService();
         
+        // Watch the resource services, new resources are tracked as soon as they register
+        directory = new DirectoryCache(this);
+        directory.addListener(serviceType -> discoverResources());
+        directory.watch("doctor-service");
+        directory.watch("room-service");
+        directory.watch("equipment-service");
+        
         // Add behaviors
         addBehaviour(new ResourceDiscovery(this, 10000));
         addBehaviour(new LoadMonitor());
-        addBehaviour(new RequestDistributor());
+        addBehaviour(new LoadIndexRefresher(this, INDEX_REFRESH_PERIOD));
+        addBehaviour(distributor);
         addBehaviour(new LoadRebalancer(this, 30000));
         addBehaviour(new MetricsCollector(this, 60000));
     }
@@ -84,13 +126,24 @@ public class LoadBalancer extends Agent {
                 return new WeightedRoundRobinStrategy();
             case "adaptive":
                 return new AdaptiveLoadBalancingStrategy();
+            case "poweroftwo":
+                return new PowerOfTwoChoicesStrategy();
+            case "shortestdelay":
+                return new ShortestExpectedDelayStrategy();
+            case "consistenthash":
+                return new ConsistentHashStrategy();
             default:
+                // powerof<d>, for instance powerof3
+                if (name.toLowerCase().matches("powerof[1-9][0-9]*")) {
+                    return new PowerOfDChoicesStrategy(Integer.parseInt(name.substring("powerof".length())));
+                }
                 return new RoundRobinStrategy();
         }
     }
     
     /**
-     * Discover available resources
+     * Discover available resources. The directory cache is updated by DF notifications;
+     * the periodic pass only picks up the service types it had to reload after their TTL.
      */
     private class ResourceDiscovery extends TickerBehaviour {
         public ResourceDiscovery(Agent agent, long period) {
@@ -99,42 +152,85 @@ public class LoadBalancer extends Agent {
         
         @Override
         protected void onTick() {
-            resourcesByType.clear();
-            
-            // Discover doctors
-            discoverResourceType("doctor-service", "DOCTOR");
-            // Discover rooms
-            discoverResourceType("room-service", "ROOM");
-            // Discover equipment
-            discoverResourceType("equipment-service", "EQUIPMENT");
+            discoverResources();
+        }
+    }
+    
+    private void discoverResources() {
+        // Discover doctors
+        discoverResourceType("doctor-service", "DOCTOR", "specialization");
+        // Discover rooms
+        discoverResourceType("room-service", "ROOM", "roomType");
+        // Discover equipment
+        discoverResourceType("equipment-service", "EQUIPMENT", "equipmentType");
+    }
+    
+    private void discoverResourceType(String serviceType, String resourceType, String capabilityProperty) {
+        List<AID> resources = new ArrayList<>(directory.getAgents(serviceType));
+        LoadIndex index = loadIndexes.computeIfAbsent(resourceType, 
+            type -> new LoadIndex(type, strategy::loadKey));
+        boolean discovered = false;
+        for (DFAgentDescription description : directory.getDescriptions(serviceType)) {
+            AID agent = description.getName();
+            // Initialize load tracking if new
+            if (!resourceLoads.containsKey(agent)) {
+                ResourceLoad load = new ResourceLoad(agent, resourceType);
+                load.setCapability(propertyOf(description, capabilityProperty));
+                resourceLoads.put(agent, load);
+                resourceMetrics.put(agent, new ResourceMetrics(agent));
+            }
+            if (!index.contains(agent)) {
+                index.add(resourceLoads.get(agent));
+                discovered = true;
+            }
         }
         
-        private void discoverResourceType(String serviceType, String resourceType) {
-            try {
-                DFAgentDescription template = new DFAgentDescription();
-                ServiceDescription sd = new ServiceDescription();
-                sd.setType(serviceType);
-                template.addServices(sd);
-                
-                DFAgentDescription[] results = DFService.search(myAgent, template);
-                List<AID> resources = new ArrayList<>();
-                
-                for (DFAgentDescription dfd : results) {
-                    AID agent = dfd.getName();
-                    resources.add(agent);
-                    
-                    // Initialize load tracking if new
-                    if (!resourceLoads.containsKey(agent)) {
-                        resourceLoads.put(agent, new ResourceLoad(agent, resourceType));
-                        resourceMetrics.put(agent, new ResourceMetrics(agent));
-                    }
+        // Resources that deregistered take no more patients
+        if (index.size() > resources.size()) {
+            Set<AID> registered = new HashSet<>(resources);
+            for (int i = index.size() - 1; i >= 0; i--) {
+                AID resource = index.get(i).getResource();
+                if (!registered.contains(resource)) {
+                    index.remove(resource);
                 }
-                
-                resourcesByType.put(resourceType, resources);
-                System.out.println("Discovered " + resources.size() + " " + resourceType + " resources");
-                
-            } catch (FIPAException fe) {
-                fe.printStackTrace();
+            }
+        }
+        if (discovered) {
+            resourceAvailable(resourceType);
+        }
+        log.debug("Discovered ", resources.size(), " ", resourceType, " resources");
+    }
+    
+    /**
+     * Value of a service property registered by a resource, null if it has none
+     */
+    private static String propertyOf(DFAgentDescription description, String name) {
+        Iterator<?> services = description.getAllServices();
+        while (services.hasNext()) {
+            Iterator<?> properties = ((ServiceDescription) services.next()).getAllProperties();
+            while (properties.hasNext()) {
+                Property property = (Property) properties.next();
+                if (name.equals(property.getName())) {
+                    return property.getValue().toString();
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Reorder the indexes as the average loads, which some strategies' keys read,
+     * move with time while the loads stay
+     */
+    private class LoadIndexRefresher extends TickerBehaviour {
+        public LoadIndexRefresher(Agent agent, long period) {
+            super(agent, period);
+        }
+        
+        @Override
+        protected void onTick() {
+            for (LoadIndex index : loadIndexes.values()) {
+                index.refresh();
             }
         }
     }
@@ -145,13 +241,19 @@ public class LoadBalancer extends Agent {
     private class LoadMonitor extends CyclicBehaviour {
         @Override
         public void action() {
-            ACLMessage msg = myAgent.receive();
+            // DF notifications are left to the directory cache
+            ACLMessage msg = myAgent.receive(directory.excludeNotifications());
             if (msg != null) {
-                if (msg.getContent() != null) {
+                if (msg.getPerformative() == ACLMessage.REQUEST && 
+                    MessageProtocol.TREATMENT_REQUEST.equals(msg.getConversationId())) {
+                    handleTreatmentRequest(msg);
+                } else if (msg.getContent() != null && msg.getContent().startsWith("RESOURCE_FREE:")) {
+                    handleResourceFree(msg);
+                } else if (MessageProtocol.LOAD_BALANCING.equals(msg.getConversationId())) {
+                    handleMigrationReply(msg);
+                } else if (msg.getContent() != null) {
                     if (msg.getContent().startsWith("LOAD_UPDATE:")) {
                         handleLoadUpdate(msg);
-                    } else if (msg.getContent().startsWith("RESOURCE_FREE:")) {
-                        handleResourceFree(msg);
                     }
                 }
             } else {
@@ -159,6 +261,14 @@ public class LoadBalancer extends Agent {
             }
         }
         
+        private void handleTreatmentRequest(ACLMessage msg) {
+            try {
+                enqueuePatient((Patient) MessageCodecs.read(msg));
+            } catch (Exception e) {
+                log.warn("unreadable treatment request from ", msg.getSender().getLocalName(), ": ", e.getMessage());
+            }
+        }
+        
         private void handleLoadUpdate(ACLMessage msg) {
             String[] parts = msg.getContent().split(":");
             if (parts.length >= 2) {
@@ -167,7 +277,9 @@ public class LoadBalancer extends Agent {
                     ResourceLoad resourceLoad = resourceLoads.get(msg.getSender());
                     if (resourceLoad != null) {
                         resourceLoad.setCurrentLoad(load);
-                        resourceLoad.updateAverageLoad(load);
+                        if (!resourceLoad.isOverloaded()) {
+                            resourceAvailable(resourceLoad.getType());
+                        }
                     }
                 } catch (NumberFormatException e) {
                     e.printStackTrace();
@@ -178,56 +290,62 @@ public class LoadBalancer extends Agent {
         private void handleResourceFree(ACLMessage msg) {
             ResourceLoad resourceLoad = resourceLoads.get(msg.getSender());
             if (resourceLoad != null) {
+                // RESOURCE_FREE:<patient id>, the id may be left out
+                String patientId = parser.parse(msg.getContent()) && parser.getFieldCount() >= 1 ? parser.field(0) : "";
+                resourceLoad.completePatient(patientId.isEmpty() ? null : patientId);
                 resourceLoad.decrementLoad();
+                resourceAvailable(resourceLoad.getType());
             }
         }
     }
     
     /**
-     * Distribute requests based on load balancing strategy
+     * A resource of a type may take a waiting patient: wake the distributor, which
+     * may have run before this message was handled
+     */
+    private void resourceAvailable(String resourceType) {
+        waitingPatients.signal(resourceType);
+        if (waitingPatients.hasSignalled()) {
+            distributor.restart();
+        }
+    }
+    
+    /**
+     * Queue a patient until a resource of its type can take it
+     */
+    private void enqueuePatient(Patient patient) {
+        waitingPatients.add(distributor.determineResourceType(patient), patient);
+        distributor.restart();
+    }
+    
+    /**
+     * Distribute requests based on load balancing strategy. Patients that no resource
+     * fits wait in the queue of their resource type; the behaviour stays blocked until
+     * a resource of a waiting type is freed, unloaded or discovered.
      */
     private class RequestDistributor extends CyclicBehaviour {
         @Override
         public void action() {
-            if (!pendingPatients.isEmpty()) {
-                Patient patient = pendingPatients.poll();
-                AID selectedResource = selectResource(patient);
-                
-                if (selectedResource != null) {
-                    allocateToResource(patient, selectedResource);
-                    successfulAllocations++;
-                } else {
-                    // No suitable resource, re-queue
-                    pendingPatients.offer(patient);
+            waitingPatients.dispatch((resourceType, patient) -> {
+                AID selectedResource = selectResource(patient, resourceType);
+                if (selectedResource == null) {
+                    return false;
                 }
-            } else {
-                block(1000); // Wait 1 second
-            }
+                allocateToResource(patient, selectedResource);
+                successfulAllocations++;
+                return true;
+            });
+            block();
         }
         
-        private AID selectResource(Patient patient) {
-            String resourceType = determineResourceType(patient);
-            List<AID> availableResources = resourcesByType.get(resourceType);
-            
-            if (availableResources == null || availableResources.isEmpty()) {
+        private AID selectResource(Patient patient, String resourceType) {
+            LoadIndex index = loadIndexes.get(resourceType);
+            if (index == null || index.size() == 0) {
                 return null;
             }
             
-            // Filter overloaded resources
-            List<AID> viableResources = new ArrayList<>();
-            for (AID resource : availableResources) {
-                ResourceLoad load = resourceLoads.get(resource);
-                if (load != null && !load.isOverloaded()) {
-                    viableResources.add(resource);
-                }
-            }
-            
-            if (viableResources.isEmpty()) {
-                return null;
-            }
-            
-            // Apply load balancing strategy
-            return strategy.selectResource(viableResources, resourceLoads, patient);
+            // Apply load balancing strategy, which skips the overloaded resources
+            return strategy.selectResource(index, patient);
         }
         
         private String determineResourceType(Patient patient) {
@@ -238,14 +356,17 @@ public class LoadBalancer extends Agent {
         private void allocateToResource(Patient patient, AID resource) {
             ACLMessage allocation = new ACLMessage(ACLMessage.REQUEST);
             allocation.addReceiver(resource);
-            allocation.setContent("ALLOCATE_PATIENT:" + patient.getId());
+            allocation.setConversationId(MessageProtocol.LOAD_BALANCING);
+            allocation.setContent(HospitalMessage.encode(Opcode.ALLOCATE_PATIENT, patient.getId(), 
+                                                         patient.getTreatmentType()));
             myAgent.send(allocation);
             
             // Update load
             ResourceLoad load = resourceLoads.get(resource);
             if (load != null) {
                 load.incrementLoad();
-                load.addPatient(patient.getId());
+                load.assignPatient(patient.getId(), patient.getTreatmentType(), 
+                                   SchedulingAlgorithm.estimateTreatmentDuration(patient.getTreatmentType()));
             }
             
             // Update metrics
@@ -256,13 +377,14 @@ public class LoadBalancer extends Agent {
             
             totalRequests++;
             
-            System.out.println("Allocated patient " + patient.getName() + " to " + 
-                             resource.getLocalName() + " (Load: " + load.getCurrentLoad() + ")");
+            log.debug("Allocated patient ", patient.getName(), " to ", resource.getLocalName(), 
+                      " (Load: ", load.getCurrentLoad(), ")");
         }
     }
     
     /**
-     * Rebalance loads periodically
+     * Rebalance loads periodically, moving waiting patients from busy resources to
+     * quieter ones of the same type
      */
     private class LoadRebalancer extends TickerBehaviour {
         public LoadRebalancer(Agent agent, long period) {
@@ -275,65 +397,159 @@ public class LoadBalancer extends Agent {
         }
         
         private void performLoadRebalancing() {
-            // Find overloaded and underloaded resources
-            List<AID> overloaded = new ArrayList<>();
-            List<AID> underloaded = new ArrayList<>();
-            
-            double averageLoad = calculateAverageLoad();
+            if (!migrations.isEmpty()) {
+                return; // The previous round is still running
+            }
+            List<MigrationPlanner.Move> moves = planner.plan(resourceLoads.values(), migrations.keySet());
+            if (moves.isEmpty()) {
+                return;
+            }
+            log.info("Rebalancing: moving ", moves.size(), " waiting patients");
             
-            for (Map.Entry<AID, ResourceLoad> entry : resourceLoads.entrySet()) {
-                ResourceLoad load = entry.getValue();
-                if (load.getCurrentLoad() > averageLoad * 1.5) {
-                    overloaded.add(entry.getKey());
-                } else if (load.getCurrentLoad() < averageLoad * 0.5) {
-                    underloaded.add(entry.getKey());
-                }
+            roundVariance = calculateLoadVariance();
+            roundCommitted = 0;
+            roundRolledBack = 0;
+            long deadline = System.currentTimeMillis() + MIGRATION_TIMEOUT;
+            for (MigrationPlanner.Move move : moves) {
+                migrations.put(move.getPatientId(), new PatientMigration(move, deadline));
+                sendMigrationMessage(move.getTarget(), ACLMessage.REQUEST, 
+                    HospitalMessage.encode(Opcode.OFFER_PATIENT, move.getPatientId(), move.getTreatmentType()));
             }
             
-            // Attempt to rebalance
-            if (!overloaded.isEmpty() && !underloaded.isEmpty()) {
-                System.out.println("Rebalancing: " + overloaded.size() + " overloaded, " + 
-                                 underloaded.size() + " underloaded resources");
-                
-                for (AID overloadedResource : overloaded) {
-                    if (underloaded.isEmpty()) break;
-                    
-                    AID target = underloaded.get(0);
-                    requestMigration(overloadedResource, target);
-                    
-                    // Update expected loads
-                    resourceLoads.get(overloadedResource).decrementLoad();
-                    resourceLoads.get(target).incrementLoad();
-                    
-                    // Remove target if it's no longer underloaded
-                    if (resourceLoads.get(target).getCurrentLoad() >= averageLoad) {
-                        underloaded.remove(0);
+            // Roll back the handoffs still waiting for a reply
+            myAgent.addBehaviour(new WakerBehaviour(myAgent, MIGRATION_TIMEOUT) {
+                @Override
+                protected void onWake() {
+                    long now = System.currentTimeMillis();
+                    for (PatientMigration migration : new ArrayList<>(migrations.values())) {
+                        migration.onTimeout(now);
+                        finishMigration(migration);
                     }
                 }
-            }
+            });
         }
-        
-        private double calculateAverageLoad() {
-            if (resourceLoads.isEmpty()) return 0;
-            
-            int totalLoad = resourceLoads.values().stream()
-                .mapToInt(ResourceLoad::getCurrentLoad)
-                .sum();
-            
-            return (double) totalLoad / resourceLoads.size();
+    }
+    
+    /**
+     * Next step of a handoff on the reply of its source or target
+     */
+    private void handleMigrationReply(ACLMessage msg) {
+        if (!parser.parse(msg.getContent()) || parser.getFieldCount() < 1) {
+            return;
+        }
+        PatientMigration migration = migrations.get(parser.field(0));
+        if (migration == null) {
+            return; // Rolled back before this reply came
+        }
+        MigrationPlanner.Move move = migration.getMove();
+        switch (parser.getOpcode()) {
+            case HELD:
+                if (migration.onAccepted() == PatientMigration.State.RELEASING) {
+                    sendMigrationMessage(move.getSource(), ACLMessage.REQUEST, 
+                        HospitalMessage.encode(Opcode.RELEASE_PATIENT, move.getPatientId()));
+                }
+                break;
+            case NOT_AVAILABLE:
+                migration.onRefused();
+                break;
+            case RELEASED:
+                if (migration.onReleased() == PatientMigration.State.HANDING_OFF) {
+                    sendMigrationMessage(move.getTarget(), ACLMessage.REQUEST, 
+                        HospitalMessage.encode(Opcode.HANDOFF_PATIENT, move.getPatientId(), move.getTreatmentType()));
+                }
+                break;
+            case TREATMENT_STARTED:
+                migration.onTreatmentStarted();
+                break;
+            case COMMITTED:
+                if (migration.onHandedOff() == PatientMigration.State.COMMITTED) {
+                    moveLoad(move);
+                }
+                break;
+            case HOLD_EXPIRED:
+                migration.onHandOffFailed();
+                break;
+            default:
+                break;
+        }
+        finishMigration(migration);
+    }
+    
+    /**
+     * The target took the patient: move its load and expected treatment time
+     */
+    private void moveLoad(MigrationPlanner.Move move) {
+        ResourceLoad source = resourceLoads.get(move.getSource());
+        ResourceLoad target = resourceLoads.get(move.getTarget());
+        ResourceLoad.Assignment assignment = source.removePatient(move.getPatientId());
+        source.decrementLoad();
+        target.incrementLoad();
+        target.assignPatient(move.getPatientId(), move.getTreatmentType(), 
+            assignment != null ? assignment.getExpectedDuration() 
+                               : SchedulingAlgorithm.estimateTreatmentDuration(move.getTreatmentType()));
+        resourceAvailable(source.getType());
+    }
+    
+    /**
+     * Forget a decided handoff, rolling it back on its resources if needed, and report
+     * the round once its last handoff is decided
+     */
+    private void finishMigration(PatientMigration migration) {
+        if (!migration.isDecided() || migrations.remove(migration.getPatientId()) == null) {
+            return;
+        }
+        MigrationPlanner.Move move = migration.getMove();
+        if (migration.getState() == PatientMigration.State.COMMITTED) {
+            roundCommitted++;
+            migrationsCommitted++;
+            log.debug("Moved patient ", move.getPatientId(), " from ", move.getSource().getLocalName(), 
+                      " to ", move.getTarget().getLocalName());
+        } else {
+            roundRolledBack++;
+            migrationsRolledBack++;
+            if (migration.needsCancel()) {
+                sendMigrationMessage(move.getTarget(), ACLMessage.INFORM, 
+                    HospitalMessage.encode(Opcode.CANCEL_OFFER, move.getPatientId()));
+            }
+            if (migration.needsRestore()) {
+                sendMigrationMessage(move.getSource(), ACLMessage.INFORM, 
+                    HospitalMessage.encode(Opcode.RESTORE_PATIENT, move.getPatientId()));
+            }
         }
         
-        private void requestMigration(AID source, AID target) {
-            ACLMessage migrate = new ACLMessage(ACLMessage.REQUEST);
-            migrate.addReceiver(source);
-            migrate.setContent("MIGRATE_PATIENT:" + target.getName());
-            myAgent.send(migrate);
-            
-            System.out.println("Requested migration from " + source.getLocalName() + 
-                             " to " + target.getLocalName());
+        if (migrations.isEmpty()) {
+            double variance = calculateLoadVariance();
+            log.info("Rebalancing done: ", roundCommitted, " moved, ", roundRolledBack, " rolled back, load variance ", 
+                     String.format("%.2f -> %.2f", roundVariance, variance), 
+                     roundVariance > 0 ? String.format(" (-%.0f%%)", (roundVariance - variance) * 100 / roundVariance) : "");
         }
     }
     
+    private void sendMigrationMessage(AID receiver, int performative, String content) {
+        ACLMessage message = new ACLMessage(performative);
+        message.addReceiver(receiver);
+        message.setConversationId(MessageProtocol.LOAD_BALANCING);
+        message.setContent(content);
+        send(message);
+    }
+    
+    /**
+     * Variance of the loads of all resources, lower is better balanced
+     */
+    private double calculateLoadVariance() {
+        if (resourceLoads.isEmpty()) return 0;
+        
+        double mean = resourceLoads.values().stream()
+            .mapToInt(ResourceLoad::getCurrentLoad)
+            .average()
+            .orElse(0);
+        
+        return resourceLoads.values().stream()
+            .mapToDouble(load -> Math.pow(load.getCurrentLoad() - mean, 2))
+            .average()
+            .orElse(0);
+    }
+    
     /**
      * Collect and report metrics
      */
@@ -364,76 +580,10 @@ public class LoadBalancer extends Agent {
             double variance = calculateLoadVariance();
             System.out.println("\nLoad Variance: " + String.format("%.2f", variance) + 
                              " (lower is better)");
+            System.out.println("Patients moved: " + migrationsCommitted + ", handoffs rolled back: " + 
+                               migrationsRolledBack);
             System.out.println("============================\n");
         }
-        
-        private double calculateLoadVariance() {
-            if (resourceLoads.isEmpty()) return 0;
-            
-            double mean = resourceLoads.values().stream()
-                .mapToInt(ResourceLoad::getCurrentLoad)
-                .average()
-                .orElse(0);
-            
-            return resourceLoads.values().stream()
-                .mapToDouble(load -> Math.pow(load.getCurrentLoad() - mean, 2))
-                .average()
-                .orElse(0);
-        }
-    }
-    
-    /**
-     * Resource load tracking
-     */
-    private static class ResourceLoad {
-        private AID resource;
-        private String type;
-        private int currentLoad;
-        private double averageLoad;
-        private int peakLoad;
-        private List<String> assignedPatients;
-        private long lastUpdateTime;
-        
-        public ResourceLoad(AID resource, String type) {
-            this.resource = resource;
-            this.type = type;
-            this.currentLoad = 0;
-            this.averageLoad = 0;
-            this.peakLoad = 0;
-            this.assignedPatients = new ArrayList<>();
-            this.lastUpdateTime = System.currentTimeMillis();
-        }
-        
-        public void incrementLoad() { 
-            currentLoad++;
-            if (currentLoad > peakLoad) peakLoad = currentLoad;
-        }
-        
-        public void decrementLoad() { 
-            if (currentLoad > 0) currentLoad--;
-        }
-        
-        public void setCurrentLoad(int load) { 
-            this.currentLoad = load;
-            if (load > peakLoad) peakLoad = load;
-        }
-        
-        public void updateAverageLoad(int load) {
-            averageLoad = averageLoad * 0.9 + load * 0.1; // Exponential moving average
-        }
-        
-        public boolean isOverloaded() {
-            return currentLoad > 5; // Threshold
-        }
-        
-        public void addPatient(String patientId) {
-            assignedPatients.add(patientId);
-        }
-        
-        // Getters
-        public int getCurrentLoad() { return currentLoad; }
-        public double getAverageLoad() { return averageLoad; }
-        public int getPeakLoad() { return peakLoad; }
     }
     
     /**
@@ -457,113 +607,8 @@ public class LoadBalancer extends Agent {
         }
     }
     
-    /**
-     * Load balancing strategy interface
-     */
-    private interface LoadBalancingStrategy {
-        AID selectResource(List<AID> resources, Map<AID, ResourceLoad> loads, Patient patient);
-        String getName();
-    }
-    
-    /**
-     * Round Robin strategy
-     */
-    private static class RoundRobinStrategy implements LoadBalancingStrategy {
-        private int currentIndex = 0;
-        
-        @Override
-        public AID selectResource(List<AID> resources, Map<AID, ResourceLoad> loads, Patient patient) {
-            if (resources.isEmpty()) return null;
-            
-            AID selected = resources.get(currentIndex % resources.size());
-            currentIndex++;
-            return selected;
-        }
-        
-        @Override
-        public String getName() { return "Round Robin"; }
-    }
-    
-    /**
-     * Least Connections strategy
-     */
-    private static class LeastConnectionsStrategy implements LoadBalancingStrategy {
-        @Override
-        public AID selectResource(List<AID> resources, Map<AID, ResourceLoad> loads, Patient patient) {
-            return resources.stream()
-                .min(Comparator.comparing(r -> loads.get(r).getCurrentLoad()))
-                .orElse(null);
-        }
-        
-        @Override
-        public String getName() { return "Least Connections"; }
-    }
-    
-    /**
-     * Weighted Round Robin strategy
-     */
-    private static class WeightedRoundRobinStrategy implements LoadBalancingStrategy {
-        private Map<AID, Integer> weights = new HashMap<>();
-        private Map<AID, Integer> currentWeights = new HashMap<>();
-        
-        @Override
-        public AID selectResource(List<AID> resources, Map<AID, ResourceLoad> loads, Patient patient) {
-            // Initialize weights based on capacity
-            for (AID resource : resources) {
-                if (!weights.containsKey(resource)) {
-                    // Higher weight for resources with lower average load
-                    int weight = Math.max(1, 10 - (int)loads.get(resource).getAverageLoad());
-                    weights.put(resource, weight);
-                    currentWeights.put(resource, weight);
-                }
-            }
-            
-            // Select resource with highest current weight
-            AID selected = resources.stream()
-                .max(Comparator.comparing(r -> currentWeights.get(r)))
-                .orElse(null);
-            
-            if (selected != null) {
-                // Decrease weight and reset if needed
-                int weight = currentWeights.get(selected) - 1;
-                if (weight <= 0) {
-                    weight = weights.get(selected);
-                }
-                currentWeights.put(selected, weight);
-            }
-            
-            return selected;
-        }
-        
-        @Override
-        public String getName() { return "Weighted Round Robin"; }
-    }
-    
-    /**
-     * Adaptive load balancing strategy
-     */
-    private static class AdaptiveLoadBalancingStrategy implements LoadBalancingStrategy {
-        @Override
-        public AID selectResource(List<AID> resources, Map<AID, ResourceLoad> loads, Patient patient) {
-            // Complex selection based on multiple factors
-            return resources.stream()
-                .min(Comparator.comparing(r -> calculateScore(r, loads.get(r), patient)))
-                .orElse(null);
-        }
-        
-        private double calculateScore(AID resource, ResourceLoad load, Patient patient) {
-            double score = load.getCurrentLoad() * 1.0;
-            score += load.getAverageLoad() * 0.5;
-            
-            // Urgency factor
-            if (patient.getUrgencyLevel() >= 4) {
-                score *= 0.8; // Prefer less loaded for urgent patients
-            }
-            
-            return score;
-        }
-        
-        @Override
-        public String getName() { return "Adaptive"; }
+    @Override
+    protected void takeDown() {
+        directory.close();
     }
 }
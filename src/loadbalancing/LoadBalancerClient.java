@@ -0,0 +1,143 @@
+package loadbalancing;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import utils.HospitalMessage;
+import utils.HospitalMessage.Opcode;
+import utils.MessageProtocol;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Resource side of the load-balancing conversation: answers the load balancer's
+ * messages, keeps the patients it sent in the resource's MigrationParticipant until
+ * their treatment starts, and tells the balancer when each one was treated, so it
+ * lowers the resource's load and times its treatments.
+ *
+ * Used by the resource's agent thread only, so nothing is synchronized.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class LoadBalancerClient {
+    
+    private final MigrationParticipant migrations;
+    private final HospitalMessage parser = new HospitalMessage();
+    
+    // Patients the balancer sent here under treatment
+    private final Set<String> treating;
+    private AID loadBalancer;
+    
+    public LoadBalancerClient(int capacity) {
+        this.migrations = new MigrationParticipant(capacity);
+        this.treating = new HashSet<>();
+    }
+    
+    /**
+     * Handle a message of the load balancer
+     *
+     * @param canTreat whether the resource can give a treatment type
+     * @return the reply to send, null if none is due
+     */
+    public ACLMessage handle(ACLMessage msg, Predicate<String> canTreat) {
+        if (!parser.parse(msg.getContent()) || parser.getFieldCount() < 1) {
+            return null;
+        }
+        loadBalancer = msg.getSender();
+        String patientId = parser.field(0);
+        ACLMessage reply = msg.createReply();
+        switch (parser.getOpcode()) {
+            case ALLOCATE_PATIENT:
+                // ALLOCATE_PATIENT:<patientId>:<treatmentType>
+                if (parser.getFieldCount() >= 2) {
+                    migrations.queue(patientId, parser.field(1));
+                }
+                return null;
+                
+            case OFFER_PATIENT:
+                // Hold a place: OFFER_PATIENT:<patientId>:<treatmentType>
+                if (parser.getFieldCount() >= 2 && 
+                    migrations.offer(patientId, parser.field(1), canTreat.test(parser.field(1)))) {
+                    reply.setPerformative(ACLMessage.CONFIRM);
+                    reply.setContent(HospitalMessage.encode(Opcode.HELD, patientId));
+                } else {
+                    reply.setPerformative(ACLMessage.REFUSE);
+                    reply.setContent(HospitalMessage.encode(Opcode.NOT_AVAILABLE, patientId));
+                }
+                return reply;
+                
+            case RELEASE_PATIENT:
+                // Let a waiting patient go: RELEASE_PATIENT:<patientId>
+                if (migrations.release(patientId)) {
+                    reply.setPerformative(ACLMessage.CONFIRM);
+                    reply.setContent(HospitalMessage.encode(Opcode.RELEASED, patientId));
+                } else {
+                    reply.setPerformative(ACLMessage.REFUSE);
+                    reply.setContent(HospitalMessage.encode(Opcode.TREATMENT_STARTED, patientId));
+                }
+                return reply;
+                
+            case HANDOFF_PATIENT:
+                // Take the patient a place was held for: HANDOFF_PATIENT:<patientId>:<treatmentType>
+                if (migrations.handOff(patientId)) {
+                    reply.setPerformative(ACLMessage.CONFIRM);
+                    reply.setContent(HospitalMessage.encode(Opcode.COMMITTED, patientId));
+                } else {
+                    reply.setPerformative(ACLMessage.FAILURE);
+                    reply.setContent(HospitalMessage.encode(Opcode.HOLD_EXPIRED, patientId));
+                }
+                return reply;
+                
+            case CANCEL_OFFER:
+                // Rollback, no reply: CANCEL_OFFER:<patientId>
+                migrations.cancel(patientId);
+                return null;
+                
+            case RESTORE_PATIENT:
+                // Rollback, no reply: RESTORE_PATIENT:<patientId>
+                migrations.restore(patientId);
+                return null;
+                
+            default:
+                reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                return reply;
+        }
+    }
+    
+    /**
+     * Oldest waiting patient the balancer sent, to treat next; null if none
+     */
+    public String nextPatient() {
+        return migrations.next();
+    }
+    
+    public String getTreatmentType(String patientId) {
+        return migrations.getTreatmentType(patientId);
+    }
+    
+    /**
+     * Treatment began: a patient the balancer sent can no longer move
+     */
+    public void started(String patientId) {
+        if (migrations.isQueued(patientId)) {
+            treating.add(patientId);
+        }
+        migrations.start(patientId);
+    }
+    
+    /**
+     * Treatment finished
+     *
+     * @return the message telling the balancer, null if it did not send this patient
+     */
+    public ACLMessage completed(String patientId) {
+        if (!treating.remove(patientId) || loadBalancer == null) {
+            return null;
+        }
+        ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
+        inform.addReceiver(loadBalancer);
+        inform.setConversationId(MessageProtocol.LOAD_BALANCING);
+        inform.setContent(HospitalMessage.encode(Opcode.RESOURCE_FREE, patientId));
+        return inform;
+    }
+}
@@ -0,0 +1,27 @@
+package loadbalancing;
+
+import jade.core.AID;
+import models.Patient;
+
+/**
+ * Load balancing strategy: picks the resource of a type that takes a patient.
+ * Strategies read the LoadIndex of the type, which keeps the resources ordered by
+ * the strategy's load key, and never return an overloaded resource.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public interface LoadBalancingStrategy {
+    
+    /**
+     * Resource that takes the patient, null if all are overloaded
+     */
+    AID selectResource(LoadIndex index, Patient patient);
+    
+    String getName();
+    
+    /**
+     * Load key ordering the index, lowest first
+     */
+    default double loadKey(ResourceLoad load) {
+        return load.getCurrentLoad();
+    }
+}
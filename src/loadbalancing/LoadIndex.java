@@ -0,0 +1,218 @@
+package loadbalancing;
+
+import jade.core.AID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Resources of one type, indexed by load for the load balancing strategies.
+ * A binary min-heap orders them by a key of their load (the strategy's), with
+ * the overloaded resources after all the others: the least-loaded resource that
+ * can take a patient is read in O(1), and a change of load reorders the resource
+ * in O(log n). The resources can also be read by position, in O(1), for the
+ * strategies that sample or cycle through them.
+ *
+ * Resources join and leave on the load balancer's agent thread, which also runs
+ * the strategies. Loads may change on any thread: the heap is reordered, and its
+ * root read, under the index's lock.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class LoadIndex {
+    
+    // Added to the key of the overloaded resources
+    private static final double OVERLOADED = 1e15;
+    
+    private final String resourceType;
+    private final ToDoubleFunction<ResourceLoad> key;
+    
+    private ResourceLoad[] heap;
+    private int size;
+    
+    // Resources in the order they joined, the last one filling the place of a removed one
+    private final List<ResourceLoad> members;
+    private final Map<String, ResourceLoad> byName;
+    private int version;
+    
+    public LoadIndex(String resourceType, ToDoubleFunction<ResourceLoad> key) {
+        this.resourceType = resourceType;
+        this.key = key;
+        this.heap = new ResourceLoad[16];
+        this.members = new ArrayList<>();
+        this.byName = new HashMap<>();
+    }
+    
+    public synchronized void add(ResourceLoad load) {
+        if (byName.containsKey(load.getResource().getName())) {
+            return;
+        }
+        if (load.index != null) {
+            load.index.remove(load.getResource());
+        }
+        byName.put(load.getResource().getName(), load);
+        load.index = this;
+        load.memberPosition = members.size();
+        members.add(load);
+        
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        load.key = keyOf(load);
+        load.heapPosition = size;
+        heap[size++] = load;
+        siftUp(load);
+        version++;
+    }
+    
+    public synchronized ResourceLoad remove(AID resource) {
+        ResourceLoad load = byName.remove(resource.getName());
+        if (load == null) {
+            return null;
+        }
+        ResourceLoad last = members.remove(members.size() - 1);
+        if (last != load) {
+            members.set(load.memberPosition, last);
+            last.memberPosition = load.memberPosition;
+        }
+        removeAt(load.heapPosition);
+        load.index = null;
+        load.heapPosition = -1;
+        load.memberPosition = -1;
+        version++;
+        return load;
+    }
+    
+    public boolean contains(AID resource) {
+        return byName.containsKey(resource.getName());
+    }
+    
+    public ResourceLoad get(AID resource) {
+        return byName.get(resource.getName());
+    }
+    
+    public ResourceLoad get(String resourceName) {
+        return byName.get(resourceName);
+    }
+    
+    /**
+     * Resource at a position, 0 <= position < size()
+     */
+    public ResourceLoad get(int position) {
+        return members.get(position);
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public String getResourceType() {
+        return resourceType;
+    }
+    
+    /**
+     * Incremented when a resource joins or leaves the index
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Resource with the lowest key among those not overloaded, null if all are
+     */
+    public synchronized ResourceLoad leastLoaded() {
+        return size > 0 && !heap[0].isOverloaded() ? heap[0] : null;
+    }
+    
+    /**
+     * True if a ranks before b: not overloaded first, then lowest key
+     */
+    public synchronized boolean isBefore(ResourceLoad a, ResourceLoad b) {
+        return a.key < b.key;
+    }
+    
+    /**
+     * Reorder a resource whose load changed
+     */
+    synchronized void update(ResourceLoad load) {
+        if (load.index != this) {
+            return; // Removed since its load changed
+        }
+        double previous = load.key;
+        load.key = keyOf(load);
+        if (load.key < previous) {
+            siftUp(load);
+        } else if (load.key > previous) {
+            siftDown(load);
+        }
+    }
+    
+    /**
+     * Recompute every key and reorder the heap in O(n), for keys that move with time
+     * while the loads stay, such as an average load
+     */
+    public synchronized void refresh() {
+        for (int i = 0; i < size; i++) {
+            heap[i].key = keyOf(heap[i]);
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(heap[i]);
+        }
+    }
+    
+    private double keyOf(ResourceLoad load) {
+        return key.applyAsDouble(load) + (load.isOverloaded() ? OVERLOADED : 0);
+    }
+    
+    private void removeAt(int position) {
+        int last = --size;
+        ResourceLoad moved = heap[last];
+        heap[last] = null;
+        if (position != last) {
+            // Fill the hole with the last resource, which may belong above or below it
+            place(moved, position);
+            siftUp(moved);
+            siftDown(moved);
+        }
+    }
+    
+    private void siftUp(ResourceLoad load) {
+        int position = load.heapPosition;
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (heap[parent].key <= load.key) {
+                break;
+            }
+            place(heap[parent], position);
+            position = parent;
+        }
+        place(load, position);
+    }
+    
+    private void siftDown(ResourceLoad load) {
+        int position = load.heapPosition;
+        while (true) {
+            int child = position * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].key < heap[child].key) {
+                child++;
+            }
+            if (heap[child].key >= load.key) {
+                break;
+            }
+            place(heap[child], position);
+            position = child;
+        }
+        place(load, position);
+    }
+    
+    private void place(ResourceLoad load, int position) {
+        heap[position] = load;
+        load.heapPosition = position;
+    }
+}
@@ -0,0 +1,143 @@
+package loadbalancing;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resource side of the patient handoffs run by the load balancer: the patients the
+ * balancer sent to a resource and that it has not begun treating, which it may
+ * release to another resource, and the places it holds for patients offered to it.
+ * Every step may be repeated, as when a reply was lost and the balancer rolls back.
+ *
+ * Used by the resource's agent thread only, so nothing is synchronized.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class MigrationParticipant {
+    
+    // Released patients remembered for a rollback
+    private static final int RELEASED_KEPT = 64;
+    
+    private final int capacity;
+    
+    // Patient id to treatment type, oldest first
+    private final Map<String, String> queued;
+    private final Map<String, String> offered;
+    private final Set<String> handedOff;
+    private final Map<String, String> released;
+    
+    public MigrationParticipant(int capacity) {
+        this.capacity = capacity;
+        this.queued = new LinkedHashMap<>();
+        this.offered = new LinkedHashMap<>();
+        this.handedOff = new HashSet<>();
+        this.released = new LinkedHashMap<String, String>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > RELEASED_KEPT;
+            }
+        };
+    }
+    
+    /**
+     * The load balancer sent a patient here
+     */
+    public void queue(String patientId, String treatmentType) {
+        queued.put(patientId, treatmentType);
+    }
+    
+    /**
+     * Treatment began: the patient can no longer move
+     */
+    public void start(String patientId) {
+        queued.remove(patientId);
+        handedOff.remove(patientId);
+    }
+    
+    /**
+     * Hold a place for a patient offered by another resource
+     *
+     * @return false if the resource cannot treat it or has no place left
+     */
+    public boolean offer(String patientId, String treatmentType, boolean suitable) {
+        if (offered.containsKey(patientId) || queued.containsKey(patientId)) {
+            return true;
+        }
+        if (!suitable || queued.size() + offered.size() >= capacity) {
+            return false;
+        }
+        offered.put(patientId, treatmentType);
+        return true;
+    }
+    
+    /**
+     * Let a waiting patient go to another resource
+     *
+     * @return false if its treatment began or it is not here
+     */
+    public boolean release(String patientId) {
+        String treatmentType = queued.remove(patientId);
+        if (treatmentType != null) {
+            released.put(patientId, treatmentType);
+            return true;
+        }
+        return released.containsKey(patientId);
+    }
+    
+    /**
+     * Take a patient this resource held a place for
+     */
+    public boolean handOff(String patientId) {
+        String treatmentType = offered.remove(patientId);
+        if (treatmentType != null) {
+            queued.put(patientId, treatmentType);
+            handedOff.add(patientId);
+            return true;
+        }
+        return handedOff.contains(patientId);
+    }
+    
+    /**
+     * Rollback on the target: drop the place, or the patient if it was handed off
+     */
+    public void cancel(String patientId) {
+        offered.remove(patientId);
+        if (handedOff.remove(patientId)) {
+            queued.remove(patientId);
+        }
+    }
+    
+    /**
+     * Rollback on the source: take back a released patient
+     */
+    public void restore(String patientId) {
+        String treatmentType = released.remove(patientId);
+        if (treatmentType != null) {
+            queued.put(patientId, treatmentType);
+        }
+    }
+    
+    /**
+     * Oldest waiting patient, null if none
+     */
+    public String next() {
+        return queued.isEmpty() ? null : queued.keySet().iterator().next();
+    }
+    
+    public String getTreatmentType(String patientId) {
+        return queued.get(patientId);
+    }
+    
+    public boolean isQueued(String patientId) {
+        return queued.containsKey(patientId);
+    }
+    
+    public int getQueuedCount() {
+        return queued.size();
+    }
+    
+    public int getOfferedCount() {
+        return offered.size();
+    }
+}
@@ -0,0 +1,159 @@
+package loadbalancing;
+
+import jade.core.AID;
+import utils.SchedulingAlgorithm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans the patients to move from busy resources to quieter ones of the same type.
+ * Moving one patient from a resource with load a to one with load b lowers the
+ * sum of squared loads, the load variance times the number of resources, by
+ * 2(a - b - 1); a move is planned only when that gain outweighs its cost:
+ * - a patient under treatment, the oldest of its resource, is never moved;
+ * - a doctor whose specialization does not fit the treatment never takes it, and a
+ *   specialist taking a treatment any doctor could give costs more;
+ * - a patient leaving a room of the type preferred for its treatment for another
+ *   type costs more;
+ * - every move costs a handoff.
+ * Moves are chosen greedily, the highest net gain first.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class MigrationPlanner {
+    
+    public static final double HANDOFF_COST = 0.5;
+    public static final double SPECIALIST_MISUSE_COST = 1.0;
+    public static final double ROOM_MISMATCH_COST = 1.5;
+    
+    private final int maxMoves;
+    
+    public MigrationPlanner(int maxMoves) {
+        this.maxMoves = maxMoves;
+    }
+    
+    /**
+     * Moves to make, at most maxMoves, leaving out the patients already moving
+     */
+    public List<Move> plan(Collection<ResourceLoad> loads, Set<String> moving) {
+        Map<String, List<ResourceLoad>> byType = new HashMap<>();
+        for (ResourceLoad load : loads) {
+            byType.computeIfAbsent(load.getType(), type -> new ArrayList<>()).add(load);
+        }
+        
+        List<Move> moves = new ArrayList<>();
+        Map<ResourceLoad, Integer> projected = new HashMap<>();
+        Map<ResourceLoad, List<ResourceLoad.Assignment>> candidates = new HashMap<>();
+        for (ResourceLoad load : loads) {
+            projected.put(load, load.getCurrentLoad());
+            List<ResourceLoad.Assignment> assignments = load.getAssignments();
+            // The oldest patient is being treated
+            List<ResourceLoad.Assignment> waiting = new ArrayList<>();
+            for (int i = 1; i < assignments.size(); i++) {
+                if (!moving.contains(assignments.get(i).getPatientId())) {
+                    waiting.add(assignments.get(i));
+                }
+            }
+            candidates.put(load, waiting);
+        }
+        
+        while (moves.size() < maxMoves) {
+            Move best = null;
+            for (List<ResourceLoad> resources : byType.values()) {
+                for (ResourceLoad source : resources) {
+                    for (ResourceLoad target : resources) {
+                        int gain = 2 * (projected.get(source) - projected.get(target) - 1);
+                        if (gain <= 0 || projected.get(target) + 1 > ResourceLoad.OVERLOAD_THRESHOLD) {
+                            continue;
+                        }
+                        Move move = cheapestMove(source, target, candidates.get(source), gain);
+                        if (move != null && (best == null || move.netGain > best.netGain)) {
+                            best = move;
+                        }
+                    }
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            moves.add(best);
+            projected.merge(best.sourceLoad, -1, Integer::sum);
+            projected.merge(best.targetLoad, 1, Integer::sum);
+            candidates.get(best.sourceLoad).remove(best.assignment);
+        }
+        return moves;
+    }
+    
+    /**
+     * Cheapest patient to move from source to target, the latest sent on a tie; null
+     * if none gains more than it costs
+     */
+    private Move cheapestMove(ResourceLoad source, ResourceLoad target,
+                              List<ResourceLoad.Assignment> waiting, int gain) {
+        Move best = null;
+        for (int i = waiting.size() - 1; i >= 0; i--) {
+            ResourceLoad.Assignment assignment = waiting.get(i);
+            double cost = moveCost(assignment.getTreatmentType(), source, target);
+            if (gain - cost > 0 && (best == null || gain - cost > best.netGain)) {
+                best = new Move(assignment, source, target, cost, gain - cost);
+            }
+        }
+        return best;
+    }
+    
+    /**
+     * Cost of moving a waiting patient, infinite when the target cannot treat it
+     */
+    static double moveCost(String treatmentType, ResourceLoad source, ResourceLoad target) {
+        double cost = HANDOFF_COST;
+        String capability = target.getCapability();
+        if (capability == null || treatmentType == null) {
+            return cost;
+        }
+        if ("DOCTOR".equals(target.getType())) {
+            if (!SchedulingAlgorithm.isDoctorSuitable(capability, treatmentType)) {
+                return Double.POSITIVE_INFINITY;
+            }
+            if (!capability.equals("GENERAL") && !SchedulingAlgorithm.requiresSpecialist(treatmentType)) {
+                cost += SPECIALIST_MISUSE_COST;
+            }
+        } else if ("ROOM".equals(target.getType())) {
+            String preferred = SchedulingAlgorithm.getPreferredRoomType(treatmentType);
+            if (preferred.equals(source.getCapability()) && !preferred.equals(capability)) {
+                cost += ROOM_MISMATCH_COST;
+            }
+        }
+        return cost;
+    }
+    
+    /**
+     * A planned move of a waiting patient
+     */
+    public static class Move {
+        private final ResourceLoad.Assignment assignment;
+        private final ResourceLoad sourceLoad;
+        private final ResourceLoad targetLoad;
+        private final double cost;
+        private final double netGain;
+        
+        Move(ResourceLoad.Assignment assignment, ResourceLoad sourceLoad, ResourceLoad targetLoad,
+             double cost, double netGain) {
+            this.assignment = assignment;
+            this.sourceLoad = sourceLoad;
+            this.targetLoad = targetLoad;
+            this.cost = cost;
+            this.netGain = netGain;
+        }
+        
+        public String getPatientId() { return assignment.getPatientId(); }
+        public String getTreatmentType() { return assignment.getTreatmentType(); }
+        public AID getSource() { return sourceLoad.getResource(); }
+        public AID getTarget() { return targetLoad.getResource(); }
+        public double getCost() { return cost; }
+        public double getNetGain() { return netGain; }
+    }
+}
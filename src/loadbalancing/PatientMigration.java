@@ -0,0 +1,115 @@
+package loadbalancing;
+
+/**
+ * Load balancer side of the handoff of a waiting patient between two resources.
+ * The target is offered the patient and holds a place for it; the source then
+ * releases the patient, unless its treatment began; the target finally takes it.
+ * Loads change only once the target confirms. A refusal or a missing reply rolls
+ * the handoff back: the target drops its place and the source keeps the patient.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class PatientMigration {
+    
+    public enum State { OFFERED, RELEASING, HANDING_OFF, COMMITTED, ROLLED_BACK }
+    
+    private final MigrationPlanner.Move move;
+    private final long deadline;
+    private State state;
+    private boolean refusedByTarget;
+    private boolean releaseRequested;
+    
+    public PatientMigration(MigrationPlanner.Move move, long deadline) {
+        this.move = move;
+        this.deadline = deadline;
+        this.state = State.OFFERED;
+    }
+    
+    /**
+     * The target holds a place: ask the source to release the patient
+     */
+    public State onAccepted() {
+        if (state == State.OFFERED) {
+            state = State.RELEASING;
+            releaseRequested = true;
+        }
+        return state;
+    }
+    
+    public State onRefused() {
+        if (state == State.OFFERED) {
+            refusedByTarget = true;
+            state = State.ROLLED_BACK;
+        }
+        return state;
+    }
+    
+    /**
+     * The source released the patient: hand it to the target
+     */
+    public State onReleased() {
+        if (state == State.RELEASING) {
+            state = State.HANDING_OFF;
+        }
+        return state;
+    }
+    
+    /**
+     * The source began treating the patient since the move was planned
+     */
+    public State onTreatmentStarted() {
+        if (state == State.RELEASING) {
+            releaseRequested = false; // The source kept the patient
+            state = State.ROLLED_BACK;
+        }
+        return state;
+    }
+    
+    public State onHandedOff() {
+        if (state == State.HANDING_OFF) {
+            state = State.COMMITTED;
+        }
+        return state;
+    }
+    
+    /**
+     * The target no longer held the place
+     */
+    public State onHandOffFailed() {
+        if (state == State.HANDING_OFF) {
+            state = State.ROLLED_BACK;
+        }
+        return state;
+    }
+    
+    /**
+     * Roll back if a reply is still missing at the deadline
+     */
+    public State onTimeout(long now) {
+        if (!isDecided() && now >= deadline) {
+            state = State.ROLLED_BACK;
+        }
+        return state;
+    }
+    
+    public boolean isDecided() {
+        return state == State.COMMITTED || state == State.ROLLED_BACK;
+    }
+    
+    /**
+     * Rolled back while the target may hold a place or the patient
+     */
+    public boolean needsCancel() {
+        return state == State.ROLLED_BACK && !refusedByTarget;
+    }
+    
+    /**
+     * Rolled back after the source may have released the patient
+     */
+    public boolean needsRestore() {
+        return state == State.ROLLED_BACK && releaseRequested;
+    }
+    
+    public MigrationPlanner.Move getMove() { return move; }
+    public String getPatientId() { return move.getPatientId(); }
+    public State getState() { return state; }
+}
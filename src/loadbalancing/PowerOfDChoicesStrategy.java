@@ -0,0 +1,72 @@
+package loadbalancing;
+
+import jade.core.AID;
+import models.Patient;
+
+import java.util.Random;
+
+/**
+ * Power-of-d-choices strategy: the least loaded of d resources drawn at random.
+ * Two choices already bring the longest queue down from log n / log log n to
+ * log log n; each further choice gains less, and the choice nears the least-loaded
+ * one, every request going to the same resource between two load updates.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class PowerOfDChoicesStrategy implements LoadBalancingStrategy {
+    private final int choices;
+    private final Random random;
+    
+    public PowerOfDChoicesStrategy(int choices) {
+        this(choices, new Random());
+    }
+    
+    public PowerOfDChoicesStrategy(int choices, Random random) {
+        if (choices < 1) {
+            throw new IllegalArgumentException("At least one choice is needed: " + choices);
+        }
+        this.choices = choices;
+        this.random = random;
+    }
+    
+    @Override
+    public AID selectResource(LoadIndex index, Patient patient) {
+        int size = index.size();
+        if (size == 0) {
+            return null;
+        }
+        ResourceLoad chosen;
+        if (choices >= size) {
+            chosen = index.leastLoaded();
+        } else {
+            // Distinct positions, drawn again on a repeat: choices is well below size
+            int[] drawn = new int[choices];
+            chosen = null;
+            for (int i = 0; i < choices; i++) {
+                int position = random.nextInt(size);
+                for (int j = 0; j < i; j++) {
+                    if (drawn[j] == position) {
+                        position = random.nextInt(size);
+                        j = -1;
+                    }
+                }
+                drawn[i] = position;
+                ResourceLoad candidate = index.get(position);
+                if (chosen == null || index.isBefore(candidate, chosen)) {
+                    chosen = candidate;
+                }
+            }
+            if (chosen.isOverloaded()) {
+                // All drawn resources are full: fall back to the least loaded
+                chosen = index.leastLoaded();
+            }
+        }
+        return chosen != null ? chosen.getResource() : null;
+    }
+    
+    public int getChoices() {
+        return choices;
+    }
+    
+    @Override
+    public String getName() { return "Power of " + choices + " Choices"; }
+}
@@ -0,0 +1,23 @@
+package loadbalancing;
+
+import java.util.Random;
+
+/**
+ * Power-of-two-choices strategy: the less loaded of two resources drawn at random.
+ * Nearly as balanced as the least-loaded choice, without every request going to
+ * the same resource between two load updates.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class PowerOfTwoChoicesStrategy extends PowerOfDChoicesStrategy {
+    
+    public PowerOfTwoChoicesStrategy() {
+        super(2);
+    }
+    
+    public PowerOfTwoChoicesStrategy(Random random) {
+        super(2, random);
+    }
+    
+    @Override
+    public String getName() { return "Power of Two Choices"; }
+}
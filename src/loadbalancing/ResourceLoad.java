@@ -0,0 +1,243 @@
+package loadbalancing;
+
+import jade.core.AID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Load of a resource as seen by the load balancer: patients sent to it, peak, and
+ * the expected treatment time of the patients it has not finished yet. Its load
+ * and treatment times are also averaged over time, the older values weighing less
+ * by their age, so the strategies follow a resource that slows down within a few
+ * treatments.
+ *
+ * Counters are atomic and may change from any thread. Each one sits on its own
+ * cache line, so threads updating different counters do not slow each other down.
+ * Every change of the load moves the resource to its new place in the LoadIndex
+ * of its type; the average load also moves while the load stays, and is read up
+ * to the present, so the index is refreshed periodically.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class ResourceLoad {
+    
+    // Patients above which a resource takes no more
+    public static final int OVERLOAD_THRESHOLD = 5;
+    
+    public static final long LOAD_HALF_LIFE = 10_000;          // 10 seconds
+    public static final long SERVICE_HALF_LIFE = 30 * 60_000;  // 30 minutes, a couple of treatments
+    
+    // Counters, one per 64-byte line with a free line before the first and after the last
+    private static final int STRIDE = 8;
+    private static final int LOAD = STRIDE;
+    private static final int PEAK = 2 * STRIDE;
+    private static final int REMAINING_WORK = 3 * STRIDE;
+    private static final int LAST_COMPLETION = 4 * STRIDE;
+    private static final int COMPLETED = 5 * STRIDE;
+    private static final int CELLS = 7 * STRIDE;
+    
+    private final AID resource;
+    private final String type;
+    private volatile String capability; // Specialization of a doctor, type of a room or equipment
+    private final LongSupplier clock;
+    private final AtomicLongArray counters;
+    
+    // Load weighted by the time it held, and treatment times, expected and actual
+    private final DecayingAverage averageLoad;
+    private final DecayingAverage expectedServiceTime;
+    private final DecayingAverage actualServiceTime;
+    
+    // Patients not finished yet, in the order they were sent, and their expected treatment time
+    private final ConcurrentLinkedDeque<Assignment> assignedPatients;
+    
+    // Place in the index of its type, maintained by the index under its lock
+    volatile LoadIndex index;
+    int heapPosition = -1;
+    int memberPosition = -1;
+    double key;
+    
+    public ResourceLoad(AID resource, String type) {
+        this(resource, type, System::currentTimeMillis);
+    }
+    
+    /**
+     * Resource whose averages follow the given clock, in milliseconds
+     */
+    public ResourceLoad(AID resource, String type, LongSupplier clock) {
+        this.resource = resource;
+        this.type = type;
+        this.clock = clock;
+        this.counters = new AtomicLongArray(CELLS);
+        this.averageLoad = new DecayingAverage(LOAD_HALF_LIFE, 0, clock.getAsLong());
+        this.expectedServiceTime = new DecayingAverage(SERVICE_HALF_LIFE);
+        this.actualServiceTime = new DecayingAverage(SERVICE_HALF_LIFE);
+        this.assignedPatients = new ConcurrentLinkedDeque<>();
+    }
+    
+    public void incrementLoad() {
+        long previous = counters.getAndIncrement(LOAD);
+        counters.accumulateAndGet(PEAK, previous + 1, Math::max);
+        loadChanged(previous);
+    }
+    
+    public void decrementLoad() {
+        loadChanged(counters.getAndUpdate(LOAD, load -> load > 0 ? load - 1 : 0));
+    }
+    
+    public void setCurrentLoad(int load) {
+        long previous = counters.getAndSet(LOAD, load);
+        counters.accumulateAndGet(PEAK, load, Math::max);
+        loadChanged(previous);
+    }
+    
+    /**
+     * The previous load held since the last change: fold it into the average
+     */
+    private void loadChanged(long previous) {
+        averageLoad.add(previous, clock.getAsLong());
+        changed();
+    }
+    
+    private void changed() {
+        LoadIndex current = index;
+        if (current != null) {
+            current.update(this);
+        }
+    }
+    
+    public boolean isOverloaded() {
+        return getCurrentLoad() > OVERLOAD_THRESHOLD;
+    }
+    
+    /**
+     * A patient was sent to this resource, expected to take the given treatment time
+     */
+    public void assignPatient(String patientId, String treatmentType, long expectedDuration) {
+        assignedPatients.offer(new Assignment(patientId, treatmentType, expectedDuration, clock.getAsLong()));
+        counters.addAndGet(REMAINING_WORK, expectedDuration);
+        changed();
+    }
+    
+    /**
+     * A patient left this resource untreated, moved to another one
+     *
+     * @return the patient's assignment, null if it was not assigned here
+     */
+    public Assignment removePatient(String patientId) {
+        for (Assignment assignment : assignedPatients) {
+            if (assignment.patientId.equals(patientId)) {
+                if (!assignedPatients.remove(assignment)) {
+                    return null;
+                }
+                counters.addAndGet(REMAINING_WORK, -assignment.expectedDuration);
+                changed();
+                return assignment;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Patients not finished yet, oldest first: the first one is being treated
+     */
+    public List<Assignment> getAssignments() {
+        return new ArrayList<>(assignedPatients);
+    }
+    
+    /**
+     * A patient was treated, the oldest one if its id is null or unknown. The resource
+     * treats its patients one at a time in order, so the treatment began when the
+     * patient arrived or when the previous one finished.
+     */
+    public void completePatient(String patientId) {
+        Assignment completed = null;
+        if (patientId != null) {
+            for (Assignment assignment : assignedPatients) {
+                if (assignment.patientId.equals(patientId)) {
+                    // Completed once, should the completion be reported twice
+                    completed = assignedPatients.remove(assignment) ? assignment : null;
+                    break;
+                }
+            }
+        }
+        if (completed == null) {
+            completed = assignedPatients.poll();
+            if (completed == null) {
+                return;
+            }
+        }
+        long now = clock.getAsLong();
+        counters.addAndGet(REMAINING_WORK, -completed.expectedDuration);
+        counters.incrementAndGet(COMPLETED);
+        long previousCompletion = counters.getAndAccumulate(LAST_COMPLETION, now, Math::max);
+        long actual = now - Math.max(completed.assignedAt, previousCompletion);
+        if (actual > 0) {
+            expectedServiceTime.add(completed.expectedDuration, now);
+            actualServiceTime.add(actual, now);
+        }
+        changed();
+    }
+    
+    /**
+     * Expected treatment time treated per unit of time: below 1 for a resource slower
+     * than the estimates, 1 until a treatment was timed
+     */
+    public double getServiceRate() {
+        if (!actualServiceTime.hasSamples()) {
+            return 1.0;
+        }
+        return Math.min(10.0, expectedServiceTime.get() / actualServiceTime.get());
+    }
+    
+    /**
+     * Load averaged until now, the current load counting for the time it has held
+     */
+    public double getAverageLoad() {
+        return averageLoad.get(getCurrentLoad(), clock.getAsLong());
+    }
+    
+    /**
+     * Expected time before a new patient is treated: the work already sent here at
+     * this resource's service rate
+     */
+    public double getExpectedDelay() {
+        return getRemainingWork() / getServiceRate();
+    }
+    
+    // Getters
+    public AID getResource() { return resource; }
+    public String getType() { return type; }
+    public String getCapability() { return capability; }
+    public void setCapability(String capability) { this.capability = capability; }
+    public int getCurrentLoad() { return (int) counters.get(LOAD); }
+    public int getPeakLoad() { return (int) counters.get(PEAK); }
+    public long getRemainingWork() { return counters.get(REMAINING_WORK); }
+    public long getCompletedCount() { return counters.get(COMPLETED); }
+    public double getServiceTime() { return actualServiceTime.get(); }
+    public int getAssignedCount() { return assignedPatients.size(); }
+    
+    /**
+     * Patient sent to the resource and not finished yet
+     */
+    public static class Assignment {
+        private final String patientId;
+        private final String treatmentType;
+        private final long expectedDuration;
+        private final long assignedAt;
+        
+        Assignment(String patientId, String treatmentType, long expectedDuration, long assignedAt) {
+            this.patientId = patientId;
+            this.treatmentType = treatmentType;
+            this.expectedDuration = expectedDuration;
+            this.assignedAt = assignedAt;
+        }
+        
+        public String getPatientId() { return patientId; }
+        public String getTreatmentType() { return treatmentType; }
+        public long getExpectedDuration() { return expectedDuration; }
+        public long getAssignedAt() { return assignedAt; }
+    }
+}
@@ -0,0 +1,89 @@
+package loadbalancing;
+
+import models.Patient;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Patients waiting for a resource, one FIFO queue per resource type.
+ * A type is only examined again once it is signalled: a patient joined its queue,
+ * or one of its resources was freed, became less loaded or was discovered. While
+ * no resource fits, the waiting patients cost nothing.
+ *
+ * Used by the load balancer's agent thread only, so nothing is synchronized.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class ResourceWaitQueues {
+    
+    /**
+     * Places a patient on a resource of a type, returns false when none fits
+     */
+    public interface Placement {
+        boolean place(String resourceType, Patient patient);
+    }
+    
+    private final Map<String, ArrayDeque<Patient>> queues;
+    private final Set<String> signalled;
+    
+    public ResourceWaitQueues() {
+        this.queues = new HashMap<>();
+        this.signalled = new LinkedHashSet<>();
+    }
+    
+    public void add(String resourceType, Patient patient) {
+        queues.computeIfAbsent(resourceType, type -> new ArrayDeque<>()).offer(patient);
+        signalled.add(resourceType);
+    }
+    
+    /**
+     * A resource of a type may now take a patient
+     */
+    public void signal(String resourceType) {
+        ArrayDeque<Patient> queue = queues.get(resourceType);
+        if (queue != null && !queue.isEmpty()) {
+            signalled.add(resourceType);
+        }
+    }
+    
+    public boolean hasSignalled() {
+        return !signalled.isEmpty();
+    }
+    
+    /**
+     * Place the waiting patients of the signalled types in arrival order; a type
+     * stops at its first patient that cannot be placed and waits for its next signal
+     *
+     * @return the number of patients placed
+     */
+    public int dispatch(Placement placement) {
+        int placed = 0;
+        while (!signalled.isEmpty()) {
+            String resourceType = signalled.iterator().next();
+            signalled.remove(resourceType);
+            ArrayDeque<Patient> queue = queues.get(resourceType);
+            Patient patient;
+            while ((patient = queue.peek()) != null && placement.place(resourceType, patient)) {
+                queue.poll();
+                placed++;
+            }
+        }
+        return placed;
+    }
+    
+    public int size(String resourceType) {
+        ArrayDeque<Patient> queue = queues.get(resourceType);
+        return queue == null ? 0 : queue.size();
+    }
+    
+    public int size() {
+        int size = 0;
+        for (ArrayDeque<Patient> queue : queues.values()) {
+            size += queue.size();
+        }
+        return size;
+    }
+}
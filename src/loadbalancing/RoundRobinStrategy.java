@@ -0,0 +1,26 @@
+package loadbalancing;
+
+import jade.core.AID;
+import models.Patient;
+
+/**
+ * Round Robin strategy: the resources in turn, skipping the overloaded ones
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class RoundRobinStrategy implements LoadBalancingStrategy {
+    private int currentIndex = 0;
+    
+    @Override
+    public AID selectResource(LoadIndex index, Patient patient) {
+        for (int tried = 0; tried < index.size(); tried++) {
+            ResourceLoad load = index.get(Math.floorMod(currentIndex++, index.size()));
+            if (!load.isOverloaded()) {
+                return load.getResource();
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public String getName() { return "Round Robin"; }
+}
@@ -0,0 +1,33 @@
+package loadbalancing;
+
+import jade.core.AID;
+import models.Patient;
+
+/**
+ * Join-shortest-expected-delay strategy: the resource expected to begin the
+ * patient's treatment first, from the estimated treatment time of the patients
+ * already sent to it and the rate at which it has been treating them. A resource
+ * with fewer but longer treatments waiting, or a slower one, ranks after a busier
+ * but faster one.
+ *
+ * The index orders resources by their expected delay alone. The patient's own
+ * treatment time, divided by each service rate, would also favour the faster
+ * resources when their delays are close; it is left out so that the choice stays
+ * the root of the index.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class ShortestExpectedDelayStrategy implements LoadBalancingStrategy {
+    @Override
+    public AID selectResource(LoadIndex index, Patient patient) {
+        ResourceLoad best = index.leastLoaded();
+        return best != null ? best.getResource() : null;
+    }
+    
+    @Override
+    public double loadKey(ResourceLoad load) {
+        return load.getExpectedDelay();
+    }
+    
+    @Override
+    public String getName() { return "Shortest Expected Delay"; }
+}
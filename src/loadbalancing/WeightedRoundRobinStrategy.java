@@ -0,0 +1,65 @@
+package loadbalancing;
+
+import jade.core.AID;
+import models.Patient;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Weighted Round Robin strategy: faster and less loaded resources get more turns.
+ * A resource weighs its service rate over one plus its average load, both read
+ * live on every selection, so a resource that slows down or fills up loses turns
+ * from its next treatments on.
+ *
+ * Turns are spread smoothly: on each selection every resource gains its weight,
+ * and the selected one, the highest, gives back the total of the weights.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class WeightedRoundRobinStrategy implements LoadBalancingStrategy {
+    private Map<AID, Double> currentWeights = new HashMap<>();
+    private int indexVersion = -1;
+    
+    @Override
+    public AID selectResource(LoadIndex index, Patient patient) {
+        if (index.getVersion() != indexVersion) {
+            // Forget the resources that left
+            currentWeights.keySet().removeIf(resource -> !index.contains(resource));
+            indexVersion = index.getVersion();
+        }
+        
+        // Select the resource with the highest current weight
+        ResourceLoad selected = null;
+        double selectedWeight = 0;
+        double totalWeight = 0;
+        for (int i = 0; i < index.size(); i++) {
+            ResourceLoad load = index.get(i);
+            if (load.isOverloaded()) {
+                continue;
+            }
+            double weight = weight(load);
+            double current = currentWeights.merge(load.getResource(), weight, Double::sum);
+            totalWeight += weight;
+            if (selected == null || current > selectedWeight) {
+                selected = load;
+                selectedWeight = current;
+            }
+        }
+        
+        if (selected == null) {
+            return null;
+        }
+        currentWeights.put(selected.getResource(), selectedWeight - totalWeight);
+        return selected.getResource();
+    }
+    
+    /**
+     * Share of the turns a resource gets
+     */
+    static double weight(ResourceLoad load) {
+        return load.getServiceRate() / (1 + load.getAverageLoad());
+    }
+    
+    @Override
+    public String getName() { return "Weighted Round Robin"; }
+}
@@ -0,0 +1,137 @@
+package logging;
+
+import logging.LogSink.Level;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log of one agent. A record is given as parts (strings, numbers, names) that the
+ * writer thread concatenates, so a record below the sink level costs nothing but
+ * the level check; pass values, not objects that may change before they are
+ * printed.
+ *
+ * Each agent may log at most the sink's rate limit of records per second; the
+ * records over the limit are counted and reported when the next second starts.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class AgentLog {
+    
+    private final LogSink sink;
+    private final String source;
+    
+    // Fixed one-second window of the rate limit
+    private final AtomicLong window;
+    private final AtomicInteger inWindow;
+    private final AtomicInteger suppressed;
+    
+    AgentLog(LogSink sink, String source) {
+        this.sink = sink;
+        this.source = source;
+        this.window = new AtomicLong();
+        this.inWindow = new AtomicInteger();
+        this.suppressed = new AtomicInteger();
+    }
+    
+    /**
+     * Log of an agent in the shared sink
+     */
+    public static AgentLog of(String source) {
+        return LogSink.shared().forSource(source);
+    }
+    
+    public boolean isEnabled(Level level) {
+        return sink.isEnabled(level);
+    }
+    
+    public void debug(Object... parts) {
+        log(Level.DEBUG, parts);
+    }
+    
+    public void info(Object... parts) {
+        log(Level.INFO, parts);
+    }
+    
+    public void warn(Object... parts) {
+        log(Level.WARN, parts);
+    }
+    
+    public void error(Object... parts) {
+        log(Level.ERROR, parts);
+    }
+    
+    public void log(Level level, Object... parts) {
+        if (sink.isEnabled(level) && admit()) {
+            sink.offer(level, source, parts);
+        }
+    }
+    
+    /**
+     * Sampler of a repetitive event of this agent
+     */
+    public Sampler sampler(int every) {
+        return new Sampler(every);
+    }
+    
+    private boolean admit() {
+        int limit = sink.getRateLimit();
+        if (limit <= 0) {
+            return true;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        long current = window.get();
+        if (second != current && window.compareAndSet(current, second)) {
+            inWindow.set(0);
+            int lost = suppressed.getAndSet(0);
+            if (lost > 0) {
+                sink.offer(Level.WARN, source, new Object[]{lost, " records over the rate limit of ", limit, "/s"});
+            }
+        }
+        if (inWindow.incrementAndGet() <= limit) {
+            return true;
+        }
+        suppressed.incrementAndGet();
+        sink.countRateLimited();
+        return false;
+    }
+    
+    /**
+     * Logs the first occurrence of an event then one of every n, with the number of
+     * occurrences skipped since the previous record
+     */
+    public class Sampler {
+        private final int every;
+        private final AtomicLong occurrences;
+        
+        Sampler(int every) {
+            this.every = Math.max(1, every);
+            this.occurrences = new AtomicLong();
+        }
+        
+        public void log(Level level, Object... parts) {
+            if (!sink.isEnabled(level)) {
+                return;
+            }
+            long occurrence = occurrences.getAndIncrement();
+            if (occurrence % every != 0) {
+                return;
+            }
+            if (occurrence > 0 && every > 1) {
+                parts = Arrays.copyOf(parts, parts.length + 3);
+                parts[parts.length - 3] = " (";
+                parts[parts.length - 2] = every - 1;
+                parts[parts.length - 1] = " similar skipped)";
+            }
+            AgentLog.this.log(level, parts);
+        }
+        
+        public void debug(Object... parts) {
+            log(Level.DEBUG, parts);
+        }
+        
+        public void info(Object... parts) {
+            log(Level.INFO, parts);
+        }
+    }
+}
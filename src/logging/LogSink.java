@@ -0,0 +1,285 @@
+package logging;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log output shared by all agents of the JVM, whatever their container.
+ * Agents log through their AgentLog: records are queued without locking and a
+ * single writer thread formats them and prints them in batches, so agent threads
+ * never wait on the console.
+ *
+ * The queue is bounded. Past 3/4 of its capacity, records below WARN are dropped;
+ * WARN and ERROR records are dropped only when it is full. The writer reports how
+ * many records were dropped.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class LogSink {
+    
+    /**
+     * Severity of a record, OFF disables logging
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+    
+    /**
+     * Output format: one text line or one JSON object per record
+     */
+    public enum Format {
+        TEXT, JSON_LINES
+    }
+    
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final int DEFAULT_RATE_LIMIT = 100; // Records per second and agent
+    
+    private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int PRINT_CHARS = 16 * 1024;
+    
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    
+    private static final LogSink shared = createShared();
+    
+    private final int capacity;
+    private final PrintStream out;
+    private volatile Level level;
+    private volatile Format format;
+    private volatile int rateLimit;
+    
+    private final ConcurrentLinkedQueue<Record> pending;
+    private final AtomicInteger pendingCount;
+    private final ConcurrentHashMap<String, AgentLog> sources;
+    
+    // Formatting buffers, used under their own lock by the writer or a flush
+    private final StringBuilder text;
+    private final StringBuilder message;
+    
+    // Statistics
+    private final LongAdder written;
+    private final LongAdder dropped;
+    private final LongAdder rateLimited;
+    private final AtomicLong unreportedDrops;
+    
+    public LogSink(int capacity, int rateLimit, Level level, PrintStream out) {
+        this.capacity = capacity;
+        this.rateLimit = rateLimit;
+        this.level = level;
+        this.format = Format.TEXT;
+        this.out = out;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.pendingCount = new AtomicInteger();
+        this.sources = new ConcurrentHashMap<>();
+        this.text = new StringBuilder(PRINT_CHARS);
+        this.message = new StringBuilder();
+        this.written = new LongAdder();
+        this.dropped = new LongAdder();
+        this.rateLimited = new LongAdder();
+        this.unreportedDrops = new AtomicLong();
+    }
+    
+    private static LogSink createShared() {
+        LogSink sink = new LogSink(DEFAULT_CAPACITY, DEFAULT_RATE_LIMIT, Level.INFO, System.out);
+        sink.start();
+        // Records still queued at exit are printed
+        Runtime.getRuntime().addShutdownHook(new Thread(sink::flush, "log-flush"));
+        return sink;
+    }
+    
+    /**
+     * Sink shared by all agents of this JVM, whatever their container
+     */
+    public static LogSink shared() {
+        return shared;
+    }
+    
+    /**
+     * Log of an agent (or any named source), created on first use
+     */
+    public AgentLog forSource(String source) {
+        return sources.computeIfAbsent(source, name -> new AgentLog(this, name));
+    }
+    
+    /**
+     * Forget the log of a source that terminated
+     */
+    public void release(String source) {
+        sources.remove(source);
+    }
+    
+    /**
+     * Start the writer thread
+     */
+    public void start() {
+        Thread writer = new Thread(() -> {
+            while (true) {
+                if (flush() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK);
+                }
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    public boolean isEnabled(Level recordLevel) {
+        return recordLevel.compareTo(level) >= 0 && recordLevel != Level.OFF;
+    }
+    
+    /**
+     * Queue a record, or drop it when the queue is full for its level
+     */
+    boolean offer(Level recordLevel, String source, Object[] parts) {
+        int limit = recordLevel.compareTo(Level.WARN) >= 0 ? capacity : capacity - capacity / 4;
+        if (pendingCount.incrementAndGet() > limit) {
+            pendingCount.decrementAndGet();
+            dropped.increment();
+            unreportedDrops.incrementAndGet();
+            return false;
+        }
+        pending.offer(new Record(System.currentTimeMillis(), recordLevel, source, parts));
+        return true;
+    }
+    
+    void countRateLimited() {
+        rateLimited.increment();
+    }
+    
+    /**
+     * Print the queued records on the calling thread
+     *
+     * @return the number of records printed
+     */
+    public int flush() {
+        synchronized (text) {
+            int count = 0;
+            Record record;
+            while ((record = pending.poll()) != null) {
+                pendingCount.decrementAndGet();
+                append(record);
+                count++;
+                if (text.length() >= PRINT_CHARS) {
+                    out.print(text);
+                    text.setLength(0);
+                }
+            }
+            long drops = unreportedDrops.getAndSet(0);
+            if (drops > 0) {
+                append(new Record(System.currentTimeMillis(), Level.WARN, "log",
+                                  new Object[]{drops, " records dropped, queue full"}));
+            }
+            if (text.length() > 0) {
+                out.print(text);
+                out.flush();
+                text.setLength(0);
+            }
+            written.add(count);
+            return count;
+        }
+    }
+    
+    private void append(Record record) {
+        message.setLength(0);
+        for (Object part : record.parts) {
+            message.append(part);
+        }
+        if (format == Format.TEXT) {
+            TIME_FORMAT.formatTo(Instant.ofEpochMilli(record.timestamp), text);
+            text.append(' ').append(record.level.name());
+            for (int i = record.level.name().length(); i < 6; i++) {
+                text.append(' ');
+            }
+            text.append(record.source).append(' ').append(message).append('\n');
+        } else {
+            text.append("{\"time\":").append(record.timestamp)
+                .append(",\"level\":\"").append(record.level.name())
+                .append("\",\"source\":");
+            appendJson(record.source);
+            text.append(",\"message\":");
+            appendJson(message);
+            text.append("}\n");
+        }
+    }
+    
+    private void appendJson(CharSequence value) {
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                text.append('\\').append(c);
+            } else if (c == '\n') {
+                text.append("\\n");
+            } else if (c < 0x20) {
+                text.append(String.format("\\u%04x", (int) c));
+            } else {
+                text.append(c);
+            }
+        }
+        text.append('"');
+    }
+    
+    public Level getLevel() {
+        return level;
+    }
+    
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+    
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+    
+    public int getRateLimit() {
+        return rateLimit;
+    }
+    
+    /**
+     * Records per second allowed to each source, 0 for no limit
+     */
+    public void setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+    
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+    
+    public long getWritten() {
+        return written.sum();
+    }
+    
+    public long getDropped() {
+        return dropped.sum();
+    }
+    
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+    
+    /**
+     * A queued record; its parts are concatenated by the writer
+     */
+    private static class Record {
+        final long timestamp;
+        final Level level;
+        final String source;
+        final Object[] parts;
+        
+        Record(long timestamp, Level level, String source, Object[] parts) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.source = source;
+            this.parts = parts;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram of durations in milliseconds, with log-linear buckets in
+ * the manner of HdrHistogram: values below 32 have their own bucket, each power of
+ * two above is split into 32 buckets, so a value is known within 1/32 (3.1%) up to
+ * MAX_VALUE (about 2 years). The 1024 counters are updated lock-free; percentiles
+ * are read from them on any thread.
+ *
+ * Histograms add up, so the histograms of several agents can be merged; drain()
+ * hands the counts recorded since the previous drain over as a compact text.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class LatencyHistogram {
+    
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+    
+    public static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+    public static final int BUCKETS = SUB_BUCKETS * (MAX_EXPONENT - SUB_BUCKET_BITS + 1);
+    
+    private final AtomicLongArray counts;
+    
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+    }
+    
+    /**
+     * Record a duration, negative durations as 0 and the longest ones as MAX_VALUE
+     */
+    public void record(long millis) {
+        counts.incrementAndGet(bucketOf(Math.max(0, Math.min(millis, MAX_VALUE))));
+    }
+    
+    /**
+     * Bucket of a value: its top 5 significant bits and its power of two
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+    
+    /**
+     * Largest value of a bucket
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+    
+    public long getCount() {
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            count += counts.get(bucket);
+        }
+        return count;
+    }
+    
+    /**
+     * Value that a percentage of the recorded values do not exceed, 0 when empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        int last = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            long bucketCount = counts.get(bucket);
+            if (bucketCount > 0) {
+                seen += bucketCount;
+                last = bucket;
+                if (seen >= rank) {
+                    return highestValueOf(bucket);
+                }
+            }
+        }
+        // Values recorded while reading
+        return highestValueOf(last);
+    }
+    
+    public long getMax() {
+        for (int bucket = BUCKETS - 1; bucket >= 0; bucket--) {
+            if (counts.get(bucket) > 0) {
+                return highestValueOf(bucket);
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Add the counts of another histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            long count = other.counts.get(bucket);
+            if (count > 0) {
+                counts.addAndGet(bucket, count);
+            }
+        }
+    }
+    
+    /**
+     * Take the counts recorded since the previous drain, as "bucket=count" pairs
+     * separated by commas; empty when nothing was recorded
+     */
+    public String drain() {
+        StringBuilder encoded = new StringBuilder();
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (counts.get(bucket) > 0) {
+                // A value recorded meanwhile is part of this drain or of the next one
+                long count = counts.getAndSet(bucket, 0);
+                if (encoded.length() > 0) {
+                    encoded.append(',');
+                }
+                encoded.append(bucket).append('=').append(count);
+            }
+        }
+        return encoded.toString();
+    }
+    
+    /**
+     * Add counts taken by drain()
+     */
+    public void addEncoded(String encoded) {
+        int pair = 0;
+        while (pair < encoded.length()) {
+            int end = encoded.indexOf(',', pair);
+            if (end < 0) {
+                end = encoded.length();
+            }
+            int equals = encoded.indexOf('=', pair);
+            if (equals < 0 || equals > end) {
+                throw new NumberFormatException("Invalid histogram counts: " + encoded);
+            }
+            int bucket = Integer.parseInt(encoded, pair, equals, 10);
+            if (bucket < 0 || bucket >= BUCKETS) {
+                throw new NumberFormatException("Invalid histogram bucket: " + bucket);
+            }
+            counts.addAndGet(bucket, Long.parseLong(encoded, equals + 1, end, 10));
+            pair = end + 1;
+        }
+    }
+    
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts.set(bucket, 0);
+        }
+    }
+}
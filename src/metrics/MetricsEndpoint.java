@@ -0,0 +1,127 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import metrics.MetricsRegistry.Metric;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Local HTTP endpoint of the monitoring metrics, on the JDK's built-in HTTP server,
+ * for deployments without the Swing dashboard:
+ * - GET /metrics      Prometheus text format, metric names prefixed with "hospital_"
+ * - GET /metrics.json flat JSON object keyed by the dashboard metric names
+ *
+ * Each request renders a lock-free snapshot of the registry, so scrapes never
+ * block the monitoring agent. The server listens on the loopback interface only.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class MetricsEndpoint {
+    
+    public static final int DEFAULT_PORT = 9464;
+    
+    private static final String PREFIX = "hospital_";
+    
+    private final MetricsRegistry metrics;
+    private final HttpServer server;
+    
+    /**
+     * Bind the endpoint to a local port, 0 for any free port
+     */
+    public MetricsEndpoint(MetricsRegistry metrics, int port) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+    }
+    
+    public void start() {
+        server.start();
+    }
+    
+    public void stop() {
+        server.stop(0);
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            
+            String body;
+            String contentType;
+            if (path.equals("/metrics")) {
+                body = renderPrometheus(metrics.snapshot());
+                contentType = "text/plain; version=0.0.4; charset=utf-8";
+            } else if (path.equals("/metrics.json")) {
+                body = renderJson(metrics.snapshot());
+                contentType = "application/json; charset=utf-8";
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    /**
+     * Metrics in the Prometheus text exposition format: counters and sums as
+     * counters, the other metrics as gauges
+     */
+    public static String renderPrometheus(MetricsRegistry.Snapshot snapshot) {
+        StringBuilder text = new StringBuilder(1024);
+        for (Metric metric : Metric.values()) {
+            String name = PREFIX + metric.getKey();
+            text.append("# TYPE ").append(name).append(' ')
+                .append(metric.getKind() == MetricsRegistry.Kind.GAUGE ? "gauge" : "counter").append('\n');
+            text.append(name).append(' ');
+            appendValue(text, metric, snapshot);
+            text.append('\n');
+        }
+        return text.toString();
+    }
+    
+    /**
+     * Metrics as a flat JSON object
+     */
+    public static String renderJson(MetricsRegistry.Snapshot snapshot) {
+        StringBuilder json = new StringBuilder(512);
+        json.append('{');
+        for (Metric metric : Metric.values()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append('"').append(metric.getKey()).append("\":");
+            appendValue(json, metric, snapshot);
+        }
+        return json.append('}').toString();
+    }
+    
+    private static void appendValue(StringBuilder text, Metric metric, MetricsRegistry.Snapshot snapshot) {
+        if (metric.getKind() == MetricsRegistry.Kind.COUNTER) {
+            text.append(snapshot.getLong(metric));
+            return;
+        }
+        double value = snapshot.get(metric);
+        // Neither format has a literal for NaN or infinities that both parsers accept
+        text.append(Double.isFinite(value) ? value : 0.0);
+    }
+}
@@ -0,0 +1,579 @@
+package metrics;
+
+import logging.AgentLog;
+import metrics.MetricsRegistry.Metric;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Persistent, append-only history of the monitoring metrics and of the resource
+ * status transitions. Records have a fixed size (timestamp, series, value) and are
+ * appended to memory-mapped segment files:
+ * - a metric sample is written when the metric changed, and every metric at the
+ *   start of a segment so that each segment stands on its own
+ * - a transition is written when a resource becomes busy or available; resource
+ *   names are kept in a dictionary file and records refer to them by id
+ * - a patient event is written on arrival, allocation and completion; patient ids
+ *   are numbered in a file of fixed-size slots, only the patients in the hospital
+ *   being kept in memory
+ *
+ * Timestamps only grow, so the segments sorted by start time and the records of a
+ * segment form the time index: a range query skips the segments outside the range
+ * and binary searches its first record, then reads the mapped records in place
+ * without copying them to the heap. A segment is closed when full or after a day,
+ * and whole segments older than the retention are deleted.
+ *
+ * Written by one thread, the monitoring agent's; queried from any thread.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class MetricsHistoryStore {
+    
+    public static final int DEFAULT_SEGMENT_RECORDS = 65_536;         // 1.5 MB segments
+    public static final long DEFAULT_SEGMENT_SPAN = 86_400_000L;      // 1 day
+    public static final long DEFAULT_RETENTION = 31 * 86_400_000L;    // 31 days
+    
+    // Series ids of the resource transitions and of the patient events start here,
+    // metric ids are the metric ordinals
+    public static final int RESOURCE_SERIES = 1 << 16;
+    public static final int PATIENT_SERIES = 1 << 30;
+    
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String DICTIONARY = "resources.txt";
+    private static final String PATIENTS = "patients.dat";
+    private static final int PATIENT_SLOT = 64; // UTF-8 patient id, zero-padded
+    
+    // Segment header: magic, version, record size, capacity, first and last timestamps, count
+    private static final int MAGIC = 0x484D4853; // "HMHS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int FIRST_TIME_OFFSET = 16;
+    private static final int LAST_TIME_OFFSET = 24;
+    private static final int COUNT_OFFSET = 32;
+    
+    // Record: timestamp (8), series (4), aux (4), value (8)
+    private static final int RECORD_SIZE = 24;
+    
+    private static final Metric[] METRICS = Metric.values();
+    
+    /**
+     * Receives the records of a range query
+     */
+    public interface RecordVisitor {
+        void record(long timestamp, int series, long value);
+    }
+    
+    /**
+     * Receives the samples of one metric
+     */
+    public interface SampleVisitor {
+        void sample(long timestamp, double value);
+    }
+    
+    /**
+     * Receives the resource status transitions
+     */
+    public interface TransitionVisitor {
+        void transition(long timestamp, String resourceType, String resource, boolean busy);
+    }
+    
+    /**
+     * Steps of a patient's stay
+     */
+    public enum PatientEvent {
+        ARRIVAL,    // Registered with the monitor
+        ALLOCATION, // Assigned to a resource, which starts the treatment
+        COMPLETION  // Treated
+    }
+    
+    /**
+     * Receives the patient events: the patient number (see getPatientId), the
+     * resource id of an allocation and the wait of a completion, -1 otherwise
+     */
+    public interface PatientVisitor {
+        void event(long timestamp, PatientEvent event, long patient, int resource, long waitMillis);
+    }
+    
+    // Records as stored, the aux field included
+    private interface RawVisitor {
+        void record(long timestamp, int series, int aux, long value);
+    }
+    
+    private final Path directory;
+    private final AgentLog log;
+    private final int segmentRecords;
+    private final long segmentSpan;
+    private final long retention;
+    
+    // Segments by start time, the last one open for appends
+    private final List<Segment> segments;
+    
+    // Resource dictionary: id = line of the dictionary file
+    private final Map<String, Integer> resourceIds;
+    private final List<String> resourceNames;
+    private final List<String> resourceTypes;
+    private BufferedWriter dictionary;
+    
+    // Patient numbers: slot of the patients file, in memory until the patient is treated
+    private final Map<String, Long> patientNumbers;
+    private final ByteBuffer patientSlot;
+    private FileChannel patients;
+    private long patientCount;
+    
+    // Metric cells as last written, compared with each new snapshot
+    private final long[] written;
+    private boolean metricsWritten;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private long nextSegment;
+    
+    /**
+     * Open or create the store in a directory, with the default segments and retention
+     */
+    public MetricsHistoryStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_RECORDS, DEFAULT_SEGMENT_SPAN, DEFAULT_RETENTION);
+    }
+    
+    public MetricsHistoryStore(Path directory, int segmentRecords, long segmentSpan, long retention) throws IOException {
+        this.directory = directory;
+        this.log = AgentLog.of("History");
+        this.segmentRecords = segmentRecords;
+        this.segmentSpan = segmentSpan;
+        this.retention = retention;
+        this.segments = new CopyOnWriteArrayList<>();
+        this.resourceIds = new HashMap<>();
+        this.resourceNames = new CopyOnWriteArrayList<>();
+        this.resourceTypes = new CopyOnWriteArrayList<>();
+        this.patientNumbers = new HashMap<>();
+        this.patientSlot = ByteBuffer.allocate(PATIENT_SLOT);
+        this.written = new long[METRICS.length];
+        
+        Files.createDirectories(directory);
+        loadDictionary();
+        loadSegments();
+        patients = FileChannel.open(directory.resolve(PATIENTS), StandardOpenOption.CREATE, 
+                                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        patientCount = patients.size() / PATIENT_SLOT;
+    }
+    
+    private void loadDictionary() throws IOException {
+        Path file = directory.resolve(DICTIONARY);
+        if (Files.exists(file)) {
+            // Format: <resource type>\t<resource name>, one line per resource id
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                registerResource(tab < 0 ? "" : line.substring(0, tab), line.substring(tab + 1));
+            }
+        }
+        dictionary = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                                             StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+    
+    private void loadSegments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // Zero-padded sequence numbers sort by name, in time order
+        files.sort(null);
+        
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            Segment segment = Segment.open(file);
+            if (segment == null) {
+                log.warn("skipping unreadable segment ", name);
+                continue;
+            }
+            segments.add(segment);
+            lastTimestamp = Math.max(lastTimestamp, segment.lastTime);
+            nextSegment = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())) + 1;
+        }
+        // Appends go to a new segment, which starts with every metric of the new run
+    }
+    
+    /**
+     * Record the metrics that changed since the previous call
+     */
+    public void appendMetrics(long timestamp, MetricsRegistry.Snapshot snapshot) throws IOException {
+        timestamp = Math.max(timestamp, lastTimestamp);
+        boolean newSegment = prepareSegment(timestamp, METRICS.length);
+        for (Metric metric : METRICS) {
+            long bits = snapshot.getBits(metric);
+            if (newSegment || bits != written[metric.ordinal()]) {
+                append(timestamp, metric.ordinal(), 0, bits);
+                written[metric.ordinal()] = bits;
+            }
+        }
+        metricsWritten = true;
+    }
+    
+    /**
+     * Record a resource becoming busy or available
+     */
+    public void appendTransition(long timestamp, String resourceType, String resource, boolean busy) throws IOException {
+        timestamp = Math.max(timestamp, lastTimestamp);
+        int id = resourceId(resourceType, resource);
+        if (prepareSegment(timestamp, 1) && metricsWritten) {
+            writeBaseline(timestamp);
+        }
+        append(timestamp, RESOURCE_SERIES + id, 0, busy ? 1 : 0);
+    }
+    
+    private int resourceId(String resourceType, String resource) throws IOException {
+        Integer id = resourceIds.get(resource);
+        if (id == null) {
+            id = registerResource(resourceType, resource);
+            dictionary.write(resourceType + "\t" + resource);
+            dictionary.newLine();
+            dictionary.flush();
+        }
+        return id;
+    }
+    
+    private int registerResource(String resourceType, String resource) {
+        int id = resourceNames.size();
+        resourceIds.put(resource, id);
+        resourceNames.add(resource);
+        resourceTypes.add(resourceType);
+        return id;
+    }
+    
+    /**
+     * Record a patient registered with the monitor
+     */
+    public void appendArrival(long timestamp, String patient) throws IOException {
+        appendPatientEvent(timestamp, PatientEvent.ARRIVAL, patientNumber(patient), 0);
+    }
+    
+    /**
+     * Record a patient assigned to a resource
+     */
+    public void appendAllocation(long timestamp, String patient, String resourceType, String resource) throws IOException {
+        appendPatientEvent(timestamp, PatientEvent.ALLOCATION, patientNumber(patient), resourceId(resourceType, resource));
+    }
+    
+    /**
+     * Record a treated patient and how long it waited
+     */
+    public void appendCompletion(long timestamp, String patient, long waitMillis) throws IOException {
+        long number = patientNumber(patient);
+        // The patient has left: its number is only kept in the patients file
+        patientNumbers.remove(patient);
+        appendPatientEvent(timestamp, PatientEvent.COMPLETION, number, (int) Math.min(waitMillis, Integer.MAX_VALUE));
+    }
+    
+    private void appendPatientEvent(long timestamp, PatientEvent event, long number, int aux) throws IOException {
+        timestamp = Math.max(timestamp, lastTimestamp);
+        if (prepareSegment(timestamp, 1) && metricsWritten) {
+            writeBaseline(timestamp);
+        }
+        append(timestamp, PATIENT_SERIES + event.ordinal(), aux, number);
+    }
+    
+    /**
+     * Number of a patient, given to it at its first event
+     */
+    private long patientNumber(String patient) throws IOException {
+        Long number = patientNumbers.get(patient);
+        if (number == null) {
+            number = patientCount++;
+            patientSlot.clear();
+            byte[] id = patient.getBytes(StandardCharsets.UTF_8);
+            patientSlot.put(id, 0, Math.min(id.length, PATIENT_SLOT));
+            while (patientSlot.hasRemaining()) {
+                patientSlot.put((byte) 0);
+            }
+            patientSlot.flip();
+            patients.write(patientSlot, number * PATIENT_SLOT);
+            patientNumbers.put(patient, number);
+        }
+        return number;
+    }
+    
+    /**
+     * Make room for some records, starting a segment when the current one is full or
+     * too old; returns true if a segment was started
+     */
+    private boolean prepareSegment(long timestamp, int records) throws IOException {
+        Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (current != null && current.writable &&
+            current.count + records <= current.capacity &&
+            timestamp - current.firstTime < segmentSpan) {
+            return false;
+        }
+        if (current != null) {
+            current.seal();
+        }
+        
+        Path file = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, nextSegment++, SEGMENT_SUFFIX));
+        segments.add(Segment.create(file, Math.max(segmentRecords, records + METRICS.length), timestamp));
+        deleteExpiredSegments(timestamp);
+        return true;
+    }
+    
+    private void writeBaseline(long timestamp) {
+        for (Metric metric : METRICS) {
+            append(timestamp, metric.ordinal(), 0, written[metric.ordinal()]);
+        }
+    }
+    
+    private void append(long timestamp, int series, int aux, long value) {
+        segments.get(segments.size() - 1).append(timestamp, series, aux, value);
+        lastTimestamp = timestamp;
+    }
+    
+    /**
+     * Delete the segments whose records are all older than the retention
+     */
+    private void deleteExpiredSegments(long now) {
+        for (Segment segment : segments) {
+            if (segment.writable || now - segment.lastTime <= retention) {
+                continue;
+            }
+            try {
+                // Readers still holding the mapping keep reading it; the space is
+                // reclaimed once the mapping is collected
+                Files.deleteIfExists(segment.file);
+                segments.remove(segment);
+            } catch (IOException e) {
+                // Retried when the next segment is started
+                log.warn("cannot delete ", segment.file.getFileName().toString(), ": ", e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Visit the records with from <= timestamp < to, in time order
+     */
+    public void forEach(long from, long to, RecordVisitor visitor) {
+        scan(from, to, (timestamp, series, aux, value) -> visitor.record(timestamp, series, value));
+    }
+    
+    private void scan(long from, long to, RawVisitor visitor) {
+        for (Segment segment : segments) {
+            int count = segment.count;
+            if (count == 0 || segment.firstTime >= to || segment.lastTime < from) {
+                continue;
+            }
+            for (int i = segment.firstAtOrAfter(from, count); i < count; i++) {
+                long timestamp = segment.timestamp(i);
+                if (timestamp >= to) {
+                    return;
+                }
+                visitor.record(timestamp, segment.series(i), segment.aux(i), segment.value(i));
+            }
+        }
+    }
+    
+    /**
+     * Visit the samples of a metric with from <= timestamp < to
+     */
+    public void forEachSample(Metric metric, long from, long to, SampleVisitor visitor) {
+        int id = metric.ordinal();
+        boolean counter = metric.getKind() == MetricsRegistry.Kind.COUNTER;
+        forEach(from, to, (timestamp, series, value) -> {
+            if (series == id) {
+                visitor.sample(timestamp, counter ? value : Double.longBitsToDouble(value));
+            }
+        });
+    }
+    
+    /**
+     * Visit the resource transitions with from <= timestamp < to
+     */
+    public void forEachTransition(long from, long to, TransitionVisitor visitor) {
+        forEach(from, to, (timestamp, series, value) -> {
+            if (series >= RESOURCE_SERIES && series < PATIENT_SERIES) {
+                int id = series - RESOURCE_SERIES;
+                visitor.transition(timestamp, getResourceType(id), getResourceName(id), value != 0);
+            }
+        });
+    }
+    
+    /**
+     * Visit the patient events with from <= timestamp < to
+     */
+    public void forEachPatientEvent(long from, long to, PatientVisitor visitor) {
+        PatientEvent[] events = PatientEvent.values();
+        scan(from, to, (timestamp, series, aux, value) -> {
+            if (series >= PATIENT_SERIES) {
+                PatientEvent event = events[series - PATIENT_SERIES];
+                visitor.event(timestamp, event, value, 
+                              event == PatientEvent.ALLOCATION ? aux : -1, 
+                              event == PatientEvent.COMPLETION ? aux : -1);
+            }
+        });
+    }
+    
+    /**
+     * Id of a numbered patient, read from the patients file
+     */
+    public String getPatientId(long number) throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(PATIENT_SLOT);
+        patients.read(slot, number * PATIENT_SLOT);
+        int length = 0;
+        while (length < slot.position() && slot.get(length) != 0) {
+            length++;
+        }
+        return new String(slot.array(), 0, length, StandardCharsets.UTF_8);
+    }
+    
+    public String getResourceName(int id) {
+        return id < resourceNames.size() ? resourceNames.get(id) : "#" + id;
+    }
+    
+    public String getResourceType(int id) {
+        return id < resourceTypes.size() ? resourceTypes.get(id) : "";
+    }
+    
+    /**
+     * Number of resources of the dictionary, ids being 0 to count - 1
+     */
+    public int getResourceCount() {
+        return resourceNames.size();
+    }
+    
+    public int getSegmentCount() {
+        return segments.size();
+    }
+    
+    /**
+     * Flush the open segment and the dictionary to disk and release the files
+     */
+    public void close() throws IOException {
+        for (Segment segment : segments) {
+            segment.seal();
+        }
+        dictionary.close();
+        patients.close();
+    }
+    
+    /**
+     * One segment file: a header and a fixed number of record slots, mapped in memory
+     */
+    private static class Segment {
+        final Path file;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        final long firstTime;
+        volatile long lastTime;
+        volatile int count; // Published after the record it counts is written
+        boolean writable;
+        
+        private Segment(Path file, MappedByteBuffer buffer, boolean writable) {
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = buffer.getInt(12);
+            this.firstTime = buffer.getLong(FIRST_TIME_OFFSET);
+            this.lastTime = buffer.getLong(LAST_TIME_OFFSET);
+            this.count = buffer.getInt(COUNT_OFFSET);
+            this.writable = writable;
+        }
+        
+        static Segment create(Path file, int capacity, long firstTime) throws IOException {
+            MappedByteBuffer buffer = map(file, HEADER_SIZE + (long) capacity * RECORD_SIZE, true);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, RECORD_SIZE);
+            buffer.putInt(12, capacity);
+            buffer.putLong(FIRST_TIME_OFFSET, firstTime);
+            buffer.putLong(LAST_TIME_OFFSET, firstTime);
+            buffer.putInt(COUNT_OFFSET, 0);
+            return new Segment(file, buffer, true);
+        }
+        
+        /**
+         * Map an existing segment read-only, null if it is not a segment of this format
+         */
+        static Segment open(Path file) throws IOException {
+            long size = Files.size(file);
+            if (size < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buffer = map(file, size, false);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_SIZE ||
+                HEADER_SIZE + (long) buffer.getInt(12) * RECORD_SIZE != size) {
+                return null;
+            }
+            return new Segment(file, buffer, false);
+        }
+        
+        private static MappedByteBuffer map(Path file, long size, boolean writable) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), writable ? "rw" : "r")) {
+                if (writable && raf.length() != size) {
+                    raf.setLength(size);
+                }
+                // The mapping stays valid once the channel is closed
+                return raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                                            0, size);
+            }
+        }
+        
+        void append(long timestamp, int series, int aux, long value) {
+            int offset = HEADER_SIZE + count * RECORD_SIZE;
+            buffer.putLong(offset, timestamp);
+            buffer.putInt(offset + 8, series);
+            buffer.putInt(offset + 12, aux);
+            buffer.putLong(offset + 16, value);
+            // A record past the stored count is ignored when the segment is reopened
+            buffer.putLong(LAST_TIME_OFFSET, timestamp);
+            buffer.putInt(COUNT_OFFSET, count + 1);
+            lastTime = timestamp;
+            count = count + 1;
+        }
+        
+        void seal() {
+            if (writable) {
+                buffer.force();
+                writable = false;
+            }
+        }
+        
+        long timestamp(int record) {
+            return buffer.getLong(HEADER_SIZE + record * RECORD_SIZE);
+        }
+        
+        int series(int record) {
+            return buffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 8);
+        }
+        
+        int aux(int record) {
+            return buffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 12);
+        }
+        
+        long value(int record) {
+            return buffer.getLong(HEADER_SIZE + record * RECORD_SIZE + 16);
+        }
+        
+        /**
+         * Index of the first record at or after a time, binary searched
+         */
+        int firstAtOrAfter(long time, int count) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timestamp(mid) < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
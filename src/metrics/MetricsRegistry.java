@@ -0,0 +1,242 @@
+package metrics;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Primitive store of the monitoring metrics. Each metric has a fixed index (its
+ * ordinal) in one array of 64-bit cells: counters hold a long, gauges and sums the
+ * bits of a double, so updates neither box nor allocate.
+ *
+ * Metrics are written by one thread, the monitoring agent's. Readers on any thread
+ * take lock-free snapshots: writers bump a sequence number around each update, and
+ * a snapshot copies the cells again if an update ran while it was copying. A reader
+ * never waits for the writer: should updates keep running through every retry, the
+ * snapshot keeps its last copy, which may straddle an update, and says so.
+ *
+ * Counters are only updated as longs and the other kinds as doubles; an update of
+ * the wrong kind, e.g. add(TOTAL_WAIT_TIME, 5) with an int literal, is rejected.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class MetricsRegistry {
+    
+    /**
+     * How a cell is updated
+     */
+    public enum Kind {
+        COUNTER, // long, incremented
+        GAUGE,   // double, set
+        SUM      // double, accumulated
+    }
+    
+    /**
+     * Metric ids, named after the dashboard keys
+     */
+    public enum Metric {
+        TOTAL_PATIENTS("total_patients", Kind.COUNTER),
+        TREATED_PATIENTS("treated_patients", Kind.COUNTER),
+        WAITING_PATIENTS("waiting_patients", Kind.COUNTER),
+        TOTAL_WAIT_TIME("total_wait_time", Kind.SUM),
+        AVG_WAIT_TIME("avg_wait_time", Kind.GAUGE),
+        SUCCESS_RATE("success_rate", Kind.GAUGE),
+        DOCTOR_UTILIZATION("doctor_utilization", Kind.GAUGE),
+        ROOM_UTILIZATION("room_utilization", Kind.GAUGE),
+        EQUIPMENT_UTILIZATION("equipment_utilization", Kind.GAUGE),
+        THROUGHPUT("throughput", Kind.GAUGE),
+        QUEUE_LENGTH("queue_length", Kind.GAUGE),
+        ALLOCATION_RATE("allocation_rate", Kind.GAUGE),
+        ALLOCATION_LATENCY("allocation_latency", Kind.GAUGE),
+        ALLOCATION_LATENCY_MAX("allocation_latency_max", Kind.GAUGE),
+        ALLOCATION_SUCCESS("allocation_success", Kind.COUNTER),
+        ALLOCATION_FAILED("allocation_failed", Kind.COUNTER),
+        EFFICIENCY_SCORE("efficiency_score", Kind.GAUGE),
+        // Wait time percentiles in minutes, merged from the schedulers' histograms
+        WAIT_TIME_P50("wait_time_p50", Kind.GAUGE),
+        WAIT_TIME_P90("wait_time_p90", Kind.GAUGE),
+        WAIT_TIME_P99("wait_time_p99", Kind.GAUGE),
+        WAIT_TIME_P999("wait_time_p999", Kind.GAUGE);
+        
+        private final String key;
+        private final Kind kind;
+        
+        Metric(String key, Kind kind) {
+            this.key = key;
+            this.kind = kind;
+        }
+        
+        public String getKey() {
+            return key;
+        }
+        
+        public Kind getKind() {
+            return kind;
+        }
+    }
+    
+    private static final Metric[] METRICS = Metric.values();
+    
+    // Snapshot attempts before settling for a copy that may straddle an update; past
+    // the spins the reader yields, letting a preempted writer finish its update
+    private static final int SNAPSHOT_RETRIES = 64;
+    private static final int SNAPSHOT_SPINS = 4;
+    
+    private final AtomicLongArray cells;
+    private final AtomicLong sequence;
+    
+    public MetricsRegistry() {
+        this.cells = new AtomicLongArray(METRICS.length);
+        this.sequence = new AtomicLong();
+        reset();
+    }
+    
+    /**
+     * Start an update of several metrics that snapshots see as a whole
+     */
+    public void beginUpdate() {
+        sequence.incrementAndGet(); // Odd while an update is running
+    }
+    
+    public void endUpdate() {
+        sequence.incrementAndGet();
+    }
+    
+    public void increment(Metric metric) {
+        add(metric, 1);
+    }
+    
+    public void add(Metric metric, long delta) {
+        checkCounter(metric, true);
+        cells.addAndGet(metric.ordinal(), delta);
+    }
+    
+    /**
+     * Decrement a counter that never goes below zero
+     */
+    public void decrementToZero(Metric metric) {
+        checkCounter(metric, true);
+        int index = metric.ordinal();
+        if (cells.get(index) > 0) {
+            cells.decrementAndGet(index);
+        }
+    }
+    
+    public void set(Metric metric, double value) {
+        checkCounter(metric, false);
+        cells.set(metric.ordinal(), Double.doubleToRawLongBits(value));
+    }
+    
+    public void add(Metric metric, double delta) {
+        checkCounter(metric, false);
+        int index = metric.ordinal();
+        cells.set(index, Double.doubleToRawLongBits(Double.longBitsToDouble(cells.get(index)) + delta));
+    }
+    
+    public long getLong(Metric metric) {
+        return metric.kind == Kind.COUNTER ? cells.get(metric.ordinal()) : (long) get(metric);
+    }
+    
+    public double get(Metric metric) {
+        long cell = cells.get(metric.ordinal());
+        return metric.kind == Kind.COUNTER ? cell : Double.longBitsToDouble(cell);
+    }
+    
+    private static void checkCounter(Metric metric, boolean counter) {
+        if ((metric.kind == Kind.COUNTER) != counter) {
+            throw new IllegalArgumentException(metric + " is a " + metric.kind + 
+                (counter ? ", updated as a double" : ", updated as a long"));
+        }
+    }
+    
+    /**
+     * Reset every metric to its initial value, the success rate starting at 100%
+     */
+    public void reset() {
+        beginUpdate();
+        for (Metric metric : METRICS) {
+            cells.set(metric.ordinal(), metric.kind == Kind.COUNTER ? 0L : Double.doubleToRawLongBits(0.0));
+        }
+        set(Metric.SUCCESS_RATE, 100.0);
+        endUpdate();
+    }
+    
+    public Snapshot snapshot() {
+        return snapshot(new Snapshot());
+    }
+    
+    /**
+     * Copy the metrics into a snapshot, reused by periodic readers. After
+     * SNAPSHOT_RETRIES copies overlapped by updates, the last one is kept and
+     * marked inconsistent rather than waiting for the writer.
+     */
+    public Snapshot snapshot(Snapshot into) {
+        into.consistent = false;
+        for (int attempt = 0; attempt < SNAPSHOT_RETRIES; attempt++) {
+            long before = sequence.get();
+            for (int i = 0; i < into.cells.length; i++) {
+                into.cells[i] = cells.get(i);
+            }
+            if ((before & 1) == 0 && sequence.get() == before) {
+                into.consistent = true;
+                break;
+            }
+            if (attempt < SNAPSHOT_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        return into;
+    }
+    
+    /**
+     * Point-in-time copy of the metrics
+     */
+    public static class Snapshot {
+        private final long[] cells = new long[METRICS.length];
+        private boolean consistent;
+        
+        /**
+         * False if every copy overlapped an update, some metrics then predating it
+         */
+        public boolean isConsistent() {
+            return consistent;
+        }
+        
+        public double get(Metric metric) {
+            long cell = cells[metric.ordinal()];
+            return metric.kind == Kind.COUNTER ? cell : Double.longBitsToDouble(cell);
+        }
+        
+        public long getLong(Metric metric) {
+            return metric.kind == Kind.COUNTER ? cells[metric.ordinal()] : (long) get(metric);
+        }
+        
+        /**
+         * Raw cell of a metric: a counter's long or a double's bits
+         */
+        long getBits(Metric metric) {
+            return cells[metric.ordinal()];
+        }
+        
+        /**
+         * Whether two snapshots hold the same values
+         */
+        public boolean sameValues(Snapshot other) {
+            return Arrays.equals(cells, other.cells);
+        }
+        
+        /**
+         * Metrics by dashboard key
+         */
+        public Map<String, Double> toMap() {
+            Map<String, Double> values = new LinkedHashMap<>();
+            for (Metric metric : METRICS) {
+                values.put(metric.key, get(metric));
+            }
+            return values;
+        }
+    }
+}
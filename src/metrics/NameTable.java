@@ -0,0 +1,78 @@
+package metrics;
+
+/**
+ * Interned agent names read from ranges of a text, e.g. the sources of the events
+ * of a telemetry batch. A name is extracted the first time it is seen; later
+ * lookups compare the range in place and return the same String, whose hash is
+ * cached for the maps keyed by it, so they allocate nothing.
+ *
+ * Names are never forgotten: meant for the resource agents, which are few.
+ * Used from the monitoring agent thread only.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class NameTable {
+    
+    // Open addressing with linear probing, kept at most half full
+    private String[] names;
+    private int size;
+    
+    public NameTable() {
+        this.names = new String[64];
+    }
+    
+    /**
+     * The name held in text[start, end), extracted only the first time
+     */
+    public String intern(String text, int start, int end) {
+        int length = end - start;
+        int mask = names.length - 1;
+        int slot = spread(hash(text, start, end)) & mask;
+        while (names[slot] != null) {
+            String name = names[slot];
+            if (name.length() == length && text.regionMatches(start, name, 0, length)) {
+                return name;
+            }
+            slot = (slot + 1) & mask;
+        }
+        String name = text.substring(start, end);
+        names[slot] = name;
+        if (++size * 2 > names.length) {
+            grow();
+        }
+        return name;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    private void grow() {
+        String[] previous = names;
+        names = new String[previous.length * 2];
+        int mask = names.length - 1;
+        for (String name : previous) {
+            if (name != null) {
+                int slot = spread(name.hashCode()) & mask;
+                while (names[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                names[slot] = name;
+            }
+        }
+    }
+    
+    /**
+     * String.hashCode() of the range, so names rehash from their cached hash
+     */
+    private static int hash(String text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash;
+    }
+    
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
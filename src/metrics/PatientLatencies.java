@@ -0,0 +1,142 @@
+package metrics;
+
+/**
+ * Latency histograms of the patients' stays: wait before allocation, allocation
+ * latency and treatment duration, each for all patients, by urgency level and by
+ * treatment type. Memory is fixed: 39 histograms of 8 KB.
+ *
+ * The schedulers record and periodically drain their histograms to the monitoring
+ * agent, which adds the counts of all of them.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class PatientLatencies {
+    
+    /**
+     * Measured durations
+     */
+    public enum Measure {
+        WAIT_TIME("Wait time"),
+        ALLOCATION_LATENCY("Allocation latency"),
+        TREATMENT_DURATION("Treatment duration");
+        
+        private final String label;
+        
+        Measure(String label) {
+            this.label = label;
+        }
+        
+        public String getLabel() {
+            return label;
+        }
+    }
+    
+    public static final int URGENCY_LEVELS = 5;
+    public static final String[] TREATMENT_TYPES = {
+        "CONSULTATION", "EMERGENCY", "SURGERY", "CHECKUP", "XRAY", "MRI", "OTHER"
+    };
+    
+    // Slices: 0 = all patients, then one per urgency level, then one per treatment type
+    public static final int ALL = 0;
+    public static final int SLICES = 1 + URGENCY_LEVELS + TREATMENT_TYPES.length;
+    
+    private static final Measure[] MEASURES = Measure.values();
+    
+    /**
+     * Receives the counts drained from a slice
+     */
+    public interface DrainHandler {
+        void counts(Measure measure, int slice, String encoded);
+    }
+    
+    private final LatencyHistogram[][] histograms;
+    
+    public PatientLatencies() {
+        this.histograms = new LatencyHistogram[MEASURES.length][SLICES];
+        for (LatencyHistogram[] slices : histograms) {
+            for (int slice = 0; slice < SLICES; slice++) {
+                slices[slice] = new LatencyHistogram();
+            }
+        }
+    }
+    
+    /**
+     * Record a duration of a patient in its three slices
+     */
+    public void record(Measure measure, int urgencyLevel, String treatmentType, long millis) {
+        LatencyHistogram[] slices = histograms[measure.ordinal()];
+        slices[ALL].record(millis);
+        slices[urgencySlice(urgencyLevel)].record(millis);
+        slices[treatmentSlice(treatmentType)].record(millis);
+    }
+    
+    public LatencyHistogram get(Measure measure, int slice) {
+        return histograms[measure.ordinal()][slice];
+    }
+    
+    /**
+     * Slice of an urgency level, out-of-range levels counted as the nearest one
+     */
+    public static int urgencySlice(int urgencyLevel) {
+        return Math.max(1, Math.min(urgencyLevel, URGENCY_LEVELS));
+    }
+    
+    public static int treatmentSlice(String treatmentType) {
+        for (int i = 0; i < TREATMENT_TYPES.length - 1; i++) {
+            if (TREATMENT_TYPES[i].equalsIgnoreCase(treatmentType)) {
+                return 1 + URGENCY_LEVELS + i;
+            }
+        }
+        return SLICES - 1; // OTHER
+    }
+    
+    public static String sliceName(int slice) {
+        if (slice == ALL) {
+            return "All";
+        }
+        if (slice <= URGENCY_LEVELS) {
+            return "Urgency " + slice;
+        }
+        return TREATMENT_TYPES[slice - 1 - URGENCY_LEVELS];
+    }
+    
+    /**
+     * Add the counts of another set of histograms
+     */
+    public void add(PatientLatencies other) {
+        for (int measure = 0; measure < MEASURES.length; measure++) {
+            for (int slice = 0; slice < SLICES; slice++) {
+                histograms[measure][slice].add(other.histograms[measure][slice]);
+            }
+        }
+    }
+    
+    /**
+     * Hand the counts recorded since the previous drain over, slice by slice,
+     * skipping the slices without new counts
+     */
+    public void drain(DrainHandler handler) {
+        for (Measure measure : MEASURES) {
+            for (int slice = 0; slice < SLICES; slice++) {
+                String encoded = histograms[measure.ordinal()][slice].drain();
+                if (!encoded.isEmpty()) {
+                    handler.counts(measure, slice, encoded);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Add counts drained from another agent's histograms
+     */
+    public void addEncoded(Measure measure, int slice, String encoded) {
+        histograms[measure.ordinal()][slice].addEncoded(encoded);
+    }
+    
+    public void reset() {
+        for (LatencyHistogram[] slices : histograms) {
+            for (LatencyHistogram histogram : slices) {
+                histogram.reset();
+            }
+        }
+    }
+}
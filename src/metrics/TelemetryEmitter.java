@@ -0,0 +1,286 @@
+package metrics;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.WakerBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAException;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.lang.acl.ACLMessage;
+import utils.MessageProtocol;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client-side telemetry emitter shared by all agents of the JVM, including those of
+ * the shard containers that HospitalMain starts in the same process.
+ * Metric events (message contents such as PATIENT_WAITING:<seconds>) are queued
+ * and sent to the monitoring agent in batches, when a batch is full or when the
+ * oldest queued event has waited the flush delay. The batch is sent by whichever
+ * agent fills it or whose flush timer fires.
+ *
+ * A batch is an INFORM with the TELEMETRY conversation id; each line is the local
+ * name of the source agent, a tab, and the event content.
+ *
+ * The monitor is resolved with a single DF search and then kept while agents
+ * watching the monitoring service report it; otherwise it is searched again
+ * after the TTL.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class TelemetryEmitter {
+    
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final long DEFAULT_FLUSH_DELAY = 500; // 0.5 seconds
+    
+    // Delay after which an unwatched monitor is searched again
+    public static final long MONITOR_TTL = 30000; // 30 seconds
+    
+    private static final char SOURCE_SEPARATOR = '\t';
+    private static final char EVENT_SEPARATOR = '\n';
+    
+    private static final TelemetryEmitter shared = new TelemetryEmitter(DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_DELAY);
+    
+    /**
+     * Handler of the events of a received batch
+     */
+    public interface EventHandler {
+        void event(String source, String content);
+    }
+    
+    /**
+     * Handler of the events of a received batch, given as ranges of the batch so
+     * that nothing is extracted
+     */
+    public interface EventRangeHandler {
+        void event(String batch, int sourceStart, int sourceEnd, int contentStart, int contentEnd);
+    }
+    
+    private final int batchSize;
+    private final long flushDelay;
+    
+    private final ConcurrentLinkedQueue<String> pending;
+    private final AtomicInteger pendingCount;
+    private final AtomicBoolean flushing;
+    private volatile long batchStartedAt;
+    
+    private volatile AID monitor;
+    private volatile long monitorResolvedAt;
+    private volatile boolean monitorWatched;
+    
+    // Statistics
+    private final LongAdder events;
+    private final LongAdder batches;
+    private final LongAdder monitorSearches;
+    
+    public TelemetryEmitter(int batchSize, long flushDelay) {
+        this.batchSize = batchSize;
+        this.flushDelay = flushDelay;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.pendingCount = new AtomicInteger();
+        this.flushing = new AtomicBoolean();
+        this.events = new LongAdder();
+        this.batches = new LongAdder();
+        this.monitorSearches = new LongAdder();
+    }
+    
+    /**
+     * Emitter shared by all agents of this JVM, whatever their container
+     */
+    public static TelemetryEmitter shared() {
+        return shared;
+    }
+    
+    /**
+     * Queue a metric event of an agent, flushing when the batch is full.
+     * The first event of a batch starts the agent's flush timer.
+     */
+    public void emit(Agent source, String content) {
+        if (!isBatchable(source.getLocalName(), content)) {
+            // Contents with line breaks or tabs cannot share a batch
+            send(source, content, null);
+            return;
+        }
+        
+        int count = offer(source.getLocalName(), content);
+        if (count == 1) {
+            batchStartedAt = System.currentTimeMillis();
+            source.addBehaviour(new FlushBehaviour(source));
+        } else if (count >= batchSize || System.currentTimeMillis() - batchStartedAt >= flushDelay) {
+            // Full batch, or overdue because the agent that started it has terminated
+            flush(source);
+        }
+    }
+    
+    /**
+     * Queue an event, returns the number of queued events
+     */
+    public int offer(String source, String content) {
+        pending.add(source + SOURCE_SEPARATOR + content);
+        events.increment();
+        return pendingCount.incrementAndGet();
+    }
+    
+    /**
+     * Send the queued events as batches from an agent. A flush already running in
+     * another agent sends the events queued meanwhile, so this one returns at once.
+     */
+    public void flush(Agent agent) {
+        if (!flushing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            AID target = resolveMonitor(agent);
+            String batch;
+            while ((batch = nextBatch()) != null) {
+                if (target != null) {
+                    send(agent, batch, MessageProtocol.TELEMETRY);
+                }
+                // Otherwise the monitoring agent is not available: the events are dropped
+            }
+        } finally {
+            flushing.set(false);
+        }
+        
+        // Events queued while the batches were sent start a new flush timer
+        if (pendingCount.get() > 0) {
+            batchStartedAt = System.currentTimeMillis();
+            agent.addBehaviour(new FlushBehaviour(agent));
+        }
+    }
+    
+    /**
+     * Content of the next batch of at most batchSize queued events, null if none is queued
+     */
+    public String nextBatch() {
+        String event = pending.poll();
+        if (event == null) {
+            return null;
+        }
+        
+        StringBuilder batch = new StringBuilder(event.length() * Math.min(batchSize, pendingCount.get()));
+        int count = 0;
+        do {
+            if (count > 0) {
+                batch.append(EVENT_SEPARATOR);
+            }
+            batch.append(event);
+            count++;
+        } while (count < batchSize && (event = pending.poll()) != null);
+        
+        pendingCount.addAndGet(-count);
+        batches.increment();
+        return batch.toString();
+    }
+    
+    /**
+     * Record the monitor found by an agent watching the monitoring service; while it
+     * is watched the monitor is not searched again
+     */
+    public void setMonitor(AID monitor) {
+        this.monitor = monitor;
+        this.monitorResolvedAt = System.currentTimeMillis();
+        this.monitorWatched = monitor != null;
+    }
+    
+    private AID resolveMonitor(Agent agent) {
+        long now = System.currentTimeMillis();
+        AID target = monitor;
+        if (target != null && (monitorWatched || now - monitorResolvedAt < MONITOR_TTL)) {
+            return target;
+        }
+        
+        DFAgentDescription template = new DFAgentDescription();
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(MessageProtocol.MONITORING_SERVICE);
+        template.addServices(sd);
+        
+        monitorSearches.increment();
+        try {
+            DFAgentDescription[] result = DFService.search(agent, template);
+            target = result != null && result.length > 0 ? result[0].getName() : null;
+        } catch (FIPAException fe) {
+            // Monitoring agent might not be available
+            target = null;
+        }
+        monitor = target;
+        monitorResolvedAt = now;
+        return target;
+    }
+    
+    private void send(Agent agent, String content, String conversationId) {
+        AID target = resolveMonitor(agent);
+        if (target == null) {
+            return;
+        }
+        ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
+        inform.addReceiver(target);
+        inform.setContent(content);
+        if (conversationId != null) {
+            inform.setConversationId(conversationId);
+        }
+        agent.send(inform);
+    }
+    
+    private static boolean isBatchable(String source, String content) {
+        return content.indexOf(EVENT_SEPARATOR) < 0 && content.indexOf(SOURCE_SEPARATOR) < 0 &&
+               source.indexOf(EVENT_SEPARATOR) < 0 && source.indexOf(SOURCE_SEPARATOR) < 0;
+    }
+    
+    /**
+     * Hand every event of a received batch to a handler, in emission order
+     */
+    public static void forEachEvent(String batch, EventHandler handler) {
+        forEachEventRange(batch, (text, sourceStart, sourceEnd, contentStart, contentEnd) ->
+            handler.event(text.substring(sourceStart, sourceEnd), text.substring(contentStart, contentEnd)));
+    }
+    
+    public static void forEachEventRange(String batch, EventRangeHandler handler) {
+        int start = 0;
+        int length = batch.length();
+        while (start < length) {
+            int end = batch.indexOf(EVENT_SEPARATOR, start);
+            if (end < 0) {
+                end = length;
+            }
+            int separator = batch.indexOf(SOURCE_SEPARATOR, start);
+            if (separator > start && separator < end) {
+                handler.event(batch, start, separator, separator + 1, end);
+            }
+            start = end + 1;
+        }
+    }
+    
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+    
+    public long getEventCount() {
+        return events.sum();
+    }
+    
+    public long getBatchCount() {
+        return batches.sum();
+    }
+    
+    public long getMonitorSearches() {
+        return monitorSearches.sum();
+    }
+    
+    /**
+     * Flush timer of the batch started by an agent
+     */
+    private class FlushBehaviour extends WakerBehaviour {
+        FlushBehaviour(Agent agent) {
+            super(agent, flushDelay);
+        }
+        
+        @Override
+        protected void onWake() {
+            flush(myAgent);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Utilization of one resource class (doctors, rooms or equipment) from the status
+ * reports of its agents. The busy and total counts are adjusted on each state
+ * transition, so a report costs one map lookup whatever the number of resources;
+ * a repeated report of the same state changes nothing and allocates nothing.
+ *
+ * Used from the monitoring agent thread only.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class UtilizationTracker {
+    
+    private final Map<String, ResourceStatus> resources;
+    private int busyCount;
+    
+    public UtilizationTracker() {
+        this.resources = new HashMap<>();
+    }
+    
+    /**
+     * Record the state reported by a resource, returns true if the busy or total count changed
+     */
+    public boolean update(String resource, boolean busy) {
+        ResourceStatus status = resources.get(resource);
+        if (status == null) {
+            resources.put(resource, new ResourceStatus(busy));
+            if (busy) busyCount++;
+            return true;
+        }
+        
+        if (status.busy == busy) {
+            return false;
+        }
+        status.busy = busy;
+        busyCount += busy ? 1 : -1;
+        return true;
+    }
+    
+    /**
+     * Forget a resource that left, returns true if it was tracked
+     */
+    public boolean remove(String resource) {
+        ResourceStatus status = resources.remove(resource);
+        if (status == null) {
+            return false;
+        }
+        if (status.busy) busyCount--;
+        return true;
+    }
+    
+    public int getBusyCount() {
+        return busyCount;
+    }
+    
+    public int getResourceCount() {
+        return resources.size();
+    }
+    
+    public boolean isEmpty() {
+        return resources.isEmpty();
+    }
+    
+    /**
+     * Busy resources in percent, 0 when no resource has reported
+     */
+    public double getUtilization() {
+        return resources.isEmpty() ? 0.0 : (busyCount * 100.0) / resources.size();
+    }
+    
+    /**
+     * Last reported state of a resource
+     */
+    private static class ResourceStatus {
+        boolean busy;
+        
+        ResourceStatus(boolean busy) {
+            this.busy = busy;
+        }
+    }
+}
@@ -29,6 +29,19 @@ public class Patient implements Serializable {
         this.waitingTime = 0;
     }
 
+    /**
+     * Rebuild a patient received from another agent, keeping its id and arrival time
+     */
+    public Patient(String id, String name, int urgencyLevel, String treatmentType, long arrivalTime) {
+        this.id = id;
+        this.name = name;
+        this.urgencyLevel = urgencyLevel;
+        this.treatmentType = treatmentType;
+        this.arrivalTime = arrivalTime;
+        this.status = "WAITING";
+        this.waitingTime = 0;
+    }
+
     // Getters and Setters
     public String getId() { return id; }
     public void setId(String id) { this.id = id; }
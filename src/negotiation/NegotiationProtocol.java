@@ -1,10 +1,12 @@
 package negotiation;
 
+import codec.MessageCodecs;
 import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.*;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import logging.AgentLog;
 import java.io.Serializable;
 import java.util.*;
 
@@ -20,6 +22,7 @@ public class NegotiationProtocol {
      */
     public static class ContractNetInitiator extends Behaviour {
         private Agent myAgent;
+        private AgentLog log;
         private ResourceRequest request;
         private List<AID> participants;
         private Map<AID, Bid> receivedBids;
@@ -31,6 +34,7 @@ public class NegotiationProtocol {
         
         public ContractNetInitiator(Agent agent, ResourceRequest request, List<AID> participants) {
             this.myAgent = agent;
+            this.log = AgentLog.of(agent.getLocalName());
             this.request = request;
             this.participants = new ArrayList<>(participants);
             this.receivedBids = new HashMap<>();
@@ -85,7 +89,7 @@ public class NegotiationProtocol {
             }
             
             try {
-                cfp.setContentObject(request);
+                MessageCodecs.write(cfp, request);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -96,7 +100,7 @@ public class NegotiationProtocol {
                 MessageTemplate.MatchInReplyTo(cfp.getReplyWith())
             );
             
-            System.out.println(myAgent.getLocalName() + ": Sent CFP for " + request.getResourceType());
+            log.debug("Sent CFP for ", request.getResourceType());
         }
         
         private void collectProposals() {
@@ -104,23 +108,22 @@ public class NegotiationProtocol {
             if (reply != null) {
                 if (reply.getPerformative() == ACLMessage.PROPOSE) {
                     try {
-                        Bid bid = (Bid) reply.getContentObject();
+                        Bid bid = (Bid) MessageCodecs.read(reply);
                         receivedBids.put(reply.getSender(), bid);
-                        System.out.println(myAgent.getLocalName() + ": Received bid from " + 
-                                         reply.getSender().getLocalName() + " - Utility: " + bid.getUtility());
+                        log.debug("Received bid from ", reply.getSender().getLocalName(), 
+                                  " - Utility: ", bid.getUtility());
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
                 } else if (reply.getPerformative() == ACLMessage.REFUSE) {
-                    System.out.println(myAgent.getLocalName() + ": " + 
-                                     reply.getSender().getLocalName() + " refused to bid");
+                    log.debug(reply.getSender().getLocalName(), " refused to bid");
                 }
             }
         }
         
         private void evaluateProposals() {
             if (receivedBids.isEmpty()) {
-                System.out.println(myAgent.getLocalName() + ": No bids received");
+                log.warn("No bids received");
                 return;
             }
             
@@ -131,8 +134,7 @@ public class NegotiationProtocol {
             
             if (bestBid != null) {
                 winner = bestBid.getKey();
-                System.out.println(myAgent.getLocalName() + ": Winner is " + 
-                                 winner.getLocalName() + " with utility " + bestBid.getValue().getUtility());
+                log.info("Winner is ", winner.getLocalName(), " with utility ", bestBid.getValue().getUtility());
             }
         }
         
@@ -156,8 +158,7 @@ public class NegotiationProtocol {
             );
             
             if (confirm != null) {
-                System.out.println(myAgent.getLocalName() + ": Resource allocated to " + 
-                                 winner.getLocalName());
+                log.info("Resource allocated to ", winner.getLocalName());
             }
         }
         
@@ -184,10 +185,12 @@ public class NegotiationProtocol {
      */
     public static class ContractNetResponder extends CyclicBehaviour {
         private Agent myAgent;
+        private AgentLog log;
         private UtilityFunction utilityFunction;
         
         public ContractNetResponder(Agent agent, UtilityFunction utilityFunction) {
             this.myAgent = agent;
+            this.log = AgentLog.of(agent.getLocalName());
             this.utilityFunction = utilityFunction;
         }
         
@@ -198,7 +201,7 @@ public class NegotiationProtocol {
             
             if (cfp != null) {
                 try {
-                    ResourceRequest request = (ResourceRequest) cfp.getContentObject();
+                    ResourceRequest request = (ResourceRequest) MessageCodecs.read(cfp);
                     
                     // Calculate utility for this request
                     double utility = utilityFunction.calculateUtility(request);
@@ -209,12 +212,12 @@ public class NegotiationProtocol {
                         // Send proposal with bid
                         reply.setPerformative(ACLMessage.PROPOSE);
                         Bid bid = new Bid(myAgent.getAID(), utility, request);
-                        reply.setContentObject(bid);
-                        System.out.println(myAgent.getLocalName() + ": Bidding with utility " + utility);
+                        MessageCodecs.write(reply, bid);
+                        log.debug("Bidding with utility ", utility);
                     } else {
                         // Refuse to bid
                         reply.setPerformative(ACLMessage.REFUSE);
-                        System.out.println(myAgent.getLocalName() + ": Refusing to bid");
+                        log.debug("Refusing to bid");
                     }
                     
                     myAgent.send(reply);
@@ -232,7 +235,7 @@ public class NegotiationProtocol {
                     
                     if (result != null && result.getPerformative() == ACLMessage.ACCEPT_PROPOSAL) {
                         // Won the negotiation
-                        System.out.println(myAgent.getLocalName() + ": Won the negotiation!");
+                        log.info("Won the negotiation!");
                         
                         // Send confirmation
                         ACLMessage confirm = result.createReply();
@@ -254,8 +257,7 @@ public class NegotiationProtocol {
         
         private void handleWonNegotiation(ResourceRequest request) {
             // Implementation specific to each agent type
-            System.out.println(myAgent.getLocalName() + ": Handling won negotiation for " + 
-                             request.getResourceType());
+            log.debug("Handling won negotiation for ", request.getResourceType());
         }
     }
     
@@ -302,6 +304,13 @@ public class NegotiationProtocol {
             this.timestamp = System.currentTimeMillis();
         }
         
+        public Bid(AID bidder, double utility, ResourceRequest request, long timestamp) {
+            this.bidder = bidder;
+            this.utility = utility;
+            this.request = request;
+            this.timestamp = timestamp;
+        }
+        
         public AID getBidder() { return bidder; }
         public double getUtility() { return utility; }
         public ResourceRequest getRequest() { return request; }
@@ -0,0 +1,1754 @@
+package test;
+
+import analytics.DashboardUpdateBus;
+import analytics.EdtLatencyGauge;
+import analytics.ReportExporter;
+import analytics.TimeSeries;
+import analytics.TimeSeriesChart;
+import codec.CompactBinaryCodec;
+import codec.JavaSerializationCodec;
+import codec.MessageCodec;
+import fault.FaultToleranceManager.AgentState;
+import jade.core.AID;
+import loadbalancing.AdaptiveLoadBalancingStrategy;
+import loadbalancing.ConsistentHashStrategy;
+import loadbalancing.LeastConnectionsStrategy;
+import loadbalancing.LoadBalancingStrategy;
+import loadbalancing.LoadIndex;
+import loadbalancing.PowerOfDChoicesStrategy;
+import loadbalancing.PowerOfTwoChoicesStrategy;
+import loadbalancing.ResourceLoad;
+import loadbalancing.ResourceWaitQueues;
+import loadbalancing.RoundRobinStrategy;
+import loadbalancing.ShortestExpectedDelayStrategy;
+import loadbalancing.WeightedRoundRobinStrategy;
+import logging.AgentLog;
+import logging.LogSink;
+import metrics.LatencyHistogram;
+import metrics.MetricsHistoryStore;
+import metrics.MetricsRegistry;
+import metrics.MetricsRegistry.Metric;
+import metrics.TelemetryEmitter;
+import metrics.UtilizationTracker;
+import models.Patient;
+import negotiation.NegotiationProtocol.Bid;
+import negotiation.NegotiationProtocol.ResourceRequest;
+import utils.AssignmentSolver;
+import utils.ConcurrentPatientQueue;
+import utils.ConsistentHashRing;
+import utils.HospitalMessage;
+import utils.HospitalMessage.Opcode;
+import utils.IndexedPatientHeap;
+import utils.SchedulingAlgorithm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Performance benchmarks for the scheduling components
+ * Run with: java test.PerformanceBenchmarks
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class PerformanceBenchmarks {
+    
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 10;
+    
+    public static void main(String[] args) {
+        System.out.println("╔════════════════════════════════════════════════════════════╗");
+        System.out.println("║        Hospital System - Performance Benchmarks            ║");
+        System.out.println("╚════════════════════════════════════════════════════════════╝\n");
+        
+        benchmarkAssignmentSolver();
+        benchmarkBatchVersusGreedy();
+        benchmarkPatientQueue();
+        benchmarkConcurrentPlanning();
+        benchmarkShardedSchedulers();
+        benchmarkMessageCodecs();
+        benchmarkMessageDispatch();
+        benchmarkTelemetry();
+        benchmarkMetricsStore();
+        benchmarkUtilization();
+        benchmarkDashboardUpdates();
+        benchmarkTimeSeriesPaint();
+        benchmarkMetricsHistory();
+        benchmarkReportExport();
+        benchmarkLatencyHistogram();
+        benchmarkAsyncLogging();
+        benchmarkUnplaceablePatients();
+        benchmarkLoadIndex();
+        benchmarkStrategiesUnderPoissonArrivals();
+    }
+    
+    /**
+     * Benchmark the batch assignment solver on a 1,000 x 1,000 problem
+     */
+    private static void benchmarkAssignmentSolver() {
+        printSection("ASSIGNMENT SOLVER (1000 x 1000)");
+        
+        int size = 1000;
+        Random random = new Random(42);
+        String[] specializations = {"GENERAL", "SURGEON", "EMERGENCY", "CARDIOLOGIST", "NEUROLOGIST"};
+        String[] treatments = {"CONSULTATION", "CHECKUP", "XRAY", "SURGERY", "EMERGENCY", "CARDIOLOGY", "NEUROLOGY"};
+        long now = 10_000_000L;
+        
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Patient patient = new Patient("P" + i, 1 + random.nextInt(5), treatments[random.nextInt(treatments.length)]);
+            patient.setArrivalTime(now - random.nextInt(3_600_000));
+            patients.add(patient);
+        }
+        List<String> doctors = new ArrayList<>();
+        for (int j = 0; j < size; j++) {
+            doctors.add(specializations[random.nextInt(specializations.length)]);
+        }
+        
+        double[] cost = new double[size * size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                cost[i * size + j] = SchedulingAlgorithm.doctorAssignmentCost(patients.get(i), doctors.get(j));
+            }
+        }
+        double[] randomCost = new double[size * size];
+        for (int k = 0; k < randomCost.length; k++) {
+            randomCost[k] = random.nextInt(1000);
+        }
+        
+        reportSolverTimings("Scheduling costs", cost, size);
+        reportSolverTimings("Uniform random costs", randomCost, size);
+        System.out.println();
+    }
+    
+    private static void reportSolverTimings(String label, double[] cost, int size) {
+        for (int run = 0; run < WARMUP_RUNS; run++) {
+            AssignmentSolver.solve(cost, size, size);
+        }
+        
+        long[] timings = new long[MEASURED_RUNS];
+        for (int run = 0; run < MEASURED_RUNS; run++) {
+            long start = System.nanoTime();
+            AssignmentSolver.solve(cost, size, size);
+            timings[run] = System.nanoTime() - start;
+        }
+        Arrays.sort(timings);
+        
+        double median = timings[MEASURED_RUNS / 2] / 1_000_000.0;
+        System.out.println(String.format("  %-22s min %6.1f ms, median %6.1f ms %s", label,
+            timings[0] / 1_000_000.0, median, median < 50 ? "(< 50 ms target)" : "(ABOVE 50 ms target)"));
+    }
+    
+    /**
+     * Compare the total weighted wait of the greedy "first free doctor wins" path
+     * with the batch matching on the same simulated arrival stream
+     */
+    private static void benchmarkBatchVersusGreedy() {
+        printSection("BATCH VS GREEDY ALLOCATION");
+        
+        String[] doctors = {"GENERAL", "GENERAL", "SURGEON", "SURGEON", "EMERGENCY", "CARDIOLOGIST", "NEUROLOGIST"};
+        
+        for (long seed = 1; seed <= 5; seed++) {
+            SimulationResult greedy = simulate(doctors, seed, false);
+            SimulationResult batch = simulate(doctors, seed, true);
+            System.out.println(String.format(
+                "  Seed %d: greedy %,10.0f urgency-min (%d specialist misuses), batch %,10.0f urgency-min (%d), %+.1f%%",
+                seed, greedy.weightedWait, greedy.specialistMisuses, batch.weightedWait, batch.specialistMisuses,
+                100.0 * (batch.weightedWait - greedy.weightedWait) / greedy.weightedWait));
+        }
+        System.out.println();
+    }
+    
+    /**
+     * Minute-by-minute simulation of a day of arrivals served by a fixed set of doctors
+     */
+    private static SimulationResult simulate(String[] doctors, long seed, boolean batchMode) {
+        Random random = new Random(seed);
+        String[] treatments = {"CONSULTATION", "CONSULTATION", "CONSULTATION", "CHECKUP", "XRAY",
+                               "SURGERY", "EMERGENCY", "EMERGENCY", "CARDIOLOGY", "NEUROLOGY"};
+        long minute = 60_000L;
+        
+        // Arrival stream: about one patient every 4 minutes for 12 hours
+        List<Patient> arrivals = new ArrayList<>();
+        long time = 0;
+        while (time < 12 * 60 * minute) {
+            time += (long) (-Math.log(1 - random.nextDouble()) * 4 * minute);
+            Patient patient = new Patient("P" + arrivals.size(), 1 + random.nextInt(5),
+                                          treatments[random.nextInt(treatments.length)]);
+            patient.setArrivalTime(time);
+            arrivals.add(patient);
+        }
+        
+        SchedulingAlgorithm scheduler = new SchedulingAlgorithm();
+        long[] busyUntil = new long[doctors.length];
+        SimulationResult result = new SimulationResult();
+        int next = 0;
+        int served = 0;
+        
+        for (long now = 0; served < arrivals.size(); now += minute) {
+            while (next < arrivals.size() && arrivals.get(next).getArrivalTime() <= now) {
+                scheduler.addPatient(arrivals.get(next++));
+            }
+            
+            List<Integer> freeDoctors = new ArrayList<>();
+            for (int j = 0; j < doctors.length; j++) {
+                if (busyUntil[j] <= now) freeDoctors.add(j);
+            }
+            if (freeDoctors.isEmpty() || !scheduler.hasWaitingPatients()) continue;
+            
+            if (batchMode) {
+                List<Patient> batch = scheduler.pollBatch(50);
+                List<String> specializations = new ArrayList<>();
+                for (int j : freeDoctors) specializations.add(doctors[j]);
+                
+                int[] plan = SchedulingAlgorithm.planDoctorAssignment(batch, specializations);
+                for (int i = 0; i < batch.size(); i++) {
+                    if (plan[i] >= 0) {
+                        served++;
+                        start(batch.get(i), freeDoctors.get(plan[i]), doctors, busyUntil, now, result);
+                    } else {
+                        scheduler.addPatient(batch.get(i));
+                    }
+                }
+            } else {
+                // Walk the queue in priority order, each patient takes the first free suitable doctor
+                List<Patient> waiting = scheduler.pollBatch(scheduler.getQueueSize());
+                for (Patient patient : waiting) {
+                    Integer chosen = null;
+                    for (int j : freeDoctors) {
+                        if (SchedulingAlgorithm.isDoctorSuitable(doctors[j], patient.getTreatmentType())) {
+                            chosen = j;
+                            break;
+                        }
+                    }
+                    if (chosen != null) {
+                        freeDoctors.remove(chosen);
+                        served++;
+                        start(patient, chosen, doctors, busyUntil, now, result);
+                    } else {
+                        scheduler.addPatient(patient);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+    
+    private static void start(Patient patient, int doctor, String[] doctors, long[] busyUntil, long now,
+                              SimulationResult result) {
+        busyUntil[doctor] = now + SchedulingAlgorithm.estimateTreatmentDuration(patient.getTreatmentType());
+        result.weightedWait += patient.getUrgencyLevel() * (now - patient.getArrivalTime()) / 60_000.0;
+        if (!doctors[doctor].equals("GENERAL") && !SchedulingAlgorithm.requiresSpecialist(patient.getTreatmentType())) {
+            result.specialistMisuses++;
+        }
+    }
+    
+    /**
+     * Compare the indexed heap with the PriorityQueue and comparator it replaced
+     * on 100,000 queued patients
+     */
+    private static void benchmarkPatientQueue() {
+        printSection("PATIENT QUEUE (100,000 PATIENTS)");
+        
+        int size = 100_000;
+        int operations = 10_000;
+        Random random = new Random(42);
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Patient patient = new Patient("P" + i, 1 + random.nextInt(5), "CONSULTATION");
+            patient.setArrivalTime(10_000_000L - random.nextInt(4 * 3_600_000));
+            patients.add(patient);
+        }
+        List<Patient> targets = new ArrayList<>();
+        for (int i = 0; i < operations; i++) {
+            targets.add(patients.get(random.nextInt(size)));
+        }
+        Comparator<Patient> legacyOrder = (p1, p2) -> {
+            int urgencyCompare = Integer.compare(p2.getUrgencyLevel(), p1.getUrgencyLevel());
+            return urgencyCompare != 0 ? urgencyCompare : Long.compare(p1.getArrivalTime(), p2.getArrivalTime());
+        };
+        
+        reportQueueTimings("Offer + poll all", () -> {
+            PriorityQueue<Patient> queue = new PriorityQueue<>(legacyOrder);
+            for (Patient patient : patients) queue.offer(patient);
+            while (!queue.isEmpty()) queue.poll();
+        }, () -> {
+            IndexedPatientHeap heap = new IndexedPatientHeap();
+            for (Patient patient : patients) heap.offer(patient);
+            while (!heap.isEmpty()) heap.poll();
+        });
+        
+        // Setup is part of both measurements, it is the same order of magnitude
+        reportQueueTimings("Offer + 10k removals", () -> {
+            PriorityQueue<Patient> queue = new PriorityQueue<>(legacyOrder);
+            for (Patient patient : patients) queue.offer(patient);
+            for (Patient patient : targets) queue.remove(patient);
+        }, () -> {
+            IndexedPatientHeap heap = new IndexedPatientHeap();
+            for (Patient patient : patients) heap.offer(patient);
+            for (Patient patient : targets) heap.remove(patient.getId());
+        });
+        
+        reportQueueTimings("Offer + 10k re-priorit.", () -> {
+            PriorityQueue<Patient> queue = new PriorityQueue<>(legacyOrder);
+            for (Patient patient : patients) queue.offer(patient);
+            for (Patient patient : targets) {
+                if (queue.remove(patient)) queue.offer(patient);
+            }
+        }, () -> {
+            IndexedPatientHeap heap = new IndexedPatientHeap();
+            for (Patient patient : patients) heap.offer(patient);
+            for (Patient patient : targets) heap.updateUrgency(patient.getId(), patient.getUrgencyLevel());
+        });
+        System.out.println();
+    }
+    
+    /**
+     * Throughput of batch planning when 1 to N workers drain the same concurrent queue,
+     * each matching its batches against its own share of doctors
+     */
+    private static void benchmarkConcurrentPlanning() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        printSection("CONCURRENT PLANNING THROUGHPUT (" + cores + " CORES)");
+        
+        int size = 100_000;
+        Random random = new Random(42);
+        String[] treatments = {"CONSULTATION", "CHECKUP", "XRAY", "SURGERY", "EMERGENCY", "CARDIOLOGY", "NEUROLOGY"};
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Patient patient = new Patient("P" + i, 1 + random.nextInt(5), treatments[random.nextInt(treatments.length)]);
+            patient.setArrivalTime(10_000_000L - random.nextInt(3_600_000));
+            patients.add(patient);
+        }
+        List<String> doctors = Arrays.asList("GENERAL", "GENERAL", "SURGEON", "EMERGENCY",
+                                             "CARDIOLOGIST", "NEUROLOGIST", "GENERAL", "SURGEON");
+        
+        double singleThread = 0;
+        for (int workers = 1; workers <= Math.max(cores, 4); workers *= 2) {
+            long[] timings = new long[MEASURED_RUNS];
+            for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+                SchedulingAlgorithm scheduler = new SchedulingAlgorithm(new ConcurrentPatientQueue());
+                for (Patient patient : patients) scheduler.addPatient(patient);
+                
+                // Only the concurrent drain is timed, filling the queue is not
+                long elapsed = drainWithWorkers(scheduler, doctors, workers);
+                if (run >= WARMUP_RUNS) timings[run - WARMUP_RUNS] = elapsed;
+            }
+            Arrays.sort(timings);
+            double median = timings[MEASURED_RUNS / 2] / 1_000_000.0;
+            if (workers == 1) singleThread = median;
+            System.out.println(String.format("  %2d worker(s): %8.1f ms, %,10.0f patients/s, speed-up x%.2f",
+                workers, median, size / (median / 1000.0), singleThread / median));
+        }
+        System.out.println();
+    }
+    
+    /**
+     * Scheduler shards in one process, one thread per shard: patients are routed by
+     * department on the consistent-hash ring and every allocation costs a fixed
+     * reservation round trip, which is what bounds a single scheduler
+     */
+    private static void benchmarkShardedSchedulers() {
+        printSection("SHARDED SCHEDULERS (2,000 PATIENTS, 1 MS PER ALLOCATION)");
+        
+        Random random = new Random(42);
+        String[] treatments = {"CONSULTATION", "CONSULTATION", "CHECKUP", "XRAY", "MRI", "SURGERY",
+                               "EMERGENCY", "EMERGENCY", "CARDIOLOGY", "NEUROLOGY"};
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            patients.add(new Patient("P" + i, 1 + random.nextInt(5), treatments[random.nextInt(treatments.length)]));
+        }
+        
+        double baseline = 0;
+        for (int shards = 1; shards <= 8; shards *= 2) {
+            double withoutStealing = runShards(patients, shards, false);
+            double withStealing = runShards(patients, shards, true);
+            if (shards == 1) baseline = withStealing;
+            System.out.println(String.format(
+                "  %d shard(s): %,7.0f allocations/s without stealing, %,7.0f with stealing (x%.2f)",
+                shards, withoutStealing, withStealing, withStealing / baseline));
+        }
+        System.out.println();
+    }
+    
+    /**
+     * Encode/decode cost and message size of the ACL payloads,
+     * Java serialization against the compact binary codec
+     */
+    private static void benchmarkMessageCodecs() {
+        printSection("MESSAGE CODECS (ns/op, bytes/message)");
+        
+        Patient patient = new Patient("Patient_42", 4, "CARDIOLOGY");
+        patient.setAssignedDoctor("Doctor_3");
+        ResourceRequest request = new ResourceRequest("DOCTOR", 4, 1_800_000);
+        request.addAttribute("specialization", "Cardiology");
+        request.addAttribute("patientId", patient.getId());
+        Bid bid = new Bid(new AID("Doctor_3@hospital", AID.ISGUID), 0.82, request);
+        AgentState state = new AgentState("Room_7", "room", new Object[]{"OPERATING", 2});
+        state.addStateData("occupied", Boolean.TRUE);
+        state.addStateData("occupiedSince", System.currentTimeMillis());
+        
+        MessageCodec java = new JavaSerializationCodec();
+        MessageCodec compact = new CompactBinaryCodec();
+        reportCodec("Patient", patient, java, compact);
+        reportCodec("ResourceRequest", request, java, compact);
+        reportCodec("Bid", bid, java, compact);
+        reportCodec("AgentState", state, java, compact);
+        System.out.println();
+    }
+    
+    /**
+     * Messages handled per second by the content dispatch of a resource agent, the scheduler
+     * and the monitor: startsWith chains with String.split against the typed parser
+     */
+    private static void benchmarkMessageDispatch() {
+        printSection("MESSAGE DISPATCH (messages/s per agent)");
+        
+        String patientId = UUID.randomUUID().toString();
+        String doctorId = "DOC-" + patientId.substring(0, 4);
+        String specialization = "Cardiology";
+        String[] resourceRequests = {
+            "CHECK_AVAILABILITY:CONSULTATION",
+            "HOLD_RESOURCE:" + patientId + ":CONSULTATION",
+            "COMMIT_RESOURCE:" + patientId + ":CONSULTATION",
+            "RELEASE_HOLD:" + patientId,
+            "RELEASE_RESOURCE:" + patientId
+        };
+        String[] schedulerUpdates = {
+            "RESOURCE_STATE:DOCTOR:D1:Cardiology:RESOURCE_AVAILABLE:1042",
+            "RESOURCE_STATE:ROOM:R3:OPERATING:RESOURCE_BUSY:77",
+            "TREATMENT_COMPLETE:" + patientId,
+            "DOCTOR_AVAILABLE:D1"
+        };
+        String[] monitorUpdates = {
+            "PATIENT_REGISTERED:" + patientId,
+            "PATIENT_WAITING:125",
+            "RESOURCE_STATUS:DOCTOR:BUSY",
+            "ALLOCATION_SUCCESS:DOCTOR:D1",
+            "WAIT_TIME:240000:4:0.7",
+            "ALLOCATION_METRICS:2.500:130.4:812"
+        };
+        
+        int messages = 1_000_000;
+        reportDispatch("Resource agent", messages, 
+            () -> legacyResourceDispatch(resourceRequests, doctorId, specialization, messages), 
+            () -> typedResourceDispatch(resourceRequests, doctorId, specialization, messages));
+        reportDispatch("Scheduler", messages, 
+            () -> legacySchedulerDispatch(schedulerUpdates, messages), 
+            () -> typedSchedulerDispatch(schedulerUpdates, messages));
+        reportDispatch("Monitor", messages, 
+            () -> legacyMonitorDispatch(monitorUpdates, messages), 
+            () -> typedMonitorDispatch(monitorUpdates, messages));
+        System.out.println();
+    }
+    
+    /**
+     * DF load and monitor inbox depth for 5,000 agents reporting to the monitor over one
+     * simulated minute: 4,500 patients register in the first second then report their
+     * wait every 5 s, 500 doctors report three events per 10 s treatment. The monitor
+     * is modelled as spending a fixed cost per ACL message plus a small cost per event.
+     */
+    private static void benchmarkTelemetry() {
+        printSection("TELEMETRY (5,000 AGENTS, 60 S SIMULATED, MONITOR 400 US/MESSAGE + 2 US/EVENT)");
+        
+        int patients = 4_500;
+        int doctors = 500;
+        long duration = 60_000;
+        long tick = 10;
+        Random random = new Random(42);
+        long[] registeredAt = new long[patients];
+        for (int i = 0; i < patients; i++) {
+            registeredAt[i] = random.nextInt(1000);
+        }
+        long[] treatmentOffset = new long[doctors];
+        for (int d = 0; d < doctors; d++) {
+            treatmentOffset[d] = random.nextInt(10_000);
+        }
+        
+        // Events emitted during each tick
+        int ticks = (int) (duration / tick);
+        List<List<String[]>> events = new ArrayList<>();
+        for (int t = 0; t < ticks; t++) {
+            events.add(new ArrayList<>());
+        }
+        for (int i = 0; i < patients; i++) {
+            String source = "Patient_" + i;
+            events.get((int) (registeredAt[i] / tick)).add(new String[]{source, 
+                HospitalMessage.encode(Opcode.PATIENT_REGISTERED, UUID.randomUUID().toString())});
+            for (long at = registeredAt[i] + 5_000; at < duration; at += 5_000) {
+                events.get((int) (at / tick)).add(new String[]{source, 
+                    HospitalMessage.encode(Opcode.PATIENT_WAITING, String.valueOf((at - registeredAt[i]) / 1000))});
+            }
+        }
+        for (int d = 0; d < doctors; d++) {
+            String source = "Doctor_" + d;
+            for (long at = treatmentOffset[d]; at < duration; at += 10_000) {
+                List<String[]> started = events.get((int) (at / tick));
+                started.add(new String[]{source, HospitalMessage.encode(Opcode.RESOURCE_STATUS, "DOCTOR", "BUSY")});
+                started.add(new String[]{source, HospitalMessage.encode(Opcode.ALLOCATION_SUCCESS, "DOCTOR", "D" + d)});
+                if (at + 8_000 < duration) {
+                    events.get((int) ((at + 8_000) / tick)).add(new String[]{source, 
+                        HospitalMessage.encode(Opcode.RESOURCE_STATUS, "DOCTOR", "AVAILABLE")});
+                }
+            }
+        }
+        
+        reportTelemetry("DF search per event", events, tick, null, false);
+        reportTelemetry("Cached monitor AID", events, tick, null, true);
+        reportTelemetry("Shared emitter (64 / 500 ms)", events, tick, 
+            new TelemetryEmitter(TelemetryEmitter.DEFAULT_BATCH_SIZE, TelemetryEmitter.DEFAULT_FLUSH_DELAY), true);
+        System.out.println();
+    }
+    
+    private static void reportTelemetry(String label, List<List<String[]>> events, long tick, 
+                                        TelemetryEmitter emitter, boolean cachedMonitor) {
+        long messageCostMicros = 400;
+        long eventCostMicros = 2;
+        
+        Set<String> resolved = new HashSet<>();
+        Deque<Integer> inbox = new ArrayDeque<>(); // Events carried by each queued message
+        long searches = 0;
+        long peakSearchesPerSecond = 0;
+        long searchesThisSecond = 0;
+        long messages = 0;
+        long totalEvents = 0;
+        int peakInbox = 0;
+        long batchStartedAt = -1;
+        long budget = 0;
+        
+        for (int t = 0; t < events.size(); t++) {
+            long now = t * tick;
+            if (now % 1000 == 0) {
+                searchesThisSecond = 0;
+            }
+            
+            for (String[] event : events.get(t)) {
+                totalEvents++;
+                if (emitter == null) {
+                    // One INFORM per event, the monitor looked up first unless already cached
+                    if (!cachedMonitor || resolved.add(event[0])) {
+                        searches++;
+                        searchesThisSecond++;
+                    }
+                    inbox.add(1);
+                    messages++;
+                } else {
+                    if (emitter.offer(event[0], event[1]) == 1) {
+                        batchStartedAt = now;
+                    }
+                    while (emitter.getPendingCount() >= TelemetryEmitter.DEFAULT_BATCH_SIZE) {
+                        inbox.add(countEvents(emitter.nextBatch()));
+                        messages++;
+                    }
+                }
+            }
+            if (emitter != null) {
+                if (emitter.getPendingCount() > 0 && now - batchStartedAt >= TelemetryEmitter.DEFAULT_FLUSH_DELAY) {
+                    String batch;
+                    while ((batch = emitter.nextBatch()) != null) {
+                        inbox.add(countEvents(batch));
+                        messages++;
+                    }
+                }
+                if (now == 0) {
+                    // Single lookup for the container; watchers keep it current afterwards
+                    searches++;
+                    searchesThisSecond++;
+                }
+            }
+            peakSearchesPerSecond = Math.max(peakSearchesPerSecond, searchesThisSecond);
+            
+            // The monitor works through its inbox for the rest of the tick
+            budget += tick * 1000;
+            while (!inbox.isEmpty() && budget >= messageCostMicros + inbox.peek() * eventCostMicros) {
+                budget -= messageCostMicros + inbox.poll() * eventCostMicros;
+            }
+            if (inbox.isEmpty()) {
+                budget = 0;
+            }
+            peakInbox = Math.max(peakInbox, inbox.size());
+        }
+        
+        double seconds = events.size() * tick / 1000.0;
+        System.out.println(String.format(
+            "  %-30s %,7.1f DF searches/s (peak %,5d), %,7.1f msg/s to monitor for %,5.0f events/s, peak inbox %,6d",
+            label, searches / seconds, peakSearchesPerSecond, messages / seconds, totalEvents / seconds, peakInbox));
+    }
+    
+    private static int countEvents(String batch) {
+        int[] count = new int[1];
+        TelemetryEmitter.forEachEvent(batch, (source, content) -> count[0]++);
+        return count[0];
+    }
+    
+    // Sink for the dispatch benchmarks, so that the parsed values are not optimized away
+    private static long dispatchSink;
+    
+    private static void legacyResourceDispatch(String[] contents, String doctorId, String specialization, int messages) {
+        long sink = 0;
+        for (int i = 0; i < messages; i++) {
+            String content = contents[i % contents.length];
+            String reply;
+            if (content.startsWith("CHECK_AVAILABILITY")) {
+                reply = "RESOURCE_AVAILABLE:" + doctorId + ":" + specialization;
+            } else if (content.startsWith("HOLD_RESOURCE")) {
+                String[] parts = content.split(":");
+                reply = "HELD:" + doctorId;
+                sink += parts[1].length() + parts[2].length();
+            } else if (content.startsWith("COMMIT_RESOURCE")) {
+                String[] parts = content.split(":");
+                reply = "COMMITTED:" + doctorId;
+                sink += parts[1].length() + parts[2].length();
+            } else if (content.startsWith("RELEASE_HOLD")) {
+                String[] parts = content.split(":");
+                reply = "RELEASED:" + doctorId;
+                sink += parts[1].length();
+            } else if (content.startsWith("RELEASE_RESOURCE")) {
+                reply = "RELEASED:" + doctorId;
+            } else {
+                reply = "";
+            }
+            sink += reply.length();
+        }
+        dispatchSink += sink;
+    }
+    
+    private static void typedResourceDispatch(String[] contents, String doctorId, String specialization, int messages) {
+        HospitalMessage parser = new HospitalMessage();
+        long sink = 0;
+        for (int i = 0; i < messages; i++) {
+            if (!parser.parse(contents[i % contents.length])) continue;
+            String reply;
+            switch (parser.getOpcode()) {
+                case CHECK_AVAILABILITY:
+                    reply = HospitalMessage.encode(Opcode.RESOURCE_AVAILABLE, doctorId, specialization);
+                    break;
+                case HOLD_RESOURCE:
+                    reply = HospitalMessage.encode(Opcode.HELD, doctorId);
+                    sink += parser.field(0).length() + parser.field(1).length();
+                    break;
+                case COMMIT_RESOURCE:
+                    reply = HospitalMessage.encode(Opcode.COMMITTED, doctorId);
+                    sink += parser.field(0).length() + parser.field(1).length();
+                    break;
+                case RELEASE_HOLD:
+                    reply = HospitalMessage.encode(Opcode.RELEASED, doctorId);
+                    sink += parser.field(0).length();
+                    break;
+                case RELEASE_RESOURCE:
+                    reply = HospitalMessage.encode(Opcode.RELEASED, doctorId);
+                    break;
+                default:
+                    reply = "";
+                    break;
+            }
+            sink += reply.length();
+        }
+        dispatchSink += sink;
+    }
+    
+    private static void legacySchedulerDispatch(String[] contents, int messages) {
+        long sink = 0;
+        for (int i = 0; i < messages; i++) {
+            String content = contents[i % contents.length];
+            if (content.startsWith("TREATMENT_COMPLETE")) {
+                String[] parts = content.split(":");
+                sink += parts[1].hashCode();
+            } else if (content.startsWith("RESOURCE_STATE")) {
+                String[] parts = content.split(":");
+                sink += parts[1].length() + parts[2].length() + parts[3].length() + 
+                        (parts[4].equals("RESOURCE_AVAILABLE") ? 1 : 0) + Long.parseLong(parts[5]);
+            } else if (content.startsWith("DOCTOR_AVAILABLE") || content.startsWith("ROOM_AVAILABLE")) {
+                sink++;
+            }
+        }
+        dispatchSink += sink;
+    }
+    
+    private static void typedSchedulerDispatch(String[] contents, int messages) {
+        HospitalMessage parser = new HospitalMessage();
+        long sink = 0;
+        for (int i = 0; i < messages; i++) {
+            if (!parser.parse(contents[i % contents.length])) continue;
+            switch (parser.getOpcode()) {
+                case TREATMENT_COMPLETE:
+                    sink += parser.field(0).hashCode();
+                    break;
+                case RESOURCE_STATE:
+                    sink += parser.field(0).length() + parser.field(1).length() + parser.field(2).length() + 
+                            (parser.fieldEquals(3, "RESOURCE_AVAILABLE") ? 1 : 0) + parser.longField(4);
+                    break;
+                case DOCTOR_AVAILABLE:
+                case ROOM_AVAILABLE:
+                    sink++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        dispatchSink += sink;
+    }
+    
+    private static void legacyMonitorDispatch(String[] contents, int messages) {
+        double sink = 0;
+        for (int i = 0; i < messages; i++) {
+            String content = contents[i % contents.length];
+            if (content.startsWith("PATIENT_REGISTERED:")) {
+                sink++;
+            } else if (content.startsWith("PATIENT_WAITING:")) {
+                sink += Double.parseDouble(content.split(":")[1]);
+            } else if (content.startsWith("PATIENT_TREATED:")) {
+                sink++;
+            } else if (content.startsWith("RESOURCE_STATUS:")) {
+                String[] parts = content.split(":");
+                sink += parts[1].equals("DOCTOR") && parts[2].equals("BUSY") ? 1 : 0;
+            } else if (content.startsWith("ALLOCATION_SUCCESS:")) {
+                sink++;
+            } else if (content.startsWith("ALLOCATION_FAILED:")) {
+                sink++;
+            } else if (content.startsWith("WAIT_TIME:")) {
+                String[] parts = content.split(":");
+                sink += Double.parseDouble(parts[1]) + Integer.parseInt(parts[2]) + Double.parseDouble(parts[3]);
+            } else if (content.startsWith("ALLOCATION_METRICS:")) {
+                String[] parts = content.split(":");
+                sink += Double.parseDouble(parts[1]) + Double.parseDouble(parts[2]) + Double.parseDouble(parts[3]);
+            }
+        }
+        dispatchSink += (long) sink;
+    }
+    
+    private static void typedMonitorDispatch(String[] contents, int messages) {
+        HospitalMessage parser = new HospitalMessage();
+        double sink = 0;
+        for (int i = 0; i < messages; i++) {
+            if (!parser.parse(contents[i % contents.length])) continue;
+            switch (parser.getOpcode()) {
+                case PATIENT_REGISTERED:
+                case PATIENT_TREATED:
+                case ALLOCATION_SUCCESS:
+                case ALLOCATION_FAILED:
+                    sink++;
+                    break;
+                case PATIENT_WAITING:
+                    sink += parser.doubleField(0);
+                    break;
+                case RESOURCE_STATUS:
+                    sink += parser.fieldEquals(0, "DOCTOR") && parser.fieldEquals(1, "BUSY") ? 1 : 0;
+                    break;
+                case WAIT_TIME:
+                    sink += parser.doubleField(0) + parser.intField(1) + parser.doubleField(2);
+                    break;
+                case ALLOCATION_METRICS:
+                    sink += parser.doubleField(0) + parser.doubleField(1) + parser.doubleField(2);
+                    break;
+                default:
+                    break;
+            }
+        }
+        dispatchSink += (long) sink;
+    }
+    
+    private static double runShards(List<Patient> patients, int shards, boolean stealing) {
+        List<String> names = new ArrayList<>();
+        Map<String, SchedulingAlgorithm> queues = new HashMap<>();
+        for (int i = 0; i < shards; i++) {
+            names.add("S" + i);
+            queues.put("S" + i, new SchedulingAlgorithm(new ConcurrentPatientQueue()));
+        }
+        ConsistentHashRing ring = new ConsistentHashRing(names);
+        for (Patient patient : patients) {
+            queues.get(ring.getNode(SchedulingAlgorithm.getDepartment(patient.getTreatmentType()))).addPatient(patient);
+        }
+        
+        AtomicInteger remaining = new AtomicInteger(patients.size());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            final int self = i;
+            threads.add(new Thread(() -> {
+                SchedulingAlgorithm own = queues.get(names.get(self));
+                int cursor = self + 1;
+                while (remaining.get() > 0) {
+                    Patient patient = own.getNextPatient();
+                    if (patient != null) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1)); // Reservation round trip
+                        remaining.decrementAndGet();
+                    } else if (stealing && shards > 1) {
+                        SchedulingAlgorithm victim = queues.get(names.get(cursor++ % shards));
+                        for (Patient stolen : victim.stealBatch(10)) own.addPatient(stolen);
+                    } else {
+                        return; // Own partition done
+                    }
+                }
+            }));
+        }
+        
+        long start = System.nanoTime();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return patients.size() / ((System.nanoTime() - start) / 1e9);
+    }
+    
+    private static long drainWithWorkers(SchedulingAlgorithm scheduler, List<String> doctors, int workers) {
+        List<Thread> pool = new ArrayList<>();
+        for (int t = 0; t < workers; t++) {
+            pool.add(new Thread(() -> {
+                List<Patient> batch;
+                while (!(batch = scheduler.pollBatch(50)).isEmpty()) {
+                    SchedulingAlgorithm.planDoctorAssignment(batch, doctors);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : pool) thread.start();
+        for (Thread thread : pool) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+    
+    private static void reportCodec(String label, Object payload, MessageCodec java, MessageCodec compact) {
+        int iterations = 20_000;
+        try {
+            byte[] javaBytes = java.encode(payload);
+            byte[] compactBytes = compact.encode(payload);
+            double javaEncode = medianMillis(() -> repeatEncode(java, payload, iterations)) * 1e6 / iterations;
+            double compactEncode = medianMillis(() -> repeatEncode(compact, payload, iterations)) * 1e6 / iterations;
+            double javaDecode = medianMillis(() -> repeatDecode(java, javaBytes, iterations)) * 1e6 / iterations;
+            double compactDecode = medianMillis(() -> repeatDecode(compact, compactBytes, iterations)) * 1e6 / iterations;
+            System.out.println(String.format("  %-16s encode %6.0f -> %5.0f ns, decode %6.0f -> %5.0f ns, size %4d -> %3d bytes",
+                label, javaEncode, compactEncode, javaDecode, compactDecode, javaBytes.length, compactBytes.length));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private static void repeatEncode(MessageCodec codec, Object payload, int iterations) {
+        try {
+            for (int i = 0; i < iterations; i++) {
+                codec.encode(payload);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private static void repeatDecode(MessageCodec codec, byte[] data, int iterations) {
+        try {
+            for (int i = 0; i < iterations; i++) {
+                codec.decode(data);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Benchmark the monitor's metric updates from telemetry batches: boxed values in
+     * a Map<String, Double> (events extracted from the batch) against the primitive
+     * metrics registry (events parsed in place). Resource status events are left out,
+     * they keep per-resource entries in both versions.
+     */
+    private static void benchmarkMetricsStore() {
+        printSection("METRICS STORE (events/s, bytes/event)");
+        
+        TelemetryEmitter emitter = new TelemetryEmitter(TelemetryEmitter.DEFAULT_BATCH_SIZE, 500);
+        String[] events = {
+            "PATIENT_REGISTERED:" + UUID.randomUUID(),
+            "PATIENT_WAITING:125",
+            "ALLOCATION_SUCCESS:DOCTOR:D1",
+            "WAIT_TIME:240000:4:0.7",
+            "PATIENT_TREATED:P1",
+            "ALLOCATION_METRICS:2.500:130.4:812"
+        };
+        for (int i = 0; i < TelemetryEmitter.DEFAULT_BATCH_SIZE; i++) {
+            emitter.offer("Patient_" + i, events[i % events.length]);
+        }
+        String batch = emitter.nextBatch();
+        int batches = 20_000;
+        int eventCount = batches * TelemetryEmitter.DEFAULT_BATCH_SIZE;
+        
+        Map<String, Double> systemMetrics = new java.util.concurrent.ConcurrentHashMap<>();
+        HospitalMessage mapParser = new HospitalMessage();
+        TelemetryEmitter.EventHandler mapHandler = (source, content) -> {
+            if (mapParser.parse(content)) {
+                recordInMap(mapParser, systemMetrics);
+            }
+        };
+        Runnable map = () -> {
+            for (int i = 0; i < batches; i++) {
+                TelemetryEmitter.forEachEvent(batch, mapHandler);
+            }
+        };
+        
+        MetricsRegistry metrics = new MetricsRegistry();
+        HospitalMessage registryParser = new HospitalMessage();
+        TelemetryEmitter.EventRangeHandler registryHandler = (text, sourceStart, sourceEnd, contentStart, contentEnd) -> {
+            if (registryParser.parse(text, contentStart, contentEnd)) {
+                recordInRegistry(registryParser, metrics);
+            }
+        };
+        Runnable registry = () -> {
+            for (int i = 0; i < batches; i++) {
+                TelemetryEmitter.forEachEventRange(batch, registryHandler);
+            }
+        };
+        
+        double mapRate = eventCount / (medianMillis(map) / 1000.0);
+        double registryRate = eventCount / (medianMillis(registry) / 1000.0);
+        System.out.println(String.format("  Map<String, Double> %,12.0f events/s %5.1f B/event", 
+            mapRate, allocatedBytes(map) / (double) eventCount));
+        System.out.println(String.format("  Metrics registry    %,12.0f events/s %5.1f B/event (x%.1f)", 
+            registryRate, allocatedBytes(registry) / (double) eventCount, registryRate / mapRate));
+        
+        MetricsRegistry.Snapshot snapshot = new MetricsRegistry.Snapshot();
+        int snapshots = 1_000_000;
+        Runnable snapshotting = () -> {
+            for (int i = 0; i < snapshots; i++) {
+                metrics.snapshot(snapshot);
+            }
+        };
+        System.out.println(String.format("  Registry snapshot   %,12.0f snapshots/s %5.1f B/snapshot", 
+            snapshots / (medianMillis(snapshotting) / 1000.0), allocatedBytes(snapshotting) / (double) snapshots));
+        System.out.println();
+    }
+    
+    /**
+     * Benchmark the utilization update of a RESOURCE_STATUS report with 10k resource
+     * agents: counting the busy resources of a status map on each report against
+     * busy/total counters adjusted on state transitions
+     */
+    private static void benchmarkUtilization() {
+        printSection("UTILIZATION UPDATES (10k resource agents)");
+        
+        int resources = 10_000;
+        String[] names = new String[resources];
+        for (int i = 0; i < resources; i++) {
+            names[i] = "Doctor_" + i;
+        }
+        Random random = new Random(42);
+        int reports = 1_000_000;
+        int[] reporter = new int[reports];
+        boolean[] busy = new boolean[reports];
+        for (int i = 0; i < reports; i++) {
+            reporter[i] = random.nextInt(resources);
+            busy[i] = random.nextBoolean();
+        }
+        
+        // Scanning every resource on each report: a smaller run is enough
+        int scanReports = 20_000;
+        Map<String, Boolean> statusMap = new java.util.concurrent.ConcurrentHashMap<>();
+        double[] sink = new double[1];
+        Runnable scan = () -> {
+            for (int i = 0; i < scanReports; i++) {
+                statusMap.put(names[reporter[i]], busy[i]);
+                long busyCount = statusMap.values().stream().filter(Boolean::booleanValue).count();
+                sink[0] = (busyCount * 100.0) / statusMap.size();
+            }
+        };
+        
+        UtilizationTracker tracker = new UtilizationTracker();
+        Runnable counters = () -> {
+            for (int i = 0; i < reports; i++) {
+                if (tracker.update(names[reporter[i]], busy[i])) {
+                    sink[0] = tracker.getUtilization();
+                }
+            }
+        };
+        
+        double scanNanos = medianMillis(scan) * 1_000_000.0 / scanReports;
+        double counterNanos = medianMillis(counters) * 1_000_000.0 / reports;
+        System.out.println(String.format("  Stream scan         %,12.0f ns/report %,14.0f reports/s", 
+            scanNanos, 1e9 / scanNanos));
+        System.out.println(String.format("  Transition counters %,12.1f ns/report %,14.0f reports/s (x%.0f)", 
+            counterNanos, 1e9 / counterNanos, scanNanos / counterNanos));
+        System.out.println(String.format("  Counters allocate %.1f B/report once every resource has reported, " + 
+            "utilization %.1f%%", allocatedBytes(counters) / (double) reports, tracker.getUtilization()));
+        System.out.println();
+    }
+    
+    /**
+     * Benchmark the event dispatch thread under 10k metric updates per second for 2 s:
+     * one task per update refreshing three panels, as updateMetric did, against the
+     * coalescing update bus at 30 frames per second. A panel refresh costs 50 us.
+     */
+    private static void benchmarkDashboardUpdates() {
+        printSection("DASHBOARD UPDATES (10k msg/s for 2 s, EDT latency and queue depth)");
+        
+        String[] keys = {"total_patients", "waiting_patients", "avg_wait_time", "success_rate", 
+                         "doctor_utilization", "room_utilization", "queue_length"};
+        int rate = 10_000;
+        long duration = 2_000;
+        long panelRefresh = TimeUnit.MICROSECONDS.toNanos(50);
+        
+        EdtLatencyGauge perUpdate = new EdtLatencyGauge();
+        reportDashboardUpdates("invokeLater per update", perUpdate, keys, rate, duration, 
+            (key, value) -> perUpdate.invokeLater(() -> spin(3 * panelRefresh)));
+        
+        DashboardUpdateBus bus = new DashboardUpdateBus(frame -> spin(3 * panelRefresh), 
+            DashboardUpdateBus.DEFAULT_FRAME_RATE);
+        reportDashboardUpdates("Update bus (30 fps)", bus.getGauge(), keys, rate, duration, bus::publish);
+        System.out.println();
+    }
+    
+    private interface MetricSink {
+        void publish(String key, double value);
+    }
+    
+    private static void reportDashboardUpdates(String label, EdtLatencyGauge gauge, String[] keys, int rate, 
+                                               long duration, MetricSink sink) {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+        int sent = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            // Paced producer: catch up with the target rate every 0.5 ms
+            long due = (now - start) * rate / 1_000_000_000L;
+            for (; sent < due; sent++) {
+                sink.publish(keys[sent % keys.length], sent);
+            }
+            LockSupport.parkNanos(500_000);
+        }
+        
+        // Wait for the event queue to drain
+        long producedAt = System.nanoTime();
+        try {
+            javax.swing.SwingUtilities.invokeAndWait(() -> { });
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        double drainMillis = (System.nanoTime() - producedAt) / 1_000_000.0;
+        System.out.println(String.format("  %-24s %,7d msgs %,7d EDT tasks, latency avg %,9.1f ms max %,9.1f ms, " + 
+            "queue max %,6d, drain %,8.1f ms", label, sent, gauge.getTaskCount(), gauge.getAverageLatencyMillis(), 
+            gauge.getMaxLatencyMillis(), gauge.getMaxQueueDepth(), drainMillis));
+    }
+    
+    private static void spin(long nanos) {
+        long until = System.nanoTime() + nanos;
+        while (System.nanoTime() < until) {
+            Thread.onSpinWait();
+        }
+    }
+    
+    /**
+     * Benchmark painting a time series chart (800x300): the LinkedList chart indexing
+     * its points with get(i), against the ring-buffer series drawn per pixel column.
+     * The bytes per paint of the chart are Swing's (graphics copies, border).
+     */
+    private static void benchmarkTimeSeriesPaint() {
+        printSection("TIME SERIES PAINT (800x300 chart)");
+        
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(800, 300, 
+            java.awt.image.BufferedImage.TYPE_INT_ARGB);
+        java.awt.Graphics2D g2 = image.createGraphics();
+        Random random = new Random(42);
+        
+        for (int points : new int[]{1_000, 10_000}) {
+            LinkedList<Double> dataPoints = new LinkedList<>();
+            for (int i = 0; i < points; i++) {
+                dataPoints.add(random.nextDouble() * 20);
+            }
+            double millis = medianMillis(() -> paintLinkedList(g2, dataPoints, 800, 300));
+            System.out.println(String.format("  LinkedList get(i)   %,8d points %,10.2f ms/paint %,12d B/paint", 
+                points, millis, allocatedBytes(() -> paintLinkedList(g2, dataPoints, 800, 300))));
+        }
+        
+        for (int points : new int[]{1_000, 10_000, 100_000}) {
+            TimeSeries series = new TimeSeries(points, TimeSeries.DEFAULT_MINUTES, TimeSeries.DEFAULT_HOURS);
+            for (int i = 0; i < points; i++) {
+                series.addPoint(i * 1000L, random.nextDouble() * 20);
+            }
+            TimeSeriesChart chart = new TimeSeriesChart("System Activity", series);
+            chart.setSize(800, 300);
+            chart.setHorizon(points * 1000L);
+            double millis = medianMillis(() -> chart.paint(g2));
+            System.out.println(String.format("  Ring buffer series  %,8d points %,10.2f ms/paint %,12d B/paint", 
+                points, millis, allocatedBytes(() -> chart.paint(g2))));
+        }
+        g2.dispose();
+        System.out.println();
+    }
+    
+    /**
+     * Paint loop of the former RealTimeChart
+     */
+    private static void paintLinkedList(java.awt.Graphics2D g2, LinkedList<Double> dataPoints, int width, int height) {
+        g2.setColor(java.awt.Color.WHITE);
+        g2.fillRect(0, 0, width, height);
+        g2.setRenderingHint(java.awt.RenderingHints.KEY_ANTIALIASING, java.awt.RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setColor(new java.awt.Color(52, 152, 219));
+        g2.setStroke(new java.awt.BasicStroke(2));
+        
+        int xStep = (width - 60) / (dataPoints.size() - 1);
+        double maxValue = dataPoints.stream().mapToDouble(Double::doubleValue).max().orElse(1);
+        if (maxValue == 0) maxValue = 1;
+        
+        for (int i = 0; i < dataPoints.size() - 1; i++) {
+            int x1 = 40 + i * xStep;
+            int x2 = 40 + (i + 1) * xStep;
+            int y1 = height - 40 - (int)(dataPoints.get(i) * (height - 80) / maxValue);
+            int y2 = height - 40 - (int)(dataPoints.get(i + 1) * (height - 80) / maxValue);
+            g2.drawLine(x1, y1, x2, y2);
+        }
+    }
+    
+    /**
+     * Benchmark the metrics history: a month of one-second samples (the queue length
+     * changing every second, the patient count every ten) appended to the segment
+     * files, then read back by range, the records staying in the mapped files.
+     */
+    private static void benchmarkMetricsHistory() {
+        printSection("METRICS HISTORY (30 days, 1 sample/s)");
+        
+        long seconds = 30 * 86_400L;
+        long hour = 3_600_000L;
+        try {
+            java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("history-bench");
+            MetricsHistoryStore store = new MetricsHistoryStore(directory);
+            MetricsRegistry metrics = new MetricsRegistry();
+            MetricsRegistry.Snapshot snapshot = new MetricsRegistry.Snapshot();
+            
+            long start = System.nanoTime();
+            long allocated = allocatedBytes(() -> {
+                try {
+                    for (long second = 0; second < seconds; second++) {
+                        metrics.set(MetricsRegistry.Metric.QUEUE_LENGTH, second % 50);
+                        if (second % 10 == 0) {
+                            metrics.increment(MetricsRegistry.Metric.TOTAL_PATIENTS);
+                        }
+                        store.appendMetrics(second * 1000L, metrics.snapshot(snapshot));
+                    }
+                } catch (java.io.IOException e) {
+                    throw new java.io.UncheckedIOException(e);
+                }
+            });
+            double writeMillis = (System.nanoTime() - start) / 1_000_000.0;
+            
+            long[] records = new long[1];
+            store.forEach(0, Long.MAX_VALUE, (timestamp, series, value) -> records[0]++);
+            long bytes = 0;
+            try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(directory)) {
+                for (java.nio.file.Path file : (Iterable<java.nio.file.Path>) files::iterator) {
+                    bytes += java.nio.file.Files.size(file);
+                }
+            }
+            System.out.println(String.format("  Append    %,10d samples %,10.1f ms %,8.0f ns/sample %,6.1f B/sample", 
+                seconds, writeMillis, writeMillis * 1_000_000.0 / seconds, allocated / (double) seconds));
+            System.out.println(String.format("  On disk   %,10d records %,10.1f MB in %d segments", 
+                records[0], bytes / 1_048_576.0, store.getSegmentCount()));
+            
+            // Queue length over one hour, one day and the whole month, from the middle of the month
+            double[] sum = new double[1];
+            MetricsHistoryStore.SampleVisitor visitor = (timestamp, value) -> sum[0] += value;
+            long middle = seconds * 500L;
+            for (long range : new long[]{hour, 24 * hour, seconds * 1000L}) {
+                long from = range == seconds * 1000L ? 0 : middle;
+                double millis = medianMillis(() -> 
+                    store.forEachSample(MetricsRegistry.Metric.QUEUE_LENGTH, from, from + range, visitor));
+                long queryBytes = allocatedBytes(() -> 
+                    store.forEachSample(MetricsRegistry.Metric.QUEUE_LENGTH, from, from + range, visitor));
+                System.out.println(String.format("  Query %-4s %,10.3f ms %,12d B allocated", 
+                    range == hour ? "1 h" : range == 24 * hour ? "24 h" : "30 d", millis, queryBytes));
+            }
+            
+            store.close();
+            deleteRecursively(directory);
+        } catch (java.io.IOException e) {
+            System.out.println("  Skipped: " + e.getMessage());
+        }
+        System.out.println();
+    }
+    
+    /**
+     * Benchmark exporting the patient lifecycle of the history as CSV: the rows built
+     * in one StringBuilder and written with Files.write, as exportReport did, against
+     * the streaming exporter. The builder holds the whole report on the heap; the
+     * exporter holds its 64 KB buffer.
+     */
+    private static void benchmarkReportExport() {
+        printSection("REPORT EXPORT (patient lifecycle CSV)");
+        
+        try {
+            java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("export-bench");
+            MetricsHistoryStore store = new MetricsHistoryStore(directory.resolve("history"));
+            int exported = 0;
+            for (int patients : new int[]{100_000, 1_000_000}) {
+                for (int i = exported; i < patients; i++) {
+                    String patient = java.util.UUID.nameUUIDFromBytes(Integer.toString(i).getBytes()).toString();
+                    store.appendArrival(i * 10L, patient);
+                    store.appendAllocation(i * 10L + 1, patient, "DOCTOR", "Doctor_" + (i % 50));
+                    store.appendCompletion(i * 10L + 2, patient, i % 3_600_000);
+                }
+                exported = patients;
+                
+                java.nio.file.Path legacyFile = directory.resolve("legacy.csv");
+                long[] builderChars = new long[1];
+                long start = System.nanoTime();
+                StringBuilder report = new StringBuilder();
+                report.append("timestamp,patient,event,resource,wait_ms\n");
+                store.forEachPatientEvent(0, Long.MAX_VALUE, (timestamp, event, patient, resource, waitMillis) -> {
+                    try {
+                        report.append(timestamp).append(',').append(store.getPatientId(patient)).append(',')
+                              .append(event.name()).append(',')
+                              .append(resource < 0 ? "" : store.getResourceName(resource)).append(',');
+                        if (waitMillis >= 0) {
+                            report.append(waitMillis);
+                        }
+                        report.append('\n');
+                    } catch (java.io.IOException e) {
+                        throw new java.io.UncheckedIOException(e);
+                    }
+                });
+                java.nio.file.Files.write(legacyFile, report.toString().getBytes());
+                double legacyMillis = (System.nanoTime() - start) / 1_000_000.0;
+                builderChars[0] = report.capacity();
+                
+                java.nio.file.Path streamFile = directory.resolve("patients.csv");
+                start = System.nanoTime();
+                new ReportExporter(store).exportPatients(0, Long.MAX_VALUE, ReportExporter.Format.CSV, streamFile);
+                double streamMillis = (System.nanoTime() - start) / 1_000_000.0;
+                long size = java.nio.file.Files.size(streamFile);
+                
+                System.out.println(String.format("  %,9d patients (%,6.1f MB)  StringBuilder %,8.0f ms, %,6.1f MB held" + 
+                    "   streaming %,8.0f ms, 64 KB buffer", patients, size / 1_048_576.0, legacyMillis, 
+                    builderChars[0] / 1_048_576.0, streamMillis));
+                java.nio.file.Files.delete(legacyFile);
+                java.nio.file.Files.delete(streamFile);
+            }
+            store.close();
+            deleteRecursively(directory);
+        } catch (java.io.IOException e) {
+            System.out.println("  Skipped: " + e.getMessage());
+        }
+        System.out.println();
+    }
+    
+    private static void benchmarkLatencyHistogram() {
+        printSection("LATENCY HISTOGRAM (wait times of 1M patients)");
+        
+        int samples = 1_000_000;
+        long[] waits = new long[samples];
+        Random random = new Random(42);
+        for (int i = 0; i < samples; i++) {
+            // Mostly minutes, with a tail of hours
+            waits[i] = (long) (-Math.log(1 - random.nextDouble()) * 300_000);
+        }
+        
+        // Previous approach: keep every wait, sort to read percentiles
+        double listMillis = medianMillis(() -> {
+            List<Long> recorded = new ArrayList<>();
+            for (long wait : waits) {
+                recorded.add(wait);
+            }
+            Collections.sort(recorded);
+            dispatchSink += recorded.get(recorded.size() * 99 / 100);
+        });
+        long listBytes = allocatedBytes(() -> {
+            List<Long> recorded = new ArrayList<>();
+            for (long wait : waits) {
+                recorded.add(wait);
+            }
+            dispatchSink += recorded.size();
+        });
+        
+        LatencyHistogram histogram = new LatencyHistogram();
+        double histogramMillis = medianMillis(() -> {
+            for (long wait : waits) {
+                histogram.record(wait);
+            }
+            dispatchSink += histogram.getValueAtPercentile(99);
+        });
+        long histogramBytes = allocatedBytes(() -> {
+            for (long wait : waits) {
+                histogram.record(wait);
+            }
+        });
+        // 1000 queries: the median in ms is the time of one query in us
+        double queryMicros = medianMillis(() -> {
+            for (int i = 0; i < 1_000; i++) {
+                dispatchSink += histogram.getValueAtPercentile(99.9);
+            }
+        });
+        
+        Arrays.sort(waits);
+        long exact = waits[samples * 99 / 100];
+        histogram.reset();
+        for (long wait : waits) {
+            histogram.record(wait);
+        }
+        long estimate = histogram.getValueAtPercentile(99);
+        
+        System.out.println(String.format("  record + p99, list of all  %8.1f ms, %,12d bytes allocated", 
+            listMillis, listBytes));
+        System.out.println(String.format("  record + p99, histogram    %8.1f ms, %,12d bytes allocated (%d KB fixed)", 
+            histogramMillis, histogramBytes, LatencyHistogram.BUCKETS * 8 / 1024));
+        System.out.println(String.format("  percentile query           %8.1f us", queryMicros));
+        System.out.println(String.format("  p99 exact %,d ms, histogram %,d ms (%+.2f%%)", 
+            exact, estimate, (estimate - exact) * 100.0 / exact));
+        System.out.println();
+    }
+    
+    /**
+     * Benchmark agent threads handling messages and logging each one: println on a
+     * shared autoflushed stream (as System.out), the asynchronous sink, and logging
+     * disabled. The streams write to a temporary file so that no terminal is timed.
+     */
+    private static void benchmarkAsyncLogging() {
+        printSection("ASYNC LOGGING (4 agent threads, one record per message)");
+        
+        int threads = 4;
+        int messages = 100_000;
+        try {
+            java.nio.file.Path file = java.nio.file.Files.createTempFile("log-bench", ".log");
+            try (java.io.PrintStream console = new java.io.PrintStream(
+                    new java.io.FileOutputStream(file.toFile()), true)) {
+                double println = runLoggingAgents(threads, messages, (agent, i) -> 
+                    console.println(agent + " allocated to patient P" + i + ". Total usage count: " + i));
+                
+                LogSink sink = new LogSink(LogSink.DEFAULT_CAPACITY, 0, LogSink.Level.INFO, console);
+                sink.start();
+                double async = runLoggingAgents(threads, messages, (agent, i) -> 
+                    sink.forSource(agent).info("allocated to patient P", i, ". Total usage count: ", i));
+                long dropped = sink.getDropped();
+                sink.flush();
+                
+                sink.setLevel(LogSink.Level.OFF);
+                double disabled = runLoggingAgents(threads, messages, (agent, i) -> 
+                    sink.forSource(agent).info("allocated to patient P", i, ". Total usage count: ", i));
+                
+                sink.setLevel(LogSink.Level.INFO);
+                sink.setRateLimit(LogSink.DEFAULT_RATE_LIMIT);
+                double limited = runLoggingAgents(threads, messages, (agent, i) -> 
+                    sink.forSource(agent).info("allocated to patient P", i, ". Total usage count: ", i));
+                sink.flush();
+                
+                System.out.println(String.format("  System.out-style println  %,12.0f msgs/s", println));
+                System.out.println(String.format("  async sink, INFO          %,12.0f msgs/s (%,d of %,d records dropped)", 
+                    async, dropped, threads * messages));
+                System.out.println(String.format("  async sink, 100/s/agent   %,12.0f msgs/s", limited));
+                System.out.println(String.format("  logging disabled (OFF)    %,12.0f msgs/s", disabled));
+            }
+            java.nio.file.Files.delete(file);
+        } catch (java.io.IOException e) {
+            System.out.println("  Skipped: " + e.getMessage());
+        }
+        System.out.println();
+    }
+    
+    /**
+     * Benchmark the load balancer's distributor for 1 s with 1,000 patients that no
+     * resource fits and a resource event every 100 ms: the previous loop polled and
+     * re-offered a patient on every pass, the wait queues try once per event.
+     */
+    private static void benchmarkUnplaceablePatients() {
+        printSection("LOAD BALANCER DISTRIBUTOR (1,000 unplaceable patients, 1 s)");
+        
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            patients.add(new Patient("Patient_" + i, 1 + i % 5, "CONSULTATION"));
+        }
+        long[] attempts = new long[1];
+        
+        Queue<Patient> pending = new LinkedList<>(patients);
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (System.nanoTime() < end) {
+            Patient patient = pending.poll();
+            attempts[0]++;
+            pending.offer(patient);
+        }
+        long legacyCpu = threads.getCurrentThreadCpuTime() - cpuStart;
+        long legacyAttempts = attempts[0];
+        
+        ResourceWaitQueues queues = new ResourceWaitQueues();
+        for (Patient patient : patients) {
+            queues.add("DOCTOR", patient);
+        }
+        attempts[0] = 0;
+        cpuStart = threads.getCurrentThreadCpuTime();
+        for (int event = 0; event < 10; event++) {
+            queues.dispatch((type, patient) -> {
+                attempts[0]++;
+                return false;
+            });
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100)); // block() until the next message
+            queues.signal("DOCTOR");
+        }
+        long queuesCpu = threads.getCurrentThreadCpuTime() - cpuStart;
+        
+        System.out.println(String.format("  poll and re-offer   %,12d placement attempts, %,6.1f ms CPU", 
+            legacyAttempts, legacyCpu / 1e6));
+        System.out.println(String.format("  wait queues         %,12d placement attempts, %,6.1f ms CPU", 
+            attempts[0], queuesCpu / 1e6));
+        System.out.println();
+    }
+    
+    /**
+     * Benchmark the selection of a resource among 10,000 of one type, each
+     * selection followed by the end of a treatment on a random resource
+     */
+    private static void benchmarkLoadIndex() {
+        printSection("LOAD BALANCING STRATEGIES (10,000 resources)");
+        
+        int resources = 10_000;
+        int selections = 20_000;
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < selections; i++) {
+            patients.add(new Patient("Patient_" + i, 1 + i % 5, "CONSULTATION"));
+        }
+        
+        // Former least connections: filter and sort the resources of the type on each request
+        List<ResourceLoad> loads = createLoads(resources);
+        double scan = medianMillis(() -> {
+            Random random = new Random(1);
+            for (int i = 0; i < selections; i++) {
+                List<ResourceLoad> viable = new ArrayList<>();
+                for (ResourceLoad load : loads) {
+                    if (!load.isOverloaded()) viable.add(load);
+                }
+                ResourceLoad least = viable.stream()
+                    .min(Comparator.comparingInt(ResourceLoad::getCurrentLoad))
+                    .orElse(null);
+                least.incrementLoad();
+                loads.get(random.nextInt(resources)).decrementLoad();
+            }
+        }) * 1e6 / selections;
+        System.out.println(String.format("  %-22s %,10.0f ns per selection", "scan (former)", scan));
+        
+        LoadBalancingStrategy[] strategies = {
+            new LeastConnectionsStrategy(), new AdaptiveLoadBalancingStrategy(),
+            new PowerOfTwoChoicesStrategy(new Random(2)), new ConsistentHashStrategy()
+        };
+        for (LoadBalancingStrategy strategy : strategies) {
+            LoadIndex index = new LoadIndex("DOCTOR", strategy::loadKey);
+            for (ResourceLoad load : createLoads(resources)) {
+                index.add(load);
+            }
+            double indexed = medianMillis(() -> {
+                Random random = new Random(1);
+                for (int i = 0; i < selections; i++) {
+                    AID resource = strategy.selectResource(index, patients.get(i));
+                    index.get(resource).incrementLoad();
+                    index.get(random.nextInt(resources)).decrementLoad();
+                    dispatchSink += resource.hashCode();
+                }
+            }) * 1e6 / selections;
+            System.out.println(String.format("  %-22s %,10.0f ns per selection (%.0fx)", 
+                strategy.getName(), indexed, scan / indexed));
+        }
+        System.out.println();
+    }
+    
+    private static List<ResourceLoad> createLoads(int resources) {
+        Random random = new Random(42);
+        List<ResourceLoad> loads = new ArrayList<>();
+        for (int i = 0; i < resources; i++) {
+            ResourceLoad load = new ResourceLoad(new AID("Doctor_" + i, AID.ISLOCALNAME), "DOCTOR");
+            load.setCurrentLoad(random.nextInt(4));
+            loads.add(load);
+        }
+        return loads;
+    }
+    
+    /**
+     * Simulate the load balancer under Poisson arrivals: 20 doctors, half of them
+     * treating at half speed, each treating its patients one at a time in order.
+     * Treatment times are exponential around the estimate of a random treatment
+     * type; patients no doctor can take wait in the balancer's queue.
+     */
+    private static void benchmarkStrategiesUnderPoissonArrivals() {
+        printSection("LOAD BALANCING STRATEGIES (Poisson arrivals, 20 doctors, 200,000 patients)");
+        
+        for (double utilization : new double[]{0.8, 0.95}) {
+            System.out.println(String.format("  Utilization %.2f         mean wait   p99 wait   (minutes)", utilization));
+            LoadBalancingStrategy[] strategies = {
+                new RoundRobinStrategy(), new WeightedRoundRobinStrategy(), new LeastConnectionsStrategy(),
+                new AdaptiveLoadBalancingStrategy(), new PowerOfTwoChoicesStrategy(new Random(5)),
+                new PowerOfDChoicesStrategy(3, new Random(5)), new ConsistentHashStrategy(),
+                new ShortestExpectedDelayStrategy()
+            };
+            for (LoadBalancingStrategy strategy : strategies) {
+                double[] waits = simulateStrategy(strategy, 20, 200_000, utilization);
+                System.out.println(String.format("    %-24s %9.1f %10.1f", strategy.getName(), waits[0], waits[1]));
+            }
+        }
+        System.out.println();
+    }
+    
+    /**
+     * @return the mean and 99th percentile wait, in minutes, from arrival to start of treatment
+     */
+    private static double[] simulateStrategy(LoadBalancingStrategy strategy, int doctors, int patients, 
+                                             double utilization) {
+        String[] treatments = {"CONSULTATION", "CHECKUP", "XRAY", "EMERGENCY", "MRI"};
+        Random random = new Random(11);
+        double[] speeds = new double[doctors];
+        double capacity = 0; // Expected treatment time served per unit of time
+        for (int d = 0; d < doctors; d++) {
+            speeds[d] = d % 2 == 0 ? 1.0 : 0.5;
+            capacity += speeds[d];
+        }
+        double meanTreatment = 0;
+        for (String treatment : treatments) {
+            meanTreatment += SchedulingAlgorithm.estimateTreatmentDuration(treatment) / (double) treatments.length;
+        }
+        double meanInterarrival = meanTreatment / (capacity * utilization);
+        
+        LoadIndex index = new LoadIndex("DOCTOR", strategy::loadKey);
+        Map<String, Integer> doctorOf = new HashMap<>();
+        List<ArrayDeque<long[]>> queues = new ArrayList<>(); // {patient, arrival, treatment time}
+        long[] now = new long[1];
+        ResourceLoad[] loads = new ResourceLoad[doctors];
+        for (int d = 0; d < doctors; d++) {
+            AID doctor = new AID("Doctor_" + d, AID.ISLOCALNAME);
+            loads[d] = new ResourceLoad(doctor, "DOCTOR", () -> now[0]);
+            index.add(loads[d]);
+            doctorOf.put(doctor.getName(), d);
+            queues.add(new ArrayDeque<>());
+        }
+        
+        // Events: {time, doctor} for the end of a treatment, doctor -1 for an arrival
+        PriorityQueue<long[]> events = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        ResourceWaitQueues waiting = new ResourceWaitQueues();
+        long[] waitSum = new long[1];
+        LatencyHistogram waits = new LatencyHistogram();
+        
+        ResourceWaitQueues.Placement placement = (type, patient) -> {
+            AID selected = strategy.selectResource(index, patient);
+            if (selected == null) {
+                return false;
+            }
+            int d = doctorOf.get(selected.getName());
+            long expected = SchedulingAlgorithm.estimateTreatmentDuration(patient.getTreatmentType());
+            long treatment = Math.max(1, (long) (-Math.log(1 - random.nextDouble()) * expected / speeds[d]));
+            ResourceLoad load = loads[d];
+            load.incrementLoad();
+            load.assignPatient(patient.getId(), patient.getTreatmentType(), expected);
+            queues.get(d).offer(new long[]{Long.parseLong(patient.getId()), patient.getArrivalTime(), treatment});
+            if (queues.get(d).size() == 1) {
+                startTreatment(queues.get(d).peek(), d, now[0], events, waits, waitSum);
+            }
+            return true;
+        };
+        
+        events.add(new long[]{0, -1});
+        int arrived = 0;
+        while (!events.isEmpty()) {
+            long[] event = events.poll();
+            now[0] = event[0];
+            int d = (int) event[1];
+            if (d < 0) {
+                Patient patient = new Patient(String.valueOf(arrived), "Patient_" + arrived, 3, 
+                                              treatments[random.nextInt(treatments.length)], now[0]);
+                waiting.add("DOCTOR", patient);
+                if (++arrived < patients) {
+                    long gap = (long) (-Math.log(1 - random.nextDouble()) * meanInterarrival);
+                    events.add(new long[]{now[0] + gap, -1});
+                }
+            } else {
+                long[] treated = queues.get(d).poll();
+                ResourceLoad load = loads[d];
+                load.completePatient(String.valueOf(treated[0]));
+                load.decrementLoad();
+                if (!queues.get(d).isEmpty()) {
+                    startTreatment(queues.get(d).peek(), d, now[0], events, waits, waitSum);
+                }
+                waiting.signal("DOCTOR");
+            }
+            waiting.dispatch(placement);
+        }
+        return new double[]{waitSum[0] / 60000.0 / patients, waits.getValueAtPercentile(99) / 60000.0};
+    }
+    
+    private static void startTreatment(long[] patient, int doctor, long now, PriorityQueue<long[]> events, 
+                                       LatencyHistogram waits, long[] waitSum) {
+        long wait = now - patient[1];
+        waits.record(wait);
+        waitSum[0] += wait;
+        events.add(new long[]{now + patient[2], doctor});
+    }
+    
+    private interface MessageLogger {
+        void handled(String agent, int message);
+    }
+    
+    /**
+     * Messages per second handled by agent threads that each parse a message and log it
+     */
+    private static double runLoggingAgents(int threads, int messages, MessageLogger logger) {
+        Thread[] agents = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            String agent = "Doctor_" + t;
+            agents[t] = new Thread(() -> {
+                HospitalMessage parser = new HospitalMessage();
+                long sink = 0;
+                for (int i = 0; i < messages; i++) {
+                    parser.parse(HospitalMessage.encode(Opcode.PATIENT_WAITING, "P" + i, "CONSULTATION"));
+                    sink += parser.field(0).length();
+                    logger.handled(agent, i);
+                }
+                dispatchSink += sink;
+            });
+            agents[t].start();
+        }
+        for (Thread agent : agents) {
+            try {
+                agent.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return threads * (long) messages / ((System.nanoTime() - start) / 1e9);
+    }
+    
+    private static void deleteRecursively(java.nio.file.Path directory) throws java.io.IOException {
+        try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.walk(directory)) {
+            for (java.nio.file.Path file : (Iterable<java.nio.file.Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                java.nio.file.Files.delete(file);
+            }
+        }
+    }
+    
+    /**
+     * Metric updates as the monitoring agent made them before the metrics registry
+     */
+    private static void recordInMap(HospitalMessage parser, Map<String, Double> systemMetrics) {
+        switch (parser.getOpcode()) {
+            case PATIENT_REGISTERED:
+                systemMetrics.merge("total_patients", 1.0, Double::sum);
+                systemMetrics.merge("waiting_patients", 1.0, Double::sum);
+                systemMetrics.put("queue_length", systemMetrics.get("waiting_patients"));
+                break;
+            case PATIENT_TREATED:
+                systemMetrics.merge("treated_patients", 1.0, Double::sum);
+                systemMetrics.put("waiting_patients", Math.max(0, systemMetrics.getOrDefault("waiting_patients", 0.0) - 1));
+                systemMetrics.put("success_rate", 
+                    systemMetrics.get("treated_patients") * 100.0 / systemMetrics.getOrDefault("total_patients", 1.0));
+                break;
+            case PATIENT_WAITING:
+            case WAIT_TIME:
+                systemMetrics.merge("total_wait_time", parser.doubleField(0), Double::sum);
+                systemMetrics.put("avg_wait_time", systemMetrics.get("total_wait_time") / 
+                    Math.max(1.0, systemMetrics.getOrDefault("treated_patients", 0.0)) / 60000.0);
+                break;
+            case ALLOCATION_SUCCESS:
+                systemMetrics.merge("allocation_success", 1.0, Double::sum);
+                break;
+            case ALLOCATION_METRICS:
+                systemMetrics.put("allocation_rate", parser.doubleField(0));
+                systemMetrics.put("allocation_latency", parser.doubleField(1));
+                systemMetrics.put("allocation_latency_max", parser.doubleField(2));
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Same updates in the metrics registry
+     */
+    private static void recordInRegistry(HospitalMessage parser, MetricsRegistry metrics) {
+        switch (parser.getOpcode()) {
+            case PATIENT_REGISTERED:
+                metrics.beginUpdate();
+                metrics.increment(Metric.TOTAL_PATIENTS);
+                metrics.increment(Metric.WAITING_PATIENTS);
+                metrics.set(Metric.QUEUE_LENGTH, metrics.getLong(Metric.WAITING_PATIENTS));
+                metrics.endUpdate();
+                break;
+            case PATIENT_TREATED:
+                metrics.beginUpdate();
+                metrics.increment(Metric.TREATED_PATIENTS);
+                metrics.decrementToZero(Metric.WAITING_PATIENTS);
+                metrics.set(Metric.SUCCESS_RATE, 
+                    metrics.getLong(Metric.TREATED_PATIENTS) * 100.0 / Math.max(1, metrics.getLong(Metric.TOTAL_PATIENTS)));
+                metrics.endUpdate();
+                break;
+            case PATIENT_WAITING:
+            case WAIT_TIME:
+                metrics.beginUpdate();
+                metrics.add(Metric.TOTAL_WAIT_TIME, parser.doubleField(0));
+                metrics.set(Metric.AVG_WAIT_TIME, metrics.get(Metric.TOTAL_WAIT_TIME) / 
+                    Math.max(1, metrics.getLong(Metric.TREATED_PATIENTS)) / 60000.0);
+                metrics.endUpdate();
+                break;
+            case ALLOCATION_SUCCESS:
+                metrics.increment(Metric.ALLOCATION_SUCCESS);
+                break;
+            case ALLOCATION_METRICS:
+                metrics.beginUpdate();
+                metrics.set(Metric.ALLOCATION_RATE, parser.doubleField(0));
+                metrics.set(Metric.ALLOCATION_LATENCY, parser.doubleField(1));
+                metrics.set(Metric.ALLOCATION_LATENCY_MAX, parser.doubleField(2));
+                metrics.endUpdate();
+                break;
+            default:
+                break;
+        }
+    }
+    
+    private static void reportDispatch(String label, int messages, Runnable legacy, Runnable typed) {
+        double legacyRate = messages / (medianMillis(legacy) / 1000.0);
+        double typedRate = messages / (medianMillis(typed) / 1000.0);
+        System.out.println(String.format("  %-16s split %,12.0f msg/s %5.0f B/msg, typed %,12.0f msg/s %5.0f B/msg (x%.1f)",
+            label, legacyRate, allocatedBytes(legacy) / (double) messages, 
+            typedRate, allocatedBytes(typed) / (double) messages, typedRate / legacyRate));
+    }
+    
+    /**
+     * Bytes allocated by the current thread during one run (HotSpot thread allocation counter)
+     */
+    private static long allocatedBytes(Runnable run) {
+        com.sun.management.ThreadMXBean threads = 
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        run.run();
+        return threads.getThreadAllocatedBytes(threadId) - before;
+    }
+    
+    private static void reportQueueTimings(String label, Runnable legacy, Runnable indexed) {
+        double legacyMedian = medianMillis(legacy);
+        double indexedMedian = medianMillis(indexed);
+        System.out.println(String.format("  %-24s PriorityQueue %8.1f ms, indexed heap %8.1f ms (x%.1f)",
+            label, legacyMedian, indexedMedian, legacyMedian / indexedMedian));
+    }
+    
+    private static double medianMillis(Runnable run) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            run.run();
+        }
+        long[] timings = new long[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            run.run();
+            timings[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(timings);
+        return timings[MEASURED_RUNS / 2] / 1_000_000.0;
+    }
+    
+    private static class SimulationResult {
+        double weightedWait;
+        int specialistMisuses;
+    }
+    
+    private static void printSection(String section) {
+        System.out.println("\n" + section);
+        System.out.println("─".repeat(section.length()));
+    }
+}
@@ -4,7 +4,54 @@ import ml.WaitTimePredictor;
 import models.Patient;
 import negotiation.NegotiationProtocol;
 import fault.FaultToleranceManager;
+import analytics.DashboardUpdateBus;
+import analytics.ReportExporter;
+import analytics.TimeSeries;
+import codec.CompactBinaryCodec;
+import codec.JavaSerializationCodec;
+import codec.MessageCodec;
+import codec.MessageCodecs;
+import directory.DirectoryCache;
+import jade.core.AID;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.lang.acl.ACLMessage;
+import loadbalancing.AdaptiveLoadBalancingStrategy;
+import loadbalancing.ConsistentHashStrategy;
+import loadbalancing.DecayingAverage;
+import loadbalancing.LeastConnectionsStrategy;
+import loadbalancing.LoadBalancerClient;
+import loadbalancing.LoadIndex;
+import loadbalancing.MigrationParticipant;
+import loadbalancing.MigrationPlanner;
+import loadbalancing.PatientMigration;
+import loadbalancing.PowerOfDChoicesStrategy;
+import loadbalancing.PowerOfTwoChoicesStrategy;
+import loadbalancing.ResourceLoad;
+import loadbalancing.ResourceWaitQueues;
+import loadbalancing.ShortestExpectedDelayStrategy;
+import loadbalancing.WeightedRoundRobinStrategy;
+import logging.AgentLog;
+import logging.LogSink;
+import metrics.LatencyHistogram;
+import metrics.MetricsEndpoint;
+import metrics.MetricsHistoryStore;
+import metrics.MetricsRegistry;
+import metrics.NameTable;
+import metrics.PatientLatencies;
+import metrics.TelemetryEmitter;
+import metrics.UtilizationTracker;
+import utils.AllocationMetrics;
+import utils.AssignmentSolver;
+import utils.ConcurrentPatientQueue;
+import utils.ConsistentHashRing;
+import utils.HospitalMessage;
+import utils.IndexedPatientHeap;
+import utils.MessageProtocol;
+import utils.ReservationHold;
+import utils.ResourceAvailabilityIndex;
 import utils.SchedulingAlgorithm;
+import utils.TwoPhaseReservation;
 
 import java.util.*;
 
@@ -31,6 +78,31 @@ public class SystemTestSuite {
         testLoadBalancing();
         testSchedulingAlgorithm();
         testIntegration();
+        testAllocationEngine();
+        testAvailabilityIndex();
+        testTwoPhaseReservation();
+        testBatchAllocation();
+        testPatientQueue();
+        testConcurrentQueue();
+        testSharding();
+        testMessageCodecs();
+        testTypedMessages();
+        testDirectoryCache();
+        testTelemetry();
+        testMetricsRegistry();
+        testUtilizationTracker();
+        testDashboardUpdateBus();
+        testMetricsEndpoint();
+        testTimeSeries();
+        testMetricsHistory();
+        testReportExport();
+        testLatencyHistogram();
+        testAsyncLogging();
+        testResourceWaitQueues();
+        testLoadIndex();
+        testDelayAwareStrategies();
+        testConcurrentResourceLoad();
+        testPatientMigration();
         
         // Print results
         printTestResults();
@@ -317,6 +389,2002 @@ public class SystemTestSuite {
         });
     }
     
+    /**
+     * Test Allocation Engine Metrics
+     */
+    private static void testAllocationEngine() {
+        printSection("ALLOCATION ENGINE TESTS");
+        
+        // Test 23: Enqueue-to-Allocation Latency
+        test("Enqueue-to-Allocation Latency", () -> {
+            AllocationMetrics metrics = new AllocationMetrics();
+            metrics.recordEnqueue("P1", 1000);
+            metrics.recordEnqueue("P1", 3000); // Re-queue keeps the original enqueue time
+            long latency = metrics.recordAllocation("P1", 5000);
+            return latency == 4000 && metrics.getMaxLatency() == 4000 && 
+                   metrics.getPendingCount() == 0;
+        });
+        
+        // Test 24: Allocation Rate Window
+        test("Allocation Rate Window", () -> {
+            AllocationMetrics metrics = new AllocationMetrics();
+            for (int i = 0; i < 50; i++) {
+                metrics.recordEnqueue("P" + i, 0);
+                metrics.recordAllocation("P" + i, 1000 + i * 10);
+            }
+            double rate = metrics.getAllocationsPerSecond(2000);
+            double expired = metrics.getAllocationsPerSecond(1000 + AllocationMetrics.RATE_WINDOW + 1000);
+            return Math.abs(rate - 5.0) < 0.001 && expired == 0.0 && 
+                   metrics.getTotalAllocations() == 50;
+        });
+    }
+    
+    /**
+     * Test Resource Availability Index
+     */
+    private static void testAvailabilityIndex() {
+        printSection("AVAILABILITY INDEX TESTS");
+        
+        // Test 25: Index Lookup by Category
+        test("Index Lookup by Category", () -> {
+            ResourceAvailabilityIndex index = new ResourceAvailabilityIndex();
+            index.update(ResourceAvailabilityIndex.DOCTOR, "Doctor0", "D0", "GENERAL", true, 1, 1000);
+            index.update(ResourceAvailabilityIndex.DOCTOR, "Doctor1", "D1", "SURGEON", true, 1, 1000);
+            index.update(ResourceAvailabilityIndex.ROOM, "Room0", "R0", "CONSULTATION", true, 1, 1000);
+            index.update(ResourceAvailabilityIndex.ROOM, "Room1", "R1", "SURGERY", true, 1, 1000);
+            index.update(ResourceAvailabilityIndex.EQUIPMENT, "Equipment0", "E0", "MRI", true, 1, 1000);
+            
+            index.markBusy("Doctor0");
+            return "Doctor1".equals(index.findDoctor("SURGERY", 2000)) && 
+                   "Room1".equals(index.findRoom("SURGERY", 2000)) && 
+                   "Room0".equals(index.findRoom("CONSULTATION", 2000)) && 
+                   "Equipment0".equals(index.findEquipment("MRI", 2000)) && 
+                   index.findEquipment("XRAY", 2000) == null && 
+                   "D1".equals(index.getResourceId("Doctor1"));
+        });
+        
+        // Test 26: Out-of-Order Deltas Ignored
+        test("Out-of-Order Deltas Ignored", () -> {
+            ResourceAvailabilityIndex index = new ResourceAvailabilityIndex();
+            index.update(ResourceAvailabilityIndex.ROOM, "Room0", "R0", "ICU", false, 5, 1000);
+            boolean stale = index.update(ResourceAvailabilityIndex.ROOM, "Room0", "R0", "ICU", true, 4, 1100);
+            boolean fresh = index.update(ResourceAvailabilityIndex.ROOM, "Room0", "R0", "ICU", true, 6, 1200);
+            return !stale && fresh && index.getAvailableCount(ResourceAvailabilityIndex.ROOM, 1200) == 1;
+        });
+        
+        // Test 27: Stale Entries Fall Back to Direct Query
+        test("Stale Entries Fall Back to Direct Query", () -> {
+            ResourceAvailabilityIndex index = new ResourceAvailabilityIndex(5000);
+            index.update(ResourceAvailabilityIndex.EQUIPMENT, "Equipment0", "E0", "ECG", true, 1, 1000);
+            index.update(ResourceAvailabilityIndex.EQUIPMENT, "Equipment1", "E1", "ECG", true, 1, 1000);
+            
+            // A refused reservation drops the entry until the next delta
+            index.markStale("Equipment0");
+            boolean skipsRefused = "Equipment1".equals(index.findEquipment("ECG", 2000)) && 
+                                   index.getAvailableCount(ResourceAvailabilityIndex.EQUIPMENT, 2000) == 1;
+            boolean expires = index.findEquipment("ECG", 1000 + 5001) == null && 
+                              index.getAvailableCount(ResourceAvailabilityIndex.EQUIPMENT, 1000 + 5001) == 0;
+            boolean refreshed = index.update(ResourceAvailabilityIndex.EQUIPMENT, "Equipment0", "E0", "ECG", 
+                true, 2, 7000);
+            return skipsRefused && expires && refreshed && 
+                   "Equipment0".equals(index.findEquipment("ECG", 7000));
+        });
+        
+        // Test 91: Concurrent Reservations Pick Distinct Candidates
+        test("Concurrent Reservations Pick Distinct Candidates", () -> {
+            long now = System.currentTimeMillis();
+            ResourceAvailabilityIndex index = new ResourceAvailabilityIndex();
+            index.update(ResourceAvailabilityIndex.DOCTOR, "Doctor0", "D0", "GENERAL", true, 1, now);
+            index.update(ResourceAvailabilityIndex.DOCTOR, "Doctor1", "D1", "GENERAL", true, 1, now);
+            
+            // Each coordinator takes its candidate out of the index when it selects it
+            String first = index.findDoctor("CONSULTATION", now);
+            index.markBusy(first);
+            String second = index.findDoctor("CONSULTATION", now);
+            index.markBusy(second);
+            boolean distinct = first != null && second != null && !first.equals(second) && 
+                               index.findDoctor("CONSULTATION", now) == null;
+            
+            // Giving up before the hold puts the candidate back, unless a delta arrived meanwhile
+            index.restore(first);
+            index.update(ResourceAvailabilityIndex.DOCTOR, second, "D", "GENERAL", false, 2, now);
+            index.restore(second);
+            return distinct && first.equals(index.findDoctor("CONSULTATION", now)) && 
+                   index.getAvailableCount(ResourceAvailabilityIndex.DOCTOR) == 1;
+        });
+    }
+    
+    /**
+     * Test Two-Phase Reservation
+     */
+    private static void testTwoPhaseReservation() {
+        printSection("TWO-PHASE RESERVATION TESTS");
+        
+        // Test 28: Hold Exclusivity and Expiry
+        test("Hold Exclusivity and Expiry", () -> {
+            ReservationHold hold = new ReservationHold(1000);
+            boolean first = hold.tryHold("P1", 0);
+            boolean second = hold.tryHold("P2", 500);
+            boolean foreignRelease = hold.release("P2");
+            boolean expired = hold.expireIfDue(1000);
+            boolean lateCommit = hold.commit("P1", 1100);
+            return first && !second && !foreignRelease && expired && !lateCommit && 
+                   hold.tryHold("P2", 1200) && hold.commit("P2", 1300) && !hold.isHeld();
+        });
+        
+        // Test 29: Commit When All Participants Hold
+        test("Commit When All Participants Hold", () -> {
+            TwoPhaseReservation reservation = new TwoPhaseReservation("P1");
+            reservation.addParticipant(ResourceAvailabilityIndex.DOCTOR, "Doctor0", true);
+            reservation.addParticipant(ResourceAvailabilityIndex.ROOM, "Room0", true);
+            reservation.addParticipant(ResourceAvailabilityIndex.EQUIPMENT, "Equipment0", false);
+            
+            reservation.onHeld(ResourceAvailabilityIndex.EQUIPMENT, "E0");
+            reservation.onHeld(ResourceAvailabilityIndex.DOCTOR, "D0");
+            boolean pending = !reservation.isDecided();
+            reservation.onHeld(ResourceAvailabilityIndex.ROOM, "R0");
+            return pending && reservation.getState() == TwoPhaseReservation.State.COMMITTED && 
+                   "R0".equals(reservation.getResourceId(ResourceAvailabilityIndex.ROOM));
+        });
+        
+        // Test 30: Room Stage Failure Rolls Back All Holds
+        test("Room Stage Failure Rolls Back All Holds", () -> {
+            Random random = new Random(42);
+            Map<String, ReservationHold> holds = new LinkedHashMap<>();
+            holds.put(ResourceAvailabilityIndex.DOCTOR, new ReservationHold());
+            holds.put(ResourceAvailabilityIndex.ROOM, new ReservationHold());
+            holds.put(ResourceAvailabilityIndex.EQUIPMENT, new ReservationHold());
+            int committed = 0;
+            int aborted = 0;
+            int lostVotes = 0;
+            
+            for (int i = 0; i < 200; i++) {
+                String patientId = "P" + i;
+                TwoPhaseReservation reservation = new TwoPhaseReservation(patientId);
+                for (String resourceClass : holds.keySet()) {
+                    reservation.addParticipant(resourceClass, resourceClass + "0", true);
+                }
+                
+                // The room stage fails one time in three; an equipment vote is lost one time in five,
+                // its hold placed all the same
+                boolean roomFails = random.nextInt(3) == 0;
+                boolean voteLost = random.nextInt(5) == 0;
+                for (String resourceClass : holds.keySet()) {
+                    if (resourceClass.equals(ResourceAvailabilityIndex.ROOM) && roomFails) {
+                        reservation.onRefused(resourceClass);
+                    } else if (holds.get(resourceClass).tryHold(patientId, i) && 
+                               !(resourceClass.equals(ResourceAvailabilityIndex.EQUIPMENT) && voteLost)) {
+                        reservation.onHeld(resourceClass, resourceClass.substring(0, 1) + "0");
+                    }
+                }
+                reservation.onTimeout();
+                
+                if (reservation.getState() == TwoPhaseReservation.State.COMMITTED) {
+                    for (ReservationHold hold : holds.values()) {
+                        if (!hold.commit(patientId, i)) return false;
+                    }
+                    committed++;
+                } else {
+                    // Phase two as the coordinator runs it: release what it names, retry only
+                    // after an index candidate refused
+                    List<String> releases = reservation.getHoldsToRelease();
+                    if (releases.contains(ResourceAvailabilityIndex.ROOM) == roomFails || 
+                        reservation.isRefusedFromIndex() != roomFails) return false;
+                    for (String resourceClass : releases) {
+                        holds.get(resourceClass).release(patientId);
+                    }
+                    if (reservation.onHeld(ResourceAvailabilityIndex.ROOM, "R0") != 
+                        TwoPhaseReservation.State.ABORTED) return false;
+                    aborted++;
+                    if (voteLost && !roomFails) lostVotes++;
+                }
+                
+                // No resource may stay claimed by a finished reservation
+                for (ReservationHold hold : holds.values()) {
+                    if (hold.isHeld()) return false;
+                }
+            }
+            return committed > 0 && aborted > 0 && lostVotes > 0 && committed + aborted == 200 && 
+                   new TwoPhaseReservation("P").getHoldsToRelease().isEmpty();
+        });
+        
+        // Test 31: Timeout Aborts Pending Reservation
+        test("Timeout Aborts Pending Reservation", () -> {
+            TwoPhaseReservation reservation = new TwoPhaseReservation("P1");
+            reservation.addParticipant(ResourceAvailabilityIndex.DOCTOR, "Doctor0", false);
+            reservation.addParticipant(ResourceAvailabilityIndex.ROOM, "Room0", true);
+            reservation.onHeld(ResourceAvailabilityIndex.DOCTOR, "D0");
+            reservation.onTimeout();
+            return reservation.getState() == TwoPhaseReservation.State.ABORTED && 
+                   !reservation.isRefusedFromIndex() && 
+                   reservation.getVote(ResourceAvailabilityIndex.ROOM) == TwoPhaseReservation.Vote.PENDING;
+        });
+        
+        // Test 92: Late Commit Failure Revokes The Allocation
+        test("Late Commit Failure Revokes The Allocation", () -> {
+            Map<String, ReservationHold> holds = new LinkedHashMap<>();
+            holds.put(ResourceAvailabilityIndex.DOCTOR, new ReservationHold(1000));
+            holds.put(ResourceAvailabilityIndex.ROOM, new ReservationHold(1000));
+            holds.put(ResourceAvailabilityIndex.EQUIPMENT, new ReservationHold(1000));
+            TwoPhaseReservation reservation = new TwoPhaseReservation("P1");
+            for (String resourceClass : holds.keySet()) {
+                reservation.addParticipant(resourceClass, resourceClass + "0", true);
+                holds.get(resourceClass).tryHold("P1", 0);
+                reservation.onHeld(resourceClass, resourceClass.substring(0, 1) + "0");
+            }
+            if (reservation.getState() != TwoPhaseReservation.State.COMMITTED) return false;
+            
+            // The room's commit arrives after its hold expired, the others commit in time
+            Set<String> committed = new HashSet<>();
+            boolean revoked = false;
+            for (String resourceClass : holds.keySet()) {
+                long now = resourceClass.equals(ResourceAvailabilityIndex.ROOM) ? 1500 : 500;
+                if (holds.get(resourceClass).commit("P1", now)) {
+                    committed.add(resourceClass);
+                } else {
+                    revoked = reservation.onCommitFailed(resourceClass);
+                }
+            }
+            
+            // Exactly the committed resources are released; a second failure changes nothing
+            boolean releasesCommitted = new HashSet<>(reservation.getCommitsToRelease()).equals(committed);
+            boolean again = reservation.onCommitFailed(ResourceAvailabilityIndex.EQUIPMENT);
+            TwoPhaseReservation holding = new TwoPhaseReservation("P2");
+            holding.addParticipant(ResourceAvailabilityIndex.DOCTOR, "Doctor0", true);
+            return revoked && committed.size() == 2 && releasesCommitted && !again && 
+                   reservation.getState() == TwoPhaseReservation.State.REVOKED && 
+                   reservation.getCommitsToRelease().equals(Arrays.asList(ResourceAvailabilityIndex.DOCTOR)) && 
+                   !holding.onCommitFailed(ResourceAvailabilityIndex.DOCTOR) && holding.getCommitsToRelease().isEmpty();
+        });
+        
+        // Test 94: Revoked Allocation Is Never Counted
+        test("Revoked Allocation Is Never Counted", () -> {
+            PatientLatencies unreported = new PatientLatencies();
+            AllocationMetrics allocations = new AllocationMetrics();
+            allocations.recordEnqueue("P1", 0);
+            long[] drained = new long[PatientLatencies.Measure.values().length];
+            
+            // Two attempts as the scheduler runs them: the finalize step announces the allocation,
+            // the commit replies come in afterwards; the room fails its first commit
+            for (int attempt = 0; attempt < 2; attempt++) {
+                TwoPhaseReservation reservation = new TwoPhaseReservation("P1");
+                for (String resourceClass : Arrays.asList(ResourceAvailabilityIndex.DOCTOR, ResourceAvailabilityIndex.ROOM)) {
+                    reservation.addParticipant(resourceClass, resourceClass + "0", true);
+                    reservation.onHeld(resourceClass, resourceClass.substring(0, 1) + "0");
+                }
+                List<Boolean> counted = new ArrayList<>();
+                counted.add(reservation.isFinal()); // Finalize step
+                counted.add(reservation.onCommitConfirmed(ResourceAvailabilityIndex.DOCTOR));
+                if (attempt == 0) {
+                    if (!reservation.onCommitFailed(ResourceAvailabilityIndex.ROOM)) return false;
+                    counted.add(reservation.onCommitConfirmed(ResourceAvailabilityIndex.ROOM));
+                } else {
+                    counted.add(reservation.onCommitConfirmed(ResourceAvailabilityIndex.ROOM));
+                }
+                for (boolean count : counted) {
+                    if (count) {
+                        long latency = allocations.recordAllocation("P1", 2000 + attempt);
+                        unreported.record(PatientLatencies.Measure.WAIT_TIME, 3, "CONSULTATION", 1500);
+                        unreported.record(PatientLatencies.Measure.ALLOCATION_LATENCY, 3, "CONSULTATION", latency);
+                    }
+                }
+                
+                // The monitor receives the counts drained after each attempt
+                PatientLatencies monitor = new PatientLatencies();
+                unreported.drain((measure, slice, encoded) -> monitor.addEncoded(measure, slice, encoded));
+                for (PatientLatencies.Measure measure : PatientLatencies.Measure.values()) {
+                    drained[measure.ordinal()] += monitor.get(measure, PatientLatencies.ALL).getCount();
+                }
+                if (attempt == 0 && (drained[0] != 0 || drained[1] != 0)) return false;
+            }
+            return drained[PatientLatencies.Measure.WAIT_TIME.ordinal()] == 1 && 
+                   drained[PatientLatencies.Measure.ALLOCATION_LATENCY.ordinal()] == 1 && 
+                   allocations.getTotalAllocations() == 1 && allocations.getMaxLatency() == 2001;
+        });
+    }
+    
+    /**
+     * Test Batch Allocation Solver
+     */
+    private static void testBatchAllocation() {
+        printSection("BATCH ALLOCATION TESTS");
+        
+        // Test 32: Assignment Solver Optimality
+        test("Assignment Solver Optimality", () -> {
+            Random random = new Random(7);
+            for (int trial = 0; trial < 100; trial++) {
+                int rows = 1 + random.nextInt(5);
+                int cols = 1 + random.nextInt(5);
+                double[] cost = new double[rows * cols];
+                for (int k = 0; k < cost.length; k++) {
+                    cost[k] = random.nextInt(10) - 5;
+                }
+                int[] assignment = AssignmentSolver.solve(cost, rows, cols);
+                int assigned = 0;
+                Set<Integer> used = new HashSet<>();
+                for (int col : assignment) {
+                    if (col >= 0) {
+                        assigned++;
+                        if (!used.add(col)) return false;
+                    }
+                }
+                double best = bruteForceAssignment(cost, rows, cols, 0, new boolean[cols]);
+                if (assigned != Math.min(rows, cols) || 
+                    Math.abs(AssignmentSolver.totalCost(cost, cols, assignment) - best) > 1e-9) {
+                    return false;
+                }
+            }
+            return true;
+        });
+        
+        // Test 33: Batch Plan Keeps Specialists Free
+        test("Batch Plan Keeps Specialists Free", () -> {
+            Patient consultation = new Patient("Routine", 4, "CONSULTATION");
+            Patient surgery = new Patient("Operation", 2, "SURGERY");
+            consultation.setArrivalTime(0);
+            surgery.setArrivalTime(0);
+            
+            // Greedy order would hand the surgeon to the more urgent consultation
+            int[] plan = SchedulingAlgorithm.planDoctorAssignment(
+                Arrays.asList(consultation, surgery), Arrays.asList("SURGEON", "GENERAL"));
+            return plan[0] == 1 && plan[1] == 0;
+        });
+        
+        // Test 34: Unmatched Patients Stay Queued
+        test("Unmatched Patients Stay Queued", () -> {
+            SchedulingAlgorithm algorithm = new SchedulingAlgorithm();
+            for (int i = 0; i < 5; i++) {
+                algorithm.addPatient(new Patient("P" + i, 1 + i, i % 2 == 0 ? "SURGERY" : "CHECKUP"));
+            }
+            List<Patient> batch = algorithm.pollBatch(10);
+            int[] plan = SchedulingAlgorithm.planDoctorAssignment(batch, Arrays.asList("SURGEON", "EMERGENCY"));
+            
+            // Only the surgeon can operate; the emergency doctor takes a check-up
+            int matched = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                if (plan[i] >= 0) {
+                    matched++;
+                    String specialization = plan[i] == 0 ? "SURGEON" : "EMERGENCY";
+                    if (!SchedulingAlgorithm.isDoctorSuitable(specialization, batch.get(i).getTreatmentType())) {
+                        return false;
+                    }
+                }
+            }
+            return batch.size() == 5 && batch.get(0).getUrgencyLevel() == 5 && matched == 2 && 
+                   !algorithm.hasWaitingPatients();
+        });
+    }
+    
+    /**
+     * Test Indexed Patient Queue
+     */
+    private static void testPatientQueue() {
+        printSection("PATIENT QUEUE TESTS");
+        
+        // Test 35: Waiting Time Ages Priority
+        test("Waiting Time Ages Priority", () -> {
+            SchedulingAlgorithm algorithm = new SchedulingAlgorithm();
+            long now = System.currentTimeMillis();
+            
+            Patient waitedLong = new Patient("Waited", 2, "CHECKUP");
+            waitedLong.setArrivalTime(now - 45 * 60000); // 20 + 45 points
+            Patient justArrived = new Patient("Arrived", 5, "EMERGENCY");
+            justArrived.setArrivalTime(now); // 50 points
+            Patient waitedLittle = new Patient("Little", 1, "CHECKUP");
+            waitedLittle.setArrivalTime(now - 5 * 60000); // 10 + 5 points
+            
+            algorithm.addPatient(justArrived);
+            algorithm.addPatient(waitedLittle);
+            algorithm.addPatient(waitedLong);
+            
+            return algorithm.getNextPatient() == waitedLong &&
+                   algorithm.getNextPatient() == justArrived &&
+                   algorithm.getNextPatient() == waitedLittle;
+        });
+        
+        // Test 36: Remove And Re-prioritize By Id
+        test("Remove And Re-prioritize By Id", () -> {
+            SchedulingAlgorithm algorithm = new SchedulingAlgorithm();
+            Patient p1 = new Patient("P1", 3, "CONSULTATION");
+            Patient p2 = new Patient("P2", 2, "CONSULTATION");
+            Patient p3 = new Patient("P3", 1, "CONSULTATION");
+            algorithm.addPatient(p1);
+            algorithm.addPatient(p2);
+            algorithm.addPatient(p3);
+            algorithm.addPatient(p3); // Re-adding must not duplicate
+            
+            boolean removed = algorithm.removePatient(p1.getId()) == p1 && !algorithm.isQueued(p1.getId());
+            boolean updated = algorithm.updateUrgency(p3.getId(), 5);
+            
+            return removed && updated && algorithm.getQueueSize() == 2 &&
+                   algorithm.getNextPatient() == p3 && algorithm.getNextPatient() == p2 &&
+                   algorithm.removePatient(p2.getId()) == null;
+        });
+        
+        // Test 37: Heap Order Under 100k Patients
+        test("Heap Order Under 100k Patients", () -> {
+            IndexedPatientHeap heap = new IndexedPatientHeap();
+            Random random = new Random(42);
+            long now = 1_000_000_000L;
+            List<Patient> queued = new ArrayList<>();
+            
+            for (int i = 0; i < 100_000; i++) {
+                Patient patient = new Patient("P" + i, 1 + random.nextInt(5), "CONSULTATION");
+                patient.setId("P" + i);
+                patient.setArrivalTime(now - random.nextInt(4 * 3_600_000));
+                heap.offer(patient);
+                queued.add(patient);
+            }
+            
+            // Random removals and urgency changes in the middle of the heap
+            Set<String> removedIds = new HashSet<>();
+            for (int i = 0; i < 10_000; i++) {
+                Patient patient = queued.get(random.nextInt(queued.size()));
+                if (random.nextBoolean()) {
+                    if (heap.remove(patient.getId()) != null) removedIds.add(patient.getId());
+                } else if (heap.contains(patient.getId())) {
+                    heap.updateUrgency(patient.getId(), 1 + random.nextInt(5));
+                }
+            }
+            
+            // Polling must yield non-increasing priority at any observation time
+            int expected = queued.size() - removedIds.size();
+            double previous = Double.MAX_VALUE;
+            int polled = 0;
+            while (!heap.isEmpty()) {
+                Patient patient = heap.poll();
+                double priority = SchedulingAlgorithm.calculatePriorityScore(patient, now);
+                if (priority > previous + 1e-6 || removedIds.contains(patient.getId())) return false;
+                previous = priority;
+                polled++;
+            }
+            return polled == expected;
+        });
+    }
+    
+    /**
+     * Test Concurrent Patient Queue
+     */
+    private static void testConcurrentQueue() {
+        printSection("CONCURRENT QUEUE TESTS");
+        
+        // Test 38: No Lost Or Duplicated Patients Under Contention
+        test("No Lost Or Duplicated Patients", () -> {
+            ConcurrentPatientQueue queue = new ConcurrentPatientQueue();
+            SchedulingAlgorithm algorithm = new SchedulingAlgorithm(queue);
+            int producers = 4;
+            int consumers = 4;
+            int perProducer = 25_000;
+            
+            Map<String, Integer> handedOut = new java.util.concurrent.ConcurrentHashMap<>();
+            java.util.concurrent.atomic.AtomicInteger producing = new java.util.concurrent.atomic.AtomicInteger(producers);
+            List<Thread> threads = new ArrayList<>();
+            
+            for (int t = 0; t < producers; t++) {
+                final int producer = t;
+                threads.add(new Thread(() -> {
+                    Random random = new Random(producer);
+                    List<Patient> offered = new ArrayList<>();
+                    for (int i = 0; i < perProducer; i++) {
+                        Patient patient = new Patient("P" + producer + "-" + i, 1 + random.nextInt(5), "CONSULTATION");
+                        patient.setId(patient.getName());
+                        algorithm.addPatient(patient);
+                        offered.add(patient);
+                        
+                        // Urgency changes and removals race with the consumers
+                        Patient other = offered.get(random.nextInt(offered.size()));
+                        int action = random.nextInt(4);
+                        if (action == 0) {
+                            algorithm.updateUrgency(other.getId(), 1 + random.nextInt(5));
+                        } else if (action == 1 && algorithm.removePatient(other.getId()) != null) {
+                            handedOut.merge(other.getId(), 1, Integer::sum);
+                        }
+                    }
+                    producing.decrementAndGet();
+                }));
+            }
+            for (int t = 0; t < consumers; t++) {
+                threads.add(new Thread(() -> {
+                    while (producing.get() > 0 || algorithm.hasWaitingPatients()) {
+                        for (Patient patient : algorithm.pollBatch(16)) {
+                            handedOut.merge(patient.getId(), 1, Integer::sum);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) thread.start();
+            for (Thread thread : threads) thread.join();
+            
+            // Every patient is handed out exactly once, by a poll or a removal
+            for (int count : handedOut.values()) {
+                if (count != 1) return false;
+            }
+            return handedOut.size() == producers * perProducer && queue.isEmpty() && queue.size() == 0;
+        });
+        
+        // Test 39: Concurrent Queue Keeps Heap Order
+        test("Concurrent Queue Keeps Heap Order", () -> {
+            IndexedPatientHeap heap = new IndexedPatientHeap();
+            ConcurrentPatientQueue queue = new ConcurrentPatientQueue();
+            Random random = new Random(3);
+            List<Patient> patients = new ArrayList<>();
+            
+            for (int i = 0; i < 5_000; i++) {
+                Patient patient = new Patient("P" + i, 1 + random.nextInt(5), "CHECKUP");
+                patient.setArrivalTime(1_000_000L - random.nextInt(3_600_000));
+                patients.add(patient);
+                heap.offer(patient);
+                queue.offer(patient);
+                
+                Patient other = patients.get(random.nextInt(patients.size()));
+                if (random.nextInt(5) == 0) {
+                    heap.remove(other.getId());
+                    queue.remove(other.getId());
+                } else if (random.nextInt(5) == 0 && heap.contains(other.getId())) {
+                    int urgency = 1 + random.nextInt(5);
+                    heap.updateUrgency(other.getId(), urgency);
+                    queue.updateUrgency(other.getId(), urgency);
+                }
+            }
+            
+            if (heap.size() != queue.size()) return false;
+            while (!heap.isEmpty()) {
+                if (heap.poll() != queue.poll()) return false;
+            }
+            return queue.poll() == null;
+        });
+    }
+    
+    /**
+     * Test Sharded Scheduling
+     */
+    private static void testSharding() {
+        printSection("SHARDING TESTS");
+        
+        // Test 40: Adding A Shard Only Moves Keys To It
+        test("Adding A Shard Only Moves Keys To It", () -> {
+            ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("S0", "S1", "S2", "S3"));
+            Map<String, String> before = new HashMap<>();
+            Map<String, Integer> load = new HashMap<>();
+            for (int i = 0; i < 10_000; i++) {
+                String owner = ring.getNode("key-" + i);
+                before.put("key-" + i, owner);
+                load.merge(owner, 1, Integer::sum);
+            }
+            
+            ring.addNode("S4");
+            int moved = 0;
+            for (Map.Entry<String, String> entry : before.entrySet()) {
+                String owner = ring.getNode(entry.getKey());
+                if (!owner.equals(entry.getValue())) {
+                    if (!owner.equals("S4")) return false;
+                    moved++;
+                }
+            }
+            
+            // Each shard gets a fair share, and the new one takes about a fifth
+            for (int count : load.values()) {
+                if (count < 1_500 || count > 3_500) return false;
+            }
+            return load.size() == 4 && moved > 1_000 && moved < 3_000;
+        });
+        
+        // Test 41: Department Routing Is Stable
+        test("Department Routing Is Stable", () -> {
+            ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("S0", "S1", "S2"));
+            ConsistentHashRing reordered = new ConsistentHashRing(Arrays.asList("S2", "S0", "S1"));
+            String[] treatments = {"CONSULTATION", "CHECKUP", "XRAY", "MRI", "CT_SCAN", 
+                                   "SURGERY", "EMERGENCY", "CARDIOLOGY", "NEUROLOGY"};
+            for (String treatment : treatments) {
+                String department = SchedulingAlgorithm.getDepartment(treatment);
+                if (!ring.getNode(department).equals(reordered.getNode(department))) return false;
+            }
+            return ring.getNode(SchedulingAlgorithm.getDepartment("XRAY"))
+                       .equals(ring.getNode(SchedulingAlgorithm.getDepartment("MRI")));
+        });
+        
+        // Test 42: Work Stealing Leaves Half The Queue
+        test("Work Stealing Leaves Half The Queue", () -> {
+            SchedulingAlgorithm victim = new SchedulingAlgorithm();
+            for (int i = 0; i < 7; i++) {
+                victim.addPatient(new Patient("P" + i, 1 + i % 5, "CONSULTATION"));
+            }
+            List<Patient> stolen = victim.stealBatch(10);
+            List<Patient> again = new SchedulingAlgorithm().stealBatch(10);
+            
+            // Highest priority patients go first, the victim keeps the rest
+            return stolen.size() == 3 && victim.getQueueSize() == 4 && again.isEmpty() &&
+                   stolen.get(0).getUrgencyLevel() == 5;
+        });
+    }
+    
+    /**
+     * Test message codecs
+     */
+    private static void testMessageCodecs() {
+        printSection("MESSAGE CODEC TESTS");
+        
+        // Test 43: Patient Round Trip
+        test("Patient Round Trip", () -> {
+            MessageCodec codec = new CompactBinaryCodec();
+            Patient patient = new Patient("Amélie", 4, "SURGERY");
+            patient.setAssignedDoctor("Doctor_1");
+            patient.setWaitingTime(120000);
+            
+            Patient decoded = (Patient) codec.decode(codec.encode(patient));
+            return decoded.getId().equals(patient.getId()) && decoded.getName().equals("Amélie") &&
+                   decoded.getUrgencyLevel() == 4 && decoded.getTreatmentType().equals("SURGERY") &&
+                   decoded.getArrivalTime() == patient.getArrivalTime() &&
+                   decoded.getWaitingTime() == 120000 && decoded.getStatus().equals(patient.getStatus()) &&
+                   decoded.getAssignedDoctor().equals("Doctor_1") && decoded.getAssignedRoom() == null;
+        });
+        
+        // Test 44: Request And Bid Round Trip
+        test("Request And Bid Round Trip", () -> {
+            MessageCodec codec = new CompactBinaryCodec();
+            NegotiationProtocol.ResourceRequest request = 
+                new NegotiationProtocol.ResourceRequest("DOCTOR", 5, 1800000);
+            request.addAttribute("specialization", "Cardiology");
+            request.addAttribute("priority", 3);
+            request.addAttribute("remote", Boolean.FALSE);
+            NegotiationProtocol.Bid bid = 
+                new NegotiationProtocol.Bid(new AID("Doctor_2", AID.ISLOCALNAME), 0.85, request);
+            
+            NegotiationProtocol.Bid decoded = (NegotiationProtocol.Bid) codec.decode(codec.encode(bid));
+            NegotiationProtocol.ResourceRequest decodedRequest = decoded.getRequest();
+            
+            // A bid cut anywhere, its length patched to match, fails with an IOException
+            byte[] encoded = codec.encode(bid);
+            boolean truncated = encoded[2] > 0;
+            for (int length = 3; length < encoded.length; length++) {
+                byte[] cut = Arrays.copyOf(encoded, length);
+                cut[2] = (byte) (length - 3);
+                try {
+                    codec.decode(cut);
+                    truncated = false;
+                } catch (java.io.IOException expected) {
+                    // Rejected
+                }
+            }
+            return truncated && decoded.getBidder().getName().equals(bid.getBidder().getName()) &&
+                   decoded.getUtility() == 0.85 && decoded.getTimestamp() == bid.getTimestamp() &&
+                   decodedRequest.getResourceType().equals("DOCTOR") &&
+                   decodedRequest.getDuration() == 1800000 &&
+                   decodedRequest.getAttributes().equals(request.getAttributes());
+        });
+        
+        // Test 45: Agent State Round Trip
+        test("Agent State Round Trip", () -> {
+            MessageCodec codec = new CompactBinaryCodec();
+            FaultToleranceManager.AgentState state = new FaultToleranceManager.AgentState(
+                "Room_3", "room", new Object[]{"OPERATING", 2, null});
+            state.addStateData("occupied", Boolean.TRUE);
+            state.addStateData("occupiedSince", 1700000000000L);
+            
+            FaultToleranceManager.AgentState decoded = 
+                (FaultToleranceManager.AgentState) codec.decode(codec.encode(state));
+            return decoded.getAgentName().equals("Room_3") && decoded.getAgentType().equals("room") &&
+                   Arrays.equals(decoded.getArguments(), state.getArguments()) &&
+                   decoded.getStateData().equals(state.getStateData()) &&
+                   decoded.getTimestamp() == state.getTimestamp();
+        });
+        
+        // Test 46: Stolen Patient List Round Trip
+        test("Stolen Patient List Round Trip", () -> {
+            MessageCodec codec = new CompactBinaryCodec();
+            ArrayList<Patient> patients = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                patients.add(new Patient("P" + i, 1 + i % 5, "CONSULTATION"));
+            }
+            
+            @SuppressWarnings("unchecked")
+            List<Patient> decoded = (List<Patient>) codec.decode(codec.encode(patients));
+            boolean same = decoded.size() == 50;
+            for (int i = 0; same && i < 50; i++) {
+                same = decoded.get(i).getId().equals(patients.get(i).getId());
+            }
+            byte[] javaBytes = new JavaSerializationCodec().encode(patients);
+            return same && codec.encode(patients).length < javaBytes.length;
+        });
+        
+        // Test 47: Schema Versioning
+        test("Schema Versioning", () -> {
+            MessageCodec codec = new CompactBinaryCodec();
+            byte[] encoded = codec.encode(new Patient("P", 2, "XRAY"));
+            int bodyLength = encoded[2];
+            
+            // A newer writer appended three fields: the body is read, the extra bytes skipped
+            byte[] newer = new byte[encoded.length + 3];
+            System.arraycopy(encoded, 0, newer, 0, encoded.length);
+            newer[1] = 2;
+            newer[2] = (byte) (bodyLength + 3);
+            Patient decoded = (Patient) codec.decode(newer);
+            
+            // Version 0 was never written
+            byte[] invalid = encoded.clone();
+            invalid[1] = 0;
+            try {
+                codec.decode(invalid);
+                return false;
+            } catch (java.io.IOException expected) {
+                return decoded.getTreatmentType().equals("XRAY") && bodyLength + 3 < 128;
+            }
+        });
+        
+        // Test 48: Codec Selected By Message Language
+        test("Codec Selected By Message Language", () -> {
+            Patient patient = new Patient("P", 3, "MRI");
+            ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+            MessageCodecs.write(msg, patient);
+            Patient compact = (Patient) MessageCodecs.read(msg);
+            
+            // Messages without a language are Java-serialized payloads from older agents
+            ACLMessage legacy = new ACLMessage(ACLMessage.REQUEST);
+            legacy.setByteSequenceContent(new JavaSerializationCodec().encode(patient));
+            Patient fromLegacy = (Patient) MessageCodecs.read(legacy);
+            
+            return CompactBinaryCodec.NAME.equals(msg.getLanguage()) &&
+                   compact.getId().equals(patient.getId()) &&
+                   fromLegacy.getId().equals(patient.getId());
+        });
+        
+        // Test 95: Corrupt Lengths Are Rejected
+        test("Corrupt Lengths Are Rejected", () -> {
+            MessageCodec codec = new CompactBinaryCodec();
+            byte[][] corrupt = {
+                {5, 1, 1, 1},                                       // Patient count of -1
+                {1, 1, 5, (byte) 0xFE, -1, -1, -1, 0x0F},           // Id length near Integer.MAX_VALUE
+                {1, 1, -1, -1, -1, -1, 0x07, 0}                     // Record length of Integer.MAX_VALUE
+            };
+            for (byte[] data : corrupt) {
+                try {
+                    codec.decode(data);
+                    return false;
+                } catch (java.io.IOException expected) {
+                    // Rejected
+                }
+            }
+            return true;
+        });
+    }
+    
+    /**
+     * Test typed message contents
+     */
+    private static void testTypedMessages() {
+        printSection("TYPED MESSAGE TESTS");
+        
+        // Test 49: Legacy Content Parsing
+        test("Legacy Content Parsing", () -> {
+            HospitalMessage parser = new HospitalMessage();
+            boolean state = parser.parse("RESOURCE_STATE:DOCTOR:D1:Cardiology:RESOURCE_AVAILABLE:42") &&
+                            parser.getOpcode() == HospitalMessage.Opcode.RESOURCE_STATE &&
+                            parser.getFieldCount() == 5 && parser.field(1).equals("D1") &&
+                            parser.fieldEquals(3, "RESOURCE_AVAILABLE") && parser.longField(4) == 42;
+            
+            // The same parser is reused: no field of the previous message survives
+            boolean bare = parser.parse("RELEASE_RESOURCE") && 
+                           parser.getOpcode() == HospitalMessage.Opcode.RELEASE_RESOURCE &&
+                           parser.getFieldCount() == 0 && parser.field(0) == null;
+            return state && bare;
+        });
+        
+        // Test 50: Identifiers Containing Colons
+        test("Identifiers Containing Colons", () -> {
+            String content = HospitalMessage.encode(HospitalMessage.Opcode.COMMIT_RESOURCE, 
+                "urn:patient:7", "C:\\ward", null);
+            
+            HospitalMessage parser = new HospitalMessage();
+            return parser.parse(content) && parser.getFieldCount() == 3 &&
+                   parser.field(0).equals("urn:patient:7") && parser.fieldEquals(0, "urn:patient:7") &&
+                   parser.field(1).equals("C:\\ward") && parser.field(2).isEmpty();
+        });
+        
+        // Test 51: Unknown Contents Rejected
+        test("Unknown Contents Rejected", () -> {
+            HospitalMessage parser = new HospitalMessage();
+            boolean rejected = !parser.parse(null) && !parser.parse("Resource allocated") &&
+                               !parser.parse("HELDX:D1") && !parser.parse("") && parser.getOpcode() == null;
+            
+            boolean numberRejected;
+            parser.parse("STEAL_WORK:ten");
+            try {
+                parser.intField(0);
+                numberRejected = false;
+            } catch (NumberFormatException e) {
+                numberRejected = true;
+            }
+            return rejected && numberRejected && 
+                   HospitalMessage.opcodeOf("HELD:D1") == HospitalMessage.Opcode.HELD;
+        });
+        
+        // Test 52: Numeric Fields
+        test("Numeric Fields", () -> {
+            String content = HospitalMessage.encode(HospitalMessage.Opcode.ALLOCATION_METRICS, 
+                "12.346", "-0.1", String.valueOf(-7L));
+            
+            HospitalMessage parser = new HospitalMessage();
+            parser.parse(content);
+            return parser.getFieldCount() == 3 && parser.doubleField(0) == 12.346 && 
+                   parser.doubleField(1) == -0.1 && parser.longField(2) == -7 && parser.intField(2) == -7;
+        });
+    }
+    
+    /**
+     * Test the DF directory cache
+     */
+    private static void testDirectoryCache() {
+        printSection("DIRECTORY CACHE TESTS");
+        
+        // Test 53: Subscription Listing And Deltas
+        test("Subscription Listing And Deltas", () -> {
+            DirectoryCache cache = new DirectoryCache(null);
+            cache.apply("doctor-service", new DFAgentDescription[]{
+                registration("Doctor_1", "doctor-service"), registration("Doctor_2", "doctor-service")
+            }, true, System.currentTimeMillis());
+            boolean listed = cache.getAgents("doctor-service").size() == 2 && 
+                             cache.lookup("Doctor_1") != null;
+            
+            // Delta: Doctor_1 deregistered (no services left), Doctor_3 registered
+            cache.apply("doctor-service", new DFAgentDescription[]{
+                registration("Doctor_1"), registration("Doctor_3", "doctor-service")
+            }, false, System.currentTimeMillis());
+            List<AID> doctors = cache.getAgents("doctor-service");
+            return listed && doctors.size() == 2 && 
+                   doctors.get(0).getLocalName().equals("Doctor_2") && 
+                   doctors.get(1).getLocalName().equals("Doctor_3") && 
+                   cache.lookup("Doctor_1") == null && cache.lookup("Doctor_3") != null;
+        });
+        
+        // Test 54: Patient Found By Name
+        test("Patient Found By Name", () -> {
+            DirectoryCache cache = new DirectoryCache(null);
+            cache.apply("patient-service", new DFAgentDescription[]{
+                registration("Patient_Alice", "patient-service"), registration("Patient_Bob", "patient-service")
+            }, true, System.currentTimeMillis());
+            
+            AID bob = cache.find("patient-service", "Bob");
+            long hitsBefore = cache.getHits();
+            boolean indexed = cache.find("patient-service", "Bob") == bob && cache.getHits() == hitsBefore + 1;
+            
+            // The agent leaves: its name fragment is no longer resolved
+            cache.apply("patient-service", new DFAgentDescription[]{registration("Patient_Bob")}, 
+                        false, System.currentTimeMillis());
+            return bob != null && bob.getLocalName().equals("Patient_Bob") && indexed && 
+                   cache.find("patient-service", "Bob") == null && 
+                   cache.find("patient-service", "Alice") != null;
+        });
+        
+        // Test 55: Hit And Miss Counters
+        test("Hit And Miss Counters", () -> {
+            DirectoryCache cache = new DirectoryCache(null, 1000);
+            long now = System.currentTimeMillis();
+            
+            // Never loaded: miss
+            boolean cold = cache.getAgents("room-service").isEmpty() && cache.getMisses() == 1;
+            
+            cache.apply("room-service", new DFAgentDescription[]{registration("Room_1", "room-service")}, true, now);
+            boolean warm = cache.getFirst("room-service") != null && cache.getHits() == 1;
+            
+            // Without a subscription the entry expires after the TTL
+            cache.apply("room-service", new DFAgentDescription[]{registration("Room_1", "room-service")}, 
+                        true, now - 2000);
+            cache.getAgents("room-service");
+            return cold && warm && cache.getMisses() == 2 && cache.getHitRate() > 33.0 && 
+                   cache.getHitRate() < 34.0;
+        });
+    }
+    
+    /**
+     * Test batched telemetry emission
+     */
+    private static void testTelemetry() {
+        printSection("TELEMETRY TESTS");
+        
+        // Test 56: Events Batched In Order
+        test("Events Batched In Order", () -> {
+            TelemetryEmitter emitter = new TelemetryEmitter(3, 500);
+            for (int i = 0; i < 5; i++) {
+                emitter.offer("Patient_" + i, HospitalMessage.encode(HospitalMessage.Opcode.PATIENT_WAITING, 
+                    String.valueOf(i * 5)));
+            }
+            
+            List<String> sources = new ArrayList<>();
+            List<String> contents = new ArrayList<>();
+            int batches = 0;
+            String batch;
+            while ((batch = emitter.nextBatch()) != null) {
+                batches++;
+                TelemetryEmitter.forEachEvent(batch, (source, content) -> {
+                    sources.add(source);
+                    contents.add(content);
+                });
+            }
+            return batches == 2 && emitter.getPendingCount() == 0 && emitter.getBatchCount() == 2 && 
+                   sources.size() == 5 && sources.get(4).equals("Patient_4") && 
+                   contents.get(3).equals("PATIENT_WAITING:15");
+        });
+        
+        // Test 57: Escaped Fields Survive Batching
+        test("Escaped Fields Survive Batching", () -> {
+            TelemetryEmitter emitter = new TelemetryEmitter(64, 500);
+            emitter.offer("Doctor_1", HospitalMessage.encode(HospitalMessage.Opcode.ALLOCATION_SUCCESS, 
+                "DOCTOR", "urn:doctor:1"));
+            emitter.offer("Doctor_2", HospitalMessage.encode(HospitalMessage.Opcode.RESOURCE_STATUS, 
+                "DOCTOR", "BUSY"));
+            
+            HospitalMessage parser = new HospitalMessage();
+            List<String> ids = new ArrayList<>();
+            TelemetryEmitter.forEachEvent(emitter.nextBatch(), (source, content) -> {
+                if (parser.parse(content) && parser.getOpcode() == HospitalMessage.Opcode.ALLOCATION_SUCCESS) {
+                    ids.add(source + "=" + parser.field(1));
+                }
+            });
+            return ids.size() == 1 && ids.get(0).equals("Doctor_1=urn:doctor:1") && emitter.nextBatch() == null;
+        });
+    }
+    
+    private static void testMetricsRegistry() {
+        printSection("METRICS REGISTRY TESTS");
+        
+        // Test 58: Counters And Gauges Keep Their Kind
+        test("Counters And Gauges Keep Their Kind", () -> {
+            MetricsRegistry metrics = new MetricsRegistry();
+            metrics.increment(MetricsRegistry.Metric.TOTAL_PATIENTS);
+            metrics.increment(MetricsRegistry.Metric.TOTAL_PATIENTS);
+            metrics.decrementToZero(MetricsRegistry.Metric.WAITING_PATIENTS);
+            metrics.add(MetricsRegistry.Metric.TOTAL_WAIT_TIME, 1.5);
+            metrics.add(MetricsRegistry.Metric.TOTAL_WAIT_TIME, 2.25);
+            metrics.set(MetricsRegistry.Metric.DOCTOR_UTILIZATION, 62.5);
+            
+            Map<String, Double> values = metrics.snapshot().toMap();
+            
+            // An update of the wrong kind is rejected, the cell unchanged
+            int rejected = 0;
+            try {
+                metrics.add(MetricsRegistry.Metric.TOTAL_WAIT_TIME, 5);
+            } catch (IllegalArgumentException e) {
+                rejected++;
+            }
+            try {
+                metrics.set(MetricsRegistry.Metric.TOTAL_PATIENTS, 1.0);
+            } catch (IllegalArgumentException e) {
+                rejected++;
+            }
+            return rejected == 2 && metrics.getLong(MetricsRegistry.Metric.TOTAL_PATIENTS) == 2 && 
+                   metrics.getLong(MetricsRegistry.Metric.WAITING_PATIENTS) == 0 && 
+                   metrics.get(MetricsRegistry.Metric.TOTAL_WAIT_TIME) == 3.75 && 
+                   values.get("doctor_utilization") == 62.5 && values.get("success_rate") == 100.0 && 
+                   values.size() == MetricsRegistry.Metric.values().length;
+        });
+        
+        // Test 59: Snapshot Sees Whole Updates
+        test("Snapshot Sees Whole Updates", () -> {
+            MetricsRegistry metrics = new MetricsRegistry();
+            java.util.concurrent.atomic.AtomicBoolean running = new java.util.concurrent.atomic.AtomicBoolean(true);
+            Thread writer = new Thread(() -> {
+                while (running.get()) {
+                    metrics.beginUpdate();
+                    metrics.increment(MetricsRegistry.Metric.TOTAL_PATIENTS);
+                    metrics.increment(MetricsRegistry.Metric.WAITING_PATIENTS);
+                    metrics.endUpdate();
+                }
+            });
+            writer.start();
+            
+            MetricsRegistry.Snapshot snapshot = new MetricsRegistry.Snapshot();
+            int torn = 0;
+            long deadline = System.currentTimeMillis() + 200;
+            while (System.currentTimeMillis() < deadline) {
+                metrics.snapshot(snapshot);
+                if (snapshot.isConsistent() && 
+                    snapshot.getLong(MetricsRegistry.Metric.TOTAL_PATIENTS) != 
+                    snapshot.getLong(MetricsRegistry.Metric.WAITING_PATIENTS)) {
+                    torn++;
+                }
+                Thread.yield();
+            }
+            running.set(false);
+            writer.join();
+            
+            // The retries may run out under heavy contention, but a torn copy says so
+            return torn == 0 && metrics.getLong(MetricsRegistry.Metric.TOTAL_PATIENTS) > 0;
+        });
+        
+        // Test 60: Decimal Fields Parsed In Place
+        test("Decimal Fields Parsed In Place", () -> {
+            HospitalMessage parser = new HospitalMessage();
+            String batch = "Doctor_1\tALLOCATION_METRICS:12.5:0.125:-3:1e3\nPatient_1\tPATIENT_REGISTERED";
+            int start = batch.indexOf('\t') + 1;
+            int end = batch.indexOf('\n');
+            return parser.parse(batch, start, end) && 
+                   parser.getOpcode() == HospitalMessage.Opcode.ALLOCATION_METRICS && 
+                   parser.getFieldCount() == 4 && parser.doubleField(0) == 12.5 && 
+                   parser.doubleField(1) == 0.125 && parser.doubleField(2) == -3.0 && 
+                   parser.doubleField(3) == 1000.0 && 
+                   parser.parse(batch, end + batch.substring(end).indexOf('\t') + 1, batch.length()) && 
+                   parser.getOpcode() == HospitalMessage.Opcode.PATIENT_REGISTERED;
+        });
+    }
+    
+    private static void testUtilizationTracker() {
+        printSection("UTILIZATION TRACKER TESTS");
+        
+        // Test 61: Utilization Counted On Transitions
+        test("Utilization Counted On Transitions", () -> {
+            UtilizationTracker doctors = new UtilizationTracker();
+            boolean added = doctors.update("Doctor_1", true) & doctors.update("Doctor_2", false) & 
+                            doctors.update("Doctor_3", false) & doctors.update("Doctor_4", true);
+            boolean repeated = doctors.update("Doctor_1", true);
+            boolean released = doctors.update("Doctor_4", false);
+            double afterRelease = doctors.getUtilization();
+            doctors.remove("Doctor_1");
+            return added && !repeated && released && afterRelease == 25.0 && 
+                   doctors.getBusyCount() == 0 && doctors.getResourceCount() == 3 && 
+                   doctors.getUtilization() == 0.0 && new UtilizationTracker().getUtilization() == 0.0;
+        });
+        
+        // Test 90: Resource Names Read In Place
+        test("Resource Names Read In Place", () -> {
+            NameTable names = new NameTable();
+            String batch = "Doctor_1|Room_2|Doctor_1";
+            String doctor = names.intern(batch, 0, 8);
+            boolean same = doctor.equals("Doctor_1") && names.intern(batch, 16, 24) == doctor && 
+                           names.intern(batch, 9, 15).equals("Room_2") && names.size() == 2;
+            
+            // Names stay the same instances as the table grows
+            for (int i = 0; i < 200; i++) {
+                String name = "Equipment_" + i;
+                names.intern(name, 0, name.length());
+            }
+            return same && names.intern(batch, 0, 8) == doctor && names.size() == 202;
+        });
+    }
+    
+    private static void testDashboardUpdateBus() {
+        printSection("DASHBOARD UPDATE BUS TESTS");
+        
+        // Test 62: Updates Coalesced Into Frames
+        test("Updates Coalesced Into Frames", () -> {
+            List<Map<String, Double>> frames = new java.util.concurrent.CopyOnWriteArrayList<>();
+            DashboardUpdateBus bus = new DashboardUpdateBus(frames::add, 30);
+            long start = System.nanoTime();
+            for (int i = 1; i <= 5000; i++) {
+                bus.publish("total_patients", i);
+                bus.publish(Collections.singletonMap("queue_length", (double) (i % 7)));
+            }
+            Thread.sleep(150);
+            javax.swing.SwingUtilities.invokeAndWait(() -> { });
+            double elapsedFrames = (System.nanoTime() - start) / (1_000_000_000.0 / 30);
+            
+            Map<String, Double> latest = new HashMap<>();
+            frames.forEach(latest::putAll);
+            return bus.getUpdateCount() == 10_000 && frames.size() >= 1 && 
+                   frames.size() <= elapsedFrames + 2 && bus.getGauge().getMaxQueueDepth() <= 1 && 
+                   latest.get("total_patients") == 5000.0 && latest.get("queue_length") == 5000 % 7;
+        });
+    }
+    
+    private static void testMetricsEndpoint() {
+        printSection("METRICS ENDPOINT TESTS");
+        
+        // Test 63: Prometheus Text Rendered
+        test("Prometheus Text Rendered", () -> {
+            MetricsRegistry metrics = new MetricsRegistry();
+            metrics.increment(MetricsRegistry.Metric.TREATED_PATIENTS);
+            metrics.set(MetricsRegistry.Metric.ROOM_UTILIZATION, 37.5);
+            String text = MetricsEndpoint.renderPrometheus(metrics.snapshot());
+            String json = MetricsEndpoint.renderJson(metrics.snapshot());
+            return text.contains("# TYPE hospital_treated_patients counter\nhospital_treated_patients 1\n") && 
+                   text.contains("# TYPE hospital_room_utilization gauge\nhospital_room_utilization 37.5\n") && 
+                   json.startsWith("{\"total_patients\":0,") && json.contains("\"success_rate\":100.0");
+        });
+        
+        // Test 64: Metrics Served Over HTTP
+        test("Metrics Served Over HTTP", () -> {
+            MetricsRegistry metrics = new MetricsRegistry();
+            metrics.add(MetricsRegistry.Metric.TOTAL_PATIENTS, 42);
+            MetricsEndpoint endpoint = new MetricsEndpoint(metrics, 0);
+            endpoint.start();
+            try {
+                java.net.HttpURLConnection metricsPage = (java.net.HttpURLConnection) 
+                    new java.net.URL("http://localhost:" + endpoint.getPort() + "/metrics").openConnection();
+                String body = new String(metricsPage.getInputStream().readAllBytes(), 
+                    java.nio.charset.StandardCharsets.UTF_8);
+                java.net.HttpURLConnection missing = (java.net.HttpURLConnection) 
+                    new java.net.URL("http://localhost:" + endpoint.getPort() + "/metrics/none").openConnection();
+                return metricsPage.getResponseCode() == 200 && body.contains("hospital_total_patients 42\n") && 
+                       missing.getResponseCode() == 404;
+            } finally {
+                endpoint.stop();
+            }
+        });
+    }
+    
+    private static void testTimeSeries() {
+        printSection("TIME SERIES TESTS");
+        
+        // Test 65: Samples Rolled Up By Resolution
+        test("Samples Rolled Up By Resolution", () -> {
+            TimeSeries series = new TimeSeries(120, 10, 2);
+            // One sample per second for 3 minutes, value = second within the minute
+            for (int second = 0; second < 180; second++) {
+                series.addPoint(second * 1000L, second % 60);
+            }
+            return series.size(TimeSeries.Resolution.SECOND) == 120 && 
+                   series.average(TimeSeries.Resolution.SECOND, 119) == 59.0 && 
+                   series.startOf(TimeSeries.Resolution.SECOND, 0) == 60_000L && 
+                   series.size(TimeSeries.Resolution.MINUTE) == 3 && 
+                   series.count(TimeSeries.Resolution.MINUTE, 1) == 60 && 
+                   series.min(TimeSeries.Resolution.MINUTE, 1) == 0.0 && 
+                   series.max(TimeSeries.Resolution.MINUTE, 1) == 59.0 && 
+                   series.average(TimeSeries.Resolution.MINUTE, 1) == 29.5 && 
+                   series.size(TimeSeries.Resolution.HOUR) == 1 && 
+                   series.count(TimeSeries.Resolution.HOUR, 0) == 180;
+        });
+        
+        // Test 66: Gaps Kept As Empty Buckets
+        test("Gaps Kept As Empty Buckets", () -> {
+            TimeSeries series = new TimeSeries(5, 5, 5);
+            series.addPoint(0, 1.0);
+            series.addPoint(3_000, 4.0);
+            boolean gap = series.size(TimeSeries.Resolution.SECOND) == 4 && 
+                          series.count(TimeSeries.Resolution.SECOND, 1) == 0 && 
+                          Double.isNaN(series.average(TimeSeries.Resolution.SECOND, 2));
+            // A gap longer than the ring leaves only the newest bucket with samples
+            series.addPoint(60_000, 7.0);
+            return gap && series.size(TimeSeries.Resolution.SECOND) == 5 && 
+                   series.count(TimeSeries.Resolution.SECOND, 0) == 0 && 
+                   series.average(TimeSeries.Resolution.SECOND, 4) == 7.0 && 
+                   series.startOf(TimeSeries.Resolution.SECOND, 4) == 60_000L && 
+                   series.resolutionFor(4_000) == TimeSeries.Resolution.SECOND && 
+                   series.resolutionFor(3_600_000) == TimeSeries.Resolution.HOUR;
+        });
+    }
+    
+    private static void testMetricsHistory() {
+        printSection("METRICS HISTORY TESTS");
+        
+        // Test 67: History Survives Restart
+        test("History Survives Restart", () -> {
+            java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("history-test");
+            MetricsRegistry metrics = new MetricsRegistry();
+            MetricsHistoryStore store = new MetricsHistoryStore(directory);
+            store.appendMetrics(1_000, metrics.snapshot());
+            metrics.add(MetricsRegistry.Metric.TOTAL_PATIENTS, 5);
+            metrics.set(MetricsRegistry.Metric.QUEUE_LENGTH, 2.5);
+            store.appendMetrics(2_000, metrics.snapshot());
+            store.appendMetrics(3_000, metrics.snapshot()); // Unchanged, nothing written
+            store.appendTransition(2_500, "DOCTOR", "Doctor1", true);
+            store.close();
+            
+            // Reopened: the records are read back from the segment files
+            MetricsHistoryStore reopened = new MetricsHistoryStore(directory);
+            List<Double> patients = new ArrayList<>();
+            reopened.forEachSample(MetricsRegistry.Metric.TOTAL_PATIENTS, 0, 10_000, 
+                (timestamp, value) -> patients.add(value));
+            List<Double> queue = new ArrayList<>();
+            reopened.forEachSample(MetricsRegistry.Metric.QUEUE_LENGTH, 1_500, 10_000, 
+                (timestamp, value) -> queue.add(value));
+            List<String> transitions = new ArrayList<>();
+            reopened.forEachTransition(0, 10_000, 
+                (timestamp, type, resource, busy) -> transitions.add(timestamp + " " + type + " " + resource + " " + busy));
+            int[] records = new int[1];
+            reopened.forEach(0, 10_000, (timestamp, series, value) -> records[0]++);
+            reopened.close();
+            return patients.equals(Arrays.asList(0.0, 5.0)) && 
+                   queue.equals(Arrays.asList(2.5)) && 
+                   transitions.equals(Arrays.asList("2500 DOCTOR Doctor1 true")) && 
+                   records[0] == MetricsRegistry.Metric.values().length + 3;
+        });
+        
+        // Test 68: Old Segments Deleted After Retention
+        test("Old Segments Deleted After Retention", () -> {
+            java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("history-test");
+            MetricsRegistry metrics = new MetricsRegistry();
+            // One-minute segments kept for five minutes
+            MetricsHistoryStore store = new MetricsHistoryStore(directory, 1024, 60_000, 300_000);
+            for (int minute = 0; minute < 10; minute++) {
+                metrics.set(MetricsRegistry.Metric.QUEUE_LENGTH, minute);
+                store.appendMetrics(minute * 60_000L, metrics.snapshot());
+            }
+            List<Double> queue = new ArrayList<>();
+            store.forEachSample(MetricsRegistry.Metric.QUEUE_LENGTH, 0, Long.MAX_VALUE, 
+                (timestamp, value) -> queue.add(value));
+            long files;
+            try (java.util.stream.Stream<java.nio.file.Path> list = java.nio.file.Files.list(directory)) {
+                files = list.filter(file -> file.getFileName().toString().startsWith("segment-")).count();
+            }
+            store.close();
+            return store.getSegmentCount() == 6 && files == 6 && 
+                   queue.equals(Arrays.asList(4.0, 5.0, 6.0, 7.0, 8.0, 9.0));
+        });
+    }
+    
+    private static void testReportExport() {
+        printSection("REPORT EXPORT TESTS");
+        
+        // Test 69: Patient Lifecycle Exported As CSV
+        test("Patient Lifecycle Exported As CSV", () -> {
+            java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("export-test");
+            MetricsHistoryStore store = new MetricsHistoryStore(directory.resolve("history"));
+            store.appendArrival(1_000, "p-1");
+            store.appendArrival(1_500, "p,2");
+            store.appendTransition(2_000, "DOCTOR", "Doctor_1", true);
+            store.appendAllocation(2_000, "p-1", "DOCTOR", "Doctor_1");
+            store.appendTransition(5_000, "DOCTOR", "Doctor_1", false);
+            store.appendCompletion(5_000, "p-1", 1_000);
+            // Busy since before the first record: allocated again before it is freed
+            store.appendAllocation(6_000, "p,2", "DOCTOR", "Doctor_2");
+            store.appendTransition(8_000, "DOCTOR", "Doctor_2", false);
+            
+            ReportExporter exporter = new ReportExporter(store);
+            java.nio.file.Path report = exporter.exportAsync(0, 11_000, ReportExporter.Format.CSV, 
+                                                             directory.resolve("report")).get();
+            List<String> patients = java.nio.file.Files.readAllLines(report.resolve("patients.csv"));
+            List<String> utilization = java.nio.file.Files.readAllLines(report.resolve("utilization.csv"));
+            store.close();
+            return patients.equals(Arrays.asList(
+                       "timestamp,patient,event,resource,wait_ms", 
+                       "1000,p-1,ARRIVAL,,", 
+                       "1500,\"p,2\",ARRIVAL,,", 
+                       "2000,p-1,ALLOCATION,Doctor_1,", 
+                       "5000,p-1,COMPLETION,,1000", 
+                       "6000,\"p,2\",ALLOCATION,Doctor_2,")) && 
+                   utilization.equals(Arrays.asList(
+                       "resource,type,busy_ms,utilization,transitions,allocations", 
+                       "Doctor_1,DOCTOR,3000,30.0,2,1", 
+                       "Doctor_2,DOCTOR,7000,70.0,1,1"));
+        });
+        
+        // Test 93: All-History Utilization Starts At The First Record
+        test("All-History Utilization Starts At The First Record", () -> {
+            java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("export-test");
+            MetricsHistoryStore store = new MetricsHistoryStore(directory.resolve("history"));
+            long start = 1_760_000_000_000L; // An hour of history, as exported from the dashboard
+            long minute = 60_000L;
+            store.appendArrival(start, "p-1");
+            store.appendTransition(start + 15 * minute, "DOCTOR", "Doctor_2", false);
+            store.appendTransition(start + 30 * minute, "DOCTOR", "Doctor_1", true);
+            store.appendAllocation(start + 30 * minute, "p-1", "DOCTOR", "Doctor_1");
+            
+            // "All history" asks for the range from 0 to now; Doctor_1 is still busy at the end
+            ReportExporter exporter = new ReportExporter(store);
+            java.nio.file.Path file = directory.resolve("utilization.csv");
+            exporter.exportUtilization(0, start + 60 * minute, ReportExporter.Format.CSV, file);
+            List<String> utilization = java.nio.file.Files.readAllLines(file);
+            store.close();
+            return utilization.equals(Arrays.asList(
+                       "resource,type,busy_ms,utilization,transitions,allocations", 
+                       "Doctor_2,DOCTOR,900000,25.0,1,0", 
+                       "Doctor_1,DOCTOR,1800000,50.0,1,1"));
+        });
+        
+        // Test 70: Wait Percentiles Exported As JSON Lines
+        test("Wait Percentiles Exported As JSON Lines", () -> {
+            java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("export-test");
+            MetricsHistoryStore store = new MetricsHistoryStore(directory.resolve("history"));
+            // Waits of 1 to 100 seconds
+            for (int i = 1; i <= 100; i++) {
+                store.appendArrival(i * 10_000L, "p" + i);
+                store.appendCompletion(i * 10_000L + 5, "p" + i, i * 1000L);
+            }
+            ReportExporter exporter = new ReportExporter(store);
+            java.nio.file.Path file = directory.resolve("wait_times.jsonl");
+            exporter.exportWaitTimes(0, Long.MAX_VALUE, ReportExporter.Format.JSON_LINES, file);
+            List<String> waits = java.nio.file.Files.readAllLines(file);
+            store.close();
+            return waits.equals(Arrays.asList(
+                "{\"statistic\":\"count\",\"wait_ms\":100}", 
+                "{\"statistic\":\"mean\",\"wait_ms\":50500}", 
+                "{\"statistic\":\"p50\",\"wait_ms\":50175}", 
+                "{\"statistic\":\"p90\",\"wait_ms\":90111}", 
+                "{\"statistic\":\"p95\",\"wait_ms\":96255}", 
+                "{\"statistic\":\"p99\",\"wait_ms\":100000}", 
+                "{\"statistic\":\"p99.9\",\"wait_ms\":100000}", 
+                "{\"statistic\":\"max\",\"wait_ms\":100000}"));
+        });
+    }
+    
+    private static void testLatencyHistogram() {
+        printSection("LATENCY HISTOGRAM TESTS");
+        
+        // Test 71: Percentiles Within Bucket Precision
+        test("Percentiles Within Bucket Precision", () -> {
+            LatencyHistogram histogram = new LatencyHistogram();
+            for (long value = 1; value <= 100_000; value++) {
+                histogram.record(value);
+            }
+            histogram.record(-5); // Counted as 0
+            boolean precise = true;
+            for (double percentile : new double[]{50, 90, 99, 99.9}) {
+                long exact = (long) Math.ceil(100_001 * percentile / 100.0) - 1;
+                long value = histogram.getValueAtPercentile(percentile);
+                precise &= value >= exact && value <= exact * 1.032;
+            }
+            LatencyHistogram small = new LatencyHistogram();
+            small.record(7);
+            small.record(20);
+            return precise && histogram.getCount() == 100_001 && 
+                   small.getValueAtPercentile(50) == 7 && small.getMax() == 20 && 
+                   new LatencyHistogram().getValueAtPercentile(99) == 0;
+        });
+        
+        // Test 72: Scheduler Histograms Merged By Monitor
+        test("Scheduler Histograms Merged By Monitor", () -> {
+            PatientLatencies scheduler1 = new PatientLatencies();
+            PatientLatencies scheduler2 = new PatientLatencies();
+            scheduler1.record(PatientLatencies.Measure.WAIT_TIME, 5, "SURGERY", 1_000);
+            scheduler2.record(PatientLatencies.Measure.WAIT_TIME, 1, "xray", 60_000);
+            scheduler2.record(PatientLatencies.Measure.WAIT_TIME, 1, "UNKNOWN", 120_000);
+            
+            // Counts travel as drained text, as in the scheduler's messages
+            PatientLatencies monitor = new PatientLatencies();
+            PatientLatencies.DrainHandler send = (measure, slice, encoded) -> monitor.addEncoded(measure, slice, encoded);
+            scheduler1.drain(send);
+            scheduler2.drain(send);
+            int[] resent = new int[1];
+            scheduler2.drain((measure, slice, encoded) -> resent[0]++);
+            
+            LatencyHistogram all = monitor.get(PatientLatencies.Measure.WAIT_TIME, PatientLatencies.ALL);
+            return all.getCount() == 3 && resent[0] == 0 && 
+                   monitor.get(PatientLatencies.Measure.WAIT_TIME, PatientLatencies.urgencySlice(1)).getCount() == 2 && 
+                   monitor.get(PatientLatencies.Measure.WAIT_TIME, 
+                               PatientLatencies.treatmentSlice("SURGERY")).getValueAtPercentile(50) == 1_007 && 
+                   PatientLatencies.sliceName(PatientLatencies.treatmentSlice("UNKNOWN")).equals("OTHER") && 
+                   all.getMax() >= 120_000 && all.getMax() <= 120_000 * 1.032;
+        });
+        
+        // Test 73: Concurrent Recording Loses No Count
+        test("Concurrent Recording Loses No Count", () -> {
+            LatencyHistogram histogram = new LatencyHistogram();
+            LatencyHistogram drained = new LatencyHistogram();
+            Thread[] recorders = new Thread[4];
+            for (int t = 0; t < recorders.length; t++) {
+                recorders[t] = new Thread(() -> {
+                    for (int i = 0; i < 50_000; i++) {
+                        histogram.record(i % 5_000);
+                    }
+                });
+                recorders[t].start();
+            }
+            // Drained while recording, as the scheduler does
+            while (recorders[0].isAlive()) {
+                drained.addEncoded(histogram.drain());
+            }
+            for (Thread recorder : recorders) {
+                recorder.join();
+            }
+            drained.addEncoded(histogram.drain());
+            return drained.getCount() == 200_000 && histogram.getCount() == 0;
+        });
+    }
+    
+    private static void testAsyncLogging() {
+        printSection("ASYNC LOGGING TESTS");
+        
+        // Test 74: Levels Filtered And Full Queue Drops
+        test("Levels Filtered And Full Queue Drops", () -> {
+            java.io.ByteArrayOutputStream output = new java.io.ByteArrayOutputStream();
+            LogSink sink = new LogSink(8, 0, LogSink.Level.INFO, new java.io.PrintStream(output, true, "UTF-8"));
+            AgentLog log = sink.forSource("Doctor_1");
+            for (int i = 0; i < 10; i++) {
+                log.debug("is available");
+                log.info("assigned to patient P", i);
+            }
+            // INFO fills 3/4 of the queue, WARN the rest
+            log.warn("requires maintenance check");
+            log.warn("requires maintenance check");
+            log.error("lost");
+            int queued = sink.getPendingCount();
+            sink.flush();
+            
+            String[] lines = output.toString("UTF-8").split("\n");
+            return queued == 8 && sink.getDropped() == 5 && sink.getWritten() == 8 && lines.length == 9 && 
+                   lines[0].endsWith("INFO  Doctor_1 assigned to patient P0") && 
+                   lines[7].contains("WARN  Doctor_1 requires maintenance check") && 
+                   lines[8].endsWith("log 5 records dropped, queue full");
+        });
+        
+        // Test 75: Sampling And Per-Agent Rate Limit
+        test("Sampling And Per-Agent Rate Limit", () -> {
+            java.io.ByteArrayOutputStream output = new java.io.ByteArrayOutputStream();
+            LogSink sink = new LogSink(1024, 0, LogSink.Level.INFO, new java.io.PrintStream(output, true, "UTF-8"));
+            AgentLog.Sampler waiting = sink.forSource("Patient_1").sampler(10);
+            for (int i = 0; i < 25; i++) {
+                waiting.info("waiting time: ", i * 5, " seconds");
+            }
+            sink.flush();
+            String[] sampled = output.toString("UTF-8").split("\n");
+            
+            sink.setRateLimit(10);
+            AgentLog noisy = sink.forSource("Scheduler");
+            AgentLog quiet = sink.forSource("Room_1");
+            for (int i = 0; i < 100; i++) {
+                noisy.info("received treatment request");
+            }
+            quiet.info("released after treatment completion");
+            long admitted = sink.getPendingCount();
+            long limited = sink.getRateLimited();
+            
+            return sampled.length == 3 && sampled[0].endsWith("waiting time: 0 seconds") && 
+                   sampled[1].endsWith("waiting time: 50 seconds (9 similar skipped)") && 
+                   ((limited == 90 && admitted == 11) || 
+                    (limited >= 80 && limited < 90)); // A second boundary fell within the loop
+        });
+        
+        // Test 76: Writer Thread Prints JSON Lines
+        test("Writer Thread Prints JSON Lines", () -> {
+            java.io.ByteArrayOutputStream output = new java.io.ByteArrayOutputStream();
+            LogSink sink = new LogSink(64, 0, LogSink.Level.INFO, new java.io.PrintStream(output, true, "UTF-8"));
+            sink.setFormat(LogSink.Format.JSON_LINES);
+            sink.start();
+            sink.forSource("Monitor").error("cannot open \"history\": ", 42);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (sink.getWritten() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            String line = output.toString("UTF-8").trim();
+            return line.startsWith("{\"time\":") && 
+                   line.endsWith(",\"level\":\"ERROR\",\"source\":\"Monitor\"," + 
+                                 "\"message\":\"cannot open \\\"history\\\": 42\"}");
+        });
+    }
+    
+    private static void testResourceWaitQueues() {
+        printSection("LOAD BALANCER WAIT QUEUE TESTS");
+        
+        // Test 77: Unplaceable Patients Wait For A Signal
+        test("Unplaceable Patients Wait For A Signal", () -> {
+            ResourceWaitQueues queues = new ResourceWaitQueues();
+            for (int i = 0; i < 1000; i++) {
+                queues.add("DOCTOR", new Patient("Patient_" + i, 1 + i % 5, "CONSULTATION"));
+            }
+            int[] attempts = new int[1];
+            int[] free = new int[1];
+            ResourceWaitQueues.Placement placement = (type, patient) -> {
+                attempts[0]++;
+                return free[0]-- > 0;
+            };
+            
+            // One attempt for the whole queue, none until a resource event
+            int placedWhileFull = queues.dispatch(placement);
+            int firstPass = attempts[0];
+            queues.dispatch(placement);
+            queues.signal("ROOM");
+            queues.dispatch(placement);
+            int idlePasses = attempts[0] - firstPass;
+            
+            free[0] = 600;
+            queues.signal("DOCTOR");
+            int placed = queues.dispatch(placement);
+            return placedWhileFull == 0 && firstPass == 1 && idlePasses == 0 && 
+                   placed == 600 && attempts[0] == 602 && queues.size("DOCTOR") == 400 && 
+                   !queues.hasSignalled();
+        });
+        
+        // Test 78: Distributor Idle CPU With 1000 Unplaceable Patients
+        test("Distributor Idle CPU With 1000 Unplaceable Patients", () -> {
+            ResourceWaitQueues queues = new ResourceWaitQueues();
+            for (int i = 0; i < 1000; i++) {
+                queues.add("DOCTOR", new Patient("Patient_" + i, 3, "SURGERY"));
+            }
+            java.util.concurrent.atomic.AtomicInteger attempts = new java.util.concurrent.atomic.AtomicInteger();
+            java.util.concurrent.atomic.AtomicLong cpuNanos = new java.util.concurrent.atomic.AtomicLong();
+            java.util.concurrent.Semaphore messages = new java.util.concurrent.Semaphore(0);
+            
+            // The agent thread: dispatch, block until a message, signal on RESOURCE_FREE
+            Thread agent = new Thread(() -> {
+                java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+                long start = threads.getCurrentThreadCpuTime();
+                for (int event = 0; event <= 20; event++) {
+                    queues.dispatch((type, patient) -> {
+                        attempts.incrementAndGet();
+                        return false;
+                    });
+                    if (event < 20) {
+                        messages.acquireUninterruptibly();
+                        queues.signal("DOCTOR");
+                    }
+                }
+                cpuNanos.set(threads.getCurrentThreadCpuTime() - start);
+            });
+            agent.start();
+            // A resource is freed and taken again every 50 ms for 1 s
+            for (int event = 0; event < 20; event++) {
+                Thread.sleep(50);
+                messages.release();
+            }
+            agent.join(5000);
+            
+            return attempts.get() == 21 && queues.size() == 1000 && 
+                   cpuNanos.get() < 100_000_000L; // Under 10% of the second
+        });
+    }
+    
+    private static void testLoadIndex() {
+        printSection("LOAD INDEX TESTS");
+        
+        // Test 79: Load Index Tracks Least Loaded In Place
+        test("Load Index Tracks Least Loaded In Place", () -> {
+            LoadIndex index = new LoadIndex("DOCTOR", ResourceLoad::getCurrentLoad);
+            List<ResourceLoad> loads = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                ResourceLoad load = new ResourceLoad(new AID("Doctor_" + i, AID.ISLOCALNAME), "DOCTOR");
+                loads.add(load);
+                index.add(load);
+            }
+            Random random = new Random(7);
+            boolean consistent = true;
+            for (int step = 0; step < 5000 && consistent; step++) {
+                ResourceLoad load = loads.get(random.nextInt(loads.size()));
+                switch (random.nextInt(4)) {
+                    case 0: load.decrementLoad(); break;
+                    case 1: load.setCurrentLoad(random.nextInt(8)); break;
+                    default: load.incrementLoad(); break;
+                }
+                if (step % 500 == 499) {
+                    index.remove(loads.remove(random.nextInt(loads.size())).getResource());
+                }
+                // Brute-force least loaded among those not overloaded
+                int min = Integer.MAX_VALUE;
+                for (ResourceLoad candidate : loads) {
+                    if (!candidate.isOverloaded()) {
+                        min = Math.min(min, candidate.getCurrentLoad());
+                    }
+                }
+                ResourceLoad least = index.leastLoaded();
+                consistent = min == Integer.MAX_VALUE ? least == null : least != null && least.getCurrentLoad() == min;
+            }
+            for (ResourceLoad load : loads) {
+                load.setCurrentLoad(ResourceLoad.OVERLOAD_THRESHOLD + 1);
+            }
+            return consistent && index.size() == 90 && index.leastLoaded() == null && 
+                   new LeastConnectionsStrategy().selectResource(index, new Patient("P", 3, "CONSULTATION")) == null;
+        });
+        
+        // Test 80: Power Of Two And Consistent Hash Strategies
+        test("Power Of Two And Consistent Hash Strategies", () -> {
+            LoadIndex index = new LoadIndex("DOCTOR", ResourceLoad::getCurrentLoad);
+            for (int i = 0; i < 10; i++) {
+                index.add(new ResourceLoad(new AID("Doctor_" + i, AID.ISLOCALNAME), "DOCTOR"));
+            }
+            PowerOfTwoChoicesStrategy twoChoices = new PowerOfTwoChoicesStrategy(new Random(3));
+            for (int i = 0; i < 40; i++) {
+                index.get(twoChoices.selectResource(index, new Patient("P" + i, 3, "CONSULTATION"))).incrementLoad();
+            }
+            int max = 0;
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < index.size(); i++) {
+                max = Math.max(max, index.get(i).getCurrentLoad());
+                min = Math.min(min, index.get(i).getCurrentLoad());
+            }
+            
+            for (int i = 0; i < index.size(); i++) {
+                index.get(i).setCurrentLoad(0);
+            }
+            ConsistentHashStrategy hashing = new ConsistentHashStrategy();
+            List<Patient> patients = new ArrayList<>();
+            Map<String, AID> owners = new HashMap<>();
+            for (int i = 0; i < 200; i++) {
+                Patient patient = new Patient("P" + i, 3, "CONSULTATION");
+                patients.add(patient);
+                owners.put(patient.getId(), hashing.selectResource(index, patient));
+            }
+            boolean stable = hashing.selectResource(index, patients.get(0)).equals(owners.get(patients.get(0).getId()));
+            
+            // An overloaded owner hands its patients to another resource
+            AID busy = owners.get(patients.get(1).getId());
+            index.get(busy).setCurrentLoad(ResourceLoad.OVERLOAD_THRESHOLD + 1);
+            boolean spilled = !hashing.selectResource(index, patients.get(1)).equals(busy);
+            index.get(busy).setCurrentLoad(0);
+            
+            // Removing a resource only moves its own patients
+            AID removed = index.get(3).getResource();
+            index.remove(removed);
+            int moved = 0;
+            for (Patient patient : patients) {
+                AID owner = hashing.selectResource(index, patient);
+                if (!owner.equals(owners.get(patient.getId()))) {
+                    moved++;
+                    stable &= owners.get(patient.getId()).equals(removed);
+                }
+            }
+            return max - min <= 2 && max <= ResourceLoad.OVERLOAD_THRESHOLD && 
+                   stable && spilled && moved > 0 && moved < 60;
+        });
+    }
+    
+    private static void testDelayAwareStrategies() {
+        printSection("DELAY-AWARE STRATEGY TESTS");
+        
+        // Test 81: Power Of D Choices Picks The Least Loaded Sample
+        test("Power Of D Choices Picks The Least Loaded Sample", () -> {
+            LoadIndex index = new LoadIndex("DOCTOR", ResourceLoad::getCurrentLoad);
+            for (int i = 0; i < 8; i++) {
+                ResourceLoad load = new ResourceLoad(new AID("Doctor_" + i, AID.ISLOCALNAME), "DOCTOR");
+                load.setCurrentLoad(i < 7 ? 3 : 0);
+                index.add(load);
+            }
+            // With every resource drawn, the choice is the least loaded
+            boolean exhaustive = new PowerOfDChoicesStrategy(8, new Random(1))
+                .selectResource(index, new Patient("P", 3, "CONSULTATION")).getLocalName().equals("Doctor_7");
+            
+            // More choices find the idle resource more often
+            int[] found = new int[2];
+            int[] choices = {2, 5};
+            for (int c = 0; c < choices.length; c++) {
+                PowerOfDChoicesStrategy strategy = new PowerOfDChoicesStrategy(choices[c], new Random(1));
+                for (int i = 0; i < 1000; i++) {
+                    AID selected = strategy.selectResource(index, new Patient("P", 3, "CONSULTATION"));
+                    if (selected.getLocalName().equals("Doctor_7")) found[c]++;
+                }
+            }
+            for (int i = 0; i < index.size(); i++) {
+                index.get(i).setCurrentLoad(ResourceLoad.OVERLOAD_THRESHOLD + 1);
+            }
+            return exhaustive && found[0] > 150 && found[1] > found[0] && 
+                   new PowerOfDChoicesStrategy(3).selectResource(index, new Patient("P", 3, "CONSULTATION")) == null;
+        });
+        
+        // Test 82: Shortest Expected Delay Weighs Remaining Work And Service Rate
+        test("Shortest Expected Delay Weighs Remaining Work And Service Rate", () -> {
+            ShortestExpectedDelayStrategy strategy = new ShortestExpectedDelayStrategy();
+            LoadIndex index = new LoadIndex("DOCTOR", strategy::loadKey);
+            long[] time = new long[1];
+            ResourceLoad surgeon = new ResourceLoad(new AID("Doctor_1", AID.ISLOCALNAME), "DOCTOR", () -> time[0]);
+            ResourceLoad general = new ResourceLoad(new AID("Doctor_2", AID.ISLOCALNAME), "DOCTOR", () -> time[0]);
+            index.add(surgeon);
+            index.add(general);
+            long surgery = SchedulingAlgorithm.estimateTreatmentDuration("SURGERY");
+            long consultation = SchedulingAlgorithm.estimateTreatmentDuration("CONSULTATION");
+            
+            // One surgery waits longer than three consultations
+            surgeon.incrementLoad();
+            surgeon.assignPatient("S1", "SURGERY", surgery);
+            for (int i = 0; i < 3; i++) {
+                general.incrementLoad();
+                general.assignPatient("C" + i, "CONSULTATION", consultation);
+            }
+            Patient patient = new Patient("P", 3, "CONSULTATION");
+            boolean byWork = strategy.selectResource(index, patient).equals(general.getResource());
+            
+            // The consultations took four times their estimate: the rate drops below one
+            for (int i = 0; i < 3; i++) {
+                time[0] = (i + 1) * consultation * 4;
+                general.completePatient("C" + i);
+                general.decrementLoad();
+            }
+            boolean slower = general.getServiceRate() < 1.0 && general.getRemainingWork() == 0 && 
+                             general.getAssignedCount() == 0;
+            general.assignPatient("C3", "SURGERY", 90 * 60 * 1000L);
+            surgeon.assignPatient("S2", "CONSULTATION", consultation);
+            // 90 minutes at the slower rate now waits longer than surgery plus a consultation
+            boolean byRate = general.getExpectedDelay() > surgeon.getExpectedDelay() && 
+                             strategy.selectResource(index, patient).equals(surgeon.getResource());
+            
+            // An unknown id completes the oldest patient
+            surgeon.completePatient(null);
+            return byWork && slower && byRate && surgeon.getRemainingWork() == consultation;
+        });
+    }
+    
+    private static void testConcurrentResourceLoad() {
+        printSection("CONCURRENT RESOURCE LOAD TESTS");
+        
+        // Test 83: Resource Load Counters Under Concurrent Updates
+        test("Resource Load Counters Under Concurrent Updates", () -> {
+            LoadIndex index = new LoadIndex("DOCTOR", ResourceLoad::getCurrentLoad);
+            ResourceLoad[] loads = new ResourceLoad[4];
+            for (int i = 0; i < loads.length; i++) {
+                loads[i] = new ResourceLoad(new AID("Doctor_" + i, AID.ISLOCALNAME), "DOCTOR");
+                index.add(loads[i]);
+            }
+            int perThread = 20_000;
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                int thread = t;
+                threads[t] = new Thread(() -> {
+                    // Every thread loads every resource, then completes what it sent
+                    for (int i = 0; i < perThread; i++) {
+                        ResourceLoad load = loads[(i + thread) % loads.length];
+                        load.incrementLoad();
+                        load.assignPatient("P" + thread + "_" + i, "XRAY", 10);
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        ResourceLoad load = loads[(i + thread) % loads.length];
+                        load.completePatient("P" + thread + "_" + i);
+                        load.decrementLoad();
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            boolean counted = true;
+            for (ResourceLoad load : loads) {
+                counted &= load.getCurrentLoad() == 0 && load.getRemainingWork() == 0 && 
+                           load.getAssignedCount() == 0 && load.getCompletedCount() == perThread && 
+                           load.getPeakLoad() > 0 && load.getPeakLoad() <= perThread;
+            }
+            
+            // The index still orders the resources after the concurrent reorders
+            loads[2].setCurrentLoad(1);
+            loads[0].setCurrentLoad(3);
+            loads[1].setCurrentLoad(2);
+            loads[3].setCurrentLoad(ResourceLoad.OVERLOAD_THRESHOLD + 1);
+            return counted && index.leastLoaded() == loads[2];
+        });
+        
+        // Test 84: Weights Follow A Slow Doctor
+        test("Weights Follow A Slow Doctor", () -> {
+            DecayingAverage average = new DecayingAverage(1000, 0, 0);
+            average.add(8, 1000); // One half-life: halfway
+            average.add(0, 1000); // No time elapsed: no weight
+            boolean decays = Math.abs(average.get() - 4) < 1e-9;
+            
+            long[] time = new long[1];
+            WeightedRoundRobinStrategy strategy = new WeightedRoundRobinStrategy();
+            LoadIndex index = new LoadIndex("DOCTOR", strategy::loadKey);
+            ResourceLoad steady = new ResourceLoad(new AID("Doctor_1", AID.ISLOCALNAME), "DOCTOR", () -> time[0]);
+            ResourceLoad slowing = new ResourceLoad(new AID("Doctor_2", AID.ISLOCALNAME), "DOCTOR", () -> time[0]);
+            index.add(steady);
+            index.add(slowing);
+            Patient patient = new Patient("P", 3, "CONSULTATION");
+            int[] share = new int[2];
+            for (int i = 0; i < 100; i++) {
+                if (strategy.selectResource(index, patient).equals(slowing.getResource())) share[0]++;
+            }
+            
+            // Doctor_2 takes four times the estimate for its next three treatments
+            long consultation = SchedulingAlgorithm.estimateTreatmentDuration("CONSULTATION");
+            for (int i = 0; i < 3; i++) {
+                steady.assignPatient("S" + i, "CONSULTATION", consultation);
+                slowing.assignPatient("C" + i, "CONSULTATION", consultation);
+                time[0] += consultation;
+                steady.completePatient("S" + i);
+                time[0] += 3 * consultation;
+                slowing.completePatient("C" + i);
+            }
+            for (int i = 0; i < 100; i++) {
+                if (strategy.selectResource(index, patient).equals(slowing.getResource())) share[1]++;
+            }
+            return decays && share[0] == 50 && slowing.getServiceRate() < 0.3 && 
+                   Math.abs(steady.getServiceRate() - 1.0) < 1e-9 && share[1] >= 15 && share[1] <= 25;
+        });
+        
+        // Test 89: Average Load Follows A Load That Stays
+        test("Average Load Follows A Load That Stays", () -> {
+            long[] time = new long[1];
+            AdaptiveLoadBalancingStrategy strategy = new AdaptiveLoadBalancingStrategy();
+            LoadIndex index = new LoadIndex("DOCTOR", strategy::loadKey);
+            ResourceLoad busy = new ResourceLoad(new AID("Doctor_1", AID.ISLOCALNAME), "DOCTOR", () -> time[0]);
+            ResourceLoad filling = new ResourceLoad(new AID("Doctor_2", AID.ISLOCALNAME), "DOCTOR", () -> time[0]);
+            index.add(busy);
+            index.add(filling);
+            busy.setCurrentLoad(4);
+            
+            // Doctor_2 fills up after a minute idle: its average is still near 0
+            time[0] = 60_000;
+            filling.setCurrentLoad(5);
+            index.refresh();
+            boolean recent = busy.getAverageLoad() > 3.9 && filling.getAverageLoad() < 0.1 && 
+                             index.leastLoaded() == filling;
+            
+            // A minute later, with no change, the average caught up with the load
+            time[0] = 120_000;
+            boolean caughtUp = filling.getAverageLoad() > 4.9 && index.leastLoaded() == filling;
+            index.refresh();
+            return recent && caughtUp && index.leastLoaded() == busy;
+        });
+    }
+    
+    private static void testPatientMigration() {
+        printSection("PATIENT MIGRATION TESTS");
+        
+        // Test 85: Migration Plan Respects Treatment, Specialization And Room
+        test("Migration Plan Respects Treatment, Specialization And Room", () -> {
+            ResourceLoad general = migrationResource("Doctor_0", "DOCTOR", "GENERAL", 
+                "CONSULTATION", "SURGERY", "CONSULTATION", "CARDIOLOGY", "CONSULTATION");
+            ResourceLoad cardiologist = migrationResource("Doctor_1", "DOCTOR", "CARDIOLOGIST");
+            ResourceLoad other = migrationResource("Doctor_2", "DOCTOR", "GENERAL", "CHECKUP");
+            ResourceLoad surgeryRoom = migrationResource("Room_0", "ROOM", "SURGERY", 
+                "SURGERY", "SURGERY", "CONSULTATION", "CONSULTATION");
+            ResourceLoad consultationRoom = migrationResource("Room_1", "ROOM", "CONSULTATION");
+            List<ResourceLoad> loads = Arrays.asList(general, cardiologist, other, surgeryRoom, consultationRoom);
+            
+            MigrationPlanner planner = new MigrationPlanner(10);
+            List<MigrationPlanner.Move> moves = planner.plan(loads, new HashSet<>());
+            Map<String, String> targets = new HashMap<>();
+            for (MigrationPlanner.Move move : moves) {
+                targets.put(move.getPatientId(), move.getTarget().getLocalName());
+            }
+            // The cardiology patient goes to the cardiologist, the latest to the other general
+            // doctor, a consultation to the cardiologist at a higher cost; the patient under
+            // treatment stays, the surgery never goes to the cardiologist nor leaves its room
+            boolean planned = moves.size() == 5 && 
+                              targets.get("Doctor_0_3").equals("Doctor_1") && 
+                              targets.get("Doctor_0_4").equals("Doctor_2") && 
+                              targets.get("Doctor_0_2").equals("Doctor_1") && 
+                              targets.get("Room_0_3").equals("Room_1") && 
+                              targets.get("Room_0_2").equals("Room_1") && 
+                              !targets.containsKey("Doctor_0_0") && !targets.containsKey("Doctor_0_1") && 
+                              !targets.containsKey("Room_0_1");
+            
+            // Patients already moving are left out, the limit is kept
+            List<MigrationPlanner.Move> limited = planner.plan(loads, new HashSet<>(Arrays.asList("Doctor_0_3")));
+            boolean excluded = true;
+            for (MigrationPlanner.Move move : limited) {
+                excluded &= !move.getPatientId().equals("Doctor_0_3");
+            }
+            return planned && excluded && new MigrationPlanner(2).plan(loads, new HashSet<>()).size() == 2;
+        });
+        
+        // Test 86: Patient Handoff Commits Or Rolls Back
+        test("Patient Handoff Commits Or Rolls Back", () -> {
+            ResourceLoad sourceLoad = migrationResource("Doctor_0", "DOCTOR", "GENERAL", 
+                "CONSULTATION", "CHECKUP", "XRAY", "CONSULTATION", "CHECKUP");
+            ResourceLoad targetLoad = migrationResource("Doctor_1", "DOCTOR", "GENERAL");
+            MigrationParticipant source = new MigrationParticipant(5);
+            MigrationParticipant target = new MigrationParticipant(2);
+            for (ResourceLoad.Assignment assignment : sourceLoad.getAssignments()) {
+                source.queue(assignment.getPatientId(), assignment.getTreatmentType());
+            }
+            source.start("Doctor_0_0");
+            List<MigrationPlanner.Move> moves = new MigrationPlanner(1)
+                .plan(Arrays.asList(sourceLoad, targetLoad), new HashSet<>());
+            
+            // Commit: offer, release, handoff
+            PatientMigration committed = new PatientMigration(moves.get(0), 5000);
+            String moved = committed.getPatientId();
+            boolean commit = target.offer(moved, "CHECKUP", true) && 
+                             committed.onAccepted() == PatientMigration.State.RELEASING && 
+                             source.release(moved) && committed.onReleased() == PatientMigration.State.HANDING_OFF && 
+                             target.handOff(moved) && committed.onHandedOff() == PatientMigration.State.COMMITTED && 
+                             target.isQueued(moved) && !source.isQueued(moved);
+            
+            // Treatment began meanwhile: the target drops its place, the source keeps the patient
+            PatientMigration started = new PatientMigration(moves.get(0), 5000);
+            target.offer("Doctor_0_0", "CONSULTATION", true);
+            started.onAccepted();
+            boolean startedRollback = !source.release("Doctor_0_0") && 
+                                      started.onTreatmentStarted() == PatientMigration.State.ROLLED_BACK && 
+                                      started.needsCancel() && !started.needsRestore();
+            target.cancel("Doctor_0_0");
+            
+            // Handoff reply lost: both sides roll back at the deadline
+            PatientMigration lost = new PatientMigration(moves.get(0), 5000);
+            target.offer("Doctor_0_3", "CONSULTATION", true);
+            lost.onAccepted();
+            source.release("Doctor_0_3");
+            lost.onReleased();
+            target.handOff("Doctor_0_3");
+            boolean timedOut = lost.onTimeout(4999) == PatientMigration.State.HANDING_OFF && 
+                               lost.onTimeout(5000) == PatientMigration.State.ROLLED_BACK && 
+                               lost.needsCancel() && lost.needsRestore();
+            target.cancel("Doctor_0_3");
+            source.restore("Doctor_0_3");
+            boolean restored = source.isQueued("Doctor_0_3") && !target.isQueued("Doctor_0_3") && 
+                               target.getOfferedCount() == 0;
+            
+            // Unsuitable or full target refuses, with nothing to undo
+            target.queue("Other", "CONSULTATION");
+            PatientMigration refused = new PatientMigration(moves.get(0), 5000);
+            boolean refusal = !target.offer("Doctor_0_2", "XRAY", true) && 
+                              !new MigrationParticipant(5).offer("Doctor_0_2", "SURGERY", false) && 
+                              refused.onRefused() == PatientMigration.State.ROLLED_BACK && 
+                              !refused.needsCancel() && !refused.needsRestore();
+            return commit && startedRollback && timedOut && restored && refusal;
+        });
+        
+        // Test 87: Balanced Patients Are Treated In Turn
+        test("Balanced Patients Are Treated In Turn", () -> {
+            AID balancerAID = new AID("LoadBalancer", AID.ISLOCALNAME);
+            LoadBalancerClient doctor = new LoadBalancerClient(5);
+            for (int i = 0; i < 5; i++) {
+                doctor.handle(balancerMessage(balancerAID, 
+                    HospitalMessage.encode(HospitalMessage.Opcode.ALLOCATE_PATIENT, "P" + i, "CONSULTATION")), type -> true);
+            }
+            String offer = HospitalMessage.encode(HospitalMessage.Opcode.OFFER_PATIENT, "Moved", "CONSULTATION");
+            boolean full = doctor.handle(balancerMessage(balancerAID, offer), type -> true)
+                                 .getPerformative() == ACLMessage.REFUSE;
+            
+            // Treated oldest first; a started patient can no longer be released
+            boolean inTurn = true;
+            for (int i = 0; i < 2; i++) {
+                String next = doctor.nextPatient();
+                inTurn &= ("P" + i).equals(next) && "CONSULTATION".equals(doctor.getTreatmentType(next));
+                doctor.started(next);
+                inTurn &= doctor.completed(next) != null;
+            }
+            doctor.started(doctor.nextPatient());
+            boolean kept = doctor.handle(balancerMessage(balancerAID, 
+                HospitalMessage.encode(HospitalMessage.Opcode.RELEASE_PATIENT, "P2")), type -> true)
+                .getContent().startsWith("TREATMENT_STARTED");
+            
+            // The places freed take offers again; patients from the scheduler are not reported
+            boolean freed = doctor.handle(balancerMessage(balancerAID, offer), type -> true)
+                                  .getPerformative() == ACLMessage.CONFIRM;
+            doctor.started("FromScheduler");
+            return full && inTurn && kept && freed && doctor.completed("FromScheduler") == null && 
+                   "P3".equals(doctor.nextPatient());
+        });
+        
+        // Test 88: Reported Completions Time The Doctors
+        test("Reported Completions Time The Doctors", () -> {
+            AID balancerAID = new AID("LoadBalancer", AID.ISLOCALNAME);
+            ShortestExpectedDelayStrategy strategy = new ShortestExpectedDelayStrategy();
+            LoadIndex index = new LoadIndex("DOCTOR", strategy::loadKey);
+            long[] time = new long[1];
+            long consultation = SchedulingAlgorithm.estimateTreatmentDuration("CONSULTATION");
+            HospitalMessage parser = new HospitalMessage();
+            boolean reported = true;
+            for (int d = 0; d < 2; d++) {
+                ResourceLoad load = new ResourceLoad(new AID("Doctor_" + d, AID.ISLOCALNAME), "DOCTOR", () -> time[0]);
+                index.add(load);
+                LoadBalancerClient doctor = new LoadBalancerClient(5);
+                for (int i = 0; i < 3; i++) {
+                    String patientId = "D" + d + "_" + i;
+                    load.incrementLoad();
+                    load.assignPatient(patientId, "CONSULTATION", consultation);
+                    doctor.handle(balancerMessage(balancerAID, 
+                        HospitalMessage.encode(HospitalMessage.Opcode.ALLOCATE_PATIENT, patientId, "CONSULTATION")), type -> true);
+                }
+                
+                // Doctor_0 takes three times the estimate; each completion goes back to the balancer
+                long start = time[0];
+                for (int i = 0; i < 3; i++) {
+                    String patientId = doctor.nextPatient();
+                    doctor.started(patientId);
+                    time[0] = start + (i + 1) * consultation * (d == 0 ? 3 : 1);
+                    ACLMessage free = doctor.completed(patientId);
+                    reported &= free != null && MessageProtocol.LOAD_BALANCING.equals(free.getConversationId()) && 
+                                balancerAID.equals(free.getAllReceiver().next()) && 
+                                parser.parse(free.getContent()) && 
+                                parser.getOpcode() == HospitalMessage.Opcode.RESOURCE_FREE;
+                    load.completePatient(parser.field(0));
+                    load.decrementLoad();
+                }
+                reported &= load.getRemainingWork() == 0 && load.getCompletedCount() == 3 && load.getCurrentLoad() == 0;
+            }
+            
+            // Same work queued on both: the faster doctor gets the next patient
+            for (int d = 0; d < 2; d++) {
+                index.get(d).assignPatient("Next" + d, "CONSULTATION", consultation);
+            }
+            ResourceLoad slow = index.get(0).getResource().getLocalName().equals("Doctor_0") ? index.get(0) : index.get(1);
+            return reported && slow.getServiceRate() < 0.5 && 
+                   strategy.selectResource(index, new Patient("P", 3, "CONSULTATION")).getLocalName().equals("Doctor_1");
+        });
+    }
+    
+    /**
+     * Message of the load-balancing conversation sent by the load balancer
+     */
+    private static ACLMessage balancerMessage(AID balancer, String content) {
+        ACLMessage message = new ACLMessage(ACLMessage.REQUEST);
+        message.setSender(balancer);
+        message.setConversationId(MessageProtocol.LOAD_BALANCING);
+        message.setContent(content);
+        return message;
+    }
+    
+    /**
+     * Resource with one assigned patient per treatment type, the first being treated
+     */
+    private static ResourceLoad migrationResource(String name, String type, String capability, String... treatments) {
+        ResourceLoad load = new ResourceLoad(new AID(name, AID.ISLOCALNAME), type);
+        load.setCapability(capability);
+        for (int i = 0; i < treatments.length; i++) {
+            load.incrementLoad();
+            load.assignPatient(name + "_" + i, treatments[i], SchedulingAlgorithm.estimateTreatmentDuration(treatments[i]));
+        }
+        return load;
+    }
+    
     /**
      * Helper Methods
      */
@@ -344,6 +2412,37 @@ public class SystemTestSuite {
         System.out.println("─".repeat(section.length()));
     }
     
+    private static DFAgentDescription registration(String localName, String... serviceTypes) {
+        DFAgentDescription description = new DFAgentDescription();
+        description.setName(new AID(localName, AID.ISLOCALNAME));
+        for (String serviceType : serviceTypes) {
+            ServiceDescription sd = new ServiceDescription();
+            sd.setType(serviceType);
+            description.addServices(sd);
+        }
+        return description;
+    }
+    
+    private static double bruteForceAssignment(double[] cost, int rows, int cols, int row, boolean[] used) {
+        if (row == rows) return 0;
+        int freeCols = 0;
+        for (boolean u : used) if (!u) freeCols++;
+        
+        double best = Double.MAX_VALUE;
+        if (rows - row > freeCols) {
+            // More rows than columns left: this row may stay unassigned
+            best = bruteForceAssignment(cost, rows, cols, row + 1, used);
+        }
+        for (int col = 0; col < cols; col++) {
+            if (!used[col]) {
+                used[col] = true;
+                best = Math.min(best, cost[row * cols + col] + bruteForceAssignment(cost, rows, cols, row + 1, used));
+                used[col] = false;
+            }
+        }
+        return best;
+    }
+    
     private static double calculateVariance(List<Integer> values) {
         double mean = values.stream().mapToInt(Integer::intValue).average().orElse(0);
         return values.stream()
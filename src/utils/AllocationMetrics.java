@@ -0,0 +1,89 @@
+package utils;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Allocation throughput and latency metrics for the scheduler
+ * Tracks allocations per second and enqueue-to-allocation latency
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class AllocationMetrics {
+
+    // Sliding window used for the allocation rate
+    public static final long RATE_WINDOW = 10000; // 10 seconds
+
+    private Map<String, Long> enqueueTimes;
+    private ArrayDeque<Long> recentAllocations;
+
+    private long totalAllocations;
+    private long totalLatency;
+    private long maxLatency;
+
+    public AllocationMetrics() {
+        this.enqueueTimes = new HashMap<>();
+        this.recentAllocations = new ArrayDeque<>();
+    }
+
+    public void recordEnqueue(String patientId) {
+        recordEnqueue(patientId, System.currentTimeMillis());
+    }
+
+    /**
+     * Remember when a patient entered the queue (re-queues keep the original time)
+     */
+    public void recordEnqueue(String patientId, long now) {
+        enqueueTimes.putIfAbsent(patientId, now);
+    }
+
+    public long recordAllocation(String patientId) {
+        return recordAllocation(patientId, System.currentTimeMillis());
+    }
+
+    /**
+     * Record a successful allocation and return its enqueue-to-allocation latency
+     */
+    public long recordAllocation(String patientId, long now) {
+        Long enqueued = enqueueTimes.remove(patientId);
+        long latency = enqueued != null ? now - enqueued : 0;
+
+        totalAllocations++;
+        totalLatency += latency;
+        if (latency > maxLatency) maxLatency = latency;
+
+        recentAllocations.addLast(now);
+        evictOldAllocations(now);
+        return latency;
+    }
+
+    /**
+     * Forget a patient that left the system without being allocated
+     */
+    public void forget(String patientId) {
+        enqueueTimes.remove(patientId);
+    }
+
+    public double getAllocationsPerSecond() {
+        return getAllocationsPerSecond(System.currentTimeMillis());
+    }
+
+    public double getAllocationsPerSecond(long now) {
+        evictOldAllocations(now);
+        return recentAllocations.size() / (RATE_WINDOW / 1000.0);
+    }
+
+    private void evictOldAllocations(long now) {
+        while (!recentAllocations.isEmpty() && now - recentAllocations.peekFirst() > RATE_WINDOW) {
+            recentAllocations.pollFirst();
+        }
+    }
+
+    public double getAverageLatency() {
+        return totalAllocations > 0 ? (double) totalLatency / totalAllocations : 0;
+    }
+
+    public long getMaxLatency() { return maxLatency; }
+    public long getTotalAllocations() { return totalAllocations; }
+    public int getPendingCount() { return enqueueTimes.size(); }
+}
@@ -0,0 +1,254 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Minimum-cost assignment solver (Hungarian method, shortest augmenting path form)
+ * Works on a flat row-major cost array so that large batches stay allocation free
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class AssignmentSolver {
+    
+    // Cost marking a pair that must never be assigned
+    public static final double INFEASIBLE = 1e9;
+    
+    private static final double INF = Double.MAX_VALUE;
+    
+    /**
+     * Solve a rows x cols assignment problem given as a row-major cost array.
+     * Returns for each row the assigned column, or -1 when the row is left
+     * unassigned (more rows than columns) or only infeasible columns remain.
+     */
+    public static int[] solve(double[] cost, int rows, int cols) {
+        int[] rowToCol = new int[rows];
+        Arrays.fill(rowToCol, -1);
+        if (rows == 0 || cols == 0) {
+            return rowToCol;
+        }
+        
+        // Pad to a square problem with zero-cost dummy rows or columns
+        int n = Math.max(rows, cols);
+        double[] square = cost;
+        if (rows != cols) {
+            square = new double[n * n];
+            for (int i = 0; i < rows; i++) {
+                System.arraycopy(cost, i * cols, square, i * n, cols);
+            }
+        }
+        
+        int[] rowSol = new int[n];
+        solveSquare(square, n, rowSol);
+        
+        for (int i = 0; i < rows; i++) {
+            int j = rowSol[i];
+            if (j < cols && cost[i * cols + j] < INFEASIBLE) {
+                rowToCol[i] = j;
+            }
+        }
+        return rowToCol;
+    }
+    
+    /**
+     * Jonker-Volgenant shortest augmenting path algorithm on a dense n x n matrix:
+     * column reduction, reduction transfer and augmenting row reduction build a
+     * partial assignment cheaply, then the remaining free rows are augmented
+     */
+    private static void solveSquare(double[] c, int n, int[] rowSol) {
+        int[] colSol = new int[n];
+        int[] matches = new int[n];
+        int[] free = new int[n];
+        int[] colList = new int[n];
+        int[] pred = new int[n];
+        double[] d = new double[n];
+        double[] v = new double[n];
+        
+        // Column reduction (reverse order gives better results)
+        for (int j = n - 1; j >= 0; j--) {
+            double min = c[j];
+            int iMin = 0;
+            for (int i = 1; i < n; i++) {
+                if (c[i * n + j] < min) {
+                    min = c[i * n + j];
+                    iMin = i;
+                }
+            }
+            v[j] = min;
+            if (++matches[iMin] == 1) {
+                rowSol[iMin] = j;
+                colSol[j] = iMin;
+            } else {
+                colSol[j] = -1;
+            }
+        }
+        
+        // Reduction transfer from rows matched exactly once
+        int numFree = 0;
+        for (int i = 0; i < n; i++) {
+            if (matches[i] == 0) {
+                free[numFree++] = i;
+            } else if (matches[i] == 1) {
+                int j1 = rowSol[i];
+                double min = INF;
+                int rowOffset = i * n;
+                for (int j = 0; j < n; j++) {
+                    if (j != j1 && c[rowOffset + j] - v[j] < min) {
+                        min = c[rowOffset + j] - v[j];
+                    }
+                }
+                v[j1] -= min;
+            }
+        }
+        
+        // Augmenting row reduction, two passes
+        for (int pass = 0; pass < 2; pass++) {
+            int k = 0;
+            int previousFree = numFree;
+            numFree = 0;
+            while (k < previousFree) {
+                int i = free[k++];
+                int rowOffset = i * n;
+                double uMin = c[rowOffset] - v[0];
+                double uSubMin = INF;
+                int j1 = 0;
+                int j2 = 0;
+                for (int j = 1; j < n; j++) {
+                    double h = c[rowOffset + j] - v[j];
+                    if (h < uSubMin) {
+                        if (h >= uMin) {
+                            uSubMin = h;
+                            j2 = j;
+                        } else {
+                            uSubMin = uMin;
+                            uMin = h;
+                            j2 = j1;
+                            j1 = j;
+                        }
+                    }
+                }
+                
+                int i0 = colSol[j1];
+                if (uMin < uSubMin) {
+                    v[j1] -= uSubMin - uMin;
+                } else if (i0 >= 0) {
+                    j1 = j2;
+                    i0 = colSol[j2];
+                }
+                rowSol[i] = j1;
+                colSol[j1] = i;
+                if (i0 >= 0) {
+                    if (uMin < uSubMin) {
+                        free[--k] = i0;
+                    } else {
+                        free[numFree++] = i0;
+                    }
+                }
+            }
+        }
+        
+        // Augment the solution for each remaining free row
+        for (int f = 0; f < numFree; f++) {
+            int freeRow = free[f];
+            int rowOffset = freeRow * n;
+            for (int j = 0; j < n; j++) {
+                d[j] = c[rowOffset + j] - v[j];
+                pred[j] = freeRow;
+                colList[j] = j;
+            }
+            
+            int low = 0;
+            int up = 0;
+            int last = 0;
+            int endOfPath = -1;
+            double min = 0;
+            while (endOfPath < 0) {
+                if (up == low) {
+                    // Collect the columns at minimum distance
+                    last = low - 1;
+                    min = d[colList[up++]];
+                    for (int k = up; k < n; k++) {
+                        int j = colList[k];
+                        double h = d[j];
+                        if (h <= min) {
+                            if (h < min) {
+                                up = low;
+                                min = h;
+                            }
+                            colList[k] = colList[up];
+                            colList[up++] = j;
+                        }
+                    }
+                    for (int k = low; k < up; k++) {
+                        if (colSol[colList[k]] < 0) {
+                            endOfPath = colList[k];
+                            break;
+                        }
+                    }
+                }
+                
+                if (endOfPath < 0) {
+                    // Scan a column at minimum distance
+                    int j1 = colList[low++];
+                    int i = colSol[j1];
+                    int scanOffset = i * n;
+                    double h = c[scanOffset + j1] - v[j1] - min;
+                    for (int k = up; k < n; k++) {
+                        int j = colList[k];
+                        double v2 = c[scanOffset + j] - v[j] - h;
+                        if (v2 < d[j]) {
+                            pred[j] = i;
+                            if (v2 == min) {
+                                if (colSol[j] < 0) {
+                                    endOfPath = j;
+                                    break;
+                                }
+                                colList[k] = colList[up];
+                                colList[up++] = j;
+                            }
+                            d[j] = v2;
+                        }
+                    }
+                }
+            }
+            
+            // Update the prices of the scanned columns
+            for (int k = 0; k <= last; k++) {
+                int j1 = colList[k];
+                v[j1] += d[j1] - min;
+            }
+            
+            // Flip the augmenting path
+            int i;
+            do {
+                i = pred[endOfPath];
+                colSol[endOfPath] = i;
+                int j1 = endOfPath;
+                endOfPath = rowSol[i];
+                rowSol[i] = j1;
+            } while (i != freeRow);
+        }
+    }
+    
+    /**
+     * Convenience overload for a rectangular two-dimensional cost matrix
+     */
+    public static int[] solve(double[][] cost) {
+        int rows = cost.length;
+        int cols = rows > 0 ? cost[0].length : 0;
+        double[] flat = new double[rows * cols];
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(cost[i], 0, flat, i * cols, cols);
+        }
+        return solve(flat, rows, cols);
+    }
+    
+    /**
+     * Total cost of an assignment, ignoring unassigned rows
+     */
+    public static double totalCost(double[] cost, int cols, int[] rowToCol) {
+        double total = 0;
+        for (int i = 0; i < rowToCol.length; i++) {
+            if (rowToCol[i] >= 0) total += cost[i * cols + rowToCol[i]];
+        }
+        return total;
+    }
+}
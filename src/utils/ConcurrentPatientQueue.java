@@ -0,0 +1,148 @@
+package utils;
+
+import models.Patient;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free patient queue for several allocation workers draining it at once.
+ * Entries live in a concurrent skip list ordered by the same fixed aging key as
+ * IndexedPatientHeap. Each entry can be claimed exactly once (by poll, remove or a
+ * re-prioritization), so a patient is never handed out twice; claimed entries that
+ * are still in the skip list are skipped by poll.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class ConcurrentPatientQueue implements PatientQueue {
+    
+    private double agingRate;
+    private ConcurrentSkipListSet<Entry> entries;
+    private Map<String, Entry> index;
+    private AtomicLong nextSequence;
+    private AtomicInteger size;
+    
+    public ConcurrentPatientQueue() {
+        this(IndexedPatientHeap.DEFAULT_AGING_RATE);
+    }
+    
+    public ConcurrentPatientQueue(double agingRate) {
+        this.agingRate = agingRate;
+        this.entries = new ConcurrentSkipListSet<>();
+        this.index = new ConcurrentHashMap<>();
+        this.nextSequence = new AtomicLong();
+        this.size = new AtomicInteger();
+    }
+    
+    @Override
+    public void offer(Patient patient) {
+        Entry entry = new Entry(patient, keyOf(patient), nextSequence.getAndIncrement());
+        Entry previous = index.put(patient.getId(), entry);
+        
+        // Replace the previous entry of the patient, unless a poll got it first
+        if (previous != null && previous.claim()) {
+            entries.remove(previous);
+            size.decrementAndGet();
+        }
+        size.incrementAndGet();
+        entries.add(entry);
+    }
+    
+    @Override
+    public Patient poll() {
+        Entry entry;
+        while ((entry = entries.pollFirst()) != null) {
+            if (entry.claim()) {
+                index.remove(entry.patient.getId(), entry);
+                size.decrementAndGet();
+                return entry.patient;
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public Patient remove(String patientId) {
+        Entry entry = index.get(patientId);
+        if (entry == null || !entry.claim()) {
+            return null;
+        }
+        index.remove(patientId, entry);
+        entries.remove(entry);
+        size.decrementAndGet();
+        return entry.patient;
+    }
+    
+    /**
+     * Claim the current entry and queue a new one with the updated key;
+     * fails if the patient was polled or removed meanwhile
+     */
+    @Override
+    public boolean updateUrgency(String patientId, int urgencyLevel) {
+        Entry entry = index.get(patientId);
+        if (entry == null || !entry.claim()) {
+            return false;
+        }
+        entries.remove(entry);
+        entry.patient.setUrgencyLevel(urgencyLevel);
+        
+        // Same sequence number: the patient keeps its place among equal keys
+        Entry updated = new Entry(entry.patient, keyOf(entry.patient), entry.sequence);
+        if (index.replace(patientId, entry, updated)) {
+            entries.add(updated);
+        } else {
+            // The patient was offered again meanwhile: that entry replaces this one
+            size.decrementAndGet();
+        }
+        return true;
+    }
+    
+    @Override
+    public boolean contains(String patientId) {
+        return index.containsKey(patientId);
+    }
+    
+    @Override
+    public int size() {
+        return Math.max(0, size.get());
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    private double keyOf(Patient patient) {
+        return patient.getUrgencyLevel() * 10 - patient.getArrivalTime() / 60000.0 * agingRate;
+    }
+    
+    /**
+     * Skip list entry: highest key first, then earliest queued
+     */
+    private static class Entry implements Comparable<Entry> {
+        final Patient patient;
+        final double key;
+        final long sequence;
+        final AtomicBoolean claimed = new AtomicBoolean();
+        
+        Entry(Patient patient, double key, long sequence) {
+            this.patient = patient;
+            this.key = key;
+            this.sequence = sequence;
+        }
+        
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+        
+        @Override
+        public int compareTo(Entry other) {
+            if (key != other.key) {
+                return key > other.key ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Consistent-hash ring mapping partition keys (departments) to scheduler shards.
+ * Each shard is placed on the ring at several virtual points, so adding or
+ * removing a shard only moves the keys of its neighbours.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class ConsistentHashRing {
+    
+    public static final int DEFAULT_VIRTUAL_NODES = 64;
+    
+    private int virtualNodes;
+    private TreeMap<Long, String> ring;
+    private Set<String> nodes;
+    
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+    
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        this.ring = new TreeMap<>();
+        this.nodes = new TreeSet<>();
+    }
+    
+    public ConsistentHashRing(Collection<String> nodes) {
+        this();
+        for (String node : nodes) {
+            addNode(node);
+        }
+    }
+    
+    public void addNode(String node) {
+        if (nodes.add(node)) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+    
+    public void removeNode(String node) {
+        if (nodes.remove(node)) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.remove(hash(node + "#" + i));
+            }
+        }
+    }
+    
+    /**
+     * Shard owning the key: first virtual point clockwise from the key's hash
+     */
+    public String getNode(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+    
+    /**
+     * First node clockwise from the key's hash that is accepted, e.g. the owner or,
+     * when the owner is full, the next node with room; null if none is accepted
+     */
+    public String getNode(String key, Predicate<String> accept) {
+        long start = hash(key);
+        Set<String> rejected = null; // Created once the owner is refused
+        for (SortedMap<Long, String> arc : Arrays.asList(ring.tailMap(start), ring.headMap(start))) {
+            for (String node : arc.values()) {
+                if (rejected != null && rejected.contains(node)) {
+                    continue;
+                }
+                if (accept.test(node)) {
+                    return node;
+                }
+                if (rejected == null) {
+                    rejected = new HashSet<>();
+                }
+                rejected.add(node);
+                if (rejected.size() == nodes.size()) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+    
+    public Set<String> getNodes() {
+        return Collections.unmodifiableSet(nodes);
+    }
+    
+    public int size() {
+        return nodes.size();
+    }
+    
+    /**
+     * 64-bit FNV-1a followed by a final avalanche step, stable across JVMs
+     * (String.hashCode would cluster the virtual points of similar names)
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,379 @@
+package utils;
+
+/**
+ * Typed view of the text content of hospital ACL messages: an opcode followed by
+ * colon-separated fields, e.g. HOLD_RESOURCE:<patientId>:<treatmentType>.
+ *
+ * A field containing ':' or '\' is escaped with a backslash, so identifiers may
+ * contain colons. Contents without escapes are the plain format used so far.
+ *
+ * Parsing records the field boundaries in place instead of splitting the content:
+ * an agent keeps one instance, re-parses it for every message and only builds
+ * strings for the fields it reads. Agents run their behaviours on a single thread,
+ * so a parser instance is not thread-safe.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class HospitalMessage {
+    
+    /**
+     * Message opcodes, named after the keyword that starts the content
+     */
+    public enum Opcode {
+        // Scheduler -> resources
+        CHECK_AVAILABILITY,
+        ASSIGN_PATIENT,
+        ALLOCATE_RESOURCE,
+        HOLD_RESOURCE,
+        COMMIT_RESOURCE,
+        RELEASE_HOLD,
+        RELEASE_RESOURCE,
+        RELEASE_ROOM,
+        
+        // Resources -> scheduler
+        RESOURCE_AVAILABLE,
+        RESOURCE_BUSY,
+        ASSIGNED,
+        ALLOCATED,
+        NOT_AVAILABLE,
+        HELD,
+        COMMITTED,
+        HOLD_EXPIRED,
+        RELEASED,
+        RESOURCE_STATE,
+        DOCTOR_AVAILABLE,
+        ROOM_AVAILABLE,
+        
+        // Load balancer -> resources
+        ALLOCATE_PATIENT,
+        OFFER_PATIENT,
+        RELEASE_PATIENT,
+        HANDOFF_PATIENT,
+        CANCEL_OFFER,
+        RESTORE_PATIENT,
+        
+        // Resources -> load balancer
+        TREATMENT_STARTED,
+        RESOURCE_FREE,
+        
+        // Scheduler <-> patients and peer shards
+        TREATMENT_COMPLETE,
+        RESOURCES_ALLOCATED,
+        ALLOCATION_FAILED,
+        STEAL_WORK,
+        
+        // Agents -> monitoring
+        PATIENT_REGISTERED,
+        PATIENT_WAITING,
+        PATIENT_TREATED,
+        RESOURCE_STATUS,
+        ALLOCATION_SUCCESS,
+        WAIT_TIME,
+        ALLOCATION_METRICS,
+        LATENCY_HISTOGRAM
+    }
+    
+    public static final int MAX_FIELDS = 8;
+    
+    private static final char SEPARATOR = ':';
+    private static final char ESCAPE = '\\';
+    
+    // Powers of ten exactly representable as doubles
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    
+    // Open-addressing table from keyword hash to opcode, sized well above the opcode count
+    private static final Opcode[] LOOKUP = new Opcode[128];
+    private static final String[] KEYWORDS = new String[LOOKUP.length];
+    
+    static {
+        for (Opcode opcode : Opcode.values()) {
+            String keyword = opcode.name();
+            int slot = hash(keyword, 0, keyword.length()) & (LOOKUP.length - 1);
+            while (LOOKUP[slot] != null) {
+                slot = (slot + 1) & (LOOKUP.length - 1);
+            }
+            LOOKUP[slot] = opcode;
+            KEYWORDS[slot] = keyword;
+        }
+    }
+    
+    private String content;
+    private Opcode opcode;
+    private int fieldCount;
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private final boolean[] fieldEscaped = new boolean[MAX_FIELDS];
+    
+    /**
+     * Parse a message content, returns false if it does not start with a known opcode
+     */
+    public boolean parse(String content) {
+        return parse(content, 0, content == null ? 0 : content.length());
+    }
+    
+    /**
+     * Parse the content held in a range of a larger text, e.g. one event of a
+     * telemetry batch, without extracting it
+     */
+    public boolean parse(String content, int from, int to) {
+        this.content = content;
+        this.opcode = null;
+        this.fieldCount = 0;
+        if (content == null) {
+            return false;
+        }
+        
+        int length = to;
+        int keywordEnd = content.indexOf(SEPARATOR, from);
+        if (keywordEnd < 0 || keywordEnd > length) {
+            keywordEnd = length;
+        }
+        opcode = lookup(content, from, keywordEnd);
+        if (opcode == null) {
+            return false;
+        }
+        
+        if (keywordEnd == length) {
+            return true;
+        }
+        int escape = content.indexOf(ESCAPE, keywordEnd);
+        if (escape < 0 || escape >= length) {
+            // Plain content: fields end at the next separator
+            int start = keywordEnd + 1;
+            while (fieldCount < MAX_FIELDS) {
+                int end = content.indexOf(SEPARATOR, start);
+                if (end < 0 || end > length) {
+                    end = length;
+                }
+                fieldStart[fieldCount] = start;
+                fieldEnd[fieldCount] = end;
+                fieldEscaped[fieldCount] = false;
+                fieldCount++;
+                if (end == length) {
+                    break;
+                }
+                start = end + 1;
+            }
+            return true;
+        }
+        
+        // Escaped content: record field boundaries, skipping escaped characters
+        int start = keywordEnd + 1;
+        boolean escaped = false;
+        for (int i = start; i <= length; i++) {
+            char c = i < length ? content.charAt(i) : SEPARATOR;
+            if (c == ESCAPE && i + 1 < length) {
+                escaped = true;
+                i++;
+            } else if (c == SEPARATOR) {
+                if (fieldCount == MAX_FIELDS) {
+                    // Fields past MAX_FIELDS are ignored
+                    break;
+                }
+                fieldStart[fieldCount] = start;
+                fieldEnd[fieldCount] = i;
+                fieldEscaped[fieldCount] = escaped;
+                fieldCount++;
+                start = i + 1;
+                escaped = false;
+            }
+        }
+        return true;
+    }
+    
+    public Opcode getOpcode() {
+        return opcode;
+    }
+    
+    public int getFieldCount() {
+        return fieldCount;
+    }
+    
+    /**
+     * Field value with escapes removed, null if the message has fewer fields
+     */
+    public String field(int index) {
+        if (index >= fieldCount) {
+            return null;
+        }
+        if (!fieldEscaped[index]) {
+            return content.substring(fieldStart[index], fieldEnd[index]);
+        }
+        StringBuilder value = new StringBuilder(fieldEnd[index] - fieldStart[index]);
+        for (int i = fieldStart[index]; i < fieldEnd[index]; i++) {
+            char c = content.charAt(i);
+            if (c == ESCAPE && i + 1 < fieldEnd[index]) {
+                c = content.charAt(++i);
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+    
+    /**
+     * Compare a field with a value without extracting it
+     */
+    public boolean fieldEquals(int index, String value) {
+        if (index >= fieldCount || value == null) {
+            return false;
+        }
+        if (fieldEscaped[index]) {
+            return value.equals(field(index));
+        }
+        int length = fieldEnd[index] - fieldStart[index];
+        return length == value.length() && content.regionMatches(fieldStart[index], value, 0, length);
+    }
+    
+    /**
+     * Decimal integer field parsed in place
+     */
+    public long longField(int index) {
+        if (index >= fieldCount || fieldEnd[index] == fieldStart[index]) {
+            throw new NumberFormatException("Missing numeric field " + index + " in " + content);
+        }
+        int i = fieldStart[index];
+        boolean negative = content.charAt(i) == '-';
+        if (negative) i++;
+        if (i == fieldEnd[index]) {
+            throw new NumberFormatException("Invalid numeric field " + index + " in " + content);
+        }
+        long value = 0;
+        for (; i < fieldEnd[index]; i++) {
+            int digit = content.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid numeric field " + index + " in " + content);
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+    
+    public int intField(int index) {
+        return (int) longField(index);
+    }
+    
+    /**
+     * Decimal field parsed in place when it is a plain decimal of at most 15 digits
+     * (exact as a long divided by a power of ten), otherwise by Double.parseDouble
+     */
+    public double doubleField(int index) {
+        if (index >= fieldCount) {
+            throw new NumberFormatException("Missing numeric field " + index + " in " + content);
+        }
+        int i = fieldStart[index];
+        int end = fieldEnd[index];
+        boolean negative = i < end && content.charAt(i) == '-';
+        if (negative) i++;
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++) {
+            char c = content.charAt(i);
+            if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (c >= '0' && c <= '9' && digits < 15) {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (fractionDigits >= 0) fractionDigits++;
+            } else {
+                break;
+            }
+        }
+        if (i < end || digits == 0 || fractionDigits >= POWERS_OF_TEN.length) {
+            // Exponent, long mantissa, escapes or invalid: let the JDK decide
+            return Double.parseDouble(field(index));
+        }
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+    
+    /**
+     * Opcode of a content without recording its fields
+     */
+    public static Opcode opcodeOf(String content) {
+        if (content == null) {
+            return null;
+        }
+        int keywordEnd = content.indexOf(SEPARATOR);
+        return lookup(content, 0, keywordEnd < 0 ? content.length() : keywordEnd);
+    }
+    
+    private static Opcode lookup(String content, int start, int keywordEnd) {
+        int slot = hash(content, start, keywordEnd) & (LOOKUP.length - 1);
+        while (LOOKUP[slot] != null) {
+            String keyword = KEYWORDS[slot];
+            if (keyword.length() == keywordEnd - start && content.startsWith(keyword, start)) {
+                return LOOKUP[slot];
+            }
+            slot = (slot + 1) & (LOOKUP.length - 1);
+        }
+        return null;
+    }
+    
+    /**
+     * Hash of a keyword from its length and its first two and last characters,
+     * enough to spread the opcodes without reading the whole keyword
+     */
+    private static int hash(String text, int start, int end) {
+        if (end - start < 2) {
+            return end - start;
+        }
+        return ((end - start) * 31 + text.charAt(start)) * 31 * 31 + 
+               text.charAt(start + 1) * 31 + text.charAt(end - 1);
+    }
+    
+    /**
+     * Message contents of an opcode and its fields. Fixed-arity overloads let the
+     * compiler build the content in a single allocation
+     */
+    public static String encode(Opcode opcode) {
+        return opcode.name();
+    }
+    
+    public static String encode(Opcode opcode, String field1) {
+        return opcode.name() + SEPARATOR + escape(field1);
+    }
+    
+    public static String encode(Opcode opcode, String field1, String field2) {
+        return opcode.name() + SEPARATOR + escape(field1) + SEPARATOR + escape(field2);
+    }
+    
+    public static String encode(Opcode opcode, String field1, String field2, String field3) {
+        return opcode.name() + SEPARATOR + escape(field1) + SEPARATOR + escape(field2) + 
+               SEPARATOR + escape(field3);
+    }
+    
+    public static String encode(Opcode opcode, String field1, String field2, String field3, String field4) {
+        return opcode.name() + SEPARATOR + escape(field1) + SEPARATOR + escape(field2) + 
+               SEPARATOR + escape(field3) + SEPARATOR + escape(field4);
+    }
+    
+    public static String encode(Opcode opcode, String field1, String field2, String field3, String field4, 
+                                String field5) {
+        return opcode.name() + SEPARATOR + escape(field1) + SEPARATOR + escape(field2) + 
+               SEPARATOR + escape(field3) + SEPARATOR + escape(field4) + SEPARATOR + escape(field5);
+    }
+    
+    /**
+     * Field as written in a content: separators and escapes are escaped, null is empty
+     */
+    public static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(SEPARATOR) < 0 && value.indexOf(ESCAPE) < 0) {
+            return value;
+        }
+        StringBuilder escaped = new StringBuilder(value.length() + 4);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == SEPARATOR || c == ESCAPE) {
+                escaped.append(ESCAPE);
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
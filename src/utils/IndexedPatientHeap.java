@@ -0,0 +1,241 @@
+package utils;
+
+import models.Patient;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Indexed d-ary max-heap of waiting patients, keyed by patient id.
+ * Patients are ordered by their aged priority (urgency * 10 + minutes waited).
+ * Since every patient ages at the same rate, the ordering between two patients
+ * never changes with time: each patient gets a fixed key when queued, which
+ * lets the heap age without ever being rebuilt.
+ * Not thread-safe: use ConcurrentPatientQueue when several threads share the queue.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class IndexedPatientHeap implements PatientQueue {
+    
+    public static final int DEFAULT_ARITY = 4;
+    
+    // Priority points gained per minute of waiting
+    public static final double DEFAULT_AGING_RATE = 1.0;
+    
+    private int arity;
+    private double agingRate;
+    
+    private Entry[] heap;
+    private int size;
+    private long nextSequence;
+    
+    // Patient id -> heap entry, which keeps track of its own position
+    private Map<String, Entry> entries;
+    
+    public IndexedPatientHeap() {
+        this(DEFAULT_ARITY, DEFAULT_AGING_RATE);
+    }
+    
+    public IndexedPatientHeap(int arity, double agingRate) {
+        if (arity < 2) {
+            throw new IllegalArgumentException("Heap arity must be at least 2");
+        }
+        this.arity = arity;
+        this.agingRate = agingRate;
+        this.heap = new Entry[16];
+        this.entries = new HashMap<>();
+    }
+    
+    /**
+     * Queue a patient; a patient already in the heap is re-prioritized instead
+     * of being added twice
+     */
+    @Override
+    public void offer(Patient patient) {
+        Entry entry = entries.get(patient.getId());
+        if (entry != null) {
+            entry.patient = patient;
+            changeKey(entry, keyOf(patient));
+            return;
+        }
+        
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        entry = new Entry(patient, keyOf(patient), nextSequence++);
+        entries.put(patient.getId(), entry);
+        entry.position = size;
+        heap[size++] = entry;
+        siftUp(entry);
+    }
+    
+    public Patient peek() {
+        return size > 0 ? heap[0].patient : null;
+    }
+    
+    /**
+     * Remove and return the patient with the highest aged priority
+     */
+    @Override
+    public Patient poll() {
+        if (size == 0) {
+            return null;
+        }
+        Entry head = heap[0];
+        entries.remove(head.patient.getId());
+        removeAt(0);
+        return head.patient;
+    }
+    
+    /**
+     * Remove a patient by id, e.g. when the patient leaves before being treated
+     */
+    @Override
+    public Patient remove(String patientId) {
+        Entry entry = entries.remove(patientId);
+        if (entry == null) {
+            return null;
+        }
+        removeAt(entry.position);
+        return entry.patient;
+    }
+    
+    /**
+     * Change the urgency of a queued patient and restore the heap order.
+     * Works both ways: raising urgency sifts up, lowering it sifts down.
+     */
+    @Override
+    public boolean updateUrgency(String patientId, int urgencyLevel) {
+        Entry entry = entries.get(patientId);
+        if (entry == null) {
+            return false;
+        }
+        entry.patient.setUrgencyLevel(urgencyLevel);
+        changeKey(entry, keyOf(entry.patient));
+        return true;
+    }
+    
+    @Override
+    public boolean contains(String patientId) {
+        return entries.containsKey(patientId);
+    }
+    
+    public Patient get(String patientId) {
+        Entry entry = entries.get(patientId);
+        return entry != null ? entry.patient : null;
+    }
+    
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * Priority of a patient at the given time, as used for the ordering
+     */
+    public double getEffectivePriority(Patient patient, long now) {
+        return patient.getUrgencyLevel() * 10 + (now - patient.getArrivalTime()) / 60000.0 * agingRate;
+    }
+    
+    /**
+     * Time-independent key: the effective priority minus the aging every
+     * patient has in common (now * rate)
+     */
+    private double keyOf(Patient patient) {
+        return patient.getUrgencyLevel() * 10 - patient.getArrivalTime() / 60000.0 * agingRate;
+    }
+    
+    private void removeAt(int position) {
+        int last = --size;
+        Entry moved = heap[last];
+        heap[last] = null;
+        if (position != last) {
+            // Fill the hole with the last entry, which may belong above or below it
+            heap[position] = moved;
+            moved.position = position;
+            siftUp(moved);
+            siftDown(moved);
+        }
+    }
+    
+    private void changeKey(Entry entry, double key) {
+        double previous = entry.key;
+        entry.key = key;
+        if (key > previous) {
+            siftUp(entry);
+        } else {
+            siftDown(entry);
+        }
+    }
+    
+    /**
+     * True if a ranks before b: higher key first, then earliest queued on ties
+     */
+    private static boolean before(Entry a, Entry b) {
+        if (a.key != b.key) {
+            return a.key > b.key;
+        }
+        return a.sequence < b.sequence;
+    }
+    
+    private void siftUp(Entry entry) {
+        int position = entry.position;
+        while (position > 0) {
+            int parent = (position - 1) / arity;
+            if (!before(entry, heap[parent])) {
+                break;
+            }
+            place(heap[parent], position);
+            position = parent;
+        }
+        place(entry, position);
+    }
+    
+    private void siftDown(Entry entry) {
+        int position = entry.position;
+        while (true) {
+            int first = position * arity + 1;
+            if (first >= size) {
+                break;
+            }
+            int best = first;
+            int end = Math.min(first + arity, size);
+            for (int child = first + 1; child < end; child++) {
+                if (before(heap[child], heap[best])) {
+                    best = child;
+                }
+            }
+            if (!before(heap[best], entry)) {
+                break;
+            }
+            place(heap[best], position);
+            position = best;
+        }
+        place(entry, position);
+    }
+    
+    private void place(Entry entry, int position) {
+        heap[position] = entry;
+        entry.position = position;
+    }
+    
+    /**
+     * Heap slot of a queued patient
+     */
+    private static class Entry {
+        Patient patient;
+        double key;
+        long sequence;
+        int position;
+        
+        Entry(Patient patient, double key, long sequence) {
+            this.patient = patient;
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -10,6 +10,9 @@ public class MessageProtocol {
     public static final String RESOURCE_ALLOCATION = "resource-allocation";
     public static final String STATUS_UPDATE = "status-update";
     public static final String RESOURCE_QUERY = "resource-query";
+    public static final String WORK_STEALING = "work-stealing";
+    public static final String TELEMETRY = "telemetry";
+    public static final String LOAD_BALANCING = "load-balancing";
     
     // Ontologies
     public static final String HOSPITAL_ONTOLOGY = "hospital-management";
@@ -23,6 +26,11 @@ public class MessageProtocol {
     public static final String CHECK_AVAILABILITY = "CHECK_AVAILABILITY";
     public static final String ALLOCATE_RESOURCE = "ALLOCATE_RESOURCE";
     public static final String RELEASE_RESOURCE = "RELEASE_RESOURCE";
+    public static final String RESOURCE_STATE = "RESOURCE_STATE";
+    public static final String HOLD_RESOURCE = "HOLD_RESOURCE";
+    public static final String COMMIT_RESOURCE = "COMMIT_RESOURCE";
+    public static final String RELEASE_HOLD = "RELEASE_HOLD";
+    public static final String STEAL_WORK = "STEAL_WORK";
     
     // Service types in Yellow Pages
     public static final String DOCTOR_SERVICE = "doctor-service";
@@ -30,4 +38,11 @@ public class MessageProtocol {
     public static final String EQUIPMENT_SERVICE = "equipment-service";
     public static final String SCHEDULER_SERVICE = "scheduler-service";
     public static final String PATIENT_SERVICE = "patient-service";
+    public static final String MONITORING_SERVICE = "monitoring-service";
+    
+    // Service property naming the shard of a sharded scheduler
+    public static final String SHARD_PROPERTY = "shard";
+    
+    // Period of the resource state refresh pushed to the scheduler
+    public static final long STATE_REFRESH_PERIOD = 10000; // 10 seconds
 }
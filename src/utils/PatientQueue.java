@@ -0,0 +1,37 @@
+package utils;
+
+import models.Patient;
+
+/**
+ * Queue of waiting patients, ordered by aged priority (urgency * 10 + minutes waited)
+ * and indexed by patient id
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public interface PatientQueue {
+    
+    /**
+     * Queue a patient; a patient already queued is re-prioritized, never duplicated
+     */
+    void offer(Patient patient);
+    
+    /**
+     * Remove and return the patient with the highest aged priority, or null
+     */
+    Patient poll();
+    
+    /**
+     * Remove a queued patient by id, returns null if not queued
+     */
+    Patient remove(String patientId);
+    
+    /**
+     * Change the urgency of a queued patient and restore the queue order
+     */
+    boolean updateUrgency(String patientId, int urgencyLevel);
+    
+    boolean contains(String patientId);
+    
+    int size();
+    
+    boolean isEmpty();
+}
@@ -0,0 +1,87 @@
+package utils;
+
+/**
+ * Tentative hold on a single resource for the two-phase reservation protocol
+ * A hold expires on its own if the coordinator never commits nor releases it
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class ReservationHold {
+    
+    // Holds not committed within this delay are dropped by the resource
+    public static final long DEFAULT_HOLD_TIMEOUT = 15000; // 15 seconds
+    
+    private long holdTimeout;
+    private String heldFor;
+    private long expiresAt;
+    
+    public ReservationHold() {
+        this(DEFAULT_HOLD_TIMEOUT);
+    }
+    
+    public ReservationHold(long holdTimeout) {
+        this.holdTimeout = holdTimeout;
+    }
+    
+    public boolean tryHold(String patientId) {
+        return tryHold(patientId, System.currentTimeMillis());
+    }
+    
+    /**
+     * Place a hold for the patient; fails if another patient holds the resource
+     */
+    public boolean tryHold(String patientId, long now) {
+        expireIfDue(now);
+        if (heldFor != null && !heldFor.equals(patientId)) {
+            return false;
+        }
+        heldFor = patientId;
+        expiresAt = now + holdTimeout;
+        return true;
+    }
+    
+    public boolean commit(String patientId) {
+        return commit(patientId, System.currentTimeMillis());
+    }
+    
+    /**
+     * Turn the patient's hold into an allocation; fails if the hold expired
+     */
+    public boolean commit(String patientId, long now) {
+        expireIfDue(now);
+        if (heldFor == null || !heldFor.equals(patientId)) {
+            return false;
+        }
+        heldFor = null;
+        return true;
+    }
+    
+    /**
+     * Drop the patient's hold; holds placed for other patients are left untouched
+     */
+    public boolean release(String patientId) {
+        if (heldFor == null || !heldFor.equals(patientId)) {
+            return false;
+        }
+        heldFor = null;
+        return true;
+    }
+    
+    public boolean expireIfDue() {
+        return expireIfDue(System.currentTimeMillis());
+    }
+    
+    /**
+     * Drop the current hold if its timeout has passed
+     */
+    public boolean expireIfDue(long now) {
+        if (heldFor != null && now >= expiresAt) {
+            heldFor = null;
+            return true;
+        }
+        return false;
+    }
+    
+    public boolean isHeld() { return heldFor != null; }
+    public String getHeldFor() { return heldFor; }
+    public long getHoldTimeout() { return holdTimeout; }
+}
@@ -0,0 +1,271 @@
+package utils;
+
+import java.util.*;
+
+/**
+ * In-memory availability index of hospital resources, fed by state deltas
+ * pushed from doctor, room and equipment agents.
+ * Doctors are keyed by specialization, rooms by room type and equipment by
+ * equipment type, so a match is a local lookup instead of a broadcast.
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class ResourceAvailabilityIndex {
+    
+    public static final String DOCTOR = "DOCTOR";
+    public static final String ROOM = "ROOM";
+    public static final String EQUIPMENT = "EQUIPMENT";
+    
+    // Entries not refreshed within this delay are considered stale
+    public static final long DEFAULT_STALE_AFTER = 30000; // 30 seconds
+    
+    private long staleAfter;
+    
+    // Resource class -> category -> names of available resources
+    private Map<String, Map<String, LinkedHashSet<String>>> available;
+    private Map<String, Entry> entries;
+    
+    public ResourceAvailabilityIndex() {
+        this(DEFAULT_STALE_AFTER);
+    }
+    
+    public ResourceAvailabilityIndex(long staleAfter) {
+        this.staleAfter = staleAfter;
+        this.available = new HashMap<>();
+        this.entries = new HashMap<>();
+        available.put(DOCTOR, new HashMap<>());
+        available.put(ROOM, new HashMap<>());
+        available.put(EQUIPMENT, new HashMap<>());
+    }
+    
+    public boolean update(String resourceClass, String name, String resourceId, String category,
+                          boolean isAvailable, long version) {
+        return update(resourceClass, name, resourceId, category, isAvailable, version, System.currentTimeMillis());
+    }
+    
+    /**
+     * Apply a state delta pushed by a resource agent.
+     * Deltas older than the last applied version are ignored (version 0 means unversioned).
+     * Returns true if the resource just became available.
+     */
+    public boolean update(String resourceClass, String name, String resourceId, String category,
+                          boolean isAvailable, long version, long now) {
+        Entry entry = entries.get(name);
+        if (entry != null && version > 0 && version < entry.version) {
+            return false; // Out-of-order delta
+        }
+        
+        boolean wasAvailable = entry != null && entry.available && !isStale(entry, now);
+        if (entry == null) {
+            entry = new Entry(resourceClass, name);
+            entries.put(name, entry);
+        } else if (entry.available) {
+            removeFromCategory(entry);
+        }
+        
+        entry.resourceId = resourceId;
+        entry.category = category;
+        entry.available = isAvailable;
+        entry.taken = false;
+        entry.lastUpdate = now;
+        if (version > 0) entry.version = version;
+        
+        if (isAvailable) {
+            available.get(resourceClass)
+                .computeIfAbsent(category, k -> new LinkedHashSet<>())
+                .add(name);
+        }
+        return isAvailable && !wasAvailable;
+    }
+    
+    public String findDoctor(String treatmentType) {
+        return findDoctor(treatmentType, System.currentTimeMillis());
+    }
+    
+    /**
+     * Find an available doctor whose specialization suits the treatment
+     */
+    public String findDoctor(String treatmentType, long now) {
+        for (Map.Entry<String, LinkedHashSet<String>> category : available.get(DOCTOR).entrySet()) {
+            if (SchedulingAlgorithm.isDoctorSuitable(category.getKey(), treatmentType)) {
+                String name = firstFresh(category.getValue(), now);
+                if (name != null) return name;
+            }
+        }
+        return null;
+    }
+    
+    public String findRoom(String preferredType) {
+        return findRoom(preferredType, System.currentTimeMillis());
+    }
+    
+    /**
+     * Find an available room, preferring the given room type
+     */
+    public String findRoom(String preferredType, long now) {
+        Map<String, LinkedHashSet<String>> rooms = available.get(ROOM);
+        LinkedHashSet<String> preferred = rooms.get(preferredType);
+        if (preferred != null) {
+            String name = firstFresh(preferred, now);
+            if (name != null) return name;
+        }
+        for (LinkedHashSet<String> names : rooms.values()) {
+            String name = firstFresh(names, now);
+            if (name != null) return name;
+        }
+        return null;
+    }
+    
+    public String findEquipment(String equipmentType) {
+        return findEquipment(equipmentType, System.currentTimeMillis());
+    }
+    
+    public String findEquipment(String equipmentType, long now) {
+        LinkedHashSet<String> names = available.get(EQUIPMENT).get(equipmentType);
+        return names != null ? firstFresh(names, now) : null;
+    }
+    
+    /**
+     * Returns the first non-stale name of the set, dropping stale ones on the way
+     */
+    private String firstFresh(LinkedHashSet<String> names, long now) {
+        Iterator<String> it = names.iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            if (!isStale(entries.get(name), now)) {
+                return name;
+            }
+            it.remove();
+            entries.get(name).available = false;
+        }
+        return null;
+    }
+    
+    /**
+     * Mark a resource as taken while a reservation is in flight
+     */
+    public void markBusy(String name) {
+        Entry entry = entries.get(name);
+        if (entry != null && entry.available) {
+            removeFromCategory(entry);
+            entry.available = false;
+            entry.taken = true;
+        }
+    }
+    
+    /**
+     * Give back a resource marked busy whose hold was never requested;
+     * ignored once a newer delta or a refusal has replaced that state
+     */
+    public void restore(String name) {
+        Entry entry = entries.get(name);
+        if (entry != null && entry.taken) {
+            entry.taken = false;
+            entry.available = true;
+            available.get(entry.resourceClass)
+                .computeIfAbsent(entry.category, k -> new LinkedHashSet<>())
+                .add(name);
+        }
+    }
+    
+    /**
+     * Forget the state of a resource whose reservation was refused:
+     * the next lookup will not return it until a fresh delta arrives
+     */
+    public void markStale(String name) {
+        markBusy(name);
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            entry.taken = false;
+            entry.lastUpdate = 0;
+        }
+    }
+    
+    public void remove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null && entry.available) {
+            removeFromCategory(entry);
+        }
+    }
+    
+    private void removeFromCategory(Entry entry) {
+        LinkedHashSet<String> names = available.get(entry.resourceClass).get(entry.category);
+        if (names != null) {
+            names.remove(entry.name);
+        }
+    }
+    
+    private boolean isStale(Entry entry, long now) {
+        return entry == null || now - entry.lastUpdate > staleAfter;
+    }
+    
+    public String getResourceId(String name) {
+        Entry entry = entries.get(name);
+        return entry != null ? entry.resourceId : null;
+    }
+    
+    public String getCategory(String name) {
+        Entry entry = entries.get(name);
+        return entry != null ? entry.category : null;
+    }
+    
+    public List<String> getAvailable(String resourceClass) {
+        return getAvailable(resourceClass, System.currentTimeMillis());
+    }
+    
+    /**
+     * Names of all fresh available resources of a class
+     */
+    public List<String> getAvailable(String resourceClass, long now) {
+        List<String> names = new ArrayList<>();
+        for (LinkedHashSet<String> category : available.get(resourceClass).values()) {
+            for (String name : category) {
+                if (!isStale(entries.get(name), now)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+    
+    public int getAvailableCount(String resourceClass) {
+        return getAvailableCount(resourceClass, System.currentTimeMillis());
+    }
+    
+    /**
+     * Number of fresh available resources of a class
+     */
+    public int getAvailableCount(String resourceClass, long now) {
+        int count = 0;
+        for (LinkedHashSet<String> category : available.get(resourceClass).values()) {
+            for (String name : category) {
+                if (!isStale(entries.get(name), now)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Index entry for a single resource agent
+     */
+    private static class Entry {
+        String resourceClass;
+        String name;
+        String resourceId;
+        String category;
+        boolean available;
+        boolean taken; // Marked busy locally, no delta received since
+        long version;
+        long lastUpdate;
+        
+        Entry(String resourceClass, String name) {
+            this.resourceClass = resourceClass;
+            this.name = name;
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package utils;
 
 import models.Patient;
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Scheduling algorithm for patient prioritization
@@ -10,25 +10,28 @@ import java.util.PriorityQueue;
  */
 public class SchedulingAlgorithm {
     
-    // Priority queue for patients based on urgency and waiting time
-    private PriorityQueue<Patient> patientQueue;
+    // Penalty per treatment hour for tying up a specialist with a non-specialized case
+    public static final double SPECIALIST_MISUSE_PER_HOUR = 4.0;
+    
+    // Indexed priority queue for patients, ordered by urgency aged with waiting time
+    private PatientQueue patientQueue;
     
     public SchedulingAlgorithm() {
-        // Custom comparator: Higher urgency first, then longer waiting time
-        this.patientQueue = new PriorityQueue<>(new Comparator<Patient>() {
-            @Override
-            public int compare(Patient p1, Patient p2) {
-                // First compare by urgency (higher urgency = higher priority)
-                int urgencyCompare = Integer.compare(p2.getUrgencyLevel(), p1.getUrgencyLevel());
-                if (urgencyCompare != 0) {
-                    return urgencyCompare;
-                }
-                // If same urgency, prioritize by waiting time (longer wait = higher priority)
-                return Long.compare(p1.getArrivalTime(), p2.getArrivalTime());
-            }
-        });
+        // Same ordering as calculatePriorityScore: urgency * 10 + minutes waited
+        this(new IndexedPatientHeap());
+    }
+    
+    /**
+     * Use a ConcurrentPatientQueue when several threads drain the queue
+     */
+    public SchedulingAlgorithm(PatientQueue patientQueue) {
+        this.patientQueue = patientQueue;
     }
     
+    /**
+     * Queue a patient; re-adding a queued patient updates its priority instead
+     * of queueing it twice
+     */
     public void addPatient(Patient patient) {
         patientQueue.offer(patient);
     }
@@ -37,6 +40,24 @@ public class SchedulingAlgorithm {
         return patientQueue.poll();
     }
     
+    /**
+     * Remove a waiting patient from the queue, returns null if not queued
+     */
+    public Patient removePatient(String patientId) {
+        return patientQueue.remove(patientId);
+    }
+    
+    /**
+     * Re-prioritize a waiting patient after its urgency was reassessed
+     */
+    public boolean updateUrgency(String patientId, int urgencyLevel) {
+        return patientQueue.updateUrgency(patientId, urgencyLevel);
+    }
+    
+    public boolean isQueued(String patientId) {
+        return patientQueue.contains(patientId);
+    }
+    
     public boolean hasWaitingPatients() {
         return !patientQueue.isEmpty();
     }
@@ -45,11 +66,40 @@ public class SchedulingAlgorithm {
         return patientQueue.size();
     }
     
+    /**
+     * Remove up to maxPatients patients from the head of the queue, in priority order
+     * (safe with several workers on a ConcurrentPatientQueue)
+     */
+    public List<Patient> pollBatch(int maxPatients) {
+        List<Patient> batch = new ArrayList<>(Math.min(maxPatients, patientQueue.size()));
+        while (batch.size() < maxPatients) {
+            // Another worker may empty the queue between a size check and the poll
+            Patient patient = patientQueue.poll();
+            if (patient == null) {
+                break;
+            }
+            batch.add(patient);
+        }
+        return batch;
+    }
+    
+    /**
+     * Hand over part of the queue to an idle scheduler shard: at most half of the
+     * waiting patients so that the victim keeps work of its own, in priority order
+     */
+    public List<Patient> stealBatch(int maxPatients) {
+        return pollBatch(Math.min(maxPatients, patientQueue.size() / 2));
+    }
+    
     /**
      * Calculate priority score for resource allocation
      */
     public static double calculatePriorityScore(Patient patient) {
-        long waitingTime = System.currentTimeMillis() - patient.getArrivalTime();
+        return calculatePriorityScore(patient, System.currentTimeMillis());
+    }
+    
+    public static double calculatePriorityScore(Patient patient, long now) {
+        long waitingTime = now - patient.getArrivalTime();
         double waitingMinutes = waitingTime / 60000.0;
         
         // Priority score formula: urgency * 10 + waiting_minutes
@@ -98,6 +148,115 @@ public class SchedulingAlgorithm {
         }
     }
     
+    /**
+     * Determine the room type best suited to a treatment type
+     */
+    public static String getPreferredRoomType(String treatmentType) {
+        switch (treatmentType.toUpperCase()) {
+            case "SURGERY":
+                return "SURGERY";
+            case "EMERGENCY":
+                return "EMERGENCY";
+            case "XRAY":
+            case "MRI":
+            case "CT_SCAN":
+                return "EXAMINATION";
+            default:
+                return "CONSULTATION";
+        }
+    }
+    
+    /**
+     * Department owning a treatment type, used as the shard partition key
+     */
+    public static String getDepartment(String treatmentType) {
+        switch (treatmentType.toUpperCase()) {
+            case "SURGERY":
+                return "SURGERY";
+            case "EMERGENCY":
+                return "EMERGENCY";
+            case "CARDIOLOGY":
+                return "CARDIOLOGY";
+            case "NEUROLOGY":
+                return "NEUROLOGY";
+            case "XRAY":
+            case "MRI":
+            case "CT_SCAN":
+                return "RADIOLOGY";
+            default:
+                return "GENERAL";
+        }
+    }
+    
+    /**
+     * Whether a treatment type can only be handled by a specialist
+     */
+    public static boolean requiresSpecialist(String treatmentType) {
+        switch (treatmentType.toUpperCase()) {
+            case "SURGERY":
+            case "EMERGENCY":
+            case "CARDIOLOGY":
+            case "NEUROLOGY":
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Cost of giving a doctor to a patient in a batch assignment: serving urgent, short
+     * treatments lowers the cost, keeping a specialist busy on a routine case raises it
+     */
+    public static double doctorAssignmentCost(Patient patient, String doctorSpecialization) {
+        if (!isDoctorSuitable(doctorSpecialization, patient.getTreatmentType())) {
+            return AssignmentSolver.INFEASIBLE;
+        }
+        // Urgency served per minute of doctor time (Smith's rule), with the urgency weight of the
+        // priority score. Its waiting-time part is left out: it already decides which patients enter the batch
+        double treatmentMinutes = estimateTreatmentDuration(patient.getTreatmentType()) / 60000.0;
+        double cost = -patient.getUrgencyLevel() * 10.0 / treatmentMinutes;
+        if (!doctorSpecialization.equalsIgnoreCase("GENERAL") && !requiresSpecialist(patient.getTreatmentType())) {
+            double treatmentHours = estimateTreatmentDuration(patient.getTreatmentType()) / 3600000.0;
+            cost += treatmentHours * SPECIALIST_MISUSE_PER_HOUR;
+        }
+        return cost;
+    }
+    
+    /**
+     * Batch mode: assign the given patients to free doctors by minimum-cost matching.
+     * Returns for each patient the index of its doctor, or -1 if it stays in the queue.
+     */
+    public static int[] planDoctorAssignment(List<Patient> batch, List<String> doctorSpecializations) {
+        int rows = batch.size();
+        int cols = doctorSpecializations.size();
+        double[] cost = new double[rows * cols];
+        for (int i = 0; i < rows; i++) {
+            Patient patient = batch.get(i);
+            for (int j = 0; j < cols; j++) {
+                cost[i * cols + j] = doctorAssignmentCost(patient, doctorSpecializations.get(j));
+            }
+        }
+        return AssignmentSolver.solve(cost, rows, cols);
+    }
+    
+    /**
+     * Batch mode: give each patient a free room, keeping preferred room types for
+     * the patients that need them. Returns the room index per patient, or -1.
+     */
+    public static int[] planRoomAssignment(List<Patient> batch, List<String> roomTypes) {
+        int rows = batch.size();
+        int cols = roomTypes.size();
+        double[] cost = new double[rows * cols];
+        for (int i = 0; i < rows; i++) {
+            String preferred = getPreferredRoomType(batch.get(i).getTreatmentType());
+            for (int j = 0; j < cols; j++) {
+                // Unassigned rows cost 0, so every match must stay negative
+                cost[i * cols + j] = preferred.equals(roomTypes.get(j)) ? -2.0 : -1.0;
+            }
+        }
+        return AssignmentSolver.solve(cost, rows, cols);
+    }
+    
     /**
      * Match doctor specialization with treatment type
      */
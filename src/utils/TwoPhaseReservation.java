@@ -0,0 +1,205 @@
+package utils;
+
+import java.util.*;
+
+/**
+ * Coordinator-side state of a two-phase reservation of doctor, room and equipment
+ * Holds are requested from all participants at once; the reservation commits when
+ * every participant has voted HELD and aborts on the first refusal or on timeout
+ * A committed reservation becomes final once every participant confirmed its commit,
+ * and is revoked when one of them fails it
+ * Master IA - Systèmes Multi-Agents Project
+ */
+public class TwoPhaseReservation {
+    
+    public enum State { HOLDING, COMMITTED, ABORTED, REVOKED }
+    
+    public enum Vote { PENDING, HELD, REFUSED }
+    
+    private String patientId;
+    private State state;
+    private Map<String, Participant> participants;
+    
+    public TwoPhaseReservation(String patientId) {
+        this.patientId = patientId;
+        this.state = State.HOLDING;
+        this.participants = new LinkedHashMap<>();
+    }
+    
+    /**
+     * Add the resource chosen for a class; fromIndex tells whether it came from the
+     * availability index rather than from a direct query
+     */
+    public void addParticipant(String resourceClass, String agentName, boolean fromIndex) {
+        participants.put(resourceClass, new Participant(resourceClass, agentName, fromIndex));
+    }
+    
+    public State onHeld(String resourceClass, String resourceId) {
+        Participant participant = participants.get(resourceClass);
+        if (participant != null && state == State.HOLDING) {
+            participant.vote = Vote.HELD;
+            participant.resourceId = resourceId;
+            if (allHeld()) {
+                state = State.COMMITTED;
+            }
+        }
+        return state;
+    }
+    
+    public State onRefused(String resourceClass) {
+        Participant participant = participants.get(resourceClass);
+        if (participant != null && state == State.HOLDING) {
+            participant.vote = Vote.REFUSED;
+            state = State.ABORTED;
+        }
+        return state;
+    }
+    
+    /**
+     * Abort if some participant has not voted in time
+     */
+    public State onTimeout() {
+        if (state == State.HOLDING) {
+            state = State.ABORTED;
+        }
+        return state;
+    }
+    
+    /**
+     * A participant confirmed its commit. Returns true for the confirmation that
+     * makes the reservation final, never after a revocation.
+     */
+    public boolean onCommitConfirmed(String resourceClass) {
+        Participant participant = participants.get(resourceClass);
+        if (participant == null || participant.commitConfirmed || state != State.COMMITTED) {
+            return false;
+        }
+        participant.commitConfirmed = true;
+        return isFinal();
+    }
+    
+    /**
+     * True when every participant confirmed its commit: the allocation can be counted
+     */
+    public boolean isFinal() {
+        if (state != State.COMMITTED) {
+            return false;
+        }
+        for (Participant participant : participants.values()) {
+            if (!participant.commitConfirmed) return false;
+        }
+        return !participants.isEmpty();
+    }
+    
+    /**
+     * A participant answered the commit with a failure, its hold having expired
+     * before the commit arrived: the reservation is revoked.
+     * Returns true only for the failure that revokes it.
+     */
+    public boolean onCommitFailed(String resourceClass) {
+        Participant participant = participants.get(resourceClass);
+        if (participant == null) {
+            return false;
+        }
+        participant.commitFailed = true;
+        if (state != State.COMMITTED) {
+            return false;
+        }
+        state = State.REVOKED;
+        return true;
+    }
+    
+    private boolean allHeld() {
+        for (Participant participant : participants.values()) {
+            if (participant.vote != Vote.HELD) return false;
+        }
+        return !participants.isEmpty();
+    }
+    
+    /**
+     * True when the abort was caused by a refused index candidate, meaning the
+     * index was out of date and a retry would query the agents directly
+     */
+    public boolean isRefusedFromIndex() {
+        for (Participant participant : participants.values()) {
+            if (participant.vote == Vote.REFUSED && participant.fromIndex) return true;
+        }
+        return false;
+    }
+    
+    public boolean isDecided() {
+        return state != State.HOLDING;
+    }
+    
+    /**
+     * Resource classes whose hold must be released after an abort: all but the
+     * refused ones, since a participant that has not voted may hold already
+     */
+    public List<String> getHoldsToRelease() {
+        List<String> holds = new ArrayList<>();
+        if (state == State.ABORTED) {
+            for (Participant participant : participants.values()) {
+                if (participant.vote != Vote.REFUSED) {
+                    holds.add(participant.resourceClass);
+                }
+            }
+        }
+        return holds;
+    }
+    
+    /**
+     * Resource classes to release after a revocation: all but the ones whose commit failed
+     */
+    public List<String> getCommitsToRelease() {
+        List<String> commits = new ArrayList<>();
+        if (state == State.REVOKED) {
+            for (Participant participant : participants.values()) {
+                if (!participant.commitFailed) {
+                    commits.add(participant.resourceClass);
+                }
+            }
+        }
+        return commits;
+    }
+    
+    public String getAgentName(String resourceClass) {
+        Participant participant = participants.get(resourceClass);
+        return participant != null ? participant.agentName : null;
+    }
+    
+    public String getResourceId(String resourceClass) {
+        Participant participant = participants.get(resourceClass);
+        return participant != null ? participant.resourceId : null;
+    }
+    
+    public Vote getVote(String resourceClass) {
+        Participant participant = participants.get(resourceClass);
+        return participant != null ? participant.vote : null;
+    }
+    
+    public Set<String> getResourceClasses() {
+        return participants.keySet();
+    }
+    
+    public String getPatientId() { return patientId; }
+    public State getState() { return state; }
+    
+    /**
+     * A resource taking part in the reservation
+     */
+    private static class Participant {
+        String resourceClass;
+        String agentName;
+        String resourceId;
+        boolean fromIndex;
+        boolean commitConfirmed;
+        boolean commitFailed;
+        Vote vote = Vote.PENDING;
+        
+        Participant(String resourceClass, String agentName, boolean fromIndex) {
+            this.resourceClass = resourceClass;
+            this.agentName = agentName;
+            this.fromIndex = fromIndex;
+        }
+    }
+}